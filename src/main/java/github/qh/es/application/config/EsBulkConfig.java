@@ -0,0 +1,160 @@
+package github.qh.es.application.config;
+
+import github.qh.es.infrastructure.document.DocumentWriteEvent;
+import github.qh.es.infrastructure.document.bulk.AdaptiveBulkIngester;
+import github.qh.es.infrastructure.document.bulk.BulkSpool;
+import github.qh.es.infrastructure.document.bulk.DeadLetterSink;
+import github.qh.es.infrastructure.document.bulk.LoggingDeadLetterSink;
+import github.qh.es.infrastructure.document.bulk.NdjsonBulkTransport;
+import github.qh.es.infrastructure.document.bulk.NdjsonFileImporter;
+import github.qh.es.infrastructure.document.bulk.PartitionedBulkIngester;
+import github.qh.es.infrastructure.document.bulk.SpooledBulkIngester;
+import github.qh.es.infrastructure.support.ByteBufferPool;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.function.BiConsumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-06- 4:02 下午
+ * @email quhao.mi@foxmail.com
+ * 批量写入组件配置
+ */
+@Slf4j
+@Configuration
+@EnableConfigurationProperties(EsBulkProperties.class)
+public class EsBulkConfig {
+
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    public AdaptiveBulkIngester adaptiveBulkIngester(RestHighLevelClient client, EsBulkProperties properties,
+                                                     ObjectProvider<DeadLetterSink> deadLetterSink,
+                                                     ObjectProvider<ByteBufferPool> bulkBufferPool) {
+        return new AdaptiveBulkIngester(bulkConsumer(client, bulkBufferPool.getIfAvailable()), properties,
+                deadLetterSink.getIfAvailable(LoggingDeadLetterSink::new));
+    }
+
+    /**
+     * 按 index + routing 分区的保证顺序写入，es.bulk.partition.enabled=true 时才创建
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "es.bulk.partition", name = "enabled", havingValue = "true")
+    public PartitionedBulkIngester partitionedBulkIngester(RestHighLevelClient client, EsBulkProperties properties,
+                                                           ObjectProvider<DeadLetterSink> deadLetterSink,
+                                                           ObjectProvider<ByteBufferPool> bulkBufferPool) {
+        BiConsumer<BulkRequest, ActionListener<BulkResponse>> consumer =
+                bulkConsumer(client, bulkBufferPool.getIfAvailable());
+        DeadLetterSink sink = deadLetterSink.getIfAvailable(LoggingDeadLetterSink::new);
+        EsBulkProperties.Partition partition = properties.getPartition();
+        return new PartitionedBulkIngester(() -> new AdaptiveBulkIngester(consumer, properties, sink, true),
+                partition.getCount(), partition.getDrainTimeout().toMillis());
+    }
+
+    /**
+     * bulk请求体使用的 buffer 池，es.bulk.body.pooled=true 时才创建
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "es.bulk.body", name = "pooled", havingValue = "true")
+    public ByteBufferPool bulkBufferPool(EsBulkProperties properties) {
+        EsBulkProperties.Body body = properties.getBody();
+        return new ByteBufferPool(body.getChunkBytes(), body.getMaxPooledChunks(), body.isDirect());
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "es.bulk.spool", name = "enabled", havingValue = "true")
+    public SpooledBulkIngester spooledBulkIngester(AdaptiveBulkIngester adaptiveBulkIngester,
+                                                   EsBulkProperties properties) throws IOException {
+        EsBulkProperties.Spool spool = properties.getSpool();
+        return new SpooledBulkIngester(
+                new BulkSpool(Paths.get(spool.getDirectory()), spool.getSegmentBytes()),
+                adaptiveBulkIngester,
+                spool.getCheckpointInterval(),
+                spool.getSyncInterval());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public NdjsonFileImporter ndjsonFileImporter(RestHighLevelClient client, EsBulkProperties properties,
+                                                 ObjectProvider<DeadLetterSink> deadLetterSink) {
+        return new NdjsonFileImporter(client.getLowLevelClient(), properties,
+                deadLetterSink.getIfAvailable(LoggingDeadLetterSink::new), eventPublisher);
+    }
+
+    /**
+     * 启动时导入 es.bulk.file-import.files，es.bulk.file-import.enabled=true 时才创建
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "es.bulk.file-import", name = "enabled", havingValue = "true")
+    public ApplicationRunner bulkFileImportRunner(NdjsonFileImporter importer, EsBulkProperties properties) {
+        EsBulkProperties.FileImport fileImport = properties.getFileImport();
+        return args -> {
+            for (String file : fileImport.getFiles()) {
+                //写入事件由 importer 自己发布
+                log.info("导入完成 {}", importer.importFile(Paths.get(file), fileImport.getIndex()));
+            }
+        };
+    }
+
+    /**
+     * 发送bulk请求，发送前和结束后（不论成功失败）各发布一次 DocumentWriteEvent：
+     * 发送前发布让存在过滤器（ExistsFilter）先记下id，客户端超时的写入也不会被判成一定不存在；
+     * 结束后发布让缓存失效，失败的请求也可能已经在集群上执行了。
+     * 不用 ActionListener.wrap：它在 onResponse 抛异常时会再回调 onFailure，同一个批次会被完成两次；
+     * 事件发布失败只记日志，批次照常完成
+     */
+    private BiConsumer<BulkRequest, ActionListener<BulkResponse>> bulkConsumer(RestHighLevelClient client,
+                                                                             ByteBufferPool pool) {
+        BiConsumer<BulkRequest, ActionListener<BulkResponse>> consumer;
+        if (pool != null) {
+            consumer = new NdjsonBulkTransport(client.getLowLevelClient(), pool, RequestOptions.DEFAULT);
+        } else {
+            consumer = (request, bulkListener) -> client.bulkAsync(request, RequestOptions.DEFAULT, bulkListener);
+        }
+        return (request, bulkListener) -> {
+            publishWrite(request);
+            consumer.accept(request, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse response) {
+                    publishWrite(request);
+                    bulkListener.onResponse(response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    publishWrite(request);
+                    bulkListener.onFailure(e);
+                }
+            });
+        };
+    }
+
+    private void publishWrite(BulkRequest request) {
+        try {
+            eventPublisher.publishEvent(DocumentWriteEvent.of(this, request));
+        } catch (RuntimeException e) {
+            log.error("发布bulk写入事件失败", e);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package github.qh.es.application.config;
+
+import github.qh.es.infrastructure.document.bulk.OverflowPolicy;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-06- 2:20 下午
+ * @email quhao.mi@foxmail.com
+ * 批量写入相关配置，前缀 es.bulk
+ */
+@Data
+@ConfigurationProperties(prefix = "es.bulk")
+public class EsBulkProperties {
+
+    /**
+     * 初始批次大小（字节）
+     */
+    private long initialBatchBytes = 1024 * 1024;
+
+    private long minBatchBytes = 256 * 1024;
+
+    private long maxBatchBytes = 16 * 1024 * 1024;
+
+    /**
+     * 每个成功批次后批次大小增加的步长（字节）
+     */
+    private long batchBytesStep = 512 * 1024;
+
+    /**
+     * 批次耗时超过目标值时批次大小的缩小比例
+     */
+    private double decreaseFactor = 0.75;
+
+    /**
+     * 初始在途批次数
+     */
+    private int initialConcurrency = 1;
+
+    private int minConcurrency = 1;
+
+    private int maxConcurrency = 8;
+
+    /**
+     * 连续成功多少批后并发数加一
+     */
+    private int concurrencyIncreaseInterval = 10;
+
+    /**
+     * 期望的单批次耗时（BulkResponse#getTook）
+     */
+    private Duration targetLatency = Duration.ofMillis(500);
+
+    /**
+     * 批次内被429拒绝的操作占比超过该值视为集群过载
+     */
+    private double rejectionRatioThreshold = 0.01;
+
+    /**
+     * 不满一批时的定时刷新间隔
+     */
+    private Duration flushInterval = Duration.ofSeconds(1);
+
+    /**
+     * 单条操作失败后的最大重试次数
+     */
+    private int maxRetries = 5;
+
+    /**
+     * 第一次重试前的等待时间，之后按指数增加
+     */
+    private Duration retryInitialBackoff = Duration.ofMillis(100);
+
+    private Duration retryMaxBackoff = Duration.ofSeconds(10);
+
+    /**
+     * 是否合并同一批次内对同一文档（index + id + routing）的写操作
+     */
+    private boolean coalesce = false;
+
+    /**
+     * 生产者和发送线程之间的有界队列
+     */
+    private Queue queue = new Queue();
+
+    /**
+     * 磁盘预写队列
+     */
+    private Spool spool = new Spool();
+
+    /**
+     * bulk请求体的序列化方式
+     */
+    private Body body = new Body();
+
+    /**
+     * 按 index + routing 分区的保证顺序写入
+     */
+    private Partition partition = new Partition();
+
+    /**
+     * NDJSON文件导入
+     */
+    private FileImport fileImport = new FileImport();
+
+    @Data
+    public static class FileImport {
+
+        /**
+         * 是否在启动时导入 files 里的文件
+         */
+        private boolean enabled = false;
+
+        /**
+         * 要导入的文件，每行一个文档，.gz 结尾的按gzip解压
+         */
+        private List<String> files = new ArrayList<>();
+
+        /**
+         * 写入的索引
+         */
+        private String index;
+
+        /**
+         * 文档id所在的顶层字段，设置后按这个字段写 _id，中断后重放已经写过的批次不会产生重复文档；
+         * 为空时由es生成id，重放会重复写入
+         */
+        private String idField;
+
+        /**
+         * 并行发送的线程数
+         */
+        private int workers = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * 单个bulk请求体的大小上限
+         */
+        private int bodyBytes = 8 * 1024 * 1024;
+
+        /**
+         * 每次映射的文件窗口大小，单行不能超过这个大小
+         */
+        private long mapWindowBytes = 1024 * 1024 * 1024;
+
+        /**
+         * 断点文件的目录，为空时放在数据文件旁边（文件名加 .checkpoint）
+         */
+        private String checkpointDirectory;
+
+        /**
+         * 持久化断点的间隔
+         */
+        private Duration checkpointInterval = Duration.ofSeconds(1);
+    }
+
+    @Data
+    public static class Partition {
+
+        /**
+         * 是否开启，开启后可以注入 PartitionedBulkIngester
+         */
+        private boolean enabled = false;
+
+        /**
+         * 分区数，默认等于cpu核数
+         */
+        private int count = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * 调整分区数或关闭时等待旧分区写完的最长时间
+         */
+        private Duration drainTimeout = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Body {
+
+        /**
+         * 是否把请求体直接写进池化 buffer 通过低级别客户端发送，代替 client.bulkAsync
+         */
+        private boolean pooled = false;
+
+        /**
+         * 是否使用堆外 buffer
+         */
+        private boolean direct = false;
+
+        /**
+         * 每块 buffer 的大小
+         */
+        private int chunkBytes = 64 * 1024;
+
+        /**
+         * 池里最多保留多少块 buffer
+         */
+        private int maxPooledChunks = 1024;
+    }
+
+    @Data
+    public static class Queue {
+
+        /**
+         * 队列最多容纳的字节数
+         */
+        private long maxBytes = 64 * 1024 * 1024;
+
+        /**
+         * 队列最多容纳的操作数
+         */
+        private int maxOperations = 100000;
+
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+        /**
+         * BLOCK 策略下生产者最多等待多久，超时后拒绝
+         */
+        private Duration blockTimeout = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Spool {
+
+        /**
+         * 是否开启，开启后可以注入 SpooledBulkIngester
+         */
+        private boolean enabled = false;
+
+        private String directory = "data/bulk-spool";
+
+        /**
+         * 单个段文件大小
+         */
+        private int segmentBytes = 64 * 1024 * 1024;
+
+        /**
+         * 持久化checkpoint、清理已确认段的间隔
+         */
+        private Duration checkpointInterval = Duration.ofSeconds(1);
+
+        /**
+         * 把映射内存刷到磁盘的间隔，0表示交给操作系统（只防进程崩溃，不防掉电）
+         */
+        private Duration syncInterval = Duration.ZERO;
+    }
+}
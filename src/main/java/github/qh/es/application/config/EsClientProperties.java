@@ -0,0 +1,256 @@
+package github.qh.es.application.config;
+
+import github.qh.es.infrastructure.support.BlockingCallExecutor;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-20- 10:05 上午
+ * @email quhao.mi@foxmail.com
+ * http客户端和连接池配置，前缀 es.client
+ * 默认值和 RestClientBuilder 的默认值一致，生产环境的推荐值见 application-prod.yml
+ */
+@Data
+@ConfigurationProperties(prefix = "es.client")
+public class EsClientProperties {
+
+    /**
+     * 节点列表，比如 http://es1:9200，为空时使用 es.host/es.port
+     */
+    private List<String> nodes = new ArrayList<>();
+
+    /**
+     * 每个节点的最大连接数
+     */
+    private int maxConnPerRoute = 10;
+
+    /**
+     * 所有节点的最大连接数
+     */
+    private int maxConnTotal = 30;
+
+    /**
+     * io线程数
+     */
+    private int ioThreadCount = Runtime.getRuntime().availableProcessors();
+
+    private Duration connectTimeout = Duration.ofSeconds(1);
+
+    private Duration socketTimeout = Duration.ofSeconds(30);
+
+    /**
+     * 从连接池获取连接的超时时间，为空时一直等待
+     */
+    private Duration connectionRequestTimeout;
+
+    /**
+     * 空闲连接保留多久，服务端返回 Keep-Alive 头时取较小值；为空时一直保留
+     */
+    private Duration keepAlive;
+
+    /**
+     * 是否用gzip压缩请求体
+     */
+    private boolean compression = false;
+
+    /**
+     * 请求体小于这个大小时不压缩
+     */
+    private int compressionMinBytes = 1024;
+
+    /**
+     * 定时打印连接池指标的间隔，0表示不打印
+     */
+    private Duration poolMetricsLogInterval = Duration.ZERO;
+
+    /**
+     * 定时从集群获取节点列表
+     */
+    private Sniff sniff = new Sniff();
+
+    /**
+     * 按节点负载和健康状况选择节点
+     */
+    private Balancer balancer = new Balancer();
+
+    /**
+     * 流式读取响应
+     */
+    private Streaming streaming = new Streaming();
+
+    /**
+     * 按响应时间自适应的并发限制
+     */
+    private Limiter limiter = new Limiter();
+
+    /**
+     * 按索引熔断
+     */
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    /**
+     * 批量执行同步调用的线程
+     */
+    private Executor executor = new Executor();
+
+    @Data
+    public static class Sniff {
+
+        private boolean enabled = false;
+
+        private Duration interval = Duration.ofMinutes(5);
+
+        /**
+         * 请求失败后多久再嗅探一次
+         */
+        private Duration afterFailureDelay = Duration.ofMinutes(1);
+
+        /**
+         * 嗅探到的节点使用的协议
+         */
+        private String scheme = "http";
+    }
+
+    @Data
+    public static class Balancer {
+
+        /**
+         * 关闭时使用 RestClient 默认的轮询
+         */
+        private boolean enabled = true;
+
+        /**
+         * 保留负载分数（响应时间 * (在途请求数 + 1)）不超过最优节点多少倍的节点，在它们之间轮询
+         */
+        private double slack = 1.5;
+
+        /**
+         * 连续失败多少次后隔离节点
+         */
+        private int failuresBeforeQuarantine = 3;
+
+        /**
+         * 隔离后第一次探测的等待时间，之后探测失败按指数增加
+         */
+        private Duration minQuarantine = Duration.ofSeconds(1);
+
+        private Duration maxQuarantine = Duration.ofMinutes(1);
+    }
+
+    /**
+     * 流式读取响应，前缀 es.client.streaming。
+     * 响应体边收边解析，内存占用只和这里的缓冲大小有关，和响应大小无关
+     */
+    @Data
+    public static class Streaming {
+
+        /**
+         * 每次从连接读取的块大小
+         */
+        private int chunkBytes = 64 * 1024;
+
+        /**
+         * 收到还没解析的数据超过这个值时暂停读取连接，解析追上后再继续
+         */
+        private int maxBufferedBytes = 1024 * 1024;
+
+        /**
+         * 错误响应（非2xx）最多保留多少字节用来生成异常
+         */
+        private int errorBodyLimit = 1024 * 1024;
+    }
+
+    /**
+     * 整个客户端的并发限制，前缀 es.client.limiter。
+     * 集群变慢时按响应时间缩小在途请求数的上限，超过上限的请求马上返回429，不在客户端堆积
+     */
+    @Data
+    public static class Limiter {
+
+        private boolean enabled = false;
+
+        private int initialLimit = 20;
+
+        private int minLimit = 2;
+
+        /**
+         * 超过连接池大小（maxConnTotal）的部分会在连接池里排队，排队时间也算在响应时间里
+         */
+        private int maxLimit = 200;
+
+        /**
+         * 短期响应时间超过长期平均的多少倍时开始缩小上限
+         */
+        private double tolerance = 1.5;
+
+        /**
+         * 新上限的权重，越大调整越快
+         */
+        private double smoothing = 0.2;
+
+        /**
+         * 出现429/502/503/504或连接失败时上限乘以这个值
+         */
+        private double backoffRatio = 0.9;
+
+        /**
+         * 每隔多久根据响应时间调整一次
+         */
+        private Duration window = Duration.ofSeconds(1);
+    }
+
+    /**
+     * 按索引熔断，前缀 es.client.circuit-breaker。节点级别的隔离见 Balancer
+     */
+    @Data
+    public static class CircuitBreaker {
+
+        private boolean enabled = false;
+
+        /**
+         * 统计窗口内失败比例达到多少时熔断
+         */
+        private double failureRate = 0.5;
+
+        /**
+         * 统计窗口内请求数不到这个值时不熔断
+         */
+        private int minRequests = 20;
+
+        private Duration window = Duration.ofSeconds(10);
+
+        /**
+         * 熔断多久后放行试探请求
+         */
+        private Duration openDuration = Duration.ofSeconds(5);
+    }
+
+    /**
+     * 执行同步调用的线程，前缀 es.client.executor，见 BlockingCallExecutor
+     */
+    @Data
+    public static class Executor {
+
+        private boolean enabled = false;
+
+        /**
+         * platform 或 virtual，virtual 需要 JDK 21，更早的JDK上退回 platform
+         */
+        private BlockingCallExecutor.Mode mode = BlockingCallExecutor.Mode.PLATFORM;
+
+        /**
+         * platform 模式的线程数
+         */
+        private int platformThreads = 200;
+
+        /**
+         * virtual 模式同时在途的调用数上限，超过的在虚拟线程里等待
+         */
+        private int maxConcurrency = 10_000;
+    }
+}
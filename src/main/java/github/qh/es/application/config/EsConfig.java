@@ -1,18 +1,42 @@
 package github.qh.es.application.config;
 
+import github.qh.es.infrastructure.client.GradientConcurrencyLimiter;
+import github.qh.es.infrastructure.client.HealthAwareNodeSelector;
+import github.qh.es.infrastructure.client.IndexCircuitBreaker;
+import github.qh.es.infrastructure.client.NodeStatsTracker;
+import github.qh.es.infrastructure.support.BlockingCallExecutor;
+import github.qh.es.infrastructure.support.ConnectionPoolMonitor;
+import github.qh.es.infrastructure.support.EsHttpAsyncClientBuilder;
+import github.qh.es.infrastructure.support.StreamingResponseReader;
 import org.apache.http.HttpHost;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.sniff.ElasticsearchNodesSniffer;
+import org.elasticsearch.client.sniff.SniffOnFailureListener;
+import org.elasticsearch.client.sniff.Sniffer;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author qu.hao
  * @date 2021年03月27日 4:29 下午
  */
 @Configuration
+@EnableConfigurationProperties(EsClientProperties.class)
 public class EsConfig {
 
     @Value("${es.host:localhost}")
@@ -23,11 +47,171 @@ public class EsConfig {
 
     @Bean
     @ConditionalOnMissingBean
-    public RestHighLevelClient restHighLevelClient() {
-        return new RestHighLevelClient(
-                RestClient.builder(
-                        new HttpHost(host, port, "http")
-                )
-        );
+    public RestHighLevelClient restHighLevelClient(EsClientProperties properties,
+                                                   PoolingNHttpClientConnectionManager esConnectionManager,
+                                                   ObjectProvider<NodeStatsTracker> nodeStatsTracker,
+                                                   ObjectProvider<GradientConcurrencyLimiter> concurrencyLimiter,
+                                                   ObjectProvider<IndexCircuitBreaker> indexCircuitBreaker,
+                                                   ObjectProvider<SniffOnFailureListener> sniffOnFailureListener) {
+        NodeStatsTracker tracker = nodeStatsTracker.getIfAvailable();
+        RestClientBuilder builder = RestClient.builder(hosts(properties))
+                .setRequestConfigCallback(requestConfig -> {
+                    requestConfig.setConnectTimeout((int) properties.getConnectTimeout().toMillis())
+                            .setSocketTimeout((int) properties.getSocketTimeout().toMillis());
+                    if (properties.getConnectionRequestTimeout() != null) {
+                        requestConfig.setConnectionRequestTimeout(
+                                (int) properties.getConnectionRequestTimeout().toMillis());
+                    }
+                    return requestConfig;
+                })
+                .setHttpClientConfigCallback(httpClient -> {
+                    //设置了连接池后 builder 上的 maxConnPerRoute/maxConnTotal 不再生效，由连接池自己控制
+                    httpClient.setConnectionManager(esConnectionManager);
+                    if (properties.getKeepAlive() != null) {
+                        long keepAlive = properties.getKeepAlive().toMillis();
+                        httpClient.setKeepAliveStrategy((response, context) -> {
+                            long server = DefaultConnectionKeepAliveStrategy.INSTANCE
+                                    .getKeepAliveDuration(response, context);
+                            return server > 0 ? Math.min(server, keepAlive) : keepAlive;
+                        });
+                    }
+                    return new EsHttpAsyncClientBuilder(httpClient)
+                            .compression(properties.isCompression() ? properties.getCompressionMinBytes() : -1)
+                            .nodeStats(tracker)
+                            .limiter(concurrencyLimiter.getIfAvailable())
+                            .circuitBreaker(indexCircuitBreaker.getIfAvailable());
+                });
+        if (tracker != null) {
+            builder.setNodeSelector(new HealthAwareNodeSelector(tracker, properties.getBalancer().getSlack()));
+        }
+        SniffOnFailureListener failureListener = sniffOnFailureListener.getIfAvailable();
+        if (failureListener != null) {
+            builder.setFailureListener(failureListener);
+        }
+        return new RestHighLevelClient(builder);
+    }
+
+    /**
+     * 配置了 es.client.nodes 时使用节点列表，否则使用 es.host/es.port
+     */
+    private HttpHost[] hosts(EsClientProperties properties) {
+        if (properties.getNodes().isEmpty()) {
+            return new HttpHost[]{new HttpHost(host, port, "http")};
+        }
+        return properties.getNodes().stream().map(HttpHost::create).toArray(HttpHost[]::new);
+    }
+
+    /**
+     * 节点负载统计，默认开启，es.client.balancer.enabled=false 时使用 RestClient 默认的轮询
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "es.client.balancer", name = "enabled", havingValue = "true", matchIfMissing = true)
+    public NodeStatsTracker nodeStatsTracker(EsClientProperties properties) {
+        EsClientProperties.Balancer balancer = properties.getBalancer();
+        return new NodeStatsTracker(balancer.getFailuresBeforeQuarantine(), balancer.getMinQuarantine(),
+                balancer.getMaxQuarantine());
+    }
+
+    /**
+     * 客户端并发限制，es.client.limiter.enabled=true 时才创建
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "es.client.limiter", name = "enabled", havingValue = "true")
+    public GradientConcurrencyLimiter concurrencyLimiter(EsClientProperties properties) {
+        EsClientProperties.Limiter limiter = properties.getLimiter();
+        return new GradientConcurrencyLimiter(limiter.getInitialLimit(), limiter.getMinLimit(), limiter.getMaxLimit(),
+                limiter.getTolerance(), limiter.getSmoothing(), limiter.getBackoffRatio(),
+                limiter.getWindow().toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 按索引熔断，es.client.circuit-breaker.enabled=true 时才创建
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "es.client.circuit-breaker", name = "enabled", havingValue = "true")
+    public IndexCircuitBreaker indexCircuitBreaker(EsClientProperties properties) {
+        EsClientProperties.CircuitBreaker breaker = properties.getCircuitBreaker();
+        return new IndexCircuitBreaker(breaker.getFailureRate(), breaker.getMinRequests(),
+                breaker.getWindow().toNanos(), breaker.getOpenDuration().toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 执行同步调用的线程，es.client.executor.enabled=true 时才创建
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "es.client.executor", name = "enabled", havingValue = "true")
+    public BlockingCallExecutor blockingCallExecutor(EsClientProperties properties) {
+        EsClientProperties.Executor executor = properties.getExecutor();
+        return new BlockingCallExecutor(executor.getMode(), executor.getPlatformThreads(), executor.getMaxConcurrency());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "es.client.sniff", name = "enabled", havingValue = "true")
+    public SniffOnFailureListener sniffOnFailureListener() {
+        return new SniffOnFailureListener();
+    }
+
+    /**
+     * 定时和请求失败时从集群获取节点列表，es.client.sniff.enabled=true 时才创建
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "es.client.sniff", name = "enabled", havingValue = "true")
+    public Sniffer sniffer(RestHighLevelClient client, SniffOnFailureListener sniffOnFailureListener,
+                           EsClientProperties properties) {
+        EsClientProperties.Sniff sniff = properties.getSniff();
+        RestClient restClient = client.getLowLevelClient();
+        Sniffer sniffer = Sniffer.builder(restClient)
+                .setSniffIntervalMillis((int) sniff.getInterval().toMillis())
+                .setSniffAfterFailureDelayMillis((int) sniff.getAfterFailureDelay().toMillis())
+                .setNodesSniffer(new ElasticsearchNodesSniffer(restClient,
+                        ElasticsearchNodesSniffer.DEFAULT_SNIFF_REQUEST_TIMEOUT,
+                        ElasticsearchNodesSniffer.Scheme.valueOf(sniff.getScheme().toUpperCase(Locale.ROOT))))
+                .build();
+        sniffOnFailureListener.setSniffer(sniffer);
+        return sniffer;
+    }
+
+    /**
+     * es客户端的连接池，随客户端一起关闭
+     */
+    @Bean(destroyMethod = "")
+    @ConditionalOnMissingBean
+    public PoolingNHttpClientConnectionManager esConnectionManager(EsClientProperties properties)
+            throws IOReactorException {
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(properties.getIoThreadCount())
+                .setConnectTimeout((int) properties.getConnectTimeout().toMillis())
+                .setSoTimeout((int) properties.getSocketTimeout().toMillis())
+                .setSoKeepAlive(true)
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager =
+                new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+        connectionManager.setMaxTotal(properties.getMaxConnTotal());
+        connectionManager.setDefaultMaxPerRoute(properties.getMaxConnPerRoute());
+        return connectionManager;
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    public ConnectionPoolMonitor connectionPoolMonitor(PoolingNHttpClientConnectionManager esConnectionManager,
+                                                       EsClientProperties properties) {
+        return new ConnectionPoolMonitor(esConnectionManager, properties.getPoolMetricsLogInterval());
+    }
+
+    /**
+     * 边收边解析响应，大的查询和get结果不用整个放进堆内存
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public StreamingResponseReader streamingResponseReader(RestHighLevelClient client, EsClientProperties properties) {
+        EsClientProperties.Streaming streaming = properties.getStreaming();
+        return new StreamingResponseReader(client.getLowLevelClient(), streaming.getChunkBytes(),
+                streaming.getMaxBufferedBytes(), streaming.getErrorBodyLimit());
     }
 }
@@ -0,0 +1,45 @@
+package github.qh.es.application.config;
+
+import github.qh.es.infrastructure.document.cache.DocumentNearCache;
+import github.qh.es.infrastructure.document.filter.ExistsFilter;
+import github.qh.es.infrastructure.search.export.SlicedScrollExporter;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-31- 11:00 上午
+ * @email quhao.mi@foxmail.com
+ * 文档读写组件配置
+ */
+@Configuration
+@EnableConfigurationProperties(EsDocumentProperties.class)
+public class EsDocumentConfig {
+
+    /**
+     * 文档本地缓存，es.document.near-cache.enabled=true 时才创建
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "es.document.near-cache", name = "enabled", havingValue = "true")
+    public DocumentNearCache documentNearCache(EsDocumentProperties properties) {
+        return new DocumentNearCache(properties.getNearCache());
+    }
+
+    /**
+     * exists 的布隆过滤器，es.document.exists-filter.enabled=true 时才创建，创建后马上恢复快照或开始重建
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "es.document.exists-filter", name = "enabled", havingValue = "true")
+    public ExistsFilter existsFilter(RestHighLevelClient client, SlicedScrollExporter slicedScrollExporter,
+                                     EsDocumentProperties properties) {
+        ExistsFilter filter = new ExistsFilter(client, slicedScrollExporter, properties.getExistsFilter());
+        filter.start();
+        return filter;
+    }
+}
@@ -0,0 +1,103 @@
+package github.qh.es.application.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-31- 9:40 上午
+ * @email quhao.mi@foxmail.com
+ * 文档读写相关配置，前缀 es.document
+ */
+@Data
+@ConfigurationProperties(prefix = "es.document")
+public class EsDocumentProperties {
+
+    private NearCache nearCache = new NearCache();
+
+    private ExistsFilter existsFilter = new ExistsFilter();
+
+    /**
+     * 文档本地缓存，前缀 es.document.near-cache
+     */
+    @Data
+    public static class NearCache {
+
+        /**
+         * 是否开启，默认关闭
+         */
+        private boolean enabled = false;
+
+        /**
+         * 缓存文档的最大字节数（估算值）
+         */
+        private long maxBytes = 128L * 1024 * 1024;
+
+        /**
+         * 条目最长保留时间，其他应用的写入最晚在这个时间之后被发现
+         */
+        private Duration ttl = Duration.ofMinutes(5);
+
+        /**
+         * 超过这个时间的条目使用前先按 _seq_no 校验，为空时不校验
+         */
+        private Duration revalidateAfter;
+    }
+
+    /**
+     * exists 的布隆过滤器，前缀 es.document.exists-filter。
+     * 只能给所有写入都经过本应用（单实例）的索引开启，其他途径写入的文档会被误判为不存在
+     */
+    @Data
+    public static class ExistsFilter {
+
+        /**
+         * 是否开启，默认关闭
+         */
+        private boolean enabled = false;
+
+        /**
+         * 使用过滤器的索引，必须是具体的索引名，不支持别名和通配符
+         */
+        private List<String> indices = new ArrayList<>();
+
+        /**
+         * 期望的误判率
+         */
+        private double fpp = 0.01;
+
+        /**
+         * 过滤器最少按多少个元素分配
+         */
+        private long expectedInsertions = 100_000;
+
+        /**
+         * 按重建时文档数的多少倍分配，给之后的写入留空间
+         */
+        private double headroom = 2.0;
+
+        /**
+         * 定时重建的间隔，为空时只在启动、失效和元素数超过预计值时重建
+         */
+        private Duration rebuildInterval;
+
+        /**
+         * 失效后等多久再重建，批量导入期间不用反复重建
+         */
+        private Duration rebuildDelay = Duration.ofSeconds(30);
+
+        /**
+         * 快照目录，为空时不保存快照，每次启动都重建
+         */
+        private String snapshotDir;
+
+        /**
+         * 快照超过这个时间不再使用
+         */
+        private Duration snapshotMaxAge = Duration.ofHours(24);
+    }
+}
@@ -0,0 +1,125 @@
+package github.qh.es.application.config;
+
+import github.qh.es.infrastructure.document.MultiGetDispatcher;
+import github.qh.es.infrastructure.search.HedgedSearcher;
+import github.qh.es.infrastructure.search.MultiSearchDispatcher;
+import github.qh.es.infrastructure.search.cache.SearchResultCache;
+import github.qh.es.infrastructure.search.export.SlicedScrollExporter;
+import github.qh.es.infrastructure.search.stream.StreamingSearch;
+import github.qh.es.infrastructure.support.MicroBatcher;
+import github.qh.es.infrastructure.support.RequestCoalescer;
+import github.qh.es.infrastructure.support.RequestKeys;
+import github.qh.es.infrastructure.support.StreamingResponseReader;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-24- 11:20 上午
+ * @email quhao.mi@foxmail.com
+ * 查询组件配置
+ */
+@Configuration
+@EnableConfigurationProperties(EsSearchProperties.class)
+public class EsSearchConfig {
+
+    /**
+     * 查询结果缓存，es.search.cache.enabled=true 时才创建
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "es.search.cache", name = "enabled", havingValue = "true")
+    public SearchResultCache searchResultCache(EsSearchProperties properties) {
+        return new SearchResultCache(properties.getCache());
+    }
+
+    /**
+     * 合并相同的查询请求，es.search.coalesce.enabled=true 时才创建；
+     * 需要自定义key时声明同名的bean，keyFunction 返回null的请求不合并
+     */
+    @Bean
+    @ConditionalOnMissingBean(name = "searchCoalescer")
+    @ConditionalOnProperty(prefix = "es.search.coalesce", name = "enabled", havingValue = "true")
+    public RequestCoalescer<SearchRequest, SearchResponse> searchCoalescer(EsSearchProperties properties) {
+        EsSearchProperties.Coalesce coalesce = properties.getCoalesce();
+        return new RequestCoalescer<>(request -> request.scroll() != null ? null : RequestKeys.search(request),
+                coalesce.getMaxKeys(), coalesce.getMaxFollowers());
+    }
+
+    /**
+     * 合并相同的get请求，es.search.coalesce.enabled=true 时才创建
+     */
+    @Bean
+    @ConditionalOnMissingBean(name = "getCoalescer")
+    @ConditionalOnProperty(prefix = "es.search.coalesce", name = "enabled", havingValue = "true")
+    public RequestCoalescer<GetRequest, GetResponse> getCoalescer(EsSearchProperties properties) {
+        EsSearchProperties.Coalesce coalesce = properties.getCoalesce();
+        return new RequestCoalescer<>(
+                request -> request.refresh() && !coalesce.isRefreshGets() ? null : RequestKeys.get(request),
+                coalesce.getMaxKeys(), coalesce.getMaxFollowers());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public SlicedScrollExporter slicedScrollExporter(RestHighLevelClient client, EsSearchProperties properties) {
+        EsSearchProperties.Export export = properties.getExport();
+        return new SlicedScrollExporter(client, export.getPageSize(),
+                TimeValue.timeValueMillis(export.getKeepAlive().toMillis()), export.getMaxSlices());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public StreamingSearch streamingSearch(StreamingResponseReader streamingResponseReader) {
+        return new StreamingSearch(streamingResponseReader);
+    }
+
+    /**
+     * 把同一时间窗口内的查询合成 _msearch，es.search.batch.enabled=true 时才创建
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean(name = "searchBatcher")
+    @ConditionalOnProperty(prefix = "es.search.batch", name = "enabled", havingValue = "true")
+    public MicroBatcher<SearchRequest, SearchResponse> searchBatcher(RestHighLevelClient client,
+                                                                   EsSearchProperties properties) {
+        EsSearchProperties.Batch batch = properties.getBatch();
+        return new MicroBatcher<>("msearch",
+                new MultiSearchDispatcher(client, batch.getMaxConcurrentSearchRequests()),
+                batch.getMaxBatchSize(), batch.getWindow().toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 对冲慢查询，es.search.hedge.enabled=true 时才创建
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "es.search.hedge", name = "enabled", havingValue = "true")
+    public HedgedSearcher hedgedSearcher(EsSearchProperties properties) {
+        EsSearchProperties.Hedge hedge = properties.getHedge();
+        return new HedgedSearcher(hedge.getPercentile(), hedge.getMinDelay().toNanos(),
+                hedge.getInitialDelay().toNanos(), hedge.getSamples(), hedge.getBudget(), hedge.getMaxBurst(),
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 把同一时间窗口内的get和exists合成 _mget，es.search.mget-batch.enabled=true 时才创建
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean(name = "getBatcher")
+    @ConditionalOnProperty(prefix = "es.search.mget-batch", name = "enabled", havingValue = "true")
+    public MicroBatcher<GetRequest, GetResponse> getBatcher(RestHighLevelClient client, EsSearchProperties properties) {
+        EsSearchProperties.MgetBatch batch = properties.getMgetBatch();
+        return new MicroBatcher<>("mget", new MultiGetDispatcher(client), batch.getMaxBatchSize(),
+                batch.getWindow().toNanos(), TimeUnit.NANOSECONDS);
+    }
+}
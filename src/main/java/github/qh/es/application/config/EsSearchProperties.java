@@ -0,0 +1,203 @@
+package github.qh.es.application.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-24- 10:00 上午
+ * @email quhao.mi@foxmail.com
+ * 查询相关配置，前缀 es.search
+ */
+@Data
+@ConfigurationProperties(prefix = "es.search")
+public class EsSearchProperties {
+
+    private Cache cache = new Cache();
+
+    private Coalesce coalesce = new Coalesce();
+
+    private Export export = new Export();
+
+    private Batch batch = new Batch();
+
+    private MgetBatch mgetBatch = new MgetBatch();
+
+    private Hedge hedge = new Hedge();
+
+    /**
+     * 客户端查询结果缓存，前缀 es.search.cache
+     */
+    @Data
+    public static class Cache {
+
+        /**
+         * 是否开启，默认关闭
+         */
+        private boolean enabled = false;
+
+        /**
+         * 缓存结果的最大字节数（估算值）
+         */
+        private long maxBytes = 64L * 1024 * 1024;
+
+        /**
+         * 默认的缓存时间
+         */
+        private Duration ttl = Duration.ofSeconds(10);
+
+        /**
+         * 按索引设置缓存时间，查询多个索引时取最小值，设置为0表示该索引不缓存
+         */
+        private Map<String, Duration> indexTtl = new HashMap<>();
+
+        /**
+         * 和索引的 refresh_interval 一致，写入后这段时间内的查询结果不缓存
+         */
+        private Duration refreshInterval = Duration.ofSeconds(1);
+    }
+
+    /**
+     * 合并同一时刻的相同查询和get请求，前缀 es.search.coalesce
+     */
+    @Data
+    public static class Coalesce {
+
+        /**
+         * 是否开启，默认关闭
+         */
+        private boolean enabled = false;
+
+        /**
+         * 同时在途的不同请求数上限，超过后新的请求不再合并
+         */
+        private int maxKeys = 10000;
+
+        /**
+         * 一个请求最多被多少个相同请求等待，超过后单独发送
+         */
+        private int maxFollowers = 1000;
+
+        /**
+         * 是否合并 refresh=true 的get请求，这类请求要求读到调用之前的写入，默认不合并
+         */
+        private boolean refreshGets = false;
+    }
+
+    /**
+     * sliced scroll 导出，前缀 es.search.export
+     */
+    @Data
+    public static class Export {
+
+        /**
+         * 每个 slice 每页的条数
+         */
+        private int pageSize = 1000;
+
+        /**
+         * scroll 上下文的保留时间，要大于处理一页数据的时间
+         */
+        private Duration keepAlive = Duration.ofMinutes(1);
+
+        /**
+         * 一次导出最多拆成几个 slice，也是导出线程数的上限
+         */
+        private int maxSlices = 32;
+    }
+
+    /**
+     * 把同一时间窗口内的查询合成 _msearch，前缀 es.search.batch
+     */
+    @Data
+    public static class Batch {
+
+        /**
+         * 是否开启，默认关闭
+         */
+        private boolean enabled = false;
+
+        /**
+         * 一批的第一个请求最多等待多久
+         */
+        private Duration window = Duration.ofMillis(2);
+
+        /**
+         * 一批最多多少个请求，攒够后立即发送
+         */
+        private int maxBatchSize = 32;
+
+        /**
+         * 一个 _msearch 在服务端同时执行的查询数，0 表示使用es的默认值
+         */
+        private int maxConcurrentSearchRequests = 0;
+    }
+
+    /**
+     * 把同一时间窗口内的get和exists合成 _mget，前缀 es.search.mget-batch
+     */
+    @Data
+    public static class MgetBatch {
+
+        /**
+         * 是否开启，默认关闭
+         */
+        private boolean enabled = false;
+
+        /**
+         * 一批的第一个请求最多等待多久
+         */
+        private Duration window = Duration.ofMillis(1);
+
+        /**
+         * 一批最多多少个请求，攒够后立即发送
+         */
+        private int maxBatchSize = 100;
+    }
+
+    /**
+     * 对冲查询：慢的查询超过延迟分位数后换一个 preference 再发一次，取先回来的，前缀 es.search.hedge
+     */
+    @Data
+    public static class Hedge {
+
+        /**
+         * 是否开启，默认关闭
+         */
+        private boolean enabled = false;
+
+        /**
+         * 等待时间取最近查询耗时的哪个分位数
+         */
+        private double percentile = 95;
+
+        /**
+         * 最短等待时间，避免分位数很小时大量对冲
+         */
+        private Duration minDelay = Duration.ofMillis(5);
+
+        /**
+         * 样本不够时的等待时间
+         */
+        private Duration initialDelay = Duration.ofMillis(50);
+
+        /**
+         * 统计分位数用的最近查询数
+         */
+        private int samples = 1000;
+
+        /**
+         * 对冲请求最多占查询数的比例
+         */
+        private double budget = 0.05;
+
+        /**
+         * 预算最多攒多少个，空闲后突发的慢查询也能对冲
+         */
+        private int maxBurst = 10;
+    }
+}
@@ -0,0 +1,39 @@
+package github.qh.es.infrastructure.client;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-07- 11:00 上午
+ * @email quhao.mi@foxmail.com
+ * 单个索引的熔断指标快照
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class CircuitMetrics {
+
+    private final String index;
+
+    /**
+     * CLOSED、OPEN 或 HALF_OPEN
+     */
+    private final String state;
+
+    /**
+     * 当前统计窗口的请求数
+     */
+    private final int requests;
+
+    /**
+     * 当前统计窗口的失败数
+     */
+    private final int failures;
+
+    /**
+     * 熔断期间直接拒绝的请求数
+     */
+    private final long rejected;
+}
@@ -0,0 +1,183 @@
+package github.qh.es.infrastructure.client;
+
+import github.qh.es.infrastructure.support.ResizableSemaphore;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-07- 10:30 上午
+ * @email quhao.mi@foxmail.com
+ * 整个客户端的自适应并发上限，按响应时间的变化调整（Gradient 算法），由 EsHttpAsyncClient 在每个请求开始和结束时回调。
+ * 1.每个时间窗口算一次平均响应时间（短期），再对它做覆盖最近几百个窗口的加权平均（长期）；
+ * 短期比长期慢说明请求开始在es里排队了，按比例缩小上限：
+ * gradient = tolerance * 长期 / 短期，限制在 [0.5, 1]，新上限 = 上限 * gradient + sqrt(上限)，再和旧上限按 smoothing 平滑
+ * 2.窗口内有请求被429/502/503/504拒绝或者连接失败时，上限直接乘以 backoffRatio
+ * 3.在途请求数不到上限一半时上限不增长，避免空闲时涨到没有意义的值
+ * 超过上限的请求不排队，马上失败：过载时排队只会让所有请求一起超时
+ */
+@Slf4j
+public class GradientConcurrencyLimiter {
+
+    /**
+     * 窗口到期但样本太少时继续累积
+     */
+    private static final int MIN_WINDOW_SAMPLES = 10;
+
+    /**
+     * 长期平均大约覆盖最近600个窗口
+     */
+    private static final double LONG_ALPHA = 2.0 / 601;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double tolerance;
+
+    private final double smoothing;
+
+    private final double backoffRatio;
+
+    private final long windowNanos;
+
+    private final ResizableSemaphore permits;
+
+    private final AtomicInteger inflight = new AtomicInteger();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong overloaded = new AtomicLong();
+
+    private volatile int currentLimit;
+
+    private double limit;
+
+    private double shortRttNanos;
+
+    private double longRttNanos;
+
+    private long windowEnd;
+
+    private long windowSum;
+
+    private int windowCount;
+
+    private int windowMaxInflight;
+
+    private boolean windowOverloaded;
+
+    public GradientConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double tolerance,
+                                      double smoothing, double backoffRatio, long window, TimeUnit unit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("invalid limits [" + minLimit + ", " + maxLimit + "]");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.smoothing = smoothing;
+        this.backoffRatio = backoffRatio;
+        this.windowNanos = unit.toNanos(window);
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.currentLimit = (int) limit;
+        this.permits = new ResizableSemaphore(currentLimit);
+    }
+
+    /**
+     * 获取一个许可，在途请求已经到上限时返回false
+     */
+    public boolean tryAcquire() {
+        if (!permits.tryAcquire()) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        inflight.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 请求结束，释放许可并记录样本
+     *
+     * @param rttNanos   请求耗时
+     * @param overloaded 是否因为集群过载失败（429/502/503/504、连接失败）
+     */
+    public void onComplete(long rttNanos, boolean overloaded) {
+        int current = inflight.getAndDecrement();
+        permits.release();
+        if (overloaded) {
+            this.overloaded.incrementAndGet();
+        }
+        sample(rttNanos, current, overloaded);
+    }
+
+    /**
+     * 请求被取消，只释放许可，不记录样本
+     */
+    public void onCancelled() {
+        inflight.decrementAndGet();
+        permits.release();
+    }
+
+    public int getLimit() {
+        return currentLimit;
+    }
+
+    public synchronized LimiterMetrics metrics() {
+        return new LimiterMetrics(currentLimit, inflight.get(), rejected.get(), overloaded.get(),
+                shortRttNanos / 1_000_000, longRttNanos / 1_000_000);
+    }
+
+    private synchronized void sample(long rttNanos, int inflight, boolean overloaded) {
+        long now = System.nanoTime();
+        if (windowCount == 0) {
+            windowEnd = now + windowNanos;
+        }
+        windowSum += rttNanos;
+        windowCount++;
+        windowMaxInflight = Math.max(windowMaxInflight, inflight);
+        windowOverloaded |= overloaded;
+        if (now < windowEnd || (windowCount < MIN_WINDOW_SAMPLES && !windowOverloaded)) {
+            return;
+        }
+        double newLimit = nextLimit((double) windowSum / windowCount);
+        windowSum = 0;
+        windowCount = 0;
+        windowMaxInflight = 0;
+        windowOverloaded = false;
+        applyLimit(newLimit);
+    }
+
+    private double nextLimit(double rttNanos) {
+        if (windowOverloaded) {
+            return limit * backoffRatio;
+        }
+        shortRttNanos = rttNanos;
+        longRttNanos = longRttNanos == 0 ? rttNanos : longRttNanos + LONG_ALPHA * (rttNanos - longRttNanos);
+        //刚从过载恢复时长期平均偏高，让它快点降下来，否则会一直认为集群不慢
+        if (longRttNanos > shortRttNanos * 2) {
+            longRttNanos *= 0.95;
+        }
+        if (windowMaxInflight < limit / 2) {
+            return limit;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRttNanos / shortRttNanos));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        return limit * (1 - smoothing) + newLimit * smoothing;
+    }
+
+    private void applyLimit(double newLimit) {
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        int rounded = (int) limit;
+        if (rounded != currentLimit) {
+            permits.resize(rounded);
+            if (log.isDebugEnabled()) {
+                log.debug("es客户端并发上限 {} -> {}，短期响应时间 {}ms，长期 {}ms", currentLimit, rounded,
+                        shortRttNanos / 1_000_000, longRttNanos / 1_000_000);
+            }
+            currentLimit = rounded;
+        }
+    }
+}
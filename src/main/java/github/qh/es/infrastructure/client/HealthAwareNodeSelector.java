@@ -0,0 +1,65 @@
+package github.qh.es.infrastructure.client;
+
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-21- 11:00 上午
+ * @email quhao.mi@foxmail.com
+ * 按负载选择节点。
+ * NodeSelector 只能从候选列表里删除节点，RestClient 会在剩下的节点里轮询，失败时按顺序换下一个节点重试，
+ * 所以这里不是只留一个最优节点，而是去掉被隔离的节点和负载分数超过 最优分数 * slack 的节点，
+ * 请求在状态好的几个节点之间轮询，也保留了失败换节点的能力。
+ * 配置了节点角色（嗅探得到）时先跳过专用master节点。
+ * 全部节点都被隔离时不删除，交给 RestClient 自己的死节点处理。
+ */
+public class HealthAwareNodeSelector implements NodeSelector {
+
+    private final NodeStatsTracker tracker;
+
+    private final double slack;
+
+    /**
+     * @param slack 保留负载分数不超过最优分数多少倍的节点，大于等于1
+     */
+    public HealthAwareNodeSelector(NodeStatsTracker tracker, double slack) {
+        this.tracker = tracker;
+        this.slack = Math.max(1, slack);
+    }
+
+    @Override
+    public void select(Iterable<Node> nodes) {
+        NodeSelector.SKIP_DEDICATED_MASTERS.select(nodes);
+        //分数在请求过程中一直变化，只算一次，保证过滤前后用的是同一组值
+        Map<Node, Double> scores = new IdentityHashMap<>();
+        double best = Double.MAX_VALUE;
+        for (Node node : nodes) {
+            if (!tracker.isQuarantined(node.getHost())) {
+                double score = tracker.score(node.getHost());
+                scores.put(node, score);
+                best = Math.min(best, score);
+            }
+        }
+        if (scores.isEmpty()) {
+            return;
+        }
+        //没有数据的节点分数为0，这时按1毫秒算，避免把其他节点都过滤掉
+        double limit = Math.max(best, 1) * slack;
+        for (Iterator<Node> iterator = nodes.iterator(); iterator.hasNext(); ) {
+            Double score = scores.get(iterator.next());
+            if (score == null || score > limit) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HEALTH_AWARE";
+    }
+}
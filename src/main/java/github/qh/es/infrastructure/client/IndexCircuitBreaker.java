@@ -0,0 +1,200 @@
+package github.qh.es.infrastructure.client;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-07- 11:10 上午
+ * @email quhao.mi@foxmail.com
+ * 按索引熔断，由 EsHttpAsyncClient 在每个请求开始和结束时回调。节点级别的熔断由 NodeStatsTracker 的隔离负责，
+ * 这里处理的是节点都正常、但某个索引持续出错的情况（分片不可用、索引过载一直429等）。
+ * 1.每个索引按固定时间窗口统计，窗口内请求数达到 minRequests 且失败比例达到 failureRate 时打开熔断
+ * 2.打开期间这个索引的请求直接失败，不发到集群；openDuration 后放行一个试探请求（半开）
+ * 3.试探成功关闭熔断，失败重新打开
+ * 失败指连接失败、5xx 和 429；其他4xx是请求本身的问题，算成功。不带索引的请求（/_search、/_mget 等）不熔断。
+ */
+@Slf4j
+public class IndexCircuitBreaker {
+
+    private final double failureRate;
+
+    private final int minRequests;
+
+    private final long windowNanos;
+
+    private final long openNanos;
+
+    /**
+     * 索引数一般是有限的，不做淘汰
+     */
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    public IndexCircuitBreaker(double failureRate, int minRequests, long window, long openDuration, TimeUnit unit) {
+        this.failureRate = failureRate;
+        this.minRequests = minRequests;
+        this.windowNanos = unit.toNanos(window);
+        this.openNanos = unit.toNanos(openDuration);
+    }
+
+    /**
+     * 是否放行请求
+     *
+     * @param index 请求的索引，为空时总是放行
+     */
+    public boolean allow(String index) {
+        if (index == null) {
+            return true;
+        }
+        Circuit circuit = circuits.computeIfAbsent(index, i -> new Circuit());
+        synchronized (circuit) {
+            switch (circuit.state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (System.nanoTime() - circuit.openedAt < openNanos) {
+                        circuit.rejected++;
+                        return false;
+                    }
+                    circuit.state = State.HALF_OPEN;
+                    circuit.trial = true;
+                    return true;
+                default:
+                    if (circuit.trial) {
+                        circuit.rejected++;
+                        return false;
+                    }
+                    circuit.trial = true;
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * 请求结束
+     *
+     * @param success 是否成功，见类注释
+     */
+    public void onResult(String index, boolean success) {
+        Circuit circuit = index == null ? null : circuits.get(index);
+        if (circuit == null) {
+            return;
+        }
+        State previous;
+        State current;
+        synchronized (circuit) {
+            previous = circuit.state;
+            long now = System.nanoTime();
+            if (previous == State.OPEN) {
+                //打开之前发出的请求，不影响状态
+                return;
+            }
+            if (previous == State.HALF_OPEN) {
+                circuit.trial = false;
+                if (success) {
+                    circuit.close(now);
+                } else {
+                    circuit.open(now);
+                }
+            } else {
+                if (now - circuit.windowStart > windowNanos) {
+                    circuit.windowStart = now;
+                    circuit.requests = 0;
+                    circuit.failures = 0;
+                }
+                circuit.requests++;
+                if (!success) {
+                    circuit.failures++;
+                }
+                if (circuit.requests >= minRequests && circuit.failures >= failureRate * circuit.requests) {
+                    circuit.open(now);
+                }
+            }
+            current = circuit.state;
+            if (current == previous) {
+                return;
+            }
+        }
+        if (current == State.OPEN) {
+            log.warn("es索引 {} 失败过多，熔断 {}ms", index, TimeUnit.NANOSECONDS.toMillis(openNanos));
+        } else {
+            log.info("es索引 {} 试探请求成功，关闭熔断", index);
+        }
+    }
+
+    /**
+     * 放行后没有发出的请求（比如被并发限制拒绝），归还试探的机会
+     */
+    public void onCancelled(String index) {
+        Circuit circuit = index == null ? null : circuits.get(index);
+        if (circuit == null) {
+            return;
+        }
+        synchronized (circuit) {
+            if (circuit.state == State.HALF_OPEN) {
+                circuit.trial = false;
+            }
+        }
+    }
+
+    public boolean isOpen(String index) {
+        Circuit circuit = circuits.get(index);
+        if (circuit == null) {
+            return false;
+        }
+        synchronized (circuit) {
+            return circuit.state != State.CLOSED;
+        }
+    }
+
+    public Map<String, CircuitMetrics> metrics() {
+        Map<String, CircuitMetrics> metrics = new LinkedHashMap<>();
+        circuits.forEach((index, circuit) -> {
+            synchronized (circuit) {
+                metrics.put(index, new CircuitMetrics(index, circuit.state.name(), circuit.requests,
+                        circuit.failures, circuit.rejected));
+            }
+        });
+        return metrics;
+    }
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final class Circuit {
+
+        private State state = State.CLOSED;
+
+        private long windowStart = System.nanoTime();
+
+        private int requests;
+
+        private int failures;
+
+        private long rejected;
+
+        private long openedAt;
+
+        /**
+         * 半开时是否已经放行了试探请求
+         */
+        private boolean trial;
+
+        private void open(long now) {
+            state = State.OPEN;
+            openedAt = now;
+        }
+
+        private void close(long now) {
+            state = State.CLOSED;
+            windowStart = now;
+            requests = 0;
+            failures = 0;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package github.qh.es.infrastructure.client;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-07- 10:20 上午
+ * @email quhao.mi@foxmail.com
+ * 客户端并发限制指标快照
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class LimiterMetrics {
+
+    /**
+     * 当前的并发上限
+     */
+    private final int limit;
+
+    private final int inflight;
+
+    /**
+     * 超过上限被直接拒绝的请求数
+     */
+    private final long rejected;
+
+    /**
+     * 因为集群过载失败的请求数（429/502/503/504、连接失败）
+     */
+    private final long overloaded;
+
+    /**
+     * 最近一个窗口的平均响应时间（毫秒）
+     */
+    private final double shortRttMillis;
+
+    /**
+     * 响应时间的长期平均（毫秒）
+     */
+    private final double longRttMillis;
+}
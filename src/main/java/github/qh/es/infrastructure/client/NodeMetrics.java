@@ -0,0 +1,38 @@
+package github.qh.es.infrastructure.client;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-21- 10:10 上午
+ * @email quhao.mi@foxmail.com
+ * 单个节点的指标快照
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class NodeMetrics {
+
+    private final String host;
+
+    /**
+     * 正在执行的请求数
+     */
+    private final int outstanding;
+
+    /**
+     * 响应时间的指数加权平均（毫秒）
+     */
+    private final double latencyMillis;
+
+    private final long requests;
+
+    private final long failures;
+
+    /**
+     * 是否被隔离，隔离期间不分配请求，探测成功后恢复
+     */
+    private final boolean quarantined;
+}
@@ -0,0 +1,214 @@
+package github.qh.es.infrastructure.client;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHost;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-21- 10:20 上午
+ * @email quhao.mi@foxmail.com
+ * 记录每个节点的在途请求数、响应时间和失败情况，由 EsHttpAsyncClient 在每个请求开始和结束时回调。
+ * 1.负载分数 = 响应时间的指数加权平均 * (在途请求数 + 1)，分数越低越优先（见 HealthAwareNodeSelector）
+ * 2.连续失败达到阈值的节点被隔离，隔离期间不分配请求
+ * 3.被隔离的节点由后台线程按指数退避发探测请求（GET /），探测成功后解除隔离；
+ * RestClient 自己的黑名单到期后会直接用业务请求重试死节点，这里用探测请求代替，业务请求不会打到还没恢复的节点上
+ */
+@Slf4j
+public class NodeStatsTracker implements Closeable {
+
+    /**
+     * 响应时间加权平均中新样本的权重
+     */
+    private static final double ALPHA = 0.3;
+
+    private static final long PROBE_TICK_MILLIS = 200;
+
+    private final int failuresBeforeQuarantine;
+
+    private final long minQuarantineNanos;
+
+    private final long maxQuarantineNanos;
+
+    private final Map<HttpHost, NodeStats> nodes = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService prober;
+
+    /**
+     * 发探测请求，回调参数为是否健康；由 EsHttpAsyncClient 创建时设置
+     */
+    private volatile BiConsumer<HttpHost, Consumer<Boolean>> probe;
+
+    public NodeStatsTracker(int failuresBeforeQuarantine, Duration minQuarantine, Duration maxQuarantine) {
+        this.failuresBeforeQuarantine = failuresBeforeQuarantine;
+        this.minQuarantineNanos = minQuarantine.toNanos();
+        this.maxQuarantineNanos = maxQuarantine.toNanos();
+        this.prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "es-node-prober");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prober.scheduleWithFixedDelay(this::probeQuarantined, PROBE_TICK_MILLIS, PROBE_TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void setProbe(BiConsumer<HttpHost, Consumer<Boolean>> probe) {
+        this.probe = probe;
+    }
+
+    /**
+     * 请求开始
+     *
+     * @return 开始时间，结束时传回来
+     */
+    public long onRequestStart(HttpHost host) {
+        stats(host).outstanding.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * 请求结束
+     *
+     * @param success 是否成功，连接失败、502/503/504 算失败
+     */
+    public void onRequestEnd(HttpHost host, long startNanos, boolean success) {
+        NodeStats stats = stats(host);
+        stats.outstanding.decrementAndGet();
+        stats.requests.incrementAndGet();
+        if (success) {
+            stats.recordLatency(System.nanoTime() - startNanos);
+            stats.consecutiveFailures.set(0);
+            return;
+        }
+        stats.failures.incrementAndGet();
+        if (stats.consecutiveFailures.incrementAndGet() >= failuresBeforeQuarantine && !stats.quarantined) {
+            quarantine(host, stats);
+        }
+    }
+
+    /**
+     * 请求被取消，只减少在途数
+     */
+    public void onRequestCancelled(HttpHost host) {
+        stats(host).outstanding.decrementAndGet();
+    }
+
+    public boolean isQuarantined(HttpHost host) {
+        NodeStats stats = nodes.get(host);
+        return stats != null && stats.quarantined;
+    }
+
+    /**
+     * 负载分数，越低越好；没有数据的节点分数为0，会优先分到请求，用来积累数据
+     */
+    public double score(HttpHost host) {
+        NodeStats stats = nodes.get(host);
+        if (stats == null) {
+            return 0;
+        }
+        return stats.latencyMillis * (stats.outstanding.get() + 1);
+    }
+
+    public Map<String, NodeMetrics> metrics() {
+        Map<String, NodeMetrics> metrics = new LinkedHashMap<>();
+        nodes.forEach((host, stats) -> metrics.put(host.toURI(), new NodeMetrics(host.toURI(),
+                stats.outstanding.get(), stats.latencyMillis, stats.requests.get(), stats.failures.get(),
+                stats.quarantined)));
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        prober.shutdownNow();
+    }
+
+    private NodeStats stats(HttpHost host) {
+        return nodes.computeIfAbsent(host, h -> new NodeStats());
+    }
+
+    private void quarantine(HttpHost host, NodeStats stats) {
+        synchronized (stats) {
+            stats.quarantined = true;
+            stats.probeBackoffNanos = minQuarantineNanos;
+            stats.nextProbeNanos = System.nanoTime() + minQuarantineNanos;
+        }
+        log.warn("es节点 {} 连续失败 {} 次，隔离", host, stats.consecutiveFailures.get());
+    }
+
+    private void probeQuarantined() {
+        BiConsumer<HttpHost, Consumer<Boolean>> currentProbe = probe;
+        if (currentProbe == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        nodes.forEach((host, stats) -> {
+            synchronized (stats) {
+                if (!stats.quarantined || stats.probing || now < stats.nextProbeNanos) {
+                    return;
+                }
+                stats.probing = true;
+            }
+            try {
+                currentProbe.accept(host, healthy -> onProbeResult(host, stats, healthy));
+            } catch (RuntimeException e) {
+                onProbeResult(host, stats, false);
+            }
+        });
+    }
+
+    private void onProbeResult(HttpHost host, NodeStats stats, boolean healthy) {
+        synchronized (stats) {
+            stats.probing = false;
+            if (healthy) {
+                stats.quarantined = false;
+                stats.consecutiveFailures.set(0);
+                //恢复的节点响应时间未知，从0开始重新积累
+                stats.latencyMillis = 0;
+            } else {
+                stats.probeBackoffNanos = Math.min(maxQuarantineNanos, stats.probeBackoffNanos * 2);
+                stats.nextProbeNanos = System.nanoTime() + stats.probeBackoffNanos;
+            }
+        }
+        if (healthy) {
+            log.info("es节点 {} 探测成功，解除隔离", host);
+        }
+    }
+
+    private static final class NodeStats {
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private final AtomicLong requests = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+        private volatile double latencyMillis;
+
+        private volatile boolean quarantined;
+
+        private boolean probing;
+
+        private long probeBackoffNanos;
+
+        private long nextProbeNanos;
+
+        private synchronized void recordLatency(long nanos) {
+            double millis = nanos / 1_000_000.0;
+            latencyMillis = latencyMillis == 0 ? millis : latencyMillis + ALPHA * (millis - latencyMillis);
+        }
+    }
+}
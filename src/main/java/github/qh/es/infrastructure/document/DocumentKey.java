@@ -0,0 +1,45 @@
+package github.qh.es.infrastructure.document;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.get.GetRequest;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-31- 9:30 上午
+ * @email quhao.mi@foxmail.com
+ * 一个文档的定位：索引 + id + routing
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+@AllArgsConstructor
+public class DocumentKey {
+
+    private final String index;
+
+    private final String id;
+
+    private final String routing;
+
+    public static DocumentKey of(GetRequest request) {
+        return new DocumentKey(request.index(), request.id(), request.routing());
+    }
+
+    /**
+     * 自动生成id的写入返回null
+     */
+    public static DocumentKey of(DocWriteRequest<?> request) {
+        return request.id() == null ? null : new DocumentKey(request.index(), request.id(), request.routing());
+    }
+
+    /**
+     * 估算的字节数
+     */
+    public int weight() {
+        return 48 + 2 * (index.length() + id.length() + (routing == null ? 0 : routing.length()));
+    }
+}
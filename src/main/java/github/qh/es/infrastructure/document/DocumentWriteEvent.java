@@ -0,0 +1,90 @@
+package github.qh.es.infrastructure.document;
+
+import lombok.Getter;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.support.WriteRequest;
+import org.springframework.context.ApplicationEvent;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-24- 10:10 上午
+ * @email quhao.mi@foxmail.com
+ * 通过本应用写入文档（index/update/delete/bulk），发送前和写入结束后（不论成功、失败还是取消）各发布一次，
+ * 查询结果缓存（SearchResultCache）据此让相关索引的缓存失效，文档缓存（DocumentNearCache）据此让写入的文档失效，
+ * 存在过滤器（ExistsFilter）据此把id加进过滤器。
+ * 发送前就要发布：客户端超时、连接断开的写入可能已经在集群上执行了，布隆过滤器只能多判存在，不能漏掉这些id；
+ * 写入期间并发的 exists 也要能看到它。多记下一个实际没写成功的id只是让误判率略高一点。
+ * 结束后再发布一次：发送前让缓存失效之后、写入生效之前读到的旧文档可能又被放进缓存，失败的写入也要再失效一次
+ */
+@Getter
+public class DocumentWriteEvent extends ApplicationEvent {
+
+    /**
+     * 写入的索引
+     */
+    private final Set<String> indices;
+
+    /**
+     * 写入是否已经刷新（refresh=true 或 wait_for），已经刷新的写入马上就能被查到
+     */
+    private final boolean refreshed;
+
+    /**
+     * 写入的文档（自动生成id的写入不在里面），为null时表示不知道具体写了哪些文档（比如文件导入），按索引整体失效
+     */
+    private final Set<DocumentKey> documents;
+
+    /**
+     * 是否包含自动生成id的写入，这些文档的id客户端不知道
+     */
+    private final boolean generatedIds;
+
+    public DocumentWriteEvent(Object source, Collection<String> indices, boolean refreshed) {
+        this(source, indices, refreshed, null, true);
+    }
+
+    public DocumentWriteEvent(Object source, Collection<String> indices, boolean refreshed,
+                              Collection<DocumentKey> documents) {
+        this(source, indices, refreshed, documents, false);
+    }
+
+    public DocumentWriteEvent(Object source, Collection<String> indices, boolean refreshed,
+                              Collection<DocumentKey> documents, boolean generatedIds) {
+        super(source);
+        this.indices = new HashSet<>(indices);
+        this.refreshed = refreshed;
+        this.documents = documents == null ? null : new HashSet<>(documents);
+        this.generatedIds = generatedIds;
+    }
+
+    public static DocumentWriteEvent of(Object source, DocWriteRequest<?> request) {
+        DocumentKey document = DocumentKey.of(request);
+        return new DocumentWriteEvent(source, Collections.singleton(request.index()),
+                request instanceof WriteRequest
+                        && ((WriteRequest<?>) request).getRefreshPolicy() != WriteRequest.RefreshPolicy.NONE,
+                document == null ? Collections.emptySet() : Collections.singleton(document), document == null);
+    }
+
+    public static DocumentWriteEvent of(Object source, BulkRequest request) {
+        Set<String> indices = new HashSet<>();
+        Set<DocumentKey> documents = new HashSet<>();
+        boolean generatedIds = false;
+        for (DocWriteRequest<?> write : request.requests()) {
+            indices.add(write.index());
+            DocumentKey document = DocumentKey.of(write);
+            if (document != null) {
+                documents.add(document);
+            } else {
+                generatedIds = true;
+            }
+        }
+        return new DocumentWriteEvent(source, indices, request.getRefreshPolicy() != WriteRequest.RefreshPolicy.NONE,
+                documents, generatedIds);
+    }
+}
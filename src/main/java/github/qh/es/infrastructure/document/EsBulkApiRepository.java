@@ -1,5 +1,9 @@
 package github.qh.es.infrastructure.document;
 
+import github.qh.es.infrastructure.document.bulk.AdaptiveBulkIngester;
+import github.qh.es.infrastructure.document.bulk.PartitionedBulkIngester;
+import github.qh.es.infrastructure.document.bulk.SpooledBulkIngester;
+import github.qh.es.infrastructure.support.Deadline;
 import lombok.extern.slf4j.Slf4j;
 import org.elasticsearch.action.DocWriteResponse;
 import org.elasticsearch.action.bulk.*;
@@ -15,10 +19,14 @@ import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.Resource;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -35,6 +43,24 @@ public class EsBulkApiRepository {
     @Resource
     private RestHighLevelClient client;
 
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
+
+    @Resource
+    private AdaptiveBulkIngester adaptiveBulkIngester;
+
+    /**
+     * es.bulk.spool.enabled=true 时才有
+     */
+    @Autowired
+    private ObjectProvider<SpooledBulkIngester> spooledBulkIngester;
+
+    /**
+     * es.bulk.partition.enabled=true 时才有
+     */
+    @Autowired
+    private ObjectProvider<PartitionedBulkIngester> partitionedBulkIngester;
+
     public void bulkExecute(){
         //创建一个bulk请求
         BulkRequest request = new BulkRequest();
@@ -53,9 +79,22 @@ public class EsBulkApiRepository {
         //请求超时时间
         request.timeout(TimeValue.timeValueMinutes(2));
         request.timeout("2m");
+        //调用方设置了截止时间（Deadline）时取剩余时间和2分钟里较小的
+        request.timeout(Deadline.serverTimeout(request.timeout()));
 
         try {
-            BulkResponse bulkResponse = client.bulk(request, RequestOptions.DEFAULT);
+            eventPublisher.publishEvent(DocumentWriteEvent.of(this, request));
+            BulkResponse bulkResponse;
+            try {
+                bulkResponse = client.bulk(request, RequestOptions.DEFAULT);
+            } finally {
+                //失败的写入也可能已经执行了，结束后不管结果再发布一次
+                eventPublisher.publishEvent(DocumentWriteEvent.of(this, request));
+            }
+            //部分条目失败时只重试失败的条目（429、503、upsert版本冲突），其余的进死信，不用整批重发
+            if (bulkResponse.hasFailures()) {
+                adaptiveBulkIngester.retryFailedItems(request, bulkResponse);
+            }
 
             for (BulkItemResponse bulkItemResponse : bulkResponse) {
                 DocWriteResponse itemResponse = bulkItemResponse.getResponse();
@@ -95,6 +134,7 @@ public class EsBulkApiRepository {
         BulkProcessor.Listener listener = new BulkProcessor.Listener() {
             @Override
             public void beforeBulk(long executionId, BulkRequest request) {
+                eventPublisher.publishEvent(DocumentWriteEvent.of(EsBulkApiRepository.this, request));
                 int numberOfActions = request.numberOfActions();
                 log.debug("Executing bulk [{}] with {} requests",
                         executionId, numberOfActions);
@@ -103,8 +143,11 @@ public class EsBulkApiRepository {
             @Override
             public void afterBulk(long executionId, BulkRequest request,
                                   BulkResponse response) {
+                eventPublisher.publishEvent(DocumentWriteEvent.of(EsBulkApiRepository.this, request));
                 if (response.hasFailures()) {
                     log.warn("Bulk [{}] executed with failures", executionId);
+                    //BulkProcessor的BackoffPolicy只在整批被拒绝时重试，单条失败的交给adaptiveBulkIngester重试
+                    adaptiveBulkIngester.retryFailedItems(request, response);
                 } else {
                     log.debug("Bulk [{}] completed in {} milliseconds",
                             executionId, response.getTook().getMillis());
@@ -114,6 +157,7 @@ public class EsBulkApiRepository {
             @Override
             public void afterBulk(long executionId, BulkRequest request,
                                   Throwable failure) {
+                eventPublisher.publishEvent(DocumentWriteEvent.of(EsBulkApiRepository.this, request));
                 log.error("Failed to execute bulk", failure);
             }
         };
@@ -181,4 +225,80 @@ public class EsBulkApiRepository {
         //关闭请求
         bulkProcessor.close();
     }
+
+    /**
+     * 自适应批量写入
+     * 上面BulkProcessor的批次大小、并发数都是写死的，压力大的时候要么批次太小请求开销占大头，要么批次太大出现429和长尾。
+     * AdaptiveBulkIngester 根据每批的耗时和拒绝比例自动调整批次大小和并发数，参数见 es.bulk 配置
+     */
+    public void adaptiveBulkExecute() {
+        for (int i = 0; i < 10000; i++) {
+            adaptiveBulkIngester.add(new IndexRequest("posts").id(String.valueOf(i))
+                    .source(XContentType.JSON, "title", "adaptive bulk " + i));
+        }
+        adaptiveBulkIngester.flush();
+        log.info("adaptive bulk metrics {}", adaptiveBulkIngester.metrics());
+    }
+
+    /**
+     * 非阻塞的批量写入
+     * 用BulkProcessor时，并发请求满了 add 会阻塞调用线程，setConcurrentRequests(0) 时甚至直接在调用线程里发http请求。
+     * offer 只是放进有界队列（按字节数限制），立即返回一个future，队列满了按 es.bulk.queue.overflow-policy 处理：
+     * BLOCK 等待、DROP_OLDEST 丢弃最老的、FAIL_FAST 直接失败
+     */
+    public void offerBulkExecute() {
+        CompletableFuture<BulkItemResponse> future = adaptiveBulkIngester.offer(new IndexRequest("posts").id("1")
+                .source(XContentType.JSON, "title", "offer bulk"));
+        future.whenComplete((response, e) -> {
+            if (e != null) {
+                log.warn("写入失败", e);
+            } else {
+                log.debug("写入成功，index:{},id:{}", response.getIndex(), response.getId());
+            }
+        });
+        log.info("队列深度:{},生产者等待时间:{}ms", adaptiveBulkIngester.metrics().getQueuedOperations(),
+                adaptiveBulkIngester.metrics().getProducerWaitMillis());
+    }
+
+    /**
+     * 带磁盘预写队列的批量写入
+     * bulkProcessor.add 进去的数据只在堆里，awaitClose 超时或者进程重启就丢了。
+     * 预写队列模式下数据先追加到磁盘文件立即返回，后台线程异步写es，重启后会重放没有确认的数据
+     */
+    public void spooledBulkExecute() {
+        SpooledBulkIngester ingester = spooledBulkIngester.getIfAvailable();
+        if (ingester == null) {
+            log.info("没有开启预写队列，设置 es.bulk.spool.enabled=true");
+            return;
+        }
+        for (int i = 0; i < 10000; i++) {
+            ingester.enqueue(new IndexRequest("posts").id(String.valueOf(i))
+                    .source(XContentType.JSON, "title", "spooled bulk " + i));
+        }
+        log.info("预写队列积压 {} 字节，{}", ingester.backlogBytes(), ingester.metrics());
+    }
+
+    /**
+     * 分区的保证顺序写入
+     * bulkProcessor 并发数大于0时批次之间乱序，同一文档先写的可能后生效；等于0时又只有一个在途批次。
+     * 分区模式下按 index + routing 把请求分到N个独立的分区，同一文档总在同一个分区里按顺序写，分区之间并行
+     */
+    public void partitionedBulkExecute() throws InterruptedException {
+        PartitionedBulkIngester ingester = partitionedBulkIngester.getIfAvailable();
+        if (ingester == null) {
+            log.info("没有开启分区写入，设置 es.bulk.partition.enabled=true");
+            return;
+        }
+        for (int i = 0; i < 10000; i++) {
+            //同一个routing的文档进同一个分区
+            ingester.add(new IndexRequest("posts").id(String.valueOf(i)).routing("user" + i % 100)
+                    .source(XContentType.JSON, "title", "partitioned bulk " + i));
+        }
+        ingester.flush();
+        log.info("各分区积压 {}", ingester.partitionLag());
+        //调整分区数，会先等当前分区写完，超时没写完就保持原来的分区数
+        if (!ingester.resize(ingester.getPartitionCount() * 2)) {
+            log.warn("分区没有在超时时间内写完，分区数保持 {}", ingester.getPartitionCount());
+        }
+    }
 }
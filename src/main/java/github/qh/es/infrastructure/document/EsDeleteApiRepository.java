@@ -1,5 +1,6 @@
 package github.qh.es.infrastructure.document;
 
+import github.qh.es.infrastructure.support.Deadline;
 import lombok.extern.slf4j.Slf4j;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.delete.DeleteRequest;
@@ -10,6 +11,7 @@ import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.VersionType;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.Resource;
@@ -27,6 +29,9 @@ public class EsDeleteApiRepository {
     @Resource
     private RestHighLevelClient client;
 
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
+
     public void delete() {
         DeleteRequest request = new DeleteRequest(
                 "index_map",
@@ -36,6 +41,8 @@ public class EsDeleteApiRepository {
         //设置请求超时时间
         request.timeout(TimeValue.timeValueMinutes(2));
         request.timeout("2m");
+        //调用方设置了截止时间（Deadline）时取剩余时间和2分钟里较小的
+        request.timeout(Deadline.serverTimeout(request.timeout()));
 
         //刷新策略，创建索引里面有介绍 github.qh.es.infrastructure.document.EsIndexApiRepository.getSimpleIndexByJsonStr
         request.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
@@ -45,7 +52,14 @@ public class EsDeleteApiRepository {
         request.version(2);
         request.versionType(VersionType.EXTERNAL);
         try {
-            DeleteResponse deleteResponse = client.delete(request, RequestOptions.DEFAULT);
+            eventPublisher.publishEvent(DocumentWriteEvent.of(this, request));
+            DeleteResponse deleteResponse;
+            try {
+                deleteResponse = client.delete(request, RequestOptions.DEFAULT);
+            } finally {
+                //失败的写入也可能已经执行了，结束后不管结果再发布一次
+                eventPublisher.publishEvent(DocumentWriteEvent.of(this, request));
+            }
             String index = deleteResponse.getIndex();
             String id = deleteResponse.getId();
             long version = deleteResponse.getVersion();
@@ -76,6 +90,7 @@ public class EsDeleteApiRepository {
         ActionListener<DeleteResponse> listener = new ActionListener<DeleteResponse>() {
             @Override
             public void onResponse(DeleteResponse deleteResponse) {
+                eventPublisher.publishEvent(DocumentWriteEvent.of(EsDeleteApiRepository.this, getRequest));
                 if (log.isDebugEnabled()) {
                     log.debug("异步方式删除索引，返回结果:{}", deleteResponse);
                 }
@@ -83,10 +98,12 @@ public class EsDeleteApiRepository {
 
             @Override
             public void onFailure(Exception e) {
+                eventPublisher.publishEvent(DocumentWriteEvent.of(EsDeleteApiRepository.this, getRequest));
                 log.error("异步方式删除索引异常", e);
             }
         };
         getRequest.index("index_json2");
+        eventPublisher.publishEvent(DocumentWriteEvent.of(this, getRequest));
         client.deleteAsync(getRequest, RequestOptions.DEFAULT, listener);
 
     }
@@ -1,11 +1,19 @@
 package github.qh.es.infrastructure.document;
 
+import github.qh.es.infrastructure.document.filter.ExistsFilter;
+import github.qh.es.infrastructure.support.Deadline;
+import github.qh.es.infrastructure.support.MicroBatcher;
 import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.IndexNotFoundException;
 import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.Resource;
@@ -23,6 +31,126 @@ public class EsExistsApiRepository {
     @Resource
     private RestHighLevelClient client;
 
+    /**
+     * es.search.mget-batch.enabled=true 时才有，和 get 共用
+     */
+    @Autowired
+    private ObjectProvider<MicroBatcher<GetRequest, GetResponse>> getBatcher;
+
+    /**
+     * es.document.exists-filter.enabled=true 时才有
+     */
+    @Autowired
+    private ObjectProvider<ExistsFilter> existsFilter;
+
+    /**
+     * 判断文档是否存在，开启了 exists 过滤器时一定不存在的文档不发到集群；
+     * 开启了批量get时和同一时间窗口内的其他get、exists一起通过 _mget 发送
+     */
+    public boolean exists(GetRequest getRequest) throws IOException {
+        ExistsFilter filter = existsFilter.getIfAvailable();
+        if (filter == null) {
+            return send(getRequest);
+        }
+        ExistsFilter.Verdict verdict = filter.check(getRequest.index(), getRequest.id());
+        if (verdict == ExistsFilter.Verdict.ABSENT) {
+            return false;
+        }
+        boolean exists = send(getRequest);
+        if (verdict == ExistsFilter.Verdict.MAYBE) {
+            filter.recordMaybe(getRequest.index(), exists);
+        }
+        return exists;
+    }
+
+    public void existsAsync(GetRequest getRequest, ActionListener<Boolean> listener) {
+        ExistsFilter filter = existsFilter.getIfAvailable();
+        if (filter == null) {
+            sendAsync(getRequest, listener);
+            return;
+        }
+        ExistsFilter.Verdict verdict = filter.check(getRequest.index(), getRequest.id());
+        if (verdict == ExistsFilter.Verdict.ABSENT) {
+            listener.onResponse(false);
+            return;
+        }
+        if (verdict == ExistsFilter.Verdict.UNKNOWN) {
+            sendAsync(getRequest, listener);
+            return;
+        }
+        sendAsync(getRequest, ActionListener.wrap(exists -> {
+            filter.recordMaybe(getRequest.index(), exists);
+            listener.onResponse(exists);
+        }, listener::onFailure));
+    }
+
+    private boolean send(GetRequest getRequest) throws IOException {
+        MicroBatcher<GetRequest, GetResponse> batcher = getBatcher.getIfAvailable();
+        //带截止时间的请求不批量，见 Deadline
+        if (batcher == null || Deadline.current() != null) {
+            return client.exists(getRequest, RequestOptions.DEFAULT);
+        }
+        try {
+            return batcher.execute(existsRequest(getRequest)).isExists();
+        } catch (ElasticsearchException e) {
+            if (isIndexNotFound(e)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private void sendAsync(GetRequest getRequest, ActionListener<Boolean> listener) {
+        MicroBatcher<GetRequest, GetResponse> batcher = getBatcher.getIfAvailable();
+        if (batcher == null || Deadline.current() != null) {
+            client.existsAsync(getRequest, RequestOptions.DEFAULT, listener);
+            return;
+        }
+        batcher.submit(existsRequest(getRequest), new ActionListener<GetResponse>() {
+            @Override
+            public void onResponse(GetResponse response) {
+                listener.onResponse(response.isExists());
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                if (isIndexNotFound(e)) {
+                    listener.onResponse(false);
+                } else {
+                    listener.onFailure(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 单独的 exists（HEAD 请求）对不存在的索引返回404，也就是 false；
+     * _mget 里不存在的索引是条目级别的 index_not_found_exception 错误，这里同样当作不存在。
+     * 从响应解析出来的条目错误不是 IndexNotFoundException，只能从错误类型判断
+     */
+    private static boolean isIndexNotFound(Exception e) {
+        if (e instanceof IndexNotFoundException) {
+            return true;
+        }
+        return e instanceof ElasticsearchException && e.getMessage() != null
+                && e.getMessage().contains("type=index_not_found_exception");
+    }
+
+    /**
+     * 和 exists() 一样不取 _source 和存储字段，只保留会影响结果的参数，相同文档的 exists 在一批里只查一次
+     */
+    private static GetRequest existsRequest(GetRequest getRequest) {
+        return new GetRequest(getRequest.index(), getRequest.id())
+                .routing(getRequest.routing())
+                .preference(getRequest.preference())
+                .realtime(getRequest.realtime())
+                .refresh(getRequest.refresh())
+                .version(getRequest.version())
+                .versionType(getRequest.versionType())
+                .fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE)
+                .storedFields("_none_");
+    }
+
     public void exists() {
         GetRequest getRequest = new GetRequest(
                 "index_json",
@@ -31,7 +159,7 @@ public class EsExistsApiRepository {
         getRequest.storedFields("_none_");
 
         try {
-            boolean exists = client.exists(getRequest, RequestOptions.DEFAULT);
+            boolean exists = exists(getRequest);
             if (log.isDebugEnabled()) {
                 log.debug("查询是否存在索引->index_json:{}", exists);
             }
@@ -57,7 +185,7 @@ public class EsExistsApiRepository {
             }
         };
         getRequest.index("index_json_exists");
-        client.existsAsync(getRequest, RequestOptions.DEFAULT, listener);
+        existsAsync(getRequest, listener);
 
     }
 }
@@ -1,19 +1,34 @@
 package github.qh.es.infrastructure.document;
 
+import github.qh.es.infrastructure.document.cache.DocumentNearCache;
+import github.qh.es.infrastructure.search.decode.SourceDecoder;
+import github.qh.es.infrastructure.support.BlockingCallExecutor;
+import github.qh.es.infrastructure.support.Deadline;
+import github.qh.es.infrastructure.support.Endpoints;
+import github.qh.es.infrastructure.support.MicroBatcher;
+import github.qh.es.infrastructure.support.RequestCoalescer;
+import github.qh.es.infrastructure.support.StreamingResponseReader;
 import lombok.extern.slf4j.Slf4j;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.VersionType;
 import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.Resource;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -28,6 +43,165 @@ public class EsGetApiRepository {
     @Resource
     private RestHighLevelClient client;
 
+    @Resource
+    private StreamingResponseReader streamingResponseReader;
+
+    /**
+     * es.search.coalesce.enabled=true 时才有
+     */
+    @Autowired
+    private ObjectProvider<RequestCoalescer<GetRequest, GetResponse>> getCoalescer;
+
+    /**
+     * es.search.mget-batch.enabled=true 时才有
+     */
+    @Autowired
+    private ObjectProvider<MicroBatcher<GetRequest, GetResponse>> getBatcher;
+
+    /**
+     * es.document.near-cache.enabled=true 时才有
+     */
+    @Autowired
+    private ObjectProvider<DocumentNearCache> documentNearCache;
+
+    /**
+     * es.client.executor.enabled=true 时才有
+     */
+    @Autowired
+    private ObjectProvider<BlockingCallExecutor> blockingCallExecutor;
+
+    /**
+     * 执行get，开启了文档缓存时先查缓存；开启了请求合并时同一时刻的相同get只发一次，
+     * 开启了批量get时和同一时间窗口内的其他get、exists一起通过 _mget 发送；带截止时间（Deadline）的get不合并、不批量
+     */
+    public GetResponse get(GetRequest getRequest) throws IOException {
+        DocumentNearCache cache = documentNearCache.getIfAvailable();
+        if (cache == null) {
+            return load(getRequest);
+        }
+        return cache.get(getRequest, this::load);
+    }
+
+    public void getAsync(GetRequest getRequest, ActionListener<GetResponse> listener) {
+        DocumentNearCache cache = documentNearCache.getIfAvailable();
+        if (cache == null) {
+            loadAsync(getRequest, listener);
+            return;
+        }
+        cache.getAsync(getRequest, listener, this::loadAsync);
+    }
+
+    /**
+     * 并发执行多个get，按请求的顺序返回，每个get和 get(getRequest) 一样经过文档缓存、合并和批量get。
+     * 开启了 es.client.executor 时在它的线程上执行（mode=virtual 时每个get一个虚拟线程），没有开启时依次执行
+     */
+    public List<GetResponse> getAll(List<GetRequest> getRequests) throws IOException {
+        BlockingCallExecutor executor = blockingCallExecutor.getIfAvailable();
+        if (executor == null) {
+            List<GetResponse> responses = new ArrayList<>(getRequests.size());
+            for (GetRequest getRequest : getRequests) {
+                responses.add(get(getRequest));
+            }
+            return responses;
+        }
+        return executor.invokeAll(getRequests, this::get);
+    }
+
+    /**
+     * 流式get，_source 边收边直接解码成 T，不把整个文档放进堆内存再解析，适合很大的文档。
+     * 文档不存在时返回null；不经过文档缓存、请求合并和批量get
+     */
+    public <T> T getStreaming(GetRequest getRequest, SourceDecoder<T> decoder) throws IOException {
+        return streamingResponseReader.execute(streamingRequest(getRequest), parser -> {
+            parser.nextToken();
+            T value = null;
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                String name = parser.currentName();
+                parser.nextToken();
+                if ("_source".equals(name)) {
+                    value = decoder.decode(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return value;
+        });
+    }
+
+    /**
+     * 和 RestHighLevelClient 发出的get请求一致的参数，404 不抛异常
+     */
+    private static Request streamingRequest(GetRequest getRequest) {
+        Request request = new Request("GET", Endpoints.endpoint(getRequest.index(), getRequest.type(), getRequest.id()));
+        request.addParameter("ignore", "404");
+        if (getRequest.routing() != null) {
+            request.addParameter("routing", getRequest.routing());
+        }
+        if (getRequest.preference() != null) {
+            request.addParameter("preference", getRequest.preference());
+        }
+        if (!getRequest.realtime()) {
+            request.addParameter("realtime", "false");
+        }
+        if (getRequest.refresh()) {
+            request.addParameter("refresh", "true");
+        }
+        if (getRequest.version() != Versions.MATCH_ANY) {
+            request.addParameter("version", Long.toString(getRequest.version()));
+            request.addParameter("version_type", getRequest.versionType().name().toLowerCase(Locale.ROOT));
+        }
+        if (getRequest.storedFields() != null) {
+            request.addParameter("stored_fields", String.join(",", getRequest.storedFields()));
+        }
+        FetchSourceContext source = getRequest.fetchSourceContext();
+        if (source != null) {
+            if (!source.fetchSource()) {
+                request.addParameter("_source", "false");
+            }
+            if (source.includes().length > 0) {
+                request.addParameter("_source_includes", String.join(",", source.includes()));
+            }
+            if (source.excludes().length > 0) {
+                request.addParameter("_source_excludes", String.join(",", source.excludes()));
+            }
+        }
+        return request;
+    }
+
+    private GetResponse load(GetRequest getRequest) throws IOException {
+        RequestCoalescer<GetRequest, GetResponse> coalescer = getCoalescer.getIfAvailable();
+        if (coalescer == null || Deadline.current() != null) {
+            return send(getRequest);
+        }
+        return coalescer.execute(getRequest, this::send);
+    }
+
+    private void loadAsync(GetRequest getRequest, ActionListener<GetResponse> listener) {
+        RequestCoalescer<GetRequest, GetResponse> coalescer = getCoalescer.getIfAvailable();
+        if (coalescer == null || Deadline.current() != null) {
+            sendAsync(getRequest, listener);
+            return;
+        }
+        coalescer.executeAsync(getRequest, listener, this::sendAsync);
+    }
+
+    private GetResponse send(GetRequest getRequest) throws IOException {
+        MicroBatcher<GetRequest, GetResponse> batcher = getBatcher.getIfAvailable();
+        if (batcher == null || Deadline.current() != null) {
+            return client.get(getRequest, RequestOptions.DEFAULT);
+        }
+        return batcher.execute(getRequest);
+    }
+
+    private void sendAsync(GetRequest getRequest, ActionListener<GetResponse> listener) {
+        MicroBatcher<GetRequest, GetResponse> batcher = getBatcher.getIfAvailable();
+        if (batcher == null || Deadline.current() != null) {
+            client.getAsync(getRequest, RequestOptions.DEFAULT, listener);
+            return;
+        }
+        batcher.submit(getRequest, listener);
+    }
+
     public void get(){
 
         //查询的索引和id
@@ -51,6 +225,7 @@ public class EsGetApiRepository {
         request.realtime(false);
 
         //在这个get操作之前是否执行了刷新，从而导致该操作返回最新的值。注意，重get不应该将此设置为true。默认值为false。
+        //get本身是实时的（读translog），一般不需要refresh；开启了文档缓存时命中的get不会发到集群
         request.refresh(true);
 
         //查询的数据版本，和创建索引时候的版本关联，如果和创建时候指定的不一样就会报错
@@ -61,7 +236,7 @@ public class EsGetApiRepository {
 
         GetResponse getResponse = null;
         try {
-            getResponse = client.get(request, RequestOptions.DEFAULT);
+            getResponse = get(request);
             //异步方式获取返回值
             //getAsync(request);
         } catch (IOException e) {
@@ -100,7 +275,7 @@ public class EsGetApiRepository {
             }
         };
 
-        client.getAsync(request,RequestOptions.DEFAULT,listener);
+        getAsync(request, listener);
     }
 
     private void setFetchSource(GetRequest request) {
@@ -1,6 +1,7 @@
 package github.qh.es.infrastructure.document;
 
 import com.google.common.collect.Lists;
+import github.qh.es.infrastructure.support.Deadline;
 import lombok.extern.slf4j.Slf4j;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.DocWriteRequest;
@@ -21,6 +22,7 @@ import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.VersionType;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.Resource;
@@ -40,12 +42,16 @@ public class EsIndexApiRepository {
     @Resource
     private RestHighLevelClient client;
 
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
+
     protected static final RequestOptions COMMON_OPTIONS;
 
     static {
         RequestOptions.Builder builder = RequestOptions.DEFAULT.toBuilder();
 
-        // 默认缓冲限制为100MB，此处修改为30MB。
+        // 默认缓冲限制为100MB，此处修改为30MB。响应整个缓冲在堆上，超过限制直接失败；
+        // 大的查询和get结果用 SearchApiRepository#searchStreaming、EsGetApiRepository#getStreaming 边收边解析
         builder.setHttpAsyncResponseConsumerFactory(new HttpAsyncResponseConsumerFactory.HeapBufferedResponseConsumerFactory(30 * 1024 * 1024));
         COMMON_OPTIONS = builder.build();
     }
@@ -68,8 +74,15 @@ public class EsIndexApiRepository {
             indexList.forEach(
                     var -> {
                         try {
-                            //同步方式创建
-                            IndexResponse indexResponse = client.index(var, COMMON_OPTIONS);
+                            //同步方式创建，发送前先发布写入事件，见 DocumentWriteEvent
+                            eventPublisher.publishEvent(DocumentWriteEvent.of(this, var));
+                            IndexResponse indexResponse;
+                            try {
+                                indexResponse = client.index(var, COMMON_OPTIONS);
+                            } finally {
+                                //失败的写入也可能已经执行了，结束后不管结果再发布一次
+                                eventPublisher.publishEvent(DocumentWriteEvent.of(this, var));
+                            }
                             if(log.isDebugEnabled()){
                                 logResponse(var,indexResponse);
                             }
@@ -136,6 +149,8 @@ public class EsIndexApiRepository {
         //等待住分片的超时时间（两种方式）
         simpleIndex.timeout(TimeValue.timeValueSeconds(1));
         simpleIndex.timeout("1s");
+        //调用方设置了截止时间（Deadline）时取剩余时间和1秒里较小的
+        simpleIndex.timeout(Deadline.serverTimeout(simpleIndex.timeout()));
         /*
           刷新数据策略，es的写入数据并不一定会被实时查询出啊来，需要进行数据的刷新
           为了避免上述情况，有三种刷新策略可选
@@ -228,6 +243,7 @@ public class EsIndexApiRepository {
         ActionListener<IndexResponse> listener = new ActionListener<IndexResponse>() {
             @Override
             public void onResponse(IndexResponse indexResponse) {
+                eventPublisher.publishEvent(DocumentWriteEvent.of(EsIndexApiRepository.this, var));
                 if(log.isDebugEnabled()){
                     log.debug("异步创建成功，{}",indexResponse);
                 }
@@ -235,9 +251,11 @@ public class EsIndexApiRepository {
 
             @Override
             public void onFailure(Exception e) {
+                eventPublisher.publishEvent(DocumentWriteEvent.of(EsIndexApiRepository.this, var));
                 log.error("异步创建失败",e);
             }
         };
+        eventPublisher.publishEvent(DocumentWriteEvent.of(this, var));
         client.indexAsync(var, RequestOptions.DEFAULT, listener);
     }
 
@@ -1,5 +1,7 @@
 package github.qh.es.infrastructure.document;
 
+import github.qh.es.infrastructure.document.bulk.AdaptiveBulkIngester;
+import github.qh.es.infrastructure.support.Deadline;
 import lombok.extern.slf4j.Slf4j;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.DocWriteResponse;
@@ -19,6 +21,7 @@ import org.elasticsearch.index.get.GetResult;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.Resource;
@@ -41,6 +44,12 @@ public class EsUpdateApiRepository {
     @Resource
     private RestHighLevelClient client;
 
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
+
+    @Resource
+    private AdaptiveBulkIngester adaptiveBulkIngester;
+
     /**
      * 更新一个索引相关api
      */
@@ -61,8 +70,14 @@ public class EsUpdateApiRepository {
             //异步方式更新
             //updateByAsync(request);
 
-            UpdateResponse updateResponse = client.update(
-                    request, RequestOptions.DEFAULT);
+            eventPublisher.publishEvent(DocumentWriteEvent.of(this, request));
+            UpdateResponse updateResponse;
+            try {
+                updateResponse = client.update(request, RequestOptions.DEFAULT);
+            } finally {
+                //失败的写入也可能已经执行了，结束后不管结果再发布一次
+                eventPublisher.publishEvent(DocumentWriteEvent.of(this, request));
+            }
             if(log.isDebugEnabled()){
                 log.debug("更新操作返回结果：{}",updateResponse);
             }
@@ -118,14 +133,15 @@ public class EsUpdateApiRepository {
         ActionListener<UpdateResponse> listener = new ActionListener<UpdateResponse>() {
             @Override
             public void onResponse(UpdateResponse updateResponse) {
-
+                eventPublisher.publishEvent(DocumentWriteEvent.of(EsUpdateApiRepository.this, request));
             }
 
             @Override
             public void onFailure(Exception e) {
-
+                eventPublisher.publishEvent(DocumentWriteEvent.of(EsUpdateApiRepository.this, request));
             }
         };
+        eventPublisher.publishEvent(DocumentWriteEvent.of(this, request));
         client.updateAsync(request, RequestOptions.DEFAULT, listener);
     }
 
@@ -135,6 +151,8 @@ public class EsUpdateApiRepository {
         //等待主分片的超时时间
         request.timeout(TimeValue.timeValueSeconds(1));
         request.timeout("1s");
+        //调用方设置了截止时间（Deadline）时取剩余时间和1秒里较小的
+        request.timeout(Deadline.serverTimeout(request.timeout()));
         //刷新策略，前面index那章有介绍
         request.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
         request.setRefreshPolicy("wait_for");
@@ -203,4 +221,16 @@ public class EsUpdateApiRepository {
         request.script(stored);
     }
 
+    /**
+     * 高频的字段更新（计数、状态）走批量写入
+     * 开启 es.bulk.coalesce=true 后，同一个刷新间隔内对 posts/1 的多次部分更新会合并成一次，后写的字段覆盖先写的
+     */
+    public void updateByBulk() {
+        for (int i = 0; i < 100; i++) {
+            adaptiveBulkIngester.add(new UpdateRequest("posts", "1")
+                    .doc(XContentType.JSON, "status", "step-" + i, "count", i));
+        }
+        adaptiveBulkIngester.flush();
+        log.info("合并掉的更新数：{}", adaptiveBulkIngester.metrics().getCoalescedOperations());
+    }
 }
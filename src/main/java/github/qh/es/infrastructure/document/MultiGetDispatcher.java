@@ -0,0 +1,118 @@
+package github.qh.es.infrastructure.document;
+
+import com.google.common.hash.HashCode;
+import github.qh.es.infrastructure.support.MicroBatcher;
+import github.qh.es.infrastructure.support.RequestKeys;
+import lombok.EqualsAndHashCode;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-28- 2:30 下午
+ * @email quhao.mi@foxmail.com
+ * 把一批get合成 _mget 发送。
+ * 1.完全相同的get（同一个索引、id、routing、返回字段等）只查一次，结果分给所有调用方
+ * 2.preference/realtime/refresh 是 _mget 整个请求的参数，这三个参数不同的get分成多个 _mget
+ * 3.单条失败只影响对应的调用方，整个请求失败时这一批全部失败
+ */
+public class MultiGetDispatcher implements Consumer<List<MicroBatcher.Item<GetRequest, GetResponse>>> {
+
+    private final RestHighLevelClient client;
+
+    public MultiGetDispatcher(RestHighLevelClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public void accept(List<MicroBatcher.Item<GetRequest, GetResponse>> items) {
+        Map<Group, Map<HashCode, List<MicroBatcher.Item<GetRequest, GetResponse>>>> groups = new LinkedHashMap<>();
+        for (MicroBatcher.Item<GetRequest, GetResponse> item : items) {
+            GetRequest request = item.getRequest();
+            groups.computeIfAbsent(new Group(request), g -> new LinkedHashMap<>())
+                    .computeIfAbsent(RequestKeys.get(request), k -> new ArrayList<>(1))
+                    .add(item);
+        }
+        for (Map.Entry<Group, Map<HashCode, List<MicroBatcher.Item<GetRequest, GetResponse>>>> group : groups.entrySet()) {
+            send(group.getKey(), new ArrayList<>(group.getValue().values()));
+        }
+    }
+
+    private void send(Group group, List<List<MicroBatcher.Item<GetRequest, GetResponse>>> distinct) {
+        MultiGetRequest request = new MultiGetRequest()
+                .preference(group.preference)
+                .realtime(group.realtime)
+                .refresh(group.refresh);
+        for (List<MicroBatcher.Item<GetRequest, GetResponse>> same : distinct) {
+            GetRequest get = same.get(0).getRequest();
+            MultiGetRequest.Item item = new MultiGetRequest.Item(get.index(), get.id())
+                    .routing(get.routing())
+                    .version(get.version())
+                    .versionType(get.versionType())
+                    .fetchSourceContext(get.fetchSourceContext());
+            if (get.storedFields() != null) {
+                item.storedFields(get.storedFields());
+            }
+            request.add(item);
+        }
+        client.mgetAsync(request, RequestOptions.DEFAULT, new ActionListener<MultiGetResponse>() {
+            @Override
+            public void onResponse(MultiGetResponse response) {
+                MultiGetItemResponse[] responses = response.getResponses();
+                for (int i = 0; i < distinct.size(); i++) {
+                    MultiGetItemResponse result = responses[i];
+                    for (MicroBatcher.Item<GetRequest, GetResponse> item : distinct.get(i)) {
+                        if (result.isFailed()) {
+                            Exception failure = result.getFailure().getFailure();
+                            item.fail(failure != null ? failure
+                                    : new ElasticsearchException("mget item [{}] failed", result.getId()));
+                        } else {
+                            item.complete(result.getResponse());
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                for (List<MicroBatcher.Item<GetRequest, GetResponse>> same : distinct) {
+                    for (MicroBatcher.Item<GetRequest, GetResponse> item : same) {
+                        item.fail(e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * _mget 请求级别的参数
+     */
+    @EqualsAndHashCode
+    private static final class Group {
+
+        private final String preference;
+
+        private final boolean realtime;
+
+        private final boolean refresh;
+
+        private Group(GetRequest request) {
+            this.preference = request.preference();
+            this.realtime = request.realtime();
+            this.refresh = request.refresh();
+        }
+    }
+}
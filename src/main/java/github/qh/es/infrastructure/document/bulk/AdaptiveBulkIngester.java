@@ -0,0 +1,506 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import github.qh.es.application.config.EsBulkProperties;
+import github.qh.es.infrastructure.support.ResizableSemaphore;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-06- 3:10 下午
+ * @email quhao.mi@foxmail.com
+ * 自适应的批量写入组件，用来代替 BulkProcessor 里写死的 bulkActions/bulkSize/concurrentRequests。
+ * 每个批次返回后根据 BulkResponse#getTook 和429拒绝比例调整批次大小和在途并发数（见 AdaptiveBulkTuner），
+ * 当前参数可以通过 {@link #metrics()} 获取。
+ * 批次返回后逐条检查 BulkItemResponse，只把可重试的失败条目按指数退避重新放回队列（见 BulkRetryPolicy），
+ * 不可重试或者重试次数用完的交给 DeadLetterSink，而不是像 BulkProcessor 那样整批重发或者直接丢掉。
+ * 生产者只往有界队列（BoundedBulkQueue）里放数据，组批和发送都在单独的发送线程里完成，
+ * 调用线程不会执行http请求，队列满了按 OverflowPolicy 处理。
+ * 开启 es.bulk.coalesce 后，同一批次内对同一文档的多次写操作会先合并（见 BulkWriteCoalescer）。
+ * 保证顺序（ordered）的模式下固定只有一个在途批次，失败重试的操作放回队头，退避结束前不发送下一批，
+ * 这样同一文档的写操作严格按提交顺序生效，用于 PartitionedBulkIngester 的每个分区。
+ * 和 BulkProcessor 一样通过 consumer 发送请求，便于替换为本地的模拟服务做压测：
+ * <pre>
+ * new AdaptiveBulkIngester((request, listener) -> client.bulkAsync(request, RequestOptions.DEFAULT, listener), properties)
+ * </pre>
+ */
+@Slf4j
+public class AdaptiveBulkIngester implements Closeable {
+
+    static final ActionListener<BulkItemResponse> NOOP_LISTENER = ActionListener.wrap(r -> {
+    }, e -> {
+    });
+
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final BiConsumer<BulkRequest, ActionListener<BulkResponse>> consumer;
+
+    private final AdaptiveBulkTuner tuner;
+
+    private final BulkRetryPolicy retryPolicy;
+
+    private final DeadLetterSink deadLetterSink;
+
+    private final ResizableSemaphore semaphore;
+
+    private final BoundedBulkQueue queue;
+
+    /**
+     * 为null时不合并
+     */
+    private final BulkWriteCoalescer coalescer;
+
+    private final boolean ordered;
+
+    private final long flushIntervalNanos;
+
+    private final Thread dispatcher;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Object idleLock = new Object();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * 已经接收、还没有最终结果（成功、死信或被丢弃）的操作数，为0时说明全部处理完了
+     */
+    private final AtomicLong outstanding = new AtomicLong();
+
+    private volatile boolean closed;
+
+    private volatile boolean stopped;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong rejectedOperations = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong retriedOperations = new AtomicLong();
+    private final AtomicLong deadLetters = new AtomicLong();
+    private final AtomicLong coalescedOperations = new AtomicLong();
+    private volatile long lastTookMillis;
+
+    public AdaptiveBulkIngester(BiConsumer<BulkRequest, ActionListener<BulkResponse>> consumer,
+                                EsBulkProperties properties) {
+        this(consumer, properties, new LoggingDeadLetterSink());
+    }
+
+    public AdaptiveBulkIngester(BiConsumer<BulkRequest, ActionListener<BulkResponse>> consumer,
+                                EsBulkProperties properties,
+                                DeadLetterSink deadLetterSink) {
+        this(consumer, properties, deadLetterSink, false);
+    }
+
+    /**
+     * @param ordered 是否保证提交顺序，保证顺序时在途批次固定为1
+     */
+    public AdaptiveBulkIngester(BiConsumer<BulkRequest, ActionListener<BulkResponse>> consumer,
+                                EsBulkProperties properties,
+                                DeadLetterSink deadLetterSink,
+                                boolean ordered) {
+        this.consumer = consumer;
+        this.ordered = ordered;
+        this.tuner = ordered ? new AdaptiveBulkTuner(properties, 1) : new AdaptiveBulkTuner(properties);
+        this.retryPolicy = new BulkRetryPolicy(properties);
+        this.deadLetterSink = deadLetterSink;
+        this.semaphore = new ResizableSemaphore(tuner.getConcurrency());
+        EsBulkProperties.Queue queueProperties = properties.getQueue();
+        this.queue = new BoundedBulkQueue(queueProperties.getMaxBytes(), queueProperties.getMaxOperations(),
+                queueProperties.getOverflowPolicy(), queueProperties.getBlockTimeout().toMillis(), TimeUnit.MILLISECONDS);
+        this.flushIntervalNanos = properties.getFlushInterval().toNanos();
+        this.coalescer = properties.isCoalesce() ? new BulkWriteCoalescer() : null;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "es-bulk-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.dispatcher = new Thread(this::dispatch, "es-bulk-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * 非阻塞地提交一个写操作（队列满时的行为取决于 OverflowPolicy，BLOCK 策略下会等待队列空间）
+     *
+     * @return 该操作最终写入成功时完成；最终失败、被拒绝或被丢弃时异常完成
+     */
+    public CompletableFuture<BulkItemResponse> offer(DocWriteRequest<?> request) {
+        CompletableFuture<BulkItemResponse> future = new CompletableFuture<>();
+        try {
+            add(request, ActionListener.wrap(future::complete, future::completeExceptionally));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 添加一个写操作
+     */
+    public void add(DocWriteRequest<?> request) {
+        add(request, NOOP_LISTENER);
+    }
+
+    /**
+     * 添加一个写操作
+     *
+     * @param listener 该操作最终成功时回调 onResponse，最终失败（进入死信）或者被队列丢弃时回调 onFailure
+     * @throws EsRejectedExecutionException 队列满了被拒绝
+     */
+    public void add(DocWriteRequest<?> request, ActionListener<BulkItemResponse> listener) {
+        if (closed) {
+            throw new EsRejectedExecutionException("bulk ingester already closed", true);
+        }
+        BulkOperation operation = new BulkOperation(request, tracked(listener));
+        try {
+            queue.offer(operation);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            untrack();
+            throw new EsRejectedExecutionException("interrupted while waiting for room in bulk queue");
+        } catch (RuntimeException e) {
+            untrack();
+            throw e;
+        }
+    }
+
+    /**
+     * 处理外部执行的bulk请求（比如直接调用 client.bulk）的失败条目：
+     * 可重试的放进本组件按退避策略重试，其余的进死信
+     */
+    public void retryFailedItems(BulkRequest request, BulkResponse response) {
+        List<DocWriteRequest<?>> requests = request.requests();
+        for (BulkItemResponse item : response.getItems()) {
+            if (item.isFailed()) {
+                BulkOperation operation = new BulkOperation(requests.get(item.getItemId()), tracked(NOOP_LISTENER));
+                operation.nextAttempt();
+                onItemFailed(operation, item.getFailure().getStatus(), item.getFailure().getCause(), null);
+            }
+        }
+    }
+
+    /**
+     * 让发送线程立刻发送当前未满的批次
+     */
+    public void flush() {
+        queue.requestFlush();
+    }
+
+    public BulkIngestMetrics metrics() {
+        return new BulkIngestMetrics(tuner.getBatchBytes(), tuner.getConcurrency(), inFlight.get(),
+                batches.get(), operations.get(), rejectedOperations.get(), failedBatches.get(), lastTookMillis,
+                retriedOperations.get(), deadLetters.get(),
+                queue.size(), queue.bytes(), queue.droppedCount(), queue.rejectedCount(),
+                queue.producerWaitMillis(), queue.averageQueuedMillis(), coalescedOperations.get());
+    }
+
+    /**
+     * 发送剩余数据并等待所有操作拿到最终结果（包括退避中的重试）
+     *
+     * @return 是否在超时时间内全部完成
+     */
+    public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+        closed = true;
+        queue.close();
+        try {
+            return awaitIdle(timeout, unit);
+        } finally {
+            stopped = true;
+            dispatcher.interrupt();
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 等待已接收的操作全部拿到最终结果（包括退避中的重试），不关闭，超时后继续正常工作。
+     * 调用方需要自己保证等待期间没有新的提交
+     *
+     * @return 是否在超时时间内全部完成
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        queue.requestFlush();
+        synchronized (idleLock) {
+            while (outstanding.get() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(idleLock, Math.min(remaining, POLL_NANOS));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            awaitClose(30L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 发送线程：先拿到在途批次的名额再从队列取数据，拿不到名额时数据留在队列里，生产者通过队列深度感知压力
+     */
+    private void dispatch() {
+        while (!stopped) {
+            try {
+                semaphore.acquire();
+                List<BulkOperation> operationsInBatch;
+                try {
+                    operationsInBatch = queue.pollBatch(tuner.getBatchBytes(), flushIntervalNanos, POLL_NANOS,
+                            inFlight::incrementAndGet);
+                } catch (InterruptedException e) {
+                    semaphore.release();
+                    throw e;
+                }
+                if (operationsInBatch == null) {
+                    semaphore.release();
+                    continue;
+                }
+                execute(coalesce(operationsInBatch));
+            } catch (InterruptedException e) {
+                if (stopped) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                log.error("bulk dispatcher failed", e);
+            }
+        }
+    }
+
+    private List<BulkOperation> coalesce(List<BulkOperation> operationsInBatch) {
+        if (coalescer == null) {
+            return operationsInBatch;
+        }
+        try {
+            List<BulkOperation> coalesced = coalescer.coalesce(operationsInBatch);
+            coalescedOperations.addAndGet(operationsInBatch.size() - coalesced.size());
+            return coalesced;
+        } catch (RuntimeException e) {
+            //合并失败（比如source不是合法的json）时按原样发送，让es返回具体的错误
+            log.warn("failed to coalesce bulk operations, sending them as is", e);
+            return operationsInBatch;
+        }
+    }
+
+    private void execute(List<BulkOperation> operationsInBatch) {
+        Batch batch = new Batch(operationsInBatch);
+        batches.incrementAndGet();
+        operations.addAndGet(operationsInBatch.size());
+        for (BulkOperation operation : operationsInBatch) {
+            operation.nextAttempt();
+        }
+        try {
+            consumer.accept(batch.request, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse response) {
+                    try {
+                        onBulkResponse(batch, response);
+                    } finally {
+                        complete(batch);
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    try {
+                        onBulkFailure(batch, e);
+                    } finally {
+                        complete(batch);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            try {
+                onBulkFailure(batch, e);
+            } finally {
+                complete(batch);
+            }
+        }
+    }
+
+    private void onBulkResponse(Batch batch, BulkResponse response) {
+        int rejected = 0;
+        //保证顺序模式下已经有操作要重试的文档
+        Set<String> retryingDocs = ordered ? new HashSet<>() : Collections.emptySet();
+        for (BulkItemResponse item : response.getItems()) {
+            BulkOperation operation = batch.operations.get(item.getItemId());
+            String doc = ordered ? orderKey(operation.getRequest()) : null;
+            if (doc != null && retryingDocs.contains(doc)) {
+                //同一文档前面的操作要重试，后面的操作即使已经成功也要跟在它后面重新写一次，否则重试会覆盖掉新值
+                batch.retries.add(operation);
+                continue;
+            }
+            if (!item.isFailed()) {
+                operation.getListener().onResponse(item);
+                continue;
+            }
+            RestStatus status = item.getFailure().getStatus();
+            if (status == RestStatus.TOO_MANY_REQUESTS) {
+                rejected++;
+            }
+            int retries = batch.retries.size();
+            onItemFailed(operation, status, item.getFailure().getCause(), batch.retries);
+            if (doc != null && batch.retries.size() > retries) {
+                retryingDocs.add(doc);
+            }
+        }
+        rejectedOperations.addAndGet(rejected);
+        lastTookMillis = response.getTook().getMillis();
+        tuner.onBatchCompleted(lastTookMillis, batch.operations.size(), rejected);
+    }
+
+    private void onBulkFailure(Batch batch, Exception e) {
+        failedBatches.incrementAndGet();
+        RestStatus status = ExceptionsHelper.status(e);
+        boolean rejected = status == RestStatus.TOO_MANY_REQUESTS;
+        if (rejected) {
+            rejectedOperations.addAndGet(batch.operations.size());
+        }
+        tuner.onBatchFailed(rejected);
+        log.warn("Failed to execute bulk with {} requests", batch.operations.size(), e);
+        //连接失败之类的IO异常也当作503处理，一样可以重试
+        RestStatus itemStatus = e instanceof IOException ? RestStatus.SERVICE_UNAVAILABLE : status;
+        for (BulkOperation operation : batch.operations) {
+            onItemFailed(operation, itemStatus, e, batch.retries);
+        }
+    }
+
+    /**
+     * @param orderedRetries 保证顺序模式下收集本批次要重试的操作，由 complete 统一放回队头；为null时单独安排退避重试
+     */
+    private void onItemFailed(BulkOperation operation, RestStatus status, Exception cause,
+                              List<BulkOperation> orderedRetries) {
+        int attempts = operation.getAttempts();
+        if (retryPolicy.isRetryable(operation.getRequest(), status) && retryPolicy.canRetry(attempts)) {
+            retriedOperations.incrementAndGet();
+            if (ordered && orderedRetries != null) {
+                orderedRetries.add(operation);
+                return;
+            }
+            scheduler.schedule(() -> queue.forceAdd(operation), retryPolicy.backoffMillis(attempts), TimeUnit.MILLISECONDS);
+            return;
+        }
+        deadLetters.incrementAndGet();
+        try {
+            deadLetterSink.accept(operation.getRequest(), attempts, cause);
+        } finally {
+            operation.getListener().onFailure(cause);
+        }
+    }
+
+    /**
+     * 文档的唯一标识，没有id的新增由es生成id，不存在先后顺序
+     */
+    private static String orderKey(DocWriteRequest<?> request) {
+        if (request.id() == null) {
+            return null;
+        }
+        return request.index() + '\u0000' + request.id() + '\u0000' + request.routing();
+    }
+
+    private void complete(Batch batch) {
+        if (ordered && !batch.retries.isEmpty()) {
+            //重试的操作放回队头，退避结束后才释放名额，下一批一定从这些操作开始
+            queue.forceAddFirst(batch.retries);
+            int attempts = 0;
+            for (BulkOperation operation : batch.retries) {
+                attempts = Math.max(attempts, operation.getAttempts());
+            }
+            scheduler.schedule(this::release, retryPolicy.backoffMillis(attempts), TimeUnit.MILLISECONDS);
+            return;
+        }
+        release();
+    }
+
+    private void release() {
+        semaphore.resize(tuner.getConcurrency());
+        semaphore.release();
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * 包装操作的回调，拿到最终结果时减少未完成计数
+     */
+    private ActionListener<BulkItemResponse> tracked(ActionListener<BulkItemResponse> listener) {
+        outstanding.incrementAndGet();
+        return new ActionListener<BulkItemResponse>() {
+            @Override
+            public void onResponse(BulkItemResponse response) {
+                try {
+                    listener.onResponse(response);
+                } finally {
+                    untrack();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                try {
+                    listener.onFailure(e);
+                } finally {
+                    untrack();
+                }
+            }
+        };
+    }
+
+    private void untrack() {
+        outstanding.decrementAndGet();
+        signalIdle();
+    }
+
+    private void signalIdle() {
+        synchronized (idleLock) {
+            idleLock.notifyAll();
+        }
+    }
+
+    /**
+     * 一个待发送的批次，operations 和 request.requests() 按下标一一对应，
+     * 这样才能通过 BulkItemResponse#getItemId 找回原来的操作
+     */
+    private static final class Batch {
+
+        private final BulkRequest request = new BulkRequest();
+
+        private final List<BulkOperation> operations;
+
+        /**
+         * 保证顺序模式下本批次需要重试的操作
+         */
+        private final List<BulkOperation> retries = new ArrayList<>();
+
+        Batch(List<BulkOperation> operations) {
+            this.operations = new ArrayList<>(operations);
+            for (BulkOperation operation : operations) {
+                request.add(operation.getRequest());
+            }
+        }
+    }
+}
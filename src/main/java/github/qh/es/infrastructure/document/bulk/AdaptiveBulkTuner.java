@@ -0,0 +1,109 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import github.qh.es.application.config.EsBulkProperties;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-06- 2:35 下午
+ * @email quhao.mi@foxmail.com
+ * 批量写入参数的自适应调节器（AIMD：加性增、乘性减）。
+ * 1.批次耗时低于目标值且没有拒绝时，批次大小线性增加，连续成功若干批后并发数加一
+ * 2.批次耗时超过目标值时，批次大小按比例缩小，降低长尾延迟
+ * 3.出现429拒绝时，并发数减半；并发数已经最小时再把批次大小减半
+ */
+@Slf4j
+public class AdaptiveBulkTuner {
+
+    private final EsBulkProperties properties;
+
+    private final int maxConcurrency;
+
+    private long batchBytes;
+
+    private int concurrency;
+
+    /**
+     * 距离上次增加并发数之后连续成功的批次数
+     */
+    private int successStreak;
+
+    public AdaptiveBulkTuner(EsBulkProperties properties) {
+        this(properties, properties.getMaxConcurrency());
+    }
+
+    /**
+     * @param maxConcurrency 覆盖配置里的最大并发数，保证顺序的分区固定为1
+     */
+    public AdaptiveBulkTuner(EsBulkProperties properties, int maxConcurrency) {
+        this.properties = properties;
+        this.maxConcurrency = Math.max(1, Math.min(maxConcurrency, properties.getMaxConcurrency()));
+        this.batchBytes = clampBytes(properties.getInitialBatchBytes());
+        this.concurrency = clampConcurrency(properties.getInitialConcurrency());
+    }
+
+    public synchronized long getBatchBytes() {
+        return batchBytes;
+    }
+
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * 一个批次执行完成
+     *
+     * @param tookMillis  es返回的批次耗时（BulkResponse#getTook）
+     * @param items       批次中的操作数
+     * @param rejected    其中被429拒绝的操作数
+     */
+    public synchronized void onBatchCompleted(long tookMillis, int items, int rejected) {
+        if (rejected > 0 && items > 0
+                && (double) rejected / items >= properties.getRejectionRatioThreshold()) {
+            decreaseOnRejection();
+            return;
+        }
+        if (tookMillis > properties.getTargetLatency().toMillis()) {
+            successStreak = 0;
+            batchBytes = clampBytes((long) (batchBytes * properties.getDecreaseFactor()));
+            log.debug("bulk took {}ms over target, batch bytes -> {}", tookMillis, batchBytes);
+            return;
+        }
+        batchBytes = clampBytes(batchBytes + properties.getBatchBytesStep());
+        if (++successStreak >= properties.getConcurrencyIncreaseInterval()) {
+            successStreak = 0;
+            concurrency = clampConcurrency(concurrency + 1);
+        }
+    }
+
+    /**
+     * 整个批次被拒绝（429）或传输失败
+     *
+     * @param rejected 是否是集群过载导致的拒绝
+     */
+    public synchronized void onBatchFailed(boolean rejected) {
+        if (rejected) {
+            decreaseOnRejection();
+        } else {
+            successStreak = 0;
+        }
+    }
+
+    private void decreaseOnRejection() {
+        successStreak = 0;
+        if (concurrency > Math.min(properties.getMinConcurrency(), maxConcurrency)) {
+            concurrency = clampConcurrency(concurrency / 2);
+        } else {
+            batchBytes = clampBytes(batchBytes / 2);
+        }
+        log.debug("bulk rejected, concurrency -> {}, batch bytes -> {}", concurrency, batchBytes);
+    }
+
+    private long clampBytes(long bytes) {
+        return Math.max(properties.getMinBatchBytes(), Math.min(properties.getMaxBatchBytes(), bytes));
+    }
+
+    private int clampConcurrency(int value) {
+        return Math.max(Math.min(properties.getMinConcurrency(), maxConcurrency), Math.min(maxConcurrency, value));
+    }
+}
@@ -0,0 +1,305 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-12- 10:20 上午
+ * @email quhao.mi@foxmail.com
+ * 生产者和发送线程之间的有界队列，同时按字节数和操作数限制容量。
+ * 发送线程按批次取数据：攒够一批的字节数，或者最老的数据等待超过刷新间隔时取出。
+ */
+public class BoundedBulkQueue {
+
+    private final long maxBytes;
+
+    private final int maxOperations;
+
+    private final OverflowPolicy policy;
+
+    private final long blockTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notFull = lock.newCondition();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final ArrayDeque<Entry> deque = new ArrayDeque<>();
+
+    private long bytes;
+
+    private boolean flushRequested;
+
+    private boolean closed;
+
+    private final AtomicLong producerWaitNanos = new AtomicLong();
+    private final AtomicLong queuedNanos = new AtomicLong();
+    private final AtomicLong dequeued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public BoundedBulkQueue(long maxBytes, int maxOperations, OverflowPolicy policy, long blockTimeout, TimeUnit unit) {
+        this.maxBytes = maxBytes;
+        this.maxOperations = maxOperations;
+        this.policy = policy;
+        this.blockTimeoutNanos = unit.toNanos(blockTimeout);
+    }
+
+    /**
+     * 按溢出策略放入一个操作
+     *
+     * @throws EsRejectedExecutionException 队列满了并且策略是 FAIL_FAST，或者 BLOCK 等待超时
+     */
+    public void offer(BulkOperation operation) throws InterruptedException {
+        List<BulkOperation> droppedOperations = Collections.emptyList();
+        lock.lock();
+        try {
+            if (closed) {
+                rejected.incrementAndGet();
+                throw new EsRejectedExecutionException("bulk queue is closed", true);
+            }
+            if (!hasRoom(operation)) {
+                switch (policy) {
+                    case BLOCK:
+                        awaitRoom(operation);
+                        break;
+                    case DROP_OLDEST:
+                        droppedOperations = new ArrayList<>();
+                        while (!hasRoom(operation)) {
+                            Entry oldest = deque.pollFirst();
+                            bytes -= oldest.operation.getEstimatedBytes();
+                            droppedOperations.add(oldest.operation);
+                        }
+                        dropped.addAndGet(droppedOperations.size());
+                        break;
+                    case FAIL_FAST:
+                    default:
+                        rejected.incrementAndGet();
+                        throw new EsRejectedExecutionException("bulk queue is full, queued bytes [" + bytes
+                                + "], queued operations [" + deque.size() + "]");
+                }
+            }
+            add(operation);
+        } finally {
+            lock.unlock();
+        }
+        for (BulkOperation droppedOperation : droppedOperations) {
+            droppedOperation.getListener().onFailure(
+                    new EsRejectedExecutionException("dropped from full bulk queue by a newer operation"));
+        }
+    }
+
+    /**
+     * 不受容量限制直接放入，用于重试的操作，它们已经被接收过一次了
+     */
+    public void forceAdd(BulkOperation operation) {
+        lock.lock();
+        try {
+            add(operation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 放回队头，用于保证顺序的模式下重试的操作，它们必须排在后来的操作前面
+     */
+    public void forceAddFirst(List<BulkOperation> operations) {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            for (int i = operations.size() - 1; i >= 0; i--) {
+                BulkOperation operation = operations.get(i);
+                deque.addFirst(new Entry(operation, now));
+                bytes += operation.getEstimatedBytes();
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出一批数据
+     *
+     * @param batchBytes  一批的目标字节数
+     * @param lingerNanos 不满一批时最老数据最多等待多久
+     * @param pollNanos   队列为空时最多等待多久
+     * @param onTaken     在队列锁内回调，保证取出数据和登记在途批次之间外部看不到中间状态
+     * @return 队列为空时返回null
+     */
+    public List<BulkOperation> pollBatch(long batchBytes, long lingerNanos, long pollNanos, Runnable onTaken)
+            throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = pollNanos;
+            while (deque.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            while (bytes < batchBytes && !flushRequested && !closed) {
+                long waited = System.nanoTime() - deque.peekFirst().enqueuedNanos;
+                if (waited >= lingerNanos) {
+                    break;
+                }
+                notEmpty.awaitNanos(lingerNanos - waited);
+            }
+            List<BulkOperation> batch = new ArrayList<>();
+            long batchSize = 0;
+            long now = System.nanoTime();
+            while (!deque.isEmpty()
+                    && (batch.isEmpty() || batchSize + deque.peekFirst().operation.getEstimatedBytes() <= batchBytes)) {
+                Entry entry = deque.pollFirst();
+                batchSize += entry.operation.getEstimatedBytes();
+                queuedNanos.addAndGet(now - entry.enqueuedNanos);
+                batch.add(entry.operation);
+            }
+            bytes -= batchSize;
+            dequeued.addAndGet(batch.size());
+            if (deque.isEmpty()) {
+                flushRequested = false;
+            }
+            onTaken.run();
+            notFull.signalAll();
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 让发送线程不再等待凑满一批，立即把当前数据发出去
+     */
+    public void requestFlush() {
+        lock.lock();
+        try {
+            if (!deque.isEmpty()) {
+                flushRequested = true;
+                notEmpty.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 不再接收新数据，剩余的数据不再等待凑满一批
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return deque.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return deque.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 生产者因为队列满而等待的总时间（毫秒）
+     */
+    public long producerWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(producerWaitNanos.get());
+    }
+
+    /**
+     * 数据在队列里的平均停留时间（毫秒）
+     */
+    public double averageQueuedMillis() {
+        long count = dequeued.get();
+        return count == 0 ? 0 : queuedNanos.get() / 1_000_000.0 / count;
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    public long rejectedCount() {
+        return rejected.get();
+    }
+
+    private void awaitRoom(BulkOperation operation) throws InterruptedException {
+        long start = System.nanoTime();
+        long nanos = blockTimeoutNanos;
+        try {
+            while (!hasRoom(operation)) {
+                if (closed) {
+                    rejected.incrementAndGet();
+                    throw new EsRejectedExecutionException("bulk queue is closed", true);
+                }
+                if (nanos <= 0) {
+                    rejected.incrementAndGet();
+                    throw new EsRejectedExecutionException("timed out waiting for room in bulk queue, queued bytes ["
+                            + bytes + "], queued operations [" + deque.size() + "]");
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+        } finally {
+            producerWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private boolean hasRoom(BulkOperation operation) {
+        //单个超过上限的操作在队列为空时也要放进去，否则永远放不进去
+        return deque.isEmpty()
+                || (bytes + operation.getEstimatedBytes() <= maxBytes && deque.size() < maxOperations);
+    }
+
+    private void add(BulkOperation operation) {
+        deque.addLast(new Entry(operation, System.nanoTime()));
+        bytes += operation.getEstimatedBytes();
+        notEmpty.signalAll();
+    }
+
+    private static final class Entry {
+
+        private final BulkOperation operation;
+
+        private final long enqueuedNanos;
+
+        private Entry(BulkOperation operation, long enqueuedNanos) {
+            this.operation = operation;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-06- 3:05 下午
+ * @email quhao.mi@foxmail.com
+ * 批量写入组件的指标快照
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class BulkIngestMetrics {
+
+    /**
+     * 当前批次大小（字节）
+     */
+    private final long batchBytes;
+
+    /**
+     * 当前允许的在途批次数
+     */
+    private final int concurrency;
+
+    /**
+     * 当前在途批次数
+     */
+    private final int inFlight;
+
+    /**
+     * 已发送批次数
+     */
+    private final long batches;
+
+    /**
+     * 已发送操作数
+     */
+    private final long operations;
+
+    /**
+     * 被429拒绝的操作数
+     */
+    private final long rejectedOperations;
+
+    /**
+     * 整批失败次数
+     */
+    private final long failedBatches;
+
+    /**
+     * 最近一次批次耗时（毫秒）
+     */
+    private final long lastTookMillis;
+
+    /**
+     * 单条失败后安排了重试的次数
+     */
+    private final long retriedOperations;
+
+    /**
+     * 进入死信的操作数
+     */
+    private final long deadLetters;
+
+    /**
+     * 队列中等待发送的操作数
+     */
+    private final int queuedOperations;
+
+    /**
+     * 队列中等待发送的字节数
+     */
+    private final long queuedBytes;
+
+    /**
+     * DROP_OLDEST 策略下被丢弃的操作数
+     */
+    private final long droppedOperations;
+
+    /**
+     * 因队列满被拒绝的次数
+     */
+    private final long rejectedOffers;
+
+    /**
+     * 生产者因队列满累计等待的时间（毫秒）
+     */
+    private final long producerWaitMillis;
+
+    /**
+     * 操作在队列里的平均停留时间（毫秒）
+     */
+    private final double averageQueuedMillis;
+
+    /**
+     * 因为合并同一文档的写操作而少发送的操作数
+     */
+    private final long coalescedOperations;
+}
@@ -0,0 +1,72 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import lombok.Getter;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-08- 10:15 上午
+ * @email quhao.mi@foxmail.com
+ * 批量写入中的单个操作，记录重试次数和该操作的结果回调
+ */
+@Getter
+public class BulkOperation {
+
+    /**
+     * 和 BulkRequest 内部估算大小时用的固定开销保持一致
+     */
+    private static final int REQUEST_OVERHEAD = 50;
+
+    private final DocWriteRequest<?> request;
+
+    private final ActionListener<BulkItemResponse> listener;
+
+    /**
+     * 估算的请求体字节数，用于按字节限制队列和批次大小
+     */
+    private final long estimatedBytes;
+
+    /**
+     * 已经发送的次数
+     */
+    private int attempts;
+
+    public BulkOperation(DocWriteRequest<?> request, ActionListener<BulkItemResponse> listener) {
+        this(request, listener, 0);
+    }
+
+    BulkOperation(DocWriteRequest<?> request, ActionListener<BulkItemResponse> listener, int attempts) {
+        this.request = request;
+        this.listener = listener;
+        this.estimatedBytes = estimateBytes(request);
+        this.attempts = attempts;
+    }
+
+    int nextAttempt() {
+        return ++attempts;
+    }
+
+    static long estimateBytes(DocWriteRequest<?> request) {
+        long size = REQUEST_OVERHEAD;
+        if (request instanceof IndexRequest) {
+            IndexRequest index = (IndexRequest) request;
+            size += index.source() == null ? 0 : index.source().length();
+        } else if (request instanceof UpdateRequest) {
+            UpdateRequest update = (UpdateRequest) request;
+            if (update.doc() != null && update.doc().source() != null) {
+                size += update.doc().source().length();
+            }
+            if (update.upsertRequest() != null && update.upsertRequest().source() != null) {
+                size += update.upsertRequest().source().length();
+            }
+            if (update.script() != null) {
+                size += update.script().getIdOrCode().length() * 2;
+            }
+        }
+        return size;
+    }
+}
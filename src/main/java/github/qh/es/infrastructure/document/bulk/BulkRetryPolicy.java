@@ -0,0 +1,61 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import github.qh.es.application.config.EsBulkProperties;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-08- 10:30 上午
+ * @email quhao.mi@foxmail.com
+ * 单条操作的重试策略
+ * 可重试的情况：
+ * 1.429 集群写队列满了
+ * 2.503 分片暂时不可用
+ * 3.409 upsert（docAsUpsert或者带upsert文档的update）的版本冲突，重新执行一次就会基于最新版本合并
+ * 其他失败（mapping错误、普通index的版本冲突等）重试也没用，直接进死信
+ */
+public class BulkRetryPolicy {
+
+    private final EsBulkProperties properties;
+
+    public BulkRetryPolicy(EsBulkProperties properties) {
+        this.properties = properties;
+    }
+
+    public boolean isRetryable(DocWriteRequest<?> request, RestStatus status) {
+        if (status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE) {
+            return true;
+        }
+        if (status == RestStatus.CONFLICT && request instanceof UpdateRequest) {
+            UpdateRequest update = (UpdateRequest) request;
+            return update.docAsUpsert() || update.upsertRequest() != null;
+        }
+        return false;
+    }
+
+    /**
+     * @param attempts 已经发送的次数
+     * @return 是否还能继续重试
+     */
+    public boolean canRetry(int attempts) {
+        return attempts <= properties.getMaxRetries();
+    }
+
+    /**
+     * 指数退避，带随机抖动，避免同一批失败的操作同时重试
+     *
+     * @param attempts 已经发送的次数
+     * @return 下一次重试前等待的毫秒数
+     */
+    public long backoffMillis(int attempts) {
+        long initial = properties.getRetryInitialBackoff().toMillis();
+        long max = properties.getRetryMaxBackoff().toMillis();
+        long backoff = initial << Math.min(attempts - 1, 20);
+        backoff = Math.min(max, backoff);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+}
@@ -0,0 +1,384 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-10- 2:40 下午
+ * @email quhao.mi@foxmail.com
+ * 批量写入前面的磁盘预写队列（append-only，内存映射文件）。
+ * 1.数据按段存放：segment-{段号}.log，每段固定大小，写满后滚动到下一段
+ * 2.每条记录格式：[int 长度][int crc32][DocWriteRequest序列化后的字节]，长度为0表示后面还没有数据
+ * 3.位置用 long 表示：高32位是段号，低32位是段内偏移
+ * 4.checkpoint 文件记录最小的未确认位置，重启后从这里开始重放；checkpoint 之前的段会被删除
+ * 写入只是往映射内存里拷贝，进程崩溃后数据仍在page cache中由操作系统落盘；要防掉电需要定时调用 {@link #sync()}。
+ * 重放是至少一次语义，带id的index/delete重复执行是幂等的。
+ */
+@Slf4j
+public class BulkSpool implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String CHECKPOINT = "checkpoint";
+
+    private static final int HEADER_BYTES = 8;
+
+    private final Path directory;
+
+    private final int segmentBytes;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * 已经读出、还没有确认的位置
+     */
+    private final ConcurrentSkipListSet<Long> unacked = new ConcurrentSkipListSet<>();
+
+    private long writePosition;
+
+    private long readPosition;
+
+    private long persistedCheckpoint;
+
+    private boolean closed;
+
+    public BulkSpool(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * 追加一条写操作
+     *
+     * @return 该记录的位置
+     */
+    public long append(DocWriteRequest<?> request) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        DocWriteRequest.writeDocumentRequest(out, request);
+        BytesRef bytes = out.bytes().toBytesRef();
+        int recordBytes = HEADER_BYTES + bytes.length;
+        if (recordBytes + HEADER_BYTES > segmentBytes) {
+            throw new IOException("record of " + bytes.length + " bytes does not fit into a spool segment of " + segmentBytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.bytes, bytes.offset, bytes.length);
+
+        lock.lock();
+        try {
+            ensureOpen();
+            if (offset(writePosition) + recordBytes + HEADER_BYTES > segmentBytes) {
+                //写一个长度0作为段结束标记，读取方看到后跳到下一段
+                segmentFor(writePosition, true).buffer.putInt(offset(writePosition), 0);
+                writePosition = position(segment(writePosition) + 1, 0);
+            }
+            ByteBuffer buffer = segmentFor(writePosition, true).buffer.duplicate();
+            buffer.position(offset(writePosition));
+            buffer.putInt(bytes.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(bytes.bytes, bytes.offset, bytes.length);
+            long position = writePosition;
+            writePosition += recordBytes;
+            notEmpty.signalAll();
+            return position;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 读取下一条还没有读过的记录，读出的记录在 {@link #ack(long)} 之前不会被清理
+     *
+     * @return 超时没有数据时返回null
+     */
+    public SpoolRecord poll(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        byte[] payload;
+        long position;
+        lock.lock();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while (readPosition == writePosition) {
+                if (closed || nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            ByteBuffer buffer = segmentFor(readPosition, false).buffer.duplicate();
+            buffer.position(offset(readPosition));
+            int length = buffer.getInt();
+            if (length == 0) {
+                //该段剩余空间不够写下一条，写入方已经滚动到下一段
+                readPosition = position(segment(readPosition) + 1, 0);
+                return poll(0, TimeUnit.NANOSECONDS);
+            }
+            buffer.getInt();
+            payload = new byte[length];
+            buffer.get(payload);
+            position = readPosition;
+            readPosition += HEADER_BYTES + length;
+            unacked.add(position);
+        } finally {
+            lock.unlock();
+        }
+        DocWriteRequest<?> request = DocWriteRequest.readDocumentRequest(StreamInput.wrap(payload));
+        return new SpoolRecord(position, request);
+    }
+
+    /**
+     * 确认一条记录已经写入es（或者已经进了死信），不需要再重放
+     */
+    public void ack(long position) {
+        unacked.remove(position);
+    }
+
+    /**
+     * 持久化checkpoint并删除已经全部确认的段
+     */
+    public void checkpoint() throws IOException {
+        long checkpoint;
+        lock.lock();
+        try {
+            Long first = unacked.isEmpty() ? null : unacked.first();
+            checkpoint = first == null ? readPosition : Math.min(first, readPosition);
+        } finally {
+            lock.unlock();
+        }
+        if (checkpoint == persistedCheckpoint) {
+            return;
+        }
+        Path tmp = directory.resolve(CHECKPOINT + ".tmp");
+        Files.write(tmp, Long.toString(checkpoint).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        persistedCheckpoint = checkpoint;
+        deleteSegmentsBefore(segment(checkpoint));
+    }
+
+    /**
+     * 把映射内存刷到磁盘
+     */
+    public void sync() {
+        lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 已经写入、还没有确认的记录所占的字节数
+     */
+    public long backlogBytes() {
+        lock.lock();
+        try {
+            Long first = unacked.isEmpty() ? null : unacked.first();
+            long from = first == null ? readPosition : Math.min(first, readPosition);
+            return (segment(writePosition) - segment(from)) * (long) segmentBytes + offset(writePosition) - offset(from);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int unackedCount() {
+        return unacked.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        checkpoint();
+        sync();
+        lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+            segments.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(id, Segment.open(path, segmentBytes));
+            }
+        }
+        Path checkpointFile = directory.resolve(CHECKPOINT);
+        long checkpoint = 0;
+        if (Files.exists(checkpointFile)) {
+            checkpoint = Long.parseLong(new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim());
+        } else if (!segments.isEmpty()) {
+            checkpoint = position(segments.firstKey(), 0);
+        }
+        persistedCheckpoint = checkpoint;
+        readPosition = checkpoint;
+        writePosition = scanEnd(checkpoint);
+        deleteSegmentsBefore(segment(checkpoint));
+        if (writePosition != readPosition) {
+            log.info("spool {} 有未确认的数据需要重放，从 {} 到 {}", directory, readPosition, writePosition);
+        }
+    }
+
+    /**
+     * 从checkpoint开始逐条校验，找到最后一条完整记录的结尾；crc不对的视为写了一半的记录，从这里开始覆盖
+     */
+    private long scanEnd(long from) {
+        long position = from;
+        while (true) {
+            Segment segment = segments.get(segment(position));
+            if (segment == null) {
+                return position;
+            }
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int offset = offset(position);
+            int length = offset + HEADER_BYTES <= segmentBytes ? buffer.getInt(offset) : 0;
+            if (length <= 0 || offset + HEADER_BYTES + length > segmentBytes) {
+                if (segments.containsKey(segment(position) + 1)) {
+                    position = position(segment(position) + 1, 0);
+                    continue;
+                }
+                return position;
+            }
+            byte[] payload = new byte[length];
+            buffer.position(offset + HEADER_BYTES);
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                log.warn("spool {} 在位置 {} 发现不完整的记录，之后的数据将被覆盖", directory, position);
+                buffer.putInt(offset, 0);
+                return position;
+            }
+            position += HEADER_BYTES + length;
+        }
+    }
+
+    private void deleteSegmentsBefore(long segmentId) throws IOException {
+        lock.lock();
+        try {
+            Map<Long, Segment> head = segments.headMap(segmentId);
+            for (Map.Entry<Long, Segment> entry : head.entrySet()) {
+                entry.getValue().channel.close();
+                Files.deleteIfExists(segmentPath(entry.getKey()));
+            }
+            head.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Segment segmentFor(long position, boolean create) throws IOException {
+        long id = segment(position);
+        Segment segment = segments.get(id);
+        if (segment == null) {
+            if (!create) {
+                throw new IOException("spool segment " + id + " is missing in " + directory);
+            }
+            segment = Segment.open(segmentPath(id), segmentBytes);
+            segments.put(id, segment);
+        }
+        return segment;
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("spool " + directory + " is closed");
+        }
+    }
+
+    private static long position(long segment, int offset) {
+        return (segment << 32) | offset;
+    }
+
+    private static long segment(long position) {
+        return position >>> 32;
+    }
+
+    private static int offset(long position) {
+        return (int) position;
+    }
+
+    /**
+     * 从预写队列读出的一条记录
+     */
+    @Getter
+    public static final class SpoolRecord {
+
+        private final long position;
+
+        private final DocWriteRequest<?> request;
+
+        SpoolRecord(long position, DocWriteRequest<?> request) {
+            this.position = position;
+            this.request = request;
+        }
+    }
+
+    private static final class Segment {
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer buffer;
+
+        private Segment(FileChannel channel, MappedByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment open(Path path, int segmentBytes) throws IOException {
+            FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        }
+    }
+}
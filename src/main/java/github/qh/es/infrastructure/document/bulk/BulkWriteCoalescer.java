@@ -0,0 +1,255 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-14- 11:10 上午
+ * @email quhao.mi@foxmail.com
+ * 同一批次内对同一个文档（index + id + routing）的多次写操作合并成一次。
+ * 合并规则（按到达顺序）：
+ * 1.任何操作 + index → 后面的 index（整篇覆盖）
+ * 2.index + update(doc) → index，source 按字段合并，后写的覆盖先写的
+ * 3.update(doc) + update(doc) → 一个 update，doc 按字段合并（docAsUpsert 相同时才合并）
+ * 4.任何操作 + delete → delete
+ * 5.delete + update(docAsUpsert) → index(doc)
+ * 带版本号/if_seq_no、脚本、upsert文档、pipeline、create 的操作不合并，并且会把同一文档前后的操作隔开，保证同一文档的先后顺序不变。
+ * 合并后的操作返回结果时会通知所有被合并的操作。
+ */
+@Slf4j
+public class BulkWriteCoalescer {
+
+    /**
+     * 合并一批操作
+     *
+     * @return 合并后的操作，同一文档的操作相对顺序不变
+     */
+    public List<BulkOperation> coalesce(List<BulkOperation> operations) {
+        Map<DocKey, Integer> counts = new HashMap<>();
+        for (BulkOperation operation : operations) {
+            counts.merge(DocKey.of(operation.getRequest()), 1, Integer::sum);
+        }
+        if (counts.size() == operations.size()) {
+            return operations;
+        }
+
+        List<Slot> slots = new ArrayList<>(operations.size());
+        Map<DocKey, Slot> open = new HashMap<>();
+        for (BulkOperation operation : operations) {
+            DocKey key = DocKey.of(operation.getRequest());
+            if (key.id == null || counts.get(key) == 1) {
+                slots.add(new Slot(operation));
+                continue;
+            }
+            Slot slot = open.get(key);
+            if (slot != null && slot.tryMerge(operation)) {
+                continue;
+            }
+            Slot created = new Slot(operation);
+            slots.add(created);
+            if (isCoalescable(operation.getRequest())) {
+                open.put(key, created);
+            } else {
+                //不能合并的操作把前后隔开
+                open.remove(key);
+            }
+        }
+
+        List<BulkOperation> result = new ArrayList<>(slots.size());
+        for (Slot slot : slots) {
+            result.add(slot.toOperation());
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("coalesced {} bulk operations into {}", operations.size(), result.size());
+        }
+        return result;
+    }
+
+    static boolean isCoalescable(DocWriteRequest<?> request) {
+        if (request.id() == null
+                || request.version() != Versions.MATCH_ANY
+                || request.versionType() != VersionType.INTERNAL
+                || request.ifSeqNo() != SequenceNumbers.UNASSIGNED_SEQ_NO) {
+            return false;
+        }
+        if (request instanceof IndexRequest) {
+            IndexRequest index = (IndexRequest) request;
+            return index.opType() == DocWriteRequest.OpType.INDEX
+                    && index.getPipeline() == null
+                    && index.source() != null;
+        }
+        if (request instanceof UpdateRequest) {
+            UpdateRequest update = (UpdateRequest) request;
+            return update.script() == null
+                    && update.upsertRequest() == null
+                    && update.fetchSource() == null
+                    && update.doc() != null
+                    && update.doc().source() != null;
+        }
+        return request instanceof DeleteRequest;
+    }
+
+    /**
+     * 合并后的一个位置，记录合并出来的请求和所有原始操作
+     */
+    private static final class Slot {
+
+        private final List<BulkOperation> members = new ArrayList<>();
+
+        private DocWriteRequest<?> request;
+
+        private Slot(BulkOperation operation) {
+            this.request = operation.getRequest();
+            members.add(operation);
+        }
+
+        boolean tryMerge(BulkOperation operation) {
+            DocWriteRequest<?> next = operation.getRequest();
+            if (!isCoalescable(next)) {
+                return false;
+            }
+            DocWriteRequest<?> merged = merge(request, next);
+            if (merged == null) {
+                return false;
+            }
+            request = merged;
+            members.add(operation);
+            return true;
+        }
+
+        BulkOperation toOperation() {
+            if (members.size() == 1) {
+                return members.get(0);
+            }
+            List<ActionListener<BulkItemResponse>> listeners = new ArrayList<>(members.size());
+            int attempts = 0;
+            for (BulkOperation member : members) {
+                listeners.add(member.getListener());
+                attempts = Math.max(attempts, member.getAttempts());
+            }
+            return new BulkOperation(request, new FanOutListener(listeners), attempts);
+        }
+
+        private static DocWriteRequest<?> merge(DocWriteRequest<?> previous, DocWriteRequest<?> next) {
+            if (next instanceof IndexRequest || next instanceof DeleteRequest) {
+                return next;
+            }
+            UpdateRequest update = (UpdateRequest) next;
+            IndexRequest doc = update.doc();
+            if (previous instanceof IndexRequest) {
+                IndexRequest index = (IndexRequest) previous;
+                if (index.getContentType() != doc.getContentType()) {
+                    return null;
+                }
+                Map<String, Object> source = toMap(index.source(), index.getContentType());
+                XContentHelper.update(source, toMap(doc.source(), doc.getContentType()), false);
+                return new IndexRequest(index.index()).id(index.id()).routing(index.routing())
+                        .source(source, index.getContentType());
+            }
+            if (previous instanceof DeleteRequest) {
+                if (!update.docAsUpsert()) {
+                    return null;
+                }
+                return new IndexRequest(update.index()).id(update.id()).routing(update.routing())
+                        .source(doc.source(), doc.getContentType());
+            }
+            UpdateRequest first = (UpdateRequest) previous;
+            if (first.docAsUpsert() != update.docAsUpsert()
+                    || first.doc().getContentType() != doc.getContentType()) {
+                return null;
+            }
+            Map<String, Object> source = toMap(first.doc().source(), first.doc().getContentType());
+            XContentHelper.update(source, toMap(doc.source(), doc.getContentType()), false);
+            return new UpdateRequest(first.index(), first.id()).routing(first.routing())
+                    .doc(source, doc.getContentType())
+                    .docAsUpsert(update.docAsUpsert())
+                    .retryOnConflict(Math.max(first.retryOnConflict(), update.retryOnConflict()));
+        }
+
+        private static Map<String, Object> toMap(BytesReference source, XContentType contentType) {
+            return XContentHelper.convertToMap(source, true, contentType).v2();
+        }
+    }
+
+    /**
+     * 合并后的结果分发给每一个原始操作
+     */
+    private static final class FanOutListener implements ActionListener<BulkItemResponse> {
+
+        private final List<ActionListener<BulkItemResponse>> listeners;
+
+        private FanOutListener(List<ActionListener<BulkItemResponse>> listeners) {
+            this.listeners = listeners;
+        }
+
+        @Override
+        public void onResponse(BulkItemResponse response) {
+            for (ActionListener<BulkItemResponse> listener : listeners) {
+                listener.onResponse(response);
+            }
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            for (ActionListener<BulkItemResponse> listener : listeners) {
+                listener.onFailure(e);
+            }
+        }
+    }
+
+    private static final class DocKey {
+
+        private final String index;
+
+        private final String id;
+
+        private final String routing;
+
+        private DocKey(String index, String id, String routing) {
+            this.index = index;
+            this.id = id;
+            this.routing = routing;
+        }
+
+        static DocKey of(DocWriteRequest<?> request) {
+            return new DocKey(request.index(), request.id(), request.routing());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DocKey)) {
+                return false;
+            }
+            DocKey other = (DocKey) o;
+            //没有id的index请求每个都是新文档，不能合并
+            return id != null && Objects.equals(index, other.index)
+                    && Objects.equals(id, other.id) && Objects.equals(routing, other.routing);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(index, id, routing);
+        }
+    }
+}
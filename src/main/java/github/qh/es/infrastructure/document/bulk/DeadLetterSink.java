@@ -0,0 +1,22 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import org.elasticsearch.action.DocWriteRequest;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-08- 10:20 上午
+ * @email quhao.mi@foxmail.com
+ * 死信处理：不可重试或者重试次数用完的写操作会交给这里，避免像之前那样打个日志数据就丢了
+ */
+@FunctionalInterface
+public interface DeadLetterSink {
+
+    /**
+     * 接收一个最终失败的写操作
+     *
+     * @param request  失败的写操作
+     * @param attempts 一共发送了几次
+     * @param cause    最后一次失败的原因
+     */
+    void accept(DocWriteRequest<?> request, int attempts, Exception cause);
+}
@@ -0,0 +1,90 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-19- 10:40 上午
+ * @email quhao.mi@foxmail.com
+ * 文件导入的断点。
+ * 各个批次并行发送、完成顺序不确定，这里按批次序号记录完成情况，只有前面的批次全部完成后才推进已提交位置，
+ * 所以重启后从已提交位置开始导入不会漏数据，但最多会重复写入几个批次：
+ * 配置了 id-field 时重复写入只是覆盖同一文档，否则每次重放都会新增一份，是至少一次的语义。
+ * 文件内容和 BulkSpool 的 checkpoint 一样，先写临时文件再原子替换。
+ */
+public class ImportCheckpoint {
+
+    private final Path file;
+
+    private final long persistIntervalNanos;
+
+    /**
+     * 已完成但前面还有批次没完成的：序号 -> 批次结束位置
+     */
+    private final Map<Long, Long> completed = new HashMap<>();
+
+    private long nextSequence;
+
+    private long committed;
+
+    private long persisted;
+
+    private long lastPersistNanos = System.nanoTime();
+
+    private ImportCheckpoint(Path file, long committed, long persistIntervalNanos) {
+        this.file = file;
+        this.committed = committed;
+        this.persisted = committed;
+        this.persistIntervalNanos = persistIntervalNanos;
+    }
+
+    /**
+     * 读取已有的断点，没有时从0开始
+     */
+    public static ImportCheckpoint open(Path file, long persistIntervalNanos) throws IOException {
+        long committed = 0;
+        if (Files.exists(file)) {
+            committed = Long.parseLong(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim());
+        }
+        return new ImportCheckpoint(file, committed, persistIntervalNanos);
+    }
+
+    public synchronized long committed() {
+        return committed;
+    }
+
+    /**
+     * 一个批次写完
+     *
+     * @param sequence 批次序号，从0开始连续编号
+     * @param end      批次在文件中的结束位置
+     */
+    public synchronized void complete(long sequence, long end) throws IOException {
+        completed.put(sequence, end);
+        Long next;
+        while ((next = completed.remove(nextSequence)) != null) {
+            committed = next;
+            nextSequence++;
+        }
+        if (System.nanoTime() - lastPersistNanos >= persistIntervalNanos) {
+            persist();
+        }
+    }
+
+    public synchronized void persist() throws IOException {
+        lastPersistNanos = System.nanoTime();
+        if (committed == persisted) {
+            return;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, Long.toString(committed).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        persisted = committed;
+    }
+}
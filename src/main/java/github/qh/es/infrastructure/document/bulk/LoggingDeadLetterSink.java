@@ -0,0 +1,20 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.DocWriteRequest;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-08- 10:22 上午
+ * @email quhao.mi@foxmail.com
+ * 默认的死信处理，只记录日志，需要落库或者发mq的自己实现 DeadLetterSink 注册成bean即可
+ */
+@Slf4j
+public class LoggingDeadLetterSink implements DeadLetterSink {
+
+    @Override
+    public void accept(DocWriteRequest<?> request, int attempts, Exception cause) {
+        log.error("写操作最终失败，index:{},id:{},opType:{},发送次数:{}",
+                request.index(), request.id(), request.opType(), attempts, cause);
+    }
+}
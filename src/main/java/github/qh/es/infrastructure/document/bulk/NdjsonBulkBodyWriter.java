@@ -0,0 +1,126 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import github.qh.es.infrastructure.support.ByteBufferPool;
+import github.qh.es.infrastructure.support.PooledByteBufferOutputStream;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-17- 3:40 下午
+ * @email quhao.mi@foxmail.com
+ * 把写操作直接序列化成 _bulk 的 NDJSON 请求体，写进池化的 buffer。
+ * RestHighLevelClient 发送 bulk 时会先把所有文档拷贝进一个新的 ByteArrayOutputStream，再包装成 entity，
+ * 这里 action 行直接写进池化 buffer，IndexRequest 的 source 按 BytesRef 分片拷贝一次，省掉中间的整块数组和扩容。
+ * 和 RestHighLevelClient 一样只支持 JSON 格式的 source，其他格式会先转成 JSON。
+ */
+public class NdjsonBulkBodyWriter {
+
+    private static final byte SEPARATOR = '\n';
+
+    private final PooledByteBufferOutputStream out;
+
+    private final OutputStream nonClosing;
+
+    public NdjsonBulkBodyWriter(ByteBufferPool pool) {
+        this.out = new PooledByteBufferOutputStream(pool);
+        //XContentBuilder 关闭时会关闭底层流，这里隔开
+        this.nonClosing = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    public void write(DocWriteRequest<?> request) throws IOException {
+        writeActionLine(request);
+        switch (request.opType()) {
+            case INDEX:
+            case CREATE:
+                IndexRequest index = (IndexRequest) request;
+                writeSource(index.source(), index.getContentType());
+                break;
+            case UPDATE:
+                writeSource(XContentHelper.toXContent((UpdateRequest) request, XContentType.JSON, false), XContentType.JSON);
+                break;
+            case DELETE:
+            default:
+                break;
+        }
+    }
+
+    public PooledByteBufferOutputStream output() {
+        return out;
+    }
+
+    private void writeActionLine(DocWriteRequest<?> request) throws IOException {
+        try (XContentBuilder builder = XContentFactory.jsonBuilder(nonClosing)) {
+            builder.startObject();
+            builder.startObject(request.opType().getLowercase());
+            builder.field("_index", request.index());
+            if (request.type() != null && !MapperService.SINGLE_MAPPING_NAME.equals(request.type())) {
+                builder.field("_type", request.type());
+            }
+            if (request.id() != null) {
+                builder.field("_id", request.id());
+            }
+            if (request.routing() != null) {
+                builder.field("routing", request.routing());
+            }
+            if (request.version() != Versions.MATCH_ANY) {
+                builder.field("version", request.version());
+            }
+            if (request.versionType() != VersionType.INTERNAL) {
+                builder.field("version_type", request.versionType().name().toLowerCase(Locale.ROOT));
+            }
+            if (request.ifSeqNo() != SequenceNumbers.UNASSIGNED_SEQ_NO) {
+                builder.field("if_seq_no", request.ifSeqNo());
+                builder.field("if_primary_term", request.ifPrimaryTerm());
+            }
+            if (request instanceof IndexRequest && ((IndexRequest) request).getPipeline() != null) {
+                builder.field("pipeline", ((IndexRequest) request).getPipeline());
+            }
+            if (request instanceof UpdateRequest && ((UpdateRequest) request).retryOnConflict() > 0) {
+                builder.field("retry_on_conflict", ((UpdateRequest) request).retryOnConflict());
+            }
+            builder.endObject();
+            builder.endObject();
+        }
+        out.write(SEPARATOR);
+    }
+
+    private void writeSource(BytesReference source, XContentType contentType) throws IOException {
+        if (contentType != XContentType.JSON) {
+            source = new BytesArray(XContentHelper.convertToJson(source, false, contentType));
+        }
+        BytesRefIterator iterator = source.iterator();
+        BytesRef ref;
+        while ((ref = iterator.next()) != null) {
+            out.write(ref.bytes, ref.offset, ref.length);
+        }
+        out.write(SEPARATOR);
+    }
+}
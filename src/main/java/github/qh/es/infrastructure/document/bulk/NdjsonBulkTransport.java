@@ -0,0 +1,114 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import github.qh.es.infrastructure.support.ByteBufferListEntity;
+import github.qh.es.infrastructure.support.ByteBufferPool;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.support.ActiveShardCount;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.function.BiConsumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-17- 4:20 下午
+ * @email quhao.mi@foxmail.com
+ * 用池化 buffer 发送 bulk 请求，直接走低级别的 RestClient。
+ * 请求体由 NdjsonBulkBodyWriter 写入池化 buffer，再包装成 ByteBufferListEntity 交给http客户端，
+ * 请求结束（包括换节点重试结束）后 buffer 还回池里。
+ * 可以直接替换 AdaptiveBulkIngester 里的 client.bulkAsync。
+ */
+@Slf4j
+public class NdjsonBulkTransport implements BiConsumer<BulkRequest, ActionListener<BulkResponse>> {
+
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson");
+
+    private final RestClient restClient;
+
+    private final ByteBufferPool pool;
+
+    private final RequestOptions options;
+
+    public NdjsonBulkTransport(RestClient restClient, ByteBufferPool pool, RequestOptions options) {
+        this.restClient = restClient;
+        this.pool = pool;
+        this.options = options;
+    }
+
+    @Override
+    public void accept(BulkRequest bulkRequest, ActionListener<BulkResponse> listener) {
+        NdjsonBulkBodyWriter writer = new NdjsonBulkBodyWriter(pool);
+        try {
+            for (DocWriteRequest<?> request : bulkRequest.requests()) {
+                writer.write(request);
+            }
+        } catch (IOException | RuntimeException e) {
+            writer.output().release();
+            listener.onFailure(e);
+            return;
+        }
+
+        Request request = new Request("POST", "/_bulk");
+        request.addParameter("timeout", bulkRequest.timeout().getStringRep());
+        if (bulkRequest.getRefreshPolicy() != WriteRequest.RefreshPolicy.NONE) {
+            request.addParameter("refresh", bulkRequest.getRefreshPolicy().getValue());
+        }
+        if (bulkRequest.waitForActiveShards() != ActiveShardCount.DEFAULT) {
+            request.addParameter("wait_for_active_shards",
+                    bulkRequest.waitForActiveShards().toString().toLowerCase(Locale.ROOT));
+        }
+        request.setEntity(new ByteBufferListEntity(writer.output().buffers(), NDJSON));
+        request.setOptions(options);
+
+        restClient.performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                writer.output().release();
+                BulkResponse bulkResponse;
+                try (InputStream content = response.getEntity().getContent();
+                     XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                             DeprecationHandler.THROW_UNSUPPORTED_OPERATION, content)) {
+                    bulkResponse = BulkResponse.fromXContent(parser);
+                } catch (IOException | RuntimeException e) {
+                    listener.onFailure(e);
+                    return;
+                }
+                listener.onResponse(bulkResponse);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                writer.output().release();
+                //和 RestHighLevelClient 一样把http错误码转成 ElasticsearchStatusException，重试策略才能识别429
+                if (e instanceof ResponseException) {
+                    int status = ((ResponseException) e).getResponse().getStatusLine().getStatusCode();
+                    RestStatus restStatus = RestStatus.fromCode(status);
+                    if (restStatus != null) {
+                        listener.onFailure(new ElasticsearchStatusException(e.getMessage(), restStatus, e));
+                        return;
+                    }
+                }
+                listener.onFailure(e);
+            }
+        });
+    }
+}
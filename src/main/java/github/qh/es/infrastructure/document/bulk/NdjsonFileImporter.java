@@ -0,0 +1,614 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import github.qh.es.application.config.EsBulkProperties;
+import github.qh.es.infrastructure.document.DocumentWriteEvent;
+import github.qh.es.infrastructure.support.ByteBufferListEntity;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-19- 9:30 上午
+ * @email quhao.mi@foxmail.com
+ * 从磁盘导入NDJSON文件（每行一个文档），用于大批量回填数据。
+ * 1.普通文件用内存映射按窗口读取，只按换行符切分，不解析文档；请求体由固定的action行和映射内存的切片组成，
+ * 通过 ByteBufferListEntity 直接写进socket，文档内容不经过堆
+ * 2.以 .gz 结尾的文件边解压边切分，解压出的数据直接按行切片，不逐行分配数组
+ * 3.每个请求体按 es.bulk.file-import.body-bytes 限制大小，多个工作线程并行发送，在途请求数有上限，读文件不会跑到发送前面太多
+ * 4.只有 errors=true 时才逐条解析响应，429/503 的条目按退避策略重发，其余失败的进死信
+ * 5.断点记录在 ImportCheckpoint 里，重新导入同一个文件时从上次提交的位置继续。
+ * 配置了 es.bulk.file-import.id-field 时从每行的这个顶层字段取文档id写进action行，重放已经写过的批次只是覆盖同一批文档；
+ * 没有配置时由es生成id，导入是至少一次的，中断后重放会产生重复文档
+ * 6.导入不知道写了哪些文档，发送第一个批次前和导入结束后各发布一次按索引失效的 DocumentWriteEvent：
+ * 前一次让 ExistsFilter 在导入期间不再判定文档不存在，后一次让导入期间重建的过滤器和查询缓存再失效一次
+ */
+@Slf4j
+public class NdjsonFileImporter {
+
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson");
+
+    private static final ByteBuffer NEWLINE = ByteBuffer.wrap(new byte[]{'\n'}).asReadOnlyBuffer();
+
+    /**
+     * 成功的条目只返回状态码，响应体小很多
+     */
+    private static final String FILTER_PATH = "took,errors,items.*.status,items.*.error";
+
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private final RestClient restClient;
+
+    private final EsBulkProperties.FileImport properties;
+
+    private final BulkRetryPolicy retryPolicy;
+
+    private final DeadLetterSink deadLetterSink;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    public NdjsonFileImporter(RestClient restClient, EsBulkProperties properties, DeadLetterSink deadLetterSink) {
+        this(restClient, properties, deadLetterSink, event -> {
+        });
+    }
+
+    public NdjsonFileImporter(RestClient restClient, EsBulkProperties properties, DeadLetterSink deadLetterSink,
+                              ApplicationEventPublisher eventPublisher) {
+        this.restClient = restClient;
+        this.properties = properties.getFileImport();
+        this.retryPolicy = new BulkRetryPolicy(properties);
+        this.deadLetterSink = deadLetterSink;
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * 导入一个文件，阻塞到全部写完
+     *
+     * @param index 写入的索引
+     * @throws IOException 读文件失败，或者某个批次重试用完后仍然无法发送；断点停在最后一个连续完成的批次
+     */
+    public NdjsonImportResult importFile(Path file, String index) throws IOException, InterruptedException {
+        ImportCheckpoint checkpoint = ImportCheckpoint.open(checkpointFile(file),
+                properties.getCheckpointInterval().toNanos());
+        long resumedFrom = checkpoint.committed();
+        if (resumedFrom > 0) {
+            log.info("resuming import of {} from offset {}", file, resumedFrom);
+        }
+        Job job = new Job(index, checkpoint);
+        long start = System.nanoTime();
+        publishWrite(index);
+        try {
+            if (file.getFileName().toString().endsWith(".gz")) {
+                readGzip(file, resumedFrom, job);
+            } else {
+                readMapped(file, resumedFrom, job);
+            }
+        } finally {
+            job.awaitCompletion();
+            checkpoint.persist();
+            publishWrite(index);
+        }
+        if (job.failure != null) {
+            throw new IOException("import of " + file + " stopped at offset " + checkpoint.committed(), job.failure);
+        }
+        return new NdjsonImportResult(file.toString(), resumedFrom, checkpoint.committed() - resumedFrom,
+                job.documents.get(), job.failedDocuments.get(), job.bulkRequests.get(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void publishWrite(String index) {
+        try {
+            eventPublisher.publishEvent(new DocumentWriteEvent(this, Collections.singleton(index), false));
+        } catch (RuntimeException e) {
+            log.error("发布文件导入的写入事件失败", e);
+        }
+    }
+
+    private Path checkpointFile(Path file) {
+        String name = file.getFileName() + CHECKPOINT_SUFFIX;
+        if (properties.getCheckpointDirectory() == null) {
+            return file.resolveSibling(name);
+        }
+        return Paths.get(properties.getCheckpointDirectory()).resolve(name);
+    }
+
+    /**
+     * 按窗口映射文件，窗口末尾不完整的行放到下一个窗口
+     */
+    private void readMapped(Path file, long from, Job job) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = from;
+            ChunkBuilder builder = new ChunkBuilder(job, position);
+            while (position < size && job.failure == null) {
+                long windowBytes = Math.min(properties.getMapWindowBytes(), size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowBytes);
+                int limit = window.limit();
+                int lineStart = 0;
+                for (int i = 0; i < limit; i++) {
+                    if (window.get(i) == '\n') {
+                        builder.addLine(slice(window, lineStart, i), position + i + 1);
+                        lineStart = i + 1;
+                    }
+                }
+                if (lineStart < limit) {
+                    if (position + windowBytes == size) {
+                        //最后一行没有换行符
+                        builder.addLine(slice(window, lineStart, limit), size);
+                        lineStart = limit;
+                    } else if (lineStart == 0) {
+                        throw new IOException("line at offset " + position + " is longer than map window "
+                                + properties.getMapWindowBytes());
+                    }
+                }
+                position += lineStart;
+            }
+            builder.flush();
+        }
+    }
+
+    /**
+     * 边解压边切分，解压的数据写进和请求体一样大的数组，行直接切片引用这个数组
+     */
+    private void readGzip(Path file, long from, Job job) throws IOException, InterruptedException {
+        int bodyBytes = properties.getBodyBytes();
+        try (InputStream in = new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file), 64 * 1024),
+                64 * 1024)) {
+            skipFully(in, from);
+            ChunkBuilder builder = new ChunkBuilder(job, from);
+            long position = from;
+            byte[] slab = new byte[bodyBytes];
+            int filled = 0;
+            int lineStart = 0;
+            while (job.failure == null) {
+                if (filled == slab.length) {
+                    //当前数组放不下正在读的行，挪到新数组里；单行比请求体还大时数组加倍
+                    int partial = filled - lineStart;
+                    byte[] next = new byte[partial * 2 > bodyBytes ? partial * 2 : bodyBytes];
+                    System.arraycopy(slab, lineStart, next, 0, partial);
+                    slab = next;
+                    filled = partial;
+                    lineStart = 0;
+                }
+                int n = in.read(slab, filled, slab.length - filled);
+                if (n == -1) {
+                    break;
+                }
+                for (int i = filled; i < filled + n; i++) {
+                    if (slab[i] == '\n') {
+                        position += i + 1 - lineStart;
+                        builder.addLine(ByteBuffer.wrap(slab, lineStart, i - lineStart).slice(), position);
+                        lineStart = i + 1;
+                    }
+                }
+                filled += n;
+            }
+            if (job.failure == null && lineStart < filled) {
+                position += filled - lineStart;
+                builder.addLine(ByteBuffer.wrap(slab, lineStart, filled - lineStart).slice(), position);
+            }
+            builder.flush();
+        }
+    }
+
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("checkpoint " + bytes + " is beyond end of file");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int from, int to) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(from);
+        duplicate.limit(to);
+        return duplicate.slice();
+    }
+
+    /**
+     * 发送一个批次，429/503 的条目退避后重发
+     */
+    private void send(Job job, Chunk chunk) throws IOException, InterruptedException {
+        List<Line> lines = chunk.lines;
+        for (int attempt = 1; ; attempt++) {
+            Request request = new Request("POST", "/_bulk");
+            request.addParameter("filter_path", FILTER_PATH);
+            request.setEntity(new ByteBufferListEntity(body(lines), NDJSON));
+            job.bulkRequests.incrementAndGet();
+            List<Line> retry;
+            try {
+                Response response = restClient.performRequest(request);
+                retry = handleResponse(job, lines, response, attempt);
+            } catch (ResponseException e) {
+                RestStatus status = RestStatus.fromCode(e.getResponse().getStatusLine().getStatusCode());
+                if (!retryable(status) || !retryPolicy.canRetry(attempt)) {
+                    throw e;
+                }
+                retry = lines;
+            } catch (IOException e) {
+                if (!retryPolicy.canRetry(attempt)) {
+                    throw e;
+                }
+                retry = lines;
+            }
+            if (retry.isEmpty()) {
+                return;
+            }
+            if (!retryPolicy.canRetry(attempt)) {
+                for (Line line : retry) {
+                    deadLetter(job, line, attempt, new ElasticsearchStatusException("retries exhausted",
+                            RestStatus.TOO_MANY_REQUESTS));
+                }
+                return;
+            }
+            lines = retry;
+            Thread.sleep(retryPolicy.backoffMillis(attempt));
+        }
+    }
+
+    private static List<ByteBuffer> body(List<Line> lines) {
+        List<ByteBuffer> body = new ArrayList<>(lines.size() * 3);
+        for (Line line : lines) {
+            body.add(line.action);
+            body.add(line.source);
+            body.add(NEWLINE);
+        }
+        return body;
+    }
+
+    /**
+     * @return 需要重发的行
+     */
+    private List<Line> handleResponse(Job job, List<Line> lines, Response response, int attempt)
+            throws IOException {
+        List<Line> retry = new ArrayList<>();
+        try (InputStream content = response.getEntity().getContent();
+             XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                     DeprecationHandler.THROW_UNSUPPORTED_OPERATION, content)) {
+            parser.nextToken();
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if ("errors".equals(field)) {
+                    if (!parser.booleanValue()) {
+                        //es先输出errors再输出items，没有失败时不用解析后面的条目
+                        job.documents.addAndGet(lines.size());
+                        return retry;
+                    }
+                } else if ("items".equals(field)) {
+                    int item = 0;
+                    while (parser.nextToken() == XContentParser.Token.START_OBJECT) {
+                        handleItem(job, parser, lines.get(item++), attempt, retry);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return retry;
+    }
+
+    /**
+     * 解析 {"index":{"status":429,"error":{...}}} 格式的一个条目
+     */
+    private void handleItem(Job job, XContentParser parser, Line line, int attempt, List<Line> retry)
+            throws IOException {
+        parser.nextToken();
+        parser.nextToken();
+        int status = 0;
+        Map<String, Object> error = null;
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("status".equals(field)) {
+                status = parser.intValue();
+            } else if ("error".equals(field)) {
+                error = parser.map();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        parser.nextToken();
+        if (error == null) {
+            job.documents.incrementAndGet();
+            return;
+        }
+        RestStatus restStatus = RestStatus.fromCode(status);
+        if (retryable(restStatus)) {
+            retry.add(line);
+            return;
+        }
+        deadLetter(job, line, attempt, new ElasticsearchStatusException(String.valueOf(error.get("reason")),
+                restStatus == null ? RestStatus.INTERNAL_SERVER_ERROR : restStatus));
+    }
+
+    private static boolean retryable(RestStatus status) {
+        return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE;
+    }
+
+    private void deadLetter(Job job, Line line, int attempts, Exception cause) {
+        job.failedDocuments.incrementAndGet();
+        //只有失败的文档才拷贝出来
+        deadLetterSink.accept(new IndexRequest(job.index).id(line.id).source(new BytesArray(bytes(line.source)),
+                XContentType.JSON), attempts, cause);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+        byte[] bytes = new byte[source.remaining()];
+        source.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 配置了 id-field 时取出文档id，只看顶层字段，找到后不再往下解析
+     *
+     * @throws IOException 这一行不是json对象，或者没有这个字段
+     */
+    private String readId(ByteBuffer line) throws IOException {
+        String idField = properties.getIdField();
+        byte[] bytes;
+        int offset;
+        if (line.hasArray()) {
+            bytes = line.array();
+            offset = line.arrayOffset() + line.position();
+        } else {
+            bytes = bytes(line);
+            offset = 0;
+        }
+        try (XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, bytes, offset, line.remaining())) {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                throw new IOException("line is not a json object");
+            }
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                String field = parser.currentName();
+                XContentParser.Token token = parser.nextToken();
+                if (idField.equals(field) && token.isValue() && token != XContentParser.Token.VALUE_NULL) {
+                    return parser.text();
+                }
+                parser.skipChildren();
+            }
+        }
+        throw new IOException("line has no value for id field [" + idField + "]");
+    }
+
+    private static ByteBuffer action(String index, String id) throws IOException {
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+            builder.startObject().startObject("index").field("_index", index);
+            if (id != null) {
+                builder.field("_id", id);
+            }
+            builder.endObject().endObject();
+            byte[] json = BytesReference.toBytes(BytesReference.bytes(builder));
+            byte[] bytes = Arrays.copyOf(json, json.length + 1);
+            bytes[json.length] = '\n';
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * 一次导入的状态
+     */
+    private final class Job {
+
+        private final String index;
+
+        private final ImportCheckpoint checkpoint;
+
+        private final ExecutorService workers;
+
+        /**
+         * 没有 id-field 时所有文档共用的action行
+         */
+        private final ByteBuffer action;
+
+        /**
+         * 在途批次的名额，读文件的线程拿不到名额时等待
+         */
+        private final Semaphore pending;
+
+        private final int maxPending;
+
+        private final AtomicInteger threadIndex = new AtomicInteger();
+
+        private final AtomicLong documents = new AtomicLong();
+
+        private final AtomicLong failedDocuments = new AtomicLong();
+
+        private final AtomicLong bulkRequests = new AtomicLong();
+
+        private long nextSequence;
+
+        private volatile Exception failure;
+
+        private Job(String index, ImportCheckpoint checkpoint) throws IOException {
+            this.index = index;
+            this.action = action(index, null);
+            this.checkpoint = checkpoint;
+            int workerCount = properties.getWorkers();
+            this.maxPending = workerCount * 2;
+            this.pending = new Semaphore(maxPending);
+            this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+                Thread thread = new Thread(r, "es-bulk-import-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        private void submit(List<Line> lines, long end) throws InterruptedException {
+            pending.acquire();
+            Chunk chunk = new Chunk(nextSequence++, end, lines);
+            workers.execute(() -> {
+                try {
+                    if (failure == null) {
+                        send(this, chunk);
+                        checkpoint.complete(chunk.sequence, chunk.end);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.error("bulk import chunk {} failed", chunk.sequence, e);
+                    failure = e;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = e;
+                } finally {
+                    pending.release();
+                }
+            });
+        }
+
+        private void awaitCompletion() throws InterruptedException {
+            try {
+                pending.acquire(maxPending);
+                pending.release(maxPending);
+            } finally {
+                workers.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * 把行攒成不超过 body-bytes 的批次
+     */
+    private final class ChunkBuilder {
+
+        private final Job job;
+
+        private List<Line> lines = new ArrayList<>();
+
+        private long bytes;
+
+        private long end;
+
+        private ChunkBuilder(Job job, long start) {
+            this.job = job;
+            this.end = start;
+        }
+
+        /**
+         * @param line 不含换行符的一行
+         * @param end  这一行（含换行符）在文件中的结束位置
+         */
+        private void addLine(ByteBuffer line, long end) throws IOException, InterruptedException {
+            if (isBlank(line)) {
+                this.end = end;
+                return;
+            }
+            Line document;
+            if (properties.getIdField() == null) {
+                document = new Line(null, job.action, line);
+            } else {
+                String id;
+                try {
+                    id = readId(line);
+                } catch (IOException e) {
+                    throw new IOException("failed to read id of line ending at offset " + end, e);
+                }
+                document = new Line(id, action(job.index, id), line);
+            }
+            long lineBytes = document.action.remaining() + line.remaining() + 1;
+            if (!lines.isEmpty() && bytes + lineBytes > properties.getBodyBytes()) {
+                flush();
+            }
+            lines.add(document);
+            bytes += lineBytes;
+            this.end = end;
+        }
+
+        private void flush() throws InterruptedException {
+            if (lines.isEmpty()) {
+                return;
+            }
+            job.submit(lines, end);
+            lines = new ArrayList<>();
+            bytes = 0;
+        }
+
+        private boolean isBlank(ByteBuffer line) {
+            int length = line.remaining();
+            return length == 0 || (length == 1 && line.get(line.position()) == '\r');
+        }
+    }
+
+    private static final class Chunk {
+
+        private final long sequence;
+
+        private final long end;
+
+        private final List<Line> lines;
+
+        private Chunk(long sequence, long end, List<Line> lines) {
+            this.sequence = sequence;
+            this.end = end;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * 一个文档：action行和不含换行符的文档内容
+     */
+    private static final class Line {
+
+        /**
+         * 没有 id-field 时为空
+         */
+        private final String id;
+
+        private final ByteBuffer action;
+
+        private final ByteBuffer source;
+
+        private Line(String id, ByteBuffer action, ByteBuffer source) {
+            this.id = id;
+            this.action = action;
+            this.source = source;
+        }
+    }
+}
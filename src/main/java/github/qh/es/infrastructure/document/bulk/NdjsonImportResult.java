@@ -0,0 +1,43 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-19- 11:05 上午
+ * @email quhao.mi@foxmail.com
+ * 一个文件的导入结果
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class NdjsonImportResult {
+
+    private final String file;
+
+    /**
+     * 从哪个位置开始导入（断点续传时大于0），gzip文件是解压后的位置
+     */
+    private final long resumedFrom;
+
+    /**
+     * 本次导入读取的字节数
+     */
+    private final long bytes;
+
+    private final long documents;
+
+    /**
+     * 写入失败进入死信的文档数
+     */
+    private final long failedDocuments;
+
+    /**
+     * 发送的bulk请求数（包括重试）
+     */
+    private final long bulkRequests;
+
+    private final long tookMillis;
+}
@@ -0,0 +1,25 @@
+package github.qh.es.infrastructure.document.bulk;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-12- 10:05 上午
+ * @email quhao.mi@foxmail.com
+ * 批量写入队列满了之后的处理策略
+ */
+public enum OverflowPolicy {
+
+    /**
+     * 阻塞生产者直到队列有空间（最多等待 es.bulk.queue.block-timeout）
+     */
+    BLOCK,
+
+    /**
+     * 丢弃队列里最老的操作，给新操作腾空间
+     */
+    DROP_OLDEST,
+
+    /**
+     * 直接拒绝新操作
+     */
+    FAIL_FAST
+}
@@ -0,0 +1,231 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-18- 2:10 下午
+ * @email quhao.mi@foxmail.com
+ * 按 index + routing 分区的批量写入组件。
+ * 单个 BulkProcessor 并发数大于0时批次之间的顺序无法保证，等于0时又没有并行度；
+ * 这里把请求按 index + routing（没有routing时用id，和es默认的路由一致）哈希到N个独立的分区，
+ * 每个分区是一个保证顺序的 AdaptiveBulkIngester（同一时刻只有一个在途批次，重试的操作排在后来的操作前面），
+ * 同一文档的写操作总是进同一个分区，所以按提交顺序生效，不同分区之间并行发送。
+ * 调整分区数时先等旧分区全部写完再切换，期间提交会等待，不会出现同一文档的新旧写操作在两个分区里同时发送；
+ * 等待超时就不切换，继续使用旧分区。
+ */
+@Slf4j
+public class PartitionedBulkIngester implements Closeable {
+
+    private final Supplier<AdaptiveBulkIngester> partitionFactory;
+
+    private final long drainTimeoutMillis;
+
+    /**
+     * 提交拿读锁，调整分区数拿写锁
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile List<AdaptiveBulkIngester> partitions;
+
+    private volatile boolean closed;
+
+    /**
+     * @param partitionFactory   创建单个分区，必须是保证顺序的 AdaptiveBulkIngester
+     * @param partitionCount     分区数
+     * @param drainTimeoutMillis 调整分区数或关闭时等待旧分区写完的最长时间
+     */
+    public PartitionedBulkIngester(Supplier<AdaptiveBulkIngester> partitionFactory, int partitionCount,
+                                   long drainTimeoutMillis) {
+        this.partitionFactory = partitionFactory;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.partitions = createPartitions(partitionCount);
+    }
+
+    /**
+     * 计算请求所在的分区
+     */
+    public static int partition(DocWriteRequest<?> request, int partitionCount) {
+        String key = request.routing() != null ? request.routing() : request.id();
+        if (key == null) {
+            //没有id的新增文档由es生成id，不存在顺序问题，随便放一个分区
+            return ThreadLocalRandom.current().nextInt(partitionCount);
+        }
+        int hash = 31 * request.index().hashCode() + key.hashCode();
+        return Math.floorMod(hash, partitionCount);
+    }
+
+    /**
+     * 添加一个写操作
+     *
+     * @throws EsRejectedExecutionException 分区队列满了被拒绝
+     */
+    public void add(DocWriteRequest<?> request) {
+        add(request, AdaptiveBulkIngester.NOOP_LISTENER);
+    }
+
+    /**
+     * 添加一个写操作
+     *
+     * @param listener 该操作最终成功时回调 onResponse，最终失败或者被队列丢弃时回调 onFailure
+     * @throws EsRejectedExecutionException 分区队列满了被拒绝
+     */
+    public void add(DocWriteRequest<?> request, ActionListener<BulkItemResponse> listener) {
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                throw new EsRejectedExecutionException("partitioned bulk ingester already closed", true);
+            }
+            List<AdaptiveBulkIngester> current = partitions;
+            current.get(partition(request, current.size())).add(request, listener);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 非阻塞地提交一个写操作
+     *
+     * @return 该操作最终写入成功时完成；最终失败、被拒绝或被丢弃时异常完成
+     */
+    public CompletableFuture<BulkItemResponse> offer(DocWriteRequest<?> request) {
+        CompletableFuture<BulkItemResponse> future = new CompletableFuture<>();
+        try {
+            add(request, ActionListener.wrap(future::complete, future::completeExceptionally));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public void flush() {
+        for (AdaptiveBulkIngester partition : partitions) {
+            partition.flush();
+        }
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * 每个分区的积压：队列里还没发送的操作数，下标就是分区号
+     */
+    public List<Integer> partitionLag() {
+        List<Integer> lag = new ArrayList<>();
+        for (AdaptiveBulkIngester partition : partitions) {
+            lag.add(partition.metrics().getQueuedOperations());
+        }
+        return lag;
+    }
+
+    /**
+     * 每个分区的详细指标，下标就是分区号
+     */
+    public List<BulkIngestMetrics> partitionMetrics() {
+        List<BulkIngestMetrics> metrics = new ArrayList<>();
+        for (AdaptiveBulkIngester partition : partitions) {
+            metrics.add(partition.metrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * 调整分区数。
+     * 先阻止新的提交，等旧分区把已提交的操作全部写完（包括退避中的重试），再按新的分区数重新建立分区，
+     * 所以调整前后同一文档的写操作仍然按提交顺序生效。
+     * 超时没写完时不切换：旧分区保持原样继续发送剩余的操作，每个操作照常回调自己的 listener，
+     * 分区数不变，可以稍后再调整。
+     *
+     * @return 是否完成了切换
+     */
+    public boolean resize(int partitionCount) throws InterruptedException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("partitioned bulk ingester already closed");
+            }
+            if (partitionCount == partitions.size()) {
+                return true;
+            }
+            log.info("resizing bulk partitions {} -> {}", partitions.size(), partitionCount);
+            List<AdaptiveBulkIngester> old = partitions;
+            if (!awaitIdle(old)) {
+                return false;
+            }
+            partitions = createPartitions(partitionCount);
+            //已经没有未完成的操作，关闭只是停掉发送线程
+            drain(old);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            drain(partitions);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean drain(List<AdaptiveBulkIngester> old) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        boolean drained = true;
+        for (AdaptiveBulkIngester partition : old) {
+            long remaining = Math.max(0, deadline - System.nanoTime());
+            if (!partition.awaitClose(remaining, TimeUnit.NANOSECONDS)) {
+                log.warn("bulk partition not drained in {}ms, metrics {}", drainTimeoutMillis, partition.metrics());
+                drained = false;
+            }
+        }
+        return drained;
+    }
+
+    private boolean awaitIdle(List<AdaptiveBulkIngester> old) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        for (AdaptiveBulkIngester partition : old) {
+            long remaining = Math.max(0, deadline - System.nanoTime());
+            if (!partition.awaitIdle(remaining, TimeUnit.NANOSECONDS)) {
+                log.warn("bulk partition not drained in {}ms, keeping {} partitions, metrics {}",
+                        drainTimeoutMillis, old.size(), partition.metrics());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<AdaptiveBulkIngester> createPartitions(int partitionCount) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("partition count must be positive, got " + partitionCount);
+        }
+        List<AdaptiveBulkIngester> created = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            created.add(partitionFactory.get());
+        }
+        return Collections.unmodifiableList(created);
+    }
+}
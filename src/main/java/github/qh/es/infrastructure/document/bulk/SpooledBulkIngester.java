@@ -0,0 +1,194 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-10- 4:30 下午
+ * @email quhao.mi@foxmail.com
+ * 带磁盘预写队列的批量写入。
+ * 生产者调用 {@link #enqueue(DocWriteRequest)} 只是追加到内存映射文件，不会等待es；
+ * 后台线程从队列里读出数据交给 AdaptiveBulkIngester，写入成功（或者进了死信）后才确认。
+ * 集群变慢时积压的数据留在磁盘上而不是堆里，进程重启后从checkpoint重放未确认的数据。
+ * 不保证写入顺序：集群不可用导致失败（ingester 的重试次数用完）的记录重新追加到队尾，
+ * 同一个文档后来的写入可能先执行，旧版本会覆盖新版本。即使 ingester 是保证顺序的模式，也只在它自己的重试范围内有序；
+ * 需要顺序时给写入带上外部版本号（version_type=external），让集群丢弃旧版本。
+ */
+@Slf4j
+public class SpooledBulkIngester implements Closeable {
+
+    private static final long MIN_REJECT_BACKOFF_MILLIS = 10;
+
+    private static final long MAX_REJECT_BACKOFF_MILLIS = 1000;
+
+    private final BulkSpool spool;
+
+    private final AdaptiveBulkIngester ingester;
+
+    private final Thread drainer;
+
+    private final ScheduledExecutorService scheduler;
+
+    private volatile boolean running = true;
+
+    public SpooledBulkIngester(BulkSpool spool, AdaptiveBulkIngester ingester,
+                               Duration checkpointInterval, Duration syncInterval) {
+        this.spool = spool;
+        this.ingester = ingester;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "es-bulk-spool-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkpoint,
+                checkpointInterval.toMillis(), checkpointInterval.toMillis(), TimeUnit.MILLISECONDS);
+        if (!syncInterval.isZero()) {
+            scheduler.scheduleWithFixedDelay(spool::sync,
+                    syncInterval.toMillis(), syncInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        this.drainer = new Thread(this::drain, "es-bulk-spool-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * 写入预写队列，落到映射内存后立即返回
+     */
+    public void enqueue(DocWriteRequest<?> request) {
+        try {
+            spool.append(request);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 磁盘上积压的字节数
+     */
+    public long backlogBytes() {
+        return spool.backlogBytes();
+    }
+
+    public BulkIngestMetrics metrics() {
+        return ingester.metrics();
+    }
+
+    private void drain() {
+        while (running) {
+            BulkSpool.SpoolRecord record;
+            try {
+                record = spool.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("从预写队列读取数据失败", e);
+                continue;
+            }
+            if (record != null && !submit(record)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 把读出的记录交给 ingester，ingester 接收之后由 AckListener 确认。
+     * 被拒绝（FAIL_FAST 队列满、BLOCK 等待超时、ingester 已关闭）时退避后重试同一条记录，不跳过它，
+     * 否则这条记录一直不确认，checkpoint 停在它前面；
+     * 在途批次满了会停在这里，后面的数据继续留在磁盘上。关闭时还没交出去的记录不确认，下次启动重放
+     *
+     * @return 关闭了返回false
+     */
+    private boolean submit(BulkSpool.SpoolRecord record) {
+        long backoff = MIN_REJECT_BACKOFF_MILLIS;
+        while (running) {
+            try {
+                ingester.add(record.getRequest(), new AckListener(record));
+                return true;
+            } catch (EsRejectedExecutionException e) {
+                log.debug("批量写入队列拒绝了预写队列的记录，{}ms 后重试: {}", backoff, e.getMessage());
+            } catch (RuntimeException e) {
+                //请求本身有问题，和写入最终失败一样处理
+                new AckListener(record).onFailure(e);
+                return true;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            backoff = Math.min(backoff * 2, MAX_REJECT_BACKOFF_MILLIS);
+        }
+        return false;
+    }
+
+    private void checkpoint() {
+        try {
+            spool.checkpoint();
+        } catch (IOException e) {
+            log.error("预写队列checkpoint失败", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        drainer.interrupt();
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler.shutdownNow();
+        //没确认的数据留在磁盘上，下次启动重放
+        spool.close();
+    }
+
+    /**
+     * 写入结果回调：成功或者最终失败都确认；集群不可用导致的失败（重试次数用完）重新追加到队尾，不丢数据，
+     * 但会排到之后写入的记录后面，见类注释
+     */
+    private final class AckListener implements ActionListener<BulkItemResponse> {
+
+        private final BulkSpool.SpoolRecord record;
+
+        private AckListener(BulkSpool.SpoolRecord record) {
+            this.record = record;
+        }
+
+        @Override
+        public void onResponse(BulkItemResponse response) {
+            spool.ack(record.getPosition());
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            RestStatus status = ExceptionsHelper.status(e);
+            if (e instanceof IOException || status == RestStatus.TOO_MANY_REQUESTS
+                    || status == RestStatus.SERVICE_UNAVAILABLE) {
+                try {
+                    spool.append(record.getRequest());
+                } catch (IOException appendFailure) {
+                    log.error("重新追加到预写队列失败，该记录将在重启后重放", appendFailure);
+                    return;
+                }
+            }
+            spool.ack(record.getPosition());
+        }
+    }
+}
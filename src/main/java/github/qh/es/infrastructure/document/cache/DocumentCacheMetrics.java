@@ -0,0 +1,47 @@
+package github.qh.es.infrastructure.document.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-31- 9:50 上午
+ * @email quhao.mi@foxmail.com
+ * 文档缓存指标快照
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class DocumentCacheMetrics {
+
+    private final long hits;
+
+    private final long misses;
+
+    /**
+     * 按版本校验后继续使用的次数
+     */
+    private final long revalidations;
+
+    /**
+     * 按版本校验发现文档已经变了的次数
+     */
+    private final long staleRevalidations;
+
+    /**
+     * 请求期间文档被写入，结果没有放进缓存的次数
+     */
+    private final long skippedPuts;
+
+    private final long evictions;
+
+    private final long entries;
+
+    private final long weightBytes;
+
+    public double getHitRate() {
+        long total = hits + revalidations + misses;
+        return total == 0 ? 0 : (double) (hits + revalidations) / total;
+    }
+}
@@ -0,0 +1,277 @@
+package github.qh.es.infrastructure.document.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import github.qh.es.application.config.EsDocumentProperties;
+import github.qh.es.infrastructure.document.DocumentKey;
+import github.qh.es.infrastructure.document.DocumentWriteEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.springframework.context.ApplicationListener;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-31- 10:10 上午
+ * @email quhao.mi@foxmail.com
+ * 文档的本地缓存，读多写少的热点文档不用每次都去集群取。
+ * 1.key 是索引 + id + routing，缓存 _source 和 _version/_seq_no/_primary_term，按字节数限制容量，淘汰策略是 Caffeine 的 W-TinyLFU
+ * 2.通过本应用写入文档时（DocumentWriteEvent，发送前和结束后各一次，失败的写入也有）马上失效；请求期间文档被写入的结果不放进缓存，避免把旧数据放回去
+ * 3.不知道写了哪些文档的事件（比如文件导入）让整个索引失效
+ * 4.配置了 revalidate-after 时，超过这个时间的条目先用不取 _source 的get比较 _seq_no，没变就继续用，变了再取完整文档
+ * 5.只缓存取完整 _source、没有指定存储字段和版本号的get；get本身是实时的，refresh/realtime 参数不影响缓存
+ * 其他应用的写入只能靠 ttl 和版本校验发现。
+ */
+@Slf4j
+public class DocumentNearCache implements ApplicationListener<DocumentWriteEvent> {
+
+    /**
+     * 失效记录保留的时间，要大于一次get的最长耗时
+     */
+    private static final long TOMBSTONE_TTL_MINUTES = 1;
+
+    private final Cache<DocumentKey, CachedDocument> cache;
+
+    /**
+     * 最近失效的文档和失效时的写入序号
+     */
+    private final Cache<DocumentKey, Long> tombstones;
+
+    /**
+     * 整体失效的索引和失效时的写入序号
+     */
+    private final Map<String, Long> indexInvalidations = new ConcurrentHashMap<>();
+
+    private final AtomicLong writeSequence = new AtomicLong();
+
+    private final long revalidateAfterNanos;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong staleRevalidations = new AtomicLong();
+    private final AtomicLong skippedPuts = new AtomicLong();
+
+    public DocumentNearCache(EsDocumentProperties.NearCache properties) {
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(properties.getMaxBytes())
+                .<DocumentKey, CachedDocument>weigher((key, value) -> key.weight() + value.weight())
+                .expireAfterWrite(properties.getTtl().toNanos(), TimeUnit.NANOSECONDS)
+                .recordStats()
+                .build();
+        this.tombstones = Caffeine.newBuilder()
+                .expireAfterWrite(TOMBSTONE_TTL_MINUTES, TimeUnit.MINUTES)
+                .build();
+        this.revalidateAfterNanos = properties.getRevalidateAfter() == null ? 0
+                : properties.getRevalidateAfter().toNanos();
+    }
+
+    /**
+     * 同步get，命中时不调用 loader；按版本校验时 loader 会收到一个不取 _source 的get
+     */
+    public GetResponse get(GetRequest request, CheckedFunction<GetRequest, GetResponse, IOException> loader)
+            throws IOException {
+        if (!isCacheable(request)) {
+            return loader.apply(request);
+        }
+        DocumentKey key = DocumentKey.of(request);
+        CachedDocument cached = cache.getIfPresent(key);
+        if (cached != null) {
+            if (!needsRevalidation(cached)) {
+                hits.incrementAndGet();
+                return cached.toResponse();
+            }
+            if (revalidate(key, cached, loader.apply(versionRequest(request)))) {
+                return cached.toResponse();
+            }
+        }
+        misses.incrementAndGet();
+        long sequence = writeSequence.get();
+        GetResponse response = loader.apply(request);
+        put(key, sequence, response);
+        return response;
+    }
+
+    /**
+     * 异步get，命中时直接在调用线程回调
+     */
+    public void getAsync(GetRequest request, ActionListener<GetResponse> listener,
+                         BiConsumer<GetRequest, ActionListener<GetResponse>> loader) {
+        if (!isCacheable(request)) {
+            loader.accept(request, listener);
+            return;
+        }
+        DocumentKey key = DocumentKey.of(request);
+        CachedDocument cached = cache.getIfPresent(key);
+        if (cached == null) {
+            load(key, request, listener, loader);
+            return;
+        }
+        if (!needsRevalidation(cached)) {
+            hits.incrementAndGet();
+            listener.onResponse(cached.toResponse());
+            return;
+        }
+        loader.accept(versionRequest(request), ActionListener.wrap(head -> {
+            if (revalidate(key, cached, head)) {
+                listener.onResponse(cached.toResponse());
+            } else {
+                load(key, request, listener, loader);
+            }
+        }, listener::onFailure));
+    }
+
+    @Override
+    public void onApplicationEvent(DocumentWriteEvent event) {
+        long sequence = writeSequence.incrementAndGet();
+        if (event.getDocuments() == null) {
+            for (String index : event.getIndices()) {
+                indexInvalidations.put(index, sequence);
+            }
+            cache.asMap().keySet().removeIf(key -> event.getIndices().contains(key.getIndex()));
+            return;
+        }
+        for (DocumentKey document : event.getDocuments()) {
+            tombstones.put(document, sequence);
+            cache.invalidate(document);
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public DocumentCacheMetrics metrics() {
+        long weight = cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L);
+        return new DocumentCacheMetrics(hits.get(), misses.get(), revalidations.get(), staleRevalidations.get(),
+                skippedPuts.get(), cache.stats().evictionCount(), cache.estimatedSize(), weight);
+    }
+
+    private void load(DocumentKey key, GetRequest request, ActionListener<GetResponse> listener,
+                      BiConsumer<GetRequest, ActionListener<GetResponse>> loader) {
+        misses.incrementAndGet();
+        long sequence = writeSequence.get();
+        loader.accept(request, ActionListener.wrap(response -> {
+            put(key, sequence, response);
+            listener.onResponse(response);
+        }, listener::onFailure));
+    }
+
+    private boolean isCacheable(GetRequest request) {
+        if (request.storedFields() != null || request.version() != Versions.MATCH_ANY) {
+            return false;
+        }
+        FetchSourceContext source = request.fetchSourceContext();
+        return source == null || (source.fetchSource() && source.includes().length == 0
+                && source.excludes().length == 0);
+    }
+
+    private boolean needsRevalidation(CachedDocument cached) {
+        return revalidateAfterNanos > 0 && System.nanoTime() - cached.validatedNanos > revalidateAfterNanos;
+    }
+
+    /**
+     * 用不取 _source 的get结果校验缓存，没变时刷新校验时间
+     */
+    private boolean revalidate(DocumentKey key, CachedDocument cached, GetResponse head) {
+        if (head.isExists() && head.getSeqNo() == cached.seqNo && head.getPrimaryTerm() == cached.primaryTerm) {
+            cached.validatedNanos = System.nanoTime();
+            revalidations.incrementAndGet();
+            return true;
+        }
+        staleRevalidations.incrementAndGet();
+        cache.asMap().remove(key, cached);
+        return false;
+    }
+
+    private static GetRequest versionRequest(GetRequest request) {
+        return new GetRequest(request.index(), request.id())
+                .routing(request.routing())
+                .preference(request.preference())
+                .fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE)
+                .storedFields("_none_");
+    }
+
+    private void put(DocumentKey key, long sequence, GetResponse response) {
+        if (!response.isExists() || response.isSourceEmpty()) {
+            return;
+        }
+        if (invalidatedSince(key, sequence)) {
+            skippedPuts.incrementAndGet();
+            return;
+        }
+        CachedDocument document = new CachedDocument(response);
+        //并发的两个get只保留新的版本
+        cache.asMap().merge(key, document, (old, loaded) -> loaded.isNewerThan(old) ? loaded : old);
+        //放进去的同时有写入，失效事件可能已经处理完了，再检查一次
+        if (invalidatedSince(key, sequence)) {
+            cache.asMap().remove(key, document);
+            skippedPuts.incrementAndGet();
+        }
+    }
+
+    private boolean invalidatedSince(DocumentKey key, long sequence) {
+        Long tombstone = tombstones.getIfPresent(key);
+        if (tombstone != null && tombstone > sequence) {
+            return true;
+        }
+        Long indexInvalidation = indexInvalidations.get(key.getIndex());
+        return indexInvalidation != null && indexInvalidation > sequence;
+    }
+
+    private static final class CachedDocument {
+
+        private final String index;
+
+        private final String type;
+
+        private final String id;
+
+        private final long seqNo;
+
+        private final long primaryTerm;
+
+        private final long version;
+
+        private final BytesReference source;
+
+        private volatile long validatedNanos = System.nanoTime();
+
+        private CachedDocument(GetResponse response) {
+            this.index = response.getIndex();
+            this.type = response.getType();
+            this.id = response.getId();
+            this.seqNo = response.getSeqNo();
+            this.primaryTerm = response.getPrimaryTerm();
+            this.version = response.getVersion();
+            this.source = response.getSourceInternal();
+        }
+
+        private boolean isNewerThan(CachedDocument other) {
+            return primaryTerm > other.primaryTerm || (primaryTerm == other.primaryTerm && seqNo >= other.seqNo);
+        }
+
+        private int weight() {
+            return 96 + source.length();
+        }
+
+        private GetResponse toResponse() {
+            return new GetResponse(new GetResult(index, type, id, seqNo, primaryTerm, version, true, source,
+                    Collections.emptyMap()));
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package github.qh.es.infrastructure.document.filter;
+
+import github.qh.es.application.config.EsDocumentProperties;
+import github.qh.es.infrastructure.document.DocumentKey;
+import github.qh.es.infrastructure.document.DocumentWriteEvent;
+import github.qh.es.infrastructure.search.export.SlicedScrollExporter;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.core.CountRequest;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.springframework.context.ApplicationListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-01- 11:00 上午
+ * @email quhao.mi@foxmail.com
+ * exists 的本地过滤器，每个配置的索引一个 OffHeapBloomFilter，判断一定不存在的 exists 不用发到集群。
+ * 1.启动时先从快照恢复，没有可用快照时用 sliced scroll 取出所有id重建；重建期间 exists 全部发到集群
+ * 2.本应用的写入（DocumentWriteEvent）把id加进过滤器，事件在发送写入前就发布，客户端看到失败但集群已经执行的写入也不会漏；
+ * 不知道id的写入（文件导入、自动生成id）让过滤器失效，等一段时间后重建
+ * 3.重建前先 refresh 索引，重建期间的写入同时加进新旧两个过滤器，保证不漏
+ * 4.快照只在没有写入时有效：重建完和关闭时写快照，之后第一次写入就删掉，异常退出时不会留下过期的快照
+ * 其他应用写入的文档本地不知道，会被误判为不存在，只能给所有写入都经过本应用的索引开启。
+ */
+@Slf4j
+public class ExistsFilter implements ApplicationListener<DocumentWriteEvent>, Closeable {
+
+    /**
+     * 快照文件头，"ESBF"
+     */
+    private static final int SNAPSHOT_MAGIC = 0x45534246;
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final String SNAPSHOT_SUFFIX = ".bloom";
+
+    /**
+     * 过滤器的判断结果
+     */
+    public enum Verdict {
+        /**
+         * 一定不存在
+         */
+        ABSENT,
+        /**
+         * 可能存在，需要发到集群
+         */
+        MAYBE,
+        /**
+         * 没有可用的过滤器，需要发到集群
+         */
+        UNKNOWN
+    }
+
+    private final RestHighLevelClient client;
+
+    private final SlicedScrollExporter exporter;
+
+    private final EsDocumentProperties.ExistsFilter properties;
+
+    private final Map<String, IndexFilter> filters = new LinkedHashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    public ExistsFilter(RestHighLevelClient client, SlicedScrollExporter exporter,
+                        EsDocumentProperties.ExistsFilter properties) {
+        this.client = client;
+        this.exporter = exporter;
+        this.properties = properties;
+        for (String index : properties.getIndices()) {
+            filters.put(index, new IndexFilter(index));
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "es-exists-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 恢复快照或者开始重建，定时重建也从这里开始
+     */
+    public void start() {
+        for (IndexFilter filter : filters.values()) {
+            if (!restore(filter)) {
+                scheduleRebuild(filter, 0);
+            }
+            if (properties.getRebuildInterval() != null) {
+                long interval = properties.getRebuildInterval().toMillis();
+                scheduler.scheduleWithFixedDelay(() -> rebuild(filter), interval, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * 判断文档是否可能存在，没有配置的索引返回 UNKNOWN
+     */
+    public Verdict check(String index, String id) {
+        IndexFilter filter = filters.get(index);
+        if (filter == null) {
+            return Verdict.UNKNOWN;
+        }
+        filter.checks.incrementAndGet();
+        OffHeapBloomFilter active = filter.active;
+        if (active == null) {
+            filter.unavailable.incrementAndGet();
+            return Verdict.UNKNOWN;
+        }
+        if (!active.mightContain(id)) {
+            filter.definitelyAbsent.incrementAndGet();
+            return Verdict.ABSENT;
+        }
+        filter.maybe.incrementAndGet();
+        return Verdict.MAYBE;
+    }
+
+    /**
+     * 记录 MAYBE 之后集群返回的结果，用来统计实际误判率
+     */
+    public void recordMaybe(String index, boolean exists) {
+        IndexFilter filter = filters.get(index);
+        if (filter != null && !exists) {
+            filter.falsePositives.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onApplicationEvent(DocumentWriteEvent event) {
+        if (event.getDocuments() == null || event.isGeneratedIds()) {
+            for (String index : event.getIndices()) {
+                IndexFilter filter = filters.get(index);
+                if (filter != null) {
+                    invalidate(filter);
+                }
+            }
+            return;
+        }
+        for (DocumentKey document : event.getDocuments()) {
+            IndexFilter filter = filters.get(document.getIndex());
+            if (filter != null) {
+                add(filter, document.getId());
+            }
+        }
+    }
+
+    /**
+     * 马上重建，返回是否成功
+     */
+    public boolean rebuild(String index) {
+        IndexFilter filter = filters.get(index);
+        if (filter == null) {
+            throw new IllegalArgumentException("exists filter is not enabled for index [" + index + "]");
+        }
+        return rebuild(filter);
+    }
+
+    public Map<String, ExistsFilterMetrics> metrics() {
+        Map<String, ExistsFilterMetrics> metrics = new LinkedHashMap<>();
+        for (IndexFilter filter : filters.values()) {
+            OffHeapBloomFilter active = filter.active;
+            metrics.put(filter.index, new ExistsFilterMetrics(filter.index, active != null, filter.checks.get(),
+                    filter.definitelyAbsent.get(), filter.maybe.get(), filter.falsePositives.get(),
+                    filter.unavailable.get(), active == null ? 0 : active.getInsertions(),
+                    active == null ? 0 : active.getExpectedInsertions(), active == null ? 0 : active.expectedFpp(),
+                    active == null ? 0 : active.sizeInBytes(), filter.rebuilds.get()));
+        }
+        return metrics;
+    }
+
+    /**
+     * 停止重建，给可用的过滤器写快照
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        for (IndexFilter filter : filters.values()) {
+            OffHeapBloomFilter active = filter.active;
+            if (active != null) {
+                snapshot(filter, active);
+            }
+        }
+    }
+
+    private void add(IndexFilter filter, String id) {
+        boolean full;
+        synchronized (filter) {
+            filter.writes++;
+            if (filter.active != null) {
+                filter.active.put(id);
+            }
+            if (filter.building != null) {
+                filter.building.put(id);
+            }
+            if (filter.snapshotValid) {
+                filter.snapshotValid = false;
+                deleteSnapshot(filter);
+            }
+            full = filter.active != null && filter.active.getInsertions() > filter.active.getExpectedInsertions();
+        }
+        //元素数超过预计值后误判率快速上升，按新的文档数重建
+        if (full) {
+            scheduleRebuild(filter, properties.getRebuildDelay().toMillis());
+        }
+    }
+
+    private void invalidate(IndexFilter filter) {
+        synchronized (filter) {
+            filter.writes++;
+            filter.generation++;
+            filter.active = null;
+            if (filter.snapshotValid) {
+                filter.snapshotValid = false;
+                deleteSnapshot(filter);
+            }
+        }
+        scheduleRebuild(filter, properties.getRebuildDelay().toMillis());
+    }
+
+    private void scheduleRebuild(IndexFilter filter, long delayMillis) {
+        if (!filter.rebuildScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler.schedule(() -> {
+                filter.rebuildScheduled.set(false);
+                rebuild(filter);
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            //关闭后不再重建
+            filter.rebuildScheduled.set(false);
+        }
+    }
+
+    /**
+     * 同一个索引同时只有一个重建
+     */
+    private boolean rebuild(IndexFilter filter) {
+        synchronized (filter.rebuildLock) {
+            return doRebuild(filter);
+        }
+    }
+
+    private boolean doRebuild(IndexFilter filter) {
+        OffHeapBloomFilter building;
+        long generation;
+        long start = System.nanoTime();
+        try {
+            long count = client.count(new CountRequest(filter.index), RequestOptions.DEFAULT).getCount();
+            long expected = Math.max(properties.getExpectedInsertions(), (long) (count * properties.getHeadroom()));
+            building = new OffHeapBloomFilter(expected, properties.getFpp());
+            synchronized (filter) {
+                generation = filter.generation;
+                filter.building = building;
+            }
+            //之前完成的写入都能被 scroll 看到，之后的写入通过事件加进 building
+            client.indices().refresh(new RefreshRequest(filter.index), RequestOptions.DEFAULT);
+            SearchRequest request = new SearchRequest(filter.index)
+                    .source(new SearchSourceBuilder().query(QueryBuilders.matchAllQuery()).fetchSource(false));
+            exporter.export(request, (slice, hits) -> {
+                for (SearchHit hit : hits) {
+                    building.put(hit.getId());
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            log.warn("failed to rebuild exists filter of index [{}]", filter.index, e);
+            clearBuilding(filter);
+            scheduleRebuild(filter, properties.getRebuildDelay().toMillis());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            clearBuilding(filter);
+            return false;
+        }
+        synchronized (filter) {
+            filter.building = null;
+            if (filter.generation != generation) {
+                //重建期间有不知道id的写入，结果不完整
+                log.info("exists filter of index [{}] was invalidated during rebuild, retrying", filter.index);
+                scheduleRebuild(filter, properties.getRebuildDelay().toMillis());
+                return false;
+            }
+            filter.active = building;
+            filter.rebuilds.incrementAndGet();
+        }
+        snapshot(filter, building);
+        log.info("rebuilt exists filter of index [{}]: {} ids, {} bytes, expected fpp {}, took {} ms", filter.index,
+                building.getInsertions(), building.sizeInBytes(), building.expectedFpp(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+
+    private void clearBuilding(IndexFilter filter) {
+        synchronized (filter) {
+            filter.building = null;
+        }
+    }
+
+    /**
+     * 快照格式：magic、格式版本、索引名、写快照的时间、过滤器（OffHeapBloomFilter#writeTo），最后是前面所有内容的CRC32。
+     * 写快照期间有写入时快照可能不完整，写完后删掉
+     */
+    private void snapshot(IndexFilter filter, OffHeapBloomFilter bloom) {
+        Path file = snapshotFile(filter);
+        if (file == null) {
+            return;
+        }
+        long writes;
+        synchronized (filter) {
+            writes = filter.writes;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            CRC32 crc = new CRC32();
+            try (OutputStream stream = Files.newOutputStream(tmp);
+                 CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(stream), crc);
+                 DataOutputStream out = new DataOutputStream(checked)) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeUTF(filter.index);
+                out.writeLong(System.currentTimeMillis());
+                bloom.writeTo(out);
+                out.flush();
+                out.writeLong(crc.getValue());
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            synchronized (filter) {
+                if (filter.writes == writes && filter.active == bloom) {
+                    filter.snapshotValid = true;
+                } else {
+                    deleteSnapshot(filter);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("failed to write exists filter snapshot of index [{}] to {}", filter.index, file, e);
+        }
+    }
+
+    private boolean restore(IndexFilter filter) {
+        Path file = snapshotFile(filter);
+        if (file == null || !Files.exists(file)) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        try (InputStream stream = Files.newInputStream(file);
+             CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(stream), crc);
+             DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION
+                    || !filter.index.equals(in.readUTF())) {
+                log.warn("ignoring incompatible exists filter snapshot {}", file);
+                return false;
+            }
+            long createdAt = in.readLong();
+            if (System.currentTimeMillis() - createdAt > properties.getSnapshotMaxAge().toMillis()) {
+                log.info("exists filter snapshot {} is older than {}, rebuilding", file, properties.getSnapshotMaxAge());
+                return false;
+            }
+            OffHeapBloomFilter bloom = OffHeapBloomFilter.readFrom(in);
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                log.warn("exists filter snapshot {} is corrupt, rebuilding", file);
+                return false;
+            }
+            synchronized (filter) {
+                filter.active = bloom;
+                filter.snapshotValid = true;
+            }
+            log.info("restored exists filter of index [{}] from {}: {} ids", filter.index, file, bloom.getInsertions());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.warn("failed to read exists filter snapshot {}, rebuilding", file, e);
+            return false;
+        }
+    }
+
+    private void deleteSnapshot(IndexFilter filter) {
+        Path file = snapshotFile(filter);
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("failed to delete exists filter snapshot {}", file, e);
+        }
+    }
+
+    private Path snapshotFile(IndexFilter filter) {
+        if (properties.getSnapshotDir() == null) {
+            return null;
+        }
+        return Paths.get(properties.getSnapshotDir(), filter.index + SNAPSHOT_SUFFIX);
+    }
+
+    private static final class IndexFilter {
+
+        private final String index;
+
+        /**
+         * 可用的过滤器，为null时 exists 全部发到集群
+         */
+        private volatile OffHeapBloomFilter active;
+
+        /**
+         * 重建中的过滤器，写入同时加进去
+         */
+        private OffHeapBloomFilter building;
+
+        /**
+         * 每次失效加一，重建期间变了说明结果不完整
+         */
+        private long generation;
+
+        /**
+         * 写入次数，写快照期间变了说明快照不完整
+         */
+        private long writes;
+
+        /**
+         * 快照文件是否包含了所有写入
+         */
+        private boolean snapshotValid;
+
+        private final Object rebuildLock = new Object();
+
+        private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+
+        private final AtomicLong checks = new AtomicLong();
+        private final AtomicLong definitelyAbsent = new AtomicLong();
+        private final AtomicLong maybe = new AtomicLong();
+        private final AtomicLong falsePositives = new AtomicLong();
+        private final AtomicLong unavailable = new AtomicLong();
+        private final AtomicLong rebuilds = new AtomicLong();
+
+        private IndexFilter(String index) {
+            this.index = index;
+        }
+    }
+}
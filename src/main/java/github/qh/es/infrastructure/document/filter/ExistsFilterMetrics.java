@@ -0,0 +1,67 @@
+package github.qh.es.infrastructure.document.filter;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-01- 10:40 上午
+ * @email quhao.mi@foxmail.com
+ * 一个索引的 exists 过滤器指标快照
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class ExistsFilterMetrics {
+
+    private final String index;
+
+    /**
+     * 过滤器是否可用，重建期间和失效后为false，exists 全部发到集群
+     */
+    private final boolean ready;
+
+    private final long checks;
+
+    /**
+     * 过滤器判断一定不存在、没有发到集群的次数
+     */
+    private final long definitelyAbsent;
+
+    /**
+     * 过滤器判断可能存在、发到集群的次数
+     */
+    private final long maybe;
+
+    /**
+     * 判断可能存在但集群返回不存在的次数
+     */
+    private final long falsePositives;
+
+    /**
+     * 过滤器不可用直接发到集群的次数
+     */
+    private final long unavailable;
+
+    private final long insertions;
+
+    private final long expectedInsertions;
+
+    /**
+     * 按元素个数估算的误判率
+     */
+    private final double expectedFpp;
+
+    private final long sizeInBytes;
+
+    private final long rebuilds;
+
+    /**
+     * 实际的误判率：不存在的文档里被判断为可能存在的比例
+     */
+    public double getObservedFpp() {
+        long negatives = definitelyAbsent + falsePositives;
+        return negatives == 0 ? 0 : (double) falsePositives / negatives;
+    }
+}
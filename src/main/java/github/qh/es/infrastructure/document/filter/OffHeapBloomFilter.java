@@ -0,0 +1,193 @@
+package github.qh.es.infrastructure.document.filter;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-01- 10:00 上午
+ * @email quhao.mi@foxmail.com
+ * 位数组放在堆外（DirectByteBuffer）的布隆过滤器，上亿个id也不占堆内存，不影响GC。
+ * 1.哈希和 Guava BloomFilter 一样：murmur3_128 的两个64位结果做 k 次组合
+ * 2.写入按64位的字分段加锁，读取不加锁；写完后更新 insertions（volatile），读之前先读它，保证读到已经完成的写入
+ * 3.只能添加不能删除，删除的文档在重建前会一直被当作“可能存在”
+ * 堆外内存随对象被GC回收，容量受 -XX:MaxDirectMemorySize 限制。
+ */
+public class OffHeapBloomFilter {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final ByteBuffer bits;
+
+    private final long numBits;
+
+    private final int numHashes;
+
+    private final long expectedInsertions;
+
+    private final AtomicLong insertions = new AtomicLong();
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * @param expectedInsertions 预计的元素个数，超过后误判率会上升
+     * @param fpp                预计元素个数下期望的误判率
+     */
+    public OffHeapBloomFilter(long expectedInsertions, double fpp) {
+        this(optimalNumBits(Math.max(1, expectedInsertions), fpp), 0, Math.max(1, expectedInsertions));
+    }
+
+    private OffHeapBloomFilter(long numBits, int numHashes, long expectedInsertions) {
+        //按64位对齐，DirectByteBuffer 最大 2G
+        long words = (numBits + 63) / 64;
+        if (words * 8 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("bloom filter too large: " + numBits + " bits");
+        }
+        this.numBits = words * 64;
+        this.numHashes = numHashes > 0 ? numHashes : optimalNumHashes(expectedInsertions, this.numBits);
+        this.expectedInsertions = expectedInsertions;
+        this.bits = ByteBuffer.allocateDirect((int) (words * 8));
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public void put(String id) {
+        byte[] hash = HASH.hashString(id, StandardCharsets.UTF_8).asBytes();
+        long combined = lowerEight(hash);
+        long hash2 = upperEight(hash);
+        for (int i = 0; i < numHashes; i++) {
+            setBit((combined & Long.MAX_VALUE) % numBits);
+            combined += hash2;
+        }
+        insertions.incrementAndGet();
+    }
+
+    /**
+     * false 表示一定不存在，true 表示可能存在
+     */
+    public boolean mightContain(String id) {
+        //读 volatile，之后能看到之前完成的 put
+        insertions.get();
+        byte[] hash = HASH.hashString(id, StandardCharsets.UTF_8).asBytes();
+        long combined = lowerEight(hash);
+        long hash2 = upperEight(hash);
+        for (int i = 0; i < numHashes; i++) {
+            if (!getBit((combined & Long.MAX_VALUE) % numBits)) {
+                return false;
+            }
+            combined += hash2;
+        }
+        return true;
+    }
+
+    /**
+     * 按当前元素个数估算的误判率
+     */
+    public double expectedFpp() {
+        return Math.pow(1 - Math.exp(-(double) numHashes * insertions.get() / numBits), numHashes);
+    }
+
+    public long getInsertions() {
+        return insertions.get();
+    }
+
+    public long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * 占用的堆外字节数
+     */
+    public long sizeInBytes() {
+        return numBits / 8;
+    }
+
+    /**
+     * 写出参数和位数组，写的同时可能还有 put，写出的内容至少包含开始写之前完成的 put
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(numBits);
+        out.writeInt(numHashes);
+        out.writeLong(expectedInsertions);
+        out.writeLong(insertions.get());
+        long words = numBits / 64;
+        for (long word = 0; word < words; word++) {
+            out.writeLong(bits.getLong((int) (word * 8)));
+        }
+    }
+
+    public static OffHeapBloomFilter readFrom(DataInputStream in) throws IOException {
+        long numBits = in.readLong();
+        int numHashes = in.readInt();
+        long expectedInsertions = in.readLong();
+        long insertions = in.readLong();
+        if (numBits <= 0 || numBits % 64 != 0 || numHashes <= 0 || numHashes > 255) {
+            throw new IOException("corrupt bloom filter header: bits=" + numBits + ", hashes=" + numHashes);
+        }
+        OffHeapBloomFilter filter = new OffHeapBloomFilter(numBits, numHashes, expectedInsertions);
+        long words = numBits / 64;
+        for (long word = 0; word < words; word++) {
+            filter.bits.putLong((int) (word * 8), in.readLong());
+        }
+        filter.insertions.set(insertions);
+        return filter;
+    }
+
+    private void setBit(long index) {
+        int offset = (int) (index >>> 6) * 8;
+        long mask = 1L << index;
+        synchronized (locks[(int) (index >>> 6) & (LOCK_STRIPES - 1)]) {
+            long word = bits.getLong(offset);
+            if ((word & mask) == 0) {
+                bits.putLong(offset, word | mask);
+            }
+        }
+    }
+
+    private boolean getBit(long index) {
+        return (bits.getLong((int) (index >>> 6) * 8) & (1L << index)) != 0;
+    }
+
+    private static long lowerEight(byte[] bytes) {
+        return littleEndian(bytes, 0);
+    }
+
+    private static long upperEight(byte[] bytes) {
+        return littleEndian(bytes, 8);
+    }
+
+    private static long littleEndian(byte[] bytes, int from) {
+        long value = 0;
+        for (int i = from + 7; i >= from; i--) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    static long optimalNumBits(long n, double fpp) {
+        double p = fpp <= 0 ? Double.MIN_VALUE : fpp;
+        return (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+    }
+
+    static int optimalNumHashes(long n, long m) {
+        return Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+}
@@ -0,0 +1,138 @@
+package github.qh.es.infrastructure.reactive;
+
+import github.qh.es.infrastructure.document.DocumentWriteEvent;
+import github.qh.es.infrastructure.document.EsExistsApiRepository;
+import github.qh.es.infrastructure.document.EsGetApiRepository;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.reactivestreams.Publisher;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-09- 4:50 下午
+ * @email quhao.mi@foxmail.com
+ * 文档读写的响应式版本，给 WebFlux 的服务用，等待结果时不占用线程。
+ * get、exists 经过和 EsGetApiRepository#getAsync、EsExistsApiRepository#existsAsync 一样的文档缓存、存在过滤、合并和批量发送；
+ * 写入和同步的写入一样，在订阅时（发送前）和结束后（成功、失败或者取消订阅）各发布一次 DocumentWriteEvent，见 DocumentWriteEvent。
+ * 取消订阅时中止单独发出的http请求（见 Cancellation），已经发出的写入可能已经在集群上执行了。
+ * 结果在http客户端的IO线程上发出，见 ReactiveListeners。
+ */
+@Repository
+public class ReactiveDocumentApiRepository {
+
+    @Resource
+    private RestHighLevelClient client;
+
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
+
+    @Resource
+    private EsGetApiRepository esGetApiRepository;
+
+    @Resource
+    private EsExistsApiRepository esExistsApiRepository;
+
+    /**
+     * 文档不存在时也返回 GetResponse（isExists()=false），和 getAsync 一致
+     */
+    public Mono<GetResponse> get(GetRequest getRequest) {
+        return ReactiveListeners.mono(listener -> esGetApiRepository.getAsync(getRequest, listener));
+    }
+
+    public Mono<Boolean> exists(GetRequest getRequest) {
+        return ReactiveListeners.mono(listener -> esExistsApiRepository.existsAsync(getRequest, listener));
+    }
+
+    public Mono<IndexResponse> index(IndexRequest request) {
+        return write(DocumentWriteEvent.of(this, request),
+                listener -> client.indexAsync(request, RequestOptions.DEFAULT, listener));
+    }
+
+    public Mono<UpdateResponse> update(UpdateRequest request) {
+        return write(DocumentWriteEvent.of(this, request),
+                listener -> client.updateAsync(request, RequestOptions.DEFAULT, listener));
+    }
+
+    public Mono<DeleteResponse> delete(DeleteRequest request) {
+        return write(DocumentWriteEvent.of(this, request),
+                listener -> client.deleteAsync(request, RequestOptions.DEFAULT, listener));
+    }
+
+    /**
+     * 部分条目失败时不报错，由调用方检查 BulkResponse#hasFailures；整个请求失败（比如429）时报错
+     */
+    public Mono<BulkResponse> bulk(BulkRequest request) {
+        return write(DocumentWriteEvent.of(this, request),
+                listener -> client.bulkAsync(request, RequestOptions.DEFAULT, listener));
+    }
+
+    /**
+     * 带背压的批量写入：每 batchSize 条攒成一个 bulk，最多 concurrency 个 bulk 同时在途。
+     * 在途的 bulk 满了就不再向上游请求数据，上游按写入的速度生产，内存里最多 concurrency 批加一批正在攒的。
+     * 按批的顺序返回每个 bulk 的响应，上游结束时发送最后不满的一批。
+     * 只按条数攒批，上游是稀疏的事件流时最后一批会一直等；需要按时间发送时先自己 bufferTimeout 再调用 bulkBatches
+     *
+     * @param requests    要写入的请求
+     * @param batchSize   每个 bulk 的条数
+     * @param concurrency 同时在途的 bulk 数
+     */
+    public Flux<BulkResponse> bulk(Publisher<? extends DocWriteRequest<?>> requests, int batchSize, int concurrency) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be >= 1 but was " + batchSize);
+        }
+        return bulkBatches(Flux.from(requests).buffer(batchSize), concurrency);
+    }
+
+    /**
+     * 和 bulk(requests, batchSize, concurrency) 一样，每一批由上游分好
+     */
+    public Flux<BulkResponse> bulkBatches(Publisher<? extends List<? extends DocWriteRequest<?>>> batches,
+                                          int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be >= 1 but was " + concurrency);
+        }
+        return Flux.from(batches)
+                .filter(batch -> !batch.isEmpty())
+                .flatMapSequential(batch -> bulk(toBulkRequest(batch)), concurrency, 1);
+    }
+
+    /**
+     * 订阅时先发布写入事件再发送，结束后不管结果再发布一次。
+     * 用 doOnTerminate 而不是 doFinally，调用方收到结果时事件已经发布了
+     */
+    private <T> Mono<T> write(DocumentWriteEvent event, Consumer<ActionListener<T>> send) {
+        return ReactiveListeners.<T>mono(listener -> {
+            eventPublisher.publishEvent(event);
+            send.accept(listener);
+        }).doOnTerminate(() -> eventPublisher.publishEvent(event))
+                .doOnCancel(() -> eventPublisher.publishEvent(event));
+    }
+
+    private static BulkRequest toBulkRequest(List<? extends DocWriteRequest<?>> batch) {
+        BulkRequest request = new BulkRequest();
+        for (DocWriteRequest<?> write : batch) {
+            request.add(write);
+        }
+        return request;
+    }
+}
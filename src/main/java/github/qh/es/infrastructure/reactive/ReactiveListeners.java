@@ -0,0 +1,44 @@
+package github.qh.es.infrastructure.reactive;
+
+import github.qh.es.infrastructure.support.Cancellation;
+import org.elasticsearch.action.ActionListener;
+import reactor.core.publisher.Mono;
+
+import java.util.function.Consumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-09- 3:10 下午
+ * @email quhao.mi@foxmail.com
+ * 把 ActionListener 风格的异步调用包装成 Mono。
+ * 1.订阅时才发请求，每次订阅发一次
+ * 2.取消订阅（dispose、timeout、take 等）时通过 Cancellation 中止还在途的http请求，之后的结果和异常都丢弃
+ * 3.响应为null时 Mono 为空
+ * 结果在http客户端的IO线程上发出，下游有阻塞操作时要先 publishOn 到别的线程。
+ */
+public final class ReactiveListeners {
+
+    private ReactiveListeners() {
+    }
+
+    /**
+     * @param call 发起异步调用，调用结束时回调传入的 listener
+     */
+    public static <T> Mono<T> mono(Consumer<ActionListener<T>> call) {
+        return Mono.create(sink -> {
+            Cancellation cancellation = new Cancellation();
+            sink.onCancel(cancellation::cancel);
+            ActionListener<T> listener = ActionListener.wrap(sink::success, e -> {
+                //取消后 RestClient 回调的 "request was cancelled" 不再往下传
+                if (!cancellation.isCancelled()) {
+                    sink.error(e);
+                }
+            });
+            try (Cancellation.Scope ignored = cancellation.attach()) {
+                call.accept(listener);
+            } catch (RuntimeException e) {
+                sink.error(e);
+            }
+        });
+    }
+}
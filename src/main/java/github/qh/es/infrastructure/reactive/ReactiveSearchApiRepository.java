@@ -0,0 +1,88 @@
+package github.qh.es.infrastructure.reactive;
+
+import github.qh.es.infrastructure.search.SearchApiRepository;
+import github.qh.es.infrastructure.search.decode.SourceDecoder;
+import github.qh.es.infrastructure.search.decode.SourceDecoders;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.SearchHit;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-09- 4:20 下午
+ * @email quhao.mi@foxmail.com
+ * SearchApiRepository 的响应式版本，给 WebFlux 的服务用，等待结果时不占用线程。
+ * 查询经过和 SearchApiRepository#searchAsync 一样的缓存、合并、批量发送和对冲；
+ * 取消订阅时中止单独发出的http请求，合并、批量发送的请求是共享的，只丢弃结果（见 Cancellation）。
+ * 结果在http客户端的IO线程上发出，见 ReactiveListeners。
+ */
+@Repository
+public class ReactiveSearchApiRepository {
+
+    @Resource
+    private RestHighLevelClient client;
+
+    @Resource
+    private SearchApiRepository searchApiRepository;
+
+    public Mono<SearchResponse> search(SearchRequest searchRequest) {
+        return ReactiveListeners.mono(listener -> searchApiRepository.searchAsync(searchRequest, listener));
+    }
+
+    /**
+     * 执行查询并把每个命中的 _source 解码成 T，没有 _source 的命中被跳过（Reactor 不允许发出null）
+     */
+    public <T> Flux<T> search(SearchRequest searchRequest, SourceDecoder<T> decoder) {
+        return search(searchRequest).<List<T>>handle((response, sink) -> {
+            List<T> values;
+            try {
+                values = SourceDecoders.decode(response.getHits(), decoder);
+            } catch (IOException e) {
+                sink.error(e);
+                return;
+            }
+            sink.next(values.stream().filter(Objects::nonNull).collect(Collectors.toList()));
+        }).flatMapIterable(values -> values);
+    }
+
+    /**
+     * 用 search_after 逐页遍历全部命中结果，下游请求多少才翻多少页，见 SearchAfterFlux。
+     * 和 SearchApiRepository#stream 一样不经过查询缓存和请求合并
+     *
+     * @param searchRequest 查询条件，排序的最后必须是 _id，没有排序时按 _id 升序
+     * @param pageSize      每页条数
+     */
+    public Flux<SearchHit> stream(SearchRequest searchRequest, int pageSize) {
+        return SearchAfterFlux.hits(searchRequest, pageSize,
+                (request, listener) -> client.searchAsync(request, RequestOptions.DEFAULT, listener));
+    }
+
+    /**
+     * 和 stream(searchRequest, pageSize) 一样，每个命中解码成 T，没有 _source 的命中被跳过
+     */
+    public <T> Flux<T> stream(SearchRequest searchRequest, int pageSize, SourceDecoder<T> decoder) {
+        return stream(searchRequest, pageSize).handle((hit, sink) -> {
+            T value;
+            try {
+                value = SourceDecoders.decode(hit, decoder);
+            } catch (IOException e) {
+                sink.error(e);
+                return;
+            }
+            if (value != null) {
+                sink.next(value);
+            }
+        });
+    }
+}
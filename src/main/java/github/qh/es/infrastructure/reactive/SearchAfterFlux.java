@@ -0,0 +1,86 @@
+package github.qh.es.infrastructure.reactive;
+
+import github.qh.es.infrastructure.search.SearchAfterIterator;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-09- 3:40 下午
+ * @email quhao.mi@foxmail.com
+ * SearchAfterIterator 的响应式版本：用 sort + search_after 逐页遍历全部命中结果，翻页由下游的请求量驱动。
+ * 1.下游开始消费一页时才请求下一页，和 SearchAfterIterator 一样最多预取一页，下游不请求时不再翻页
+ * 2.取消订阅时不再翻页，在途的那一页中止http请求（见 ReactiveListeners）
+ * 3.排序、preference 和分片失败的处理和 SearchAfterIterator 一样
+ */
+public final class SearchAfterFlux {
+
+    private SearchAfterFlux() {
+    }
+
+    /**
+     * @param template 查询条件，不会被修改；不能带 scroll 和 from，排序的最后必须是 _id
+     * @param pageSize 每页条数
+     * @param loader   发送查询，通常是 client.searchAsync
+     */
+    public static Flux<SearchHit> hits(SearchRequest template, int pageSize,
+                                       BiConsumer<SearchRequest, ActionListener<SearchResponse>> loader) {
+        return Flux.defer(() -> fetch(SearchAfterIterator.firstPage(template, pageSize), 1, loader)
+                .expand(page -> page.isLast() ? Mono.empty() : fetch(page.next(), page.number + 1, loader)))
+                //每次只向上游要一页，消费到这一页时才去要下一页
+                .concatMapIterable(page -> Arrays.asList(page.hits), 1);
+    }
+
+    private static Mono<Page> fetch(SearchRequest request, long number,
+                                    BiConsumer<SearchRequest, ActionListener<SearchResponse>> loader) {
+        return ReactiveListeners.<SearchResponse>mono(listener -> loader.accept(request, listener))
+                .handle((response, sink) -> {
+                    if (response.getFailedShards() > 0) {
+                        sink.error(new ElasticsearchException("search_after page [{}] had [{}] failed shards",
+                                number, response.getFailedShards()));
+                        return;
+                    }
+                    sink.next(new Page(request, number, response.getHits().getHits()));
+                });
+    }
+
+    private static final class Page {
+
+        private final SearchRequest request;
+
+        private final long number;
+
+        private final SearchHit[] hits;
+
+        private Page(SearchRequest request, long number, SearchHit[] hits) {
+            this.request = request;
+            this.number = number;
+            this.hits = hits;
+        }
+
+        private boolean isLast() {
+            return hits.length < request.source().size();
+        }
+
+        /**
+         * 下一页的请求，复制 source 再设置 search_after，不改这一页的请求
+         */
+        private SearchRequest next() {
+            return new SearchRequest(request.indices(),
+                    request.source().shallowCopy().searchAfter(hits[hits.length - 1].getSortValues()))
+                    .routing(request.routing())
+                    .preference(request.preference())
+                    .indicesOptions(request.indicesOptions())
+                    .searchType(request.searchType())
+                    .requestCache(request.requestCache());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package github.qh.es.infrastructure.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-04- 10:00 上午
+ * @email quhao.mi@foxmail.com
+ * 对冲查询指标快照
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class HedgeMetrics {
+
+    private final long requests;
+
+    /**
+     * 发出了对冲请求的查询数
+     */
+    private final long hedged;
+
+    /**
+     * 对冲请求先返回的次数
+     */
+    private final long hedgeWins;
+
+    /**
+     * 该对冲但预算用完的次数
+     */
+    private final long budgetExhausted;
+
+    /**
+     * 当前的对冲等待时间
+     */
+    private final long delayMicros;
+
+    public double getHedgeRate() {
+        return requests == 0 ? 0 : (double) hedged / requests;
+    }
+
+    public double getWinRate() {
+        return hedged == 0 ? 0 : (double) hedgeWins / hedged;
+    }
+}
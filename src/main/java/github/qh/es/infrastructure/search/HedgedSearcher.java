@@ -0,0 +1,444 @@
+package github.qh.es.infrastructure.search;
+
+import github.qh.es.infrastructure.support.Cancellation;
+import github.qh.es.infrastructure.support.Deadline;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-04- 10:20 上午
+ * @email quhao.mi@foxmail.com
+ * 对冲查询：查询超过最近耗时的某个分位数（默认p95）还没返回时，换一个 preference 再发一次，取先成功返回的结果。
+ * 1.等待时间每秒按最近 samples 个查询的耗时重新计算，不低于 minDelay
+ * 2.预算是令牌桶：每个查询存入 budget 个令牌（默认0.05），每次对冲花一个，所以对冲请求不超过查询数的5%
+ * 3.对冲请求用随机的自定义 preference，es按它选分片副本，和原请求大概率落在不同的副本上
+ * 4.有分片失败的结果先留着，另一个请求也失败时才用它；两个都失败时返回原请求的异常
+ * 5.两个请求各自绑定一个 Cancellation（调用方有取消时是它的子取消），先返回的一方胜出后中止另一方的http请求，
+ * 服务端已经开始执行的查询会继续执行完
+ * scroll 查询和自己指定了 preference 的查询（比如要求翻页时落在同一组副本上）不对冲；
+ * _local、_only_local、_prefer_nodes 只是为了少一跳网络，原请求照常带着，对冲请求换成随机的 preference。
+ * 对冲请求在定时线程上发出，带上原请求线程的截止时间（Deadline）和取消（Cancellation），截止时间已过或者已经取消时不再对冲。
+ */
+@Slf4j
+public class HedgedSearcher implements Closeable {
+
+    private final double percentile;
+
+    private final long minDelayNanos;
+
+    private final long initialDelayNanos;
+
+    private final double budget;
+
+    private final int maxBurst;
+
+    private final AtomicLongArray samples;
+
+    private final AtomicInteger sampleIndex = new AtomicInteger();
+
+    private volatile long delayNanos;
+
+    /**
+     * 令牌数乘以1000，用整数做原子操作
+     */
+    private final AtomicLong budgetMillis = new AtomicLong();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler;
+
+    public HedgedSearcher(double percentile, long minDelay, long initialDelay, int samples, double budget,
+                          int maxBurst, TimeUnit unit) {
+        this.percentile = percentile;
+        this.minDelayNanos = unit.toNanos(minDelay);
+        this.initialDelayNanos = unit.toNanos(initialDelay);
+        this.budget = budget;
+        this.maxBurst = maxBurst;
+        this.samples = new AtomicLongArray(samples);
+        this.delayNanos = Math.max(minDelayNanos, initialDelayNanos);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "es-search-hedge");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::updateDelay, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 同步查询，等待先成功的结果
+     */
+    public SearchResponse search(SearchRequest request,
+                                 BiConsumer<SearchRequest, ActionListener<SearchResponse>> sender) throws IOException {
+        CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+        searchAsync(request, ActionListener.wrap(future::complete, future::completeExceptionally), sender);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for hedged search");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ElasticsearchException(cause);
+        }
+    }
+
+    /**
+     * 异步查询，sender 负责真正发送（客户端或者 _msearch 批量发送）
+     */
+    public void searchAsync(SearchRequest request, ActionListener<SearchResponse> listener,
+                            BiConsumer<SearchRequest, ActionListener<SearchResponse>> sender) {
+        if (request.scroll() != null || !isHedgeable(request.preference())) {
+            sender.accept(request, listener);
+            return;
+        }
+        requests.incrementAndGet();
+        deposit();
+        Deadline deadline = Deadline.current();
+        Cancellation cancellation = Cancellation.current();
+        Attempt attempt = new Attempt(listener, child(cancellation));
+        try (Cancellation.Scope ignored = attempt.primaryCancellation.attach()) {
+            sender.accept(request, attempt.listener(false, System.nanoTime()));
+        }
+        attempt.schedule(scheduler.schedule(() -> hedge(request, attempt, sender, deadline, cancellation), delayNanos,
+                TimeUnit.NANOSECONDS));
+    }
+
+    public HedgeMetrics metrics() {
+        return new HedgeMetrics(requests.get(), hedged.get(), hedgeWins.get(), budgetExhausted.get(),
+                TimeUnit.NANOSECONDS.toMicros(delayNanos));
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void hedge(SearchRequest request, Attempt attempt,
+                       BiConsumer<SearchRequest, ActionListener<SearchResponse>> sender, Deadline deadline,
+                       Cancellation cancellation) {
+        if (deadline != null && deadline.isExpired() || cancellation != null && cancellation.isCancelled()) {
+            return;
+        }
+        //先扣预算再登记对冲请求，预算不够时原请求的结果不用等对冲
+        if (!withdraw()) {
+            budgetExhausted.incrementAndGet();
+            return;
+        }
+        Cancellation hedgeCancellation = child(cancellation);
+        if (!attempt.startHedge(hedgeCancellation)) {
+            hedgeCancellation.release();
+            refund();
+            return;
+        }
+        if (hedgeCancellation.isCancelled()) {
+            //登记前调用方刚好取消了
+            attempt.cancelHedge();
+            refund();
+            return;
+        }
+        hedged.incrementAndGet();
+        try (Deadline.Scope ignored = deadline == null ? null : deadline.attach();
+             Cancellation.Scope ignored2 = hedgeCancellation.attach()) {
+            sender.accept(copyWithPreference(request), attempt.listener(true, System.nanoTime()));
+        } catch (RuntimeException e) {
+            attempt.listener(true, System.nanoTime()).onFailure(e);
+        }
+    }
+
+    /**
+     * 没有 preference，或者 preference 只是偏向本地节点的，对冲时可以换掉
+     */
+    static boolean isHedgeable(String preference) {
+        return preference == null || "_local".equals(preference) || "_only_local".equals(preference)
+                || preference.startsWith("_prefer_nodes:");
+    }
+
+    private static Cancellation child(Cancellation parent) {
+        return parent == null ? new Cancellation() : parent.child();
+    }
+
+    private void deposit() {
+        long cap = maxBurst * 1000L;
+        long amount = (long) (budget * 1000);
+        budgetMillis.getAndUpdate(current -> Math.min(cap, current + amount));
+    }
+
+    private boolean withdraw() {
+        while (true) {
+            long current = budgetMillis.get();
+            if (current < 1000) {
+                return false;
+            }
+            if (budgetMillis.compareAndSet(current, current - 1000)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 扣了预算但没有发出对冲请求时还回去
+     */
+    private void refund() {
+        long cap = maxBurst * 1000L;
+        budgetMillis.getAndUpdate(current -> Math.min(cap, current + 1000));
+    }
+
+    private void record(long nanos) {
+        int index = (sampleIndex.getAndIncrement() & Integer.MAX_VALUE) % samples.length();
+        samples.set(index, nanos);
+    }
+
+    /**
+     * 按最近的耗时重新计算等待时间，样本不到一半时用 initialDelay
+     */
+    private void updateDelay() {
+        long[] copy = new long[samples.length()];
+        int count = 0;
+        for (int i = 0; i < copy.length; i++) {
+            long sample = samples.get(i);
+            if (sample > 0) {
+                copy[count++] = sample;
+            }
+        }
+        if (count < copy.length / 2) {
+            delayNanos = Math.max(minDelayNanos, initialDelayNanos);
+            return;
+        }
+        Arrays.sort(copy, 0, count);
+        int rank = (int) Math.min(count - 1, Math.ceil(percentile / 100 * count) - 1);
+        delayNanos = Math.max(minDelayNanos, copy[Math.max(0, rank)]);
+    }
+
+    /**
+     * 复制请求，只换 preference。source 共用，不要在发送后修改
+     */
+    static SearchRequest copyWithPreference(SearchRequest request) {
+        return copy(request).preference("hedge-" + Integer.toHexString(ThreadLocalRandom.current().nextInt()));
+    }
+
+    /**
+     * 复制请求的所有参数，source 共用
+     */
+    static SearchRequest copy(SearchRequest request) {
+        SearchRequest copy = new SearchRequest(request.indices())
+                .types(request.types())
+                .routing(request.routing())
+                .preference(request.preference())
+                .scroll(request.scroll())
+                .searchType(request.searchType())
+                .requestCache(request.requestCache())
+                .indicesOptions(request.indicesOptions());
+        if (request.source() != null) {
+            copy.source(request.source());
+        }
+        if (request.allowPartialSearchResults() != null) {
+            copy.allowPartialSearchResults(request.allowPartialSearchResults());
+        }
+        copy.setBatchedReduceSize(request.getBatchedReduceSize());
+        copy.setMaxConcurrentShardRequests(request.getMaxConcurrentShardRequests());
+        copy.setPreFilterShardSize(request.getPreFilterShardSize());
+        copy.setCcsMinimizeRoundtrips(request.isCcsMinimizeRoundtrips());
+        return copy;
+    }
+
+    /**
+     * 一次查询的原请求和对冲请求
+     */
+    private final class Attempt {
+
+        private final ActionListener<SearchResponse> listener;
+
+        private final Cancellation primaryCancellation;
+
+        /**
+         * 对冲请求发出前为空
+         */
+        private Cancellation hedgeCancellation;
+
+        private boolean done;
+
+        /**
+         * 在途的请求数
+         */
+        private int pending = 1;
+
+        /**
+         * 有分片失败的结果，另一个请求也失败时使用
+         */
+        private SearchResponse partial;
+
+        private Exception failure;
+
+        private ScheduledFuture<?> timer;
+
+        private Attempt(ActionListener<SearchResponse> listener, Cancellation primaryCancellation) {
+            this.listener = listener;
+            this.primaryCancellation = primaryCancellation;
+        }
+
+        private synchronized void schedule(ScheduledFuture<?> timer) {
+            if (done) {
+                timer.cancel(false);
+            } else {
+                this.timer = timer;
+            }
+        }
+
+        private synchronized boolean startHedge(Cancellation cancellation) {
+            if (done) {
+                return false;
+            }
+            pending++;
+            hedgeCancellation = cancellation;
+            return true;
+        }
+
+        /**
+         * 登记后没有发出的对冲请求。原请求已经失败或者只有部分结果时在这里结束
+         */
+        private void cancelHedge() {
+            Cancellation cancellation;
+            SearchResponse fallback;
+            Exception error;
+            synchronized (this) {
+                pending--;
+                cancellation = hedgeCancellation;
+                hedgeCancellation = null;
+                if (done || pending > 0) {
+                    cancellation.release();
+                    return;
+                }
+                finish();
+                fallback = partial;
+                error = failure;
+            }
+            stop(null, primaryCancellation, cancellation);
+            complete(fallback, error);
+        }
+
+        private ActionListener<SearchResponse> listener(boolean hedge, long startNanos) {
+            return ActionListener.wrap(response -> onResponse(hedge, startNanos, response),
+                    e -> onFailure(hedge, e));
+        }
+
+        private void onResponse(boolean hedge, long startNanos, SearchResponse response) {
+            record(System.nanoTime() - startNanos);
+            Cancellation loser;
+            Cancellation winner;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                pending--;
+                if (response.getFailedShards() > 0 && pending > 0) {
+                    partial = response;
+                    return;
+                }
+                finish();
+                loser = hedge ? primaryCancellation : hedgeCancellation;
+                winner = hedge ? hedgeCancellation : primaryCancellation;
+            }
+            stop(loser, winner);
+            if (hedge) {
+                hedgeWins.incrementAndGet();
+            }
+            listener.onResponse(response);
+        }
+
+        private void onFailure(boolean hedge, Exception e) {
+            SearchResponse fallback;
+            Exception error;
+            Cancellation hedgeCancellation;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                pending--;
+                if (failure == null || !hedge) {
+                    //两个都失败时返回原请求的异常
+                    if (failure != null) {
+                        e.addSuppressed(failure);
+                    }
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+                if (pending > 0) {
+                    return;
+                }
+                finish();
+                fallback = partial;
+                error = failure;
+                hedgeCancellation = this.hedgeCancellation;
+            }
+            stop(null, primaryCancellation, hedgeCancellation);
+            complete(fallback, error);
+        }
+
+        /**
+         * 没有完整的结果：有部分结果时用它，否则返回异常
+         */
+        private void complete(SearchResponse fallback, Exception error) {
+            if (fallback != null) {
+                listener.onResponse(fallback);
+            } else {
+                listener.onFailure(error);
+            }
+        }
+
+        /**
+         * 结束后调用：中止输掉的请求，其余的从调用方的取消上解除登记
+         *
+         * @param loser 为空时没有需要中止的请求
+         */
+        private void stop(Cancellation loser, Cancellation... others) {
+            if (loser != null) {
+                loser.cancel();
+            }
+            for (Cancellation other : others) {
+                if (other != null) {
+                    other.release();
+                }
+            }
+        }
+
+        /**
+         * 持有锁时调用
+         */
+        private void finish() {
+            done = true;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package github.qh.es.infrastructure.search;
+
+import github.qh.es.infrastructure.support.MicroBatcher;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-28- 10:30 上午
+ * @email quhao.mi@foxmail.com
+ * 把一批查询合成一个 _msearch 发送，按顺序把每一项的结果或失败交给对应的调用方。
+ * 一批只有一个请求时直接走 _search。
+ */
+public class MultiSearchDispatcher implements Consumer<List<MicroBatcher.Item<SearchRequest, SearchResponse>>> {
+
+    private final RestHighLevelClient client;
+
+    /**
+     * 一个 _msearch 在服务端同时执行的查询数，0 表示使用es的默认值
+     */
+    private final int maxConcurrentSearchRequests;
+
+    public MultiSearchDispatcher(RestHighLevelClient client, int maxConcurrentSearchRequests) {
+        this.client = client;
+        this.maxConcurrentSearchRequests = maxConcurrentSearchRequests;
+    }
+
+    @Override
+    public void accept(List<MicroBatcher.Item<SearchRequest, SearchResponse>> items) {
+        if (items.size() == 1) {
+            MicroBatcher.Item<SearchRequest, SearchResponse> item = items.get(0);
+            client.searchAsync(item.getRequest(), RequestOptions.DEFAULT,
+                    ActionListener.wrap(item::complete, item::fail));
+            return;
+        }
+        MultiSearchRequest request = new MultiSearchRequest();
+        if (maxConcurrentSearchRequests > 0) {
+            request.maxConcurrentSearchRequests(maxConcurrentSearchRequests);
+        }
+        for (MicroBatcher.Item<SearchRequest, SearchResponse> item : items) {
+            request.add(item.getRequest());
+        }
+        client.msearchAsync(request, RequestOptions.DEFAULT, new ActionListener<MultiSearchResponse>() {
+            @Override
+            public void onResponse(MultiSearchResponse response) {
+                MultiSearchResponse.Item[] responses = response.getResponses();
+                for (int i = 0; i < items.size(); i++) {
+                    MultiSearchResponse.Item result = responses[i];
+                    if (result.isFailure()) {
+                        items.get(i).fail(result.getFailure());
+                    } else {
+                        items.get(i).complete(result.getResponse());
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                for (MicroBatcher.Item<SearchRequest, SearchResponse> item : items) {
+                    item.fail(e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,198 @@
+package github.qh.es.infrastructure.search;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-26- 9:50 上午
+ * @email quhao.mi@foxmail.com
+ * 用 sort + search_after 逐页遍历全部命中结果，代替越翻越慢的 from/size 深分页。
+ * 1.排序的最后必须是 _id 作为 tiebreaker，保证翻页不重复不遗漏；没有指定排序时按 _id 升序
+ * 2.拿到一页后马上异步请求下一页，调用方处理当前页的同时下一页在路上，内存里最多两页
+ * 3.es 7.2 没有 point in time，没有指定 preference 时设置一个随机值让每一页都打到同一组分片副本上，
+ * 遍历期间的写入仍然可能被看到
+ * 4.有分片失败时抛出异常，避免导出的数据悄悄少了一部分
+ * 用完要 close，提前结束时丢弃预取的页。
+ */
+public class SearchAfterIterator implements Iterator<SearchHit>, Closeable {
+
+    private static final String TIEBREAKER = "_id";
+
+    private final SearchRequest request;
+
+    private final BiConsumer<SearchRequest, ActionListener<SearchResponse>> loader;
+
+    private CompletableFuture<SearchResponse> next;
+
+    private SearchHit[] page = new SearchHit[0];
+
+    private int position;
+
+    private boolean exhausted;
+
+    private volatile boolean closed;
+
+    private long pages;
+
+    private long hits;
+
+    /**
+     * @param template 查询条件，不会被修改；不能带 scroll 和 from
+     * @param pageSize 每页条数
+     * @param loader   发送查询，通常是 client.searchAsync
+     */
+    public SearchAfterIterator(SearchRequest template, int pageSize,
+                               BiConsumer<SearchRequest, ActionListener<SearchResponse>> loader) {
+        this.request = firstPage(template, pageSize);
+        this.loader = loader;
+        this.next = fetch();
+    }
+
+    /**
+     * 按模板生成第一页的请求，规则见类注释，响应式的 SearchAfterFlux 也用它
+     *
+     * @param template 查询条件，不会被修改；不能带 scroll 和 from
+     * @param pageSize 每页条数
+     */
+    public static SearchRequest firstPage(SearchRequest template, int pageSize) {
+        if (template.scroll() != null) {
+            throw new IllegalArgumentException("search_after can not be used with scroll");
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("page size must be >= 1 but was " + pageSize);
+        }
+        SearchSourceBuilder source = template.source() == null ? new SearchSourceBuilder() : template.source().shallowCopy();
+        if (source.from() > 0) {
+            throw new IllegalArgumentException("search_after can not be used with from, but from was " + source.from());
+        }
+        //模板里带了 search_after 时从它之后开始，可以用来断点续传
+        source.from(0).size(pageSize);
+        if (source.sorts() == null) {
+            //shallowCopy 和模板共用排序列表，只有模板没有排序时才能直接添加
+            source.sort(new FieldSortBuilder(TIEBREAKER).order(SortOrder.ASC));
+        } else if (source.sorts().isEmpty() || !endsWithTiebreaker(source)) {
+            throw new IllegalArgumentException("search_after needs [" + TIEBREAKER + "] as the last sort as a tiebreaker");
+        }
+        if (source.trackTotalHitsUpTo() == null) {
+            //导出不需要总数，省掉统计总数的开销
+            source.trackTotalHits(false);
+        }
+        return new SearchRequest(template.indices(), source)
+                .routing(template.routing())
+                .preference(template.preference() == null ? UUID.randomUUID().toString() : template.preference())
+                .indicesOptions(template.indicesOptions())
+                .searchType(template.searchType())
+                .requestCache(template.requestCache());
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (position < page.length) {
+            return true;
+        }
+        if (exhausted || closed) {
+            return false;
+        }
+        SearchResponse response = await(next);
+        next = null;
+        pages++;
+        page = response.getHits().getHits();
+        position = 0;
+        if (page.length < request.source().size()) {
+            exhausted = true;
+        } else {
+            request.source().searchAfter(page[page.length - 1].getSortValues());
+            next = fetch();
+        }
+        return page.length > 0;
+    }
+
+    @Override
+    public SearchHit next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        hits++;
+        return page[position++];
+    }
+
+    /**
+     * 已经取回的页数
+     */
+    public long getPages() {
+        return pages;
+    }
+
+    /**
+     * 已经返回给调用方的条数
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        page = new SearchHit[0];
+        //7.2的客户端不能取消请求，预取的页返回后直接丢弃
+        next = null;
+    }
+
+    private CompletableFuture<SearchResponse> fetch() {
+        CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+        try {
+            loader.accept(request, ActionListener.wrap(future::complete, future::completeExceptionally));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private SearchResponse await(CompletableFuture<SearchResponse> future) {
+        SearchResponse response;
+        try {
+            response = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("interrupted while waiting for next page"));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ElasticsearchException(cause);
+        }
+        if (response.getFailedShards() > 0) {
+            throw new ElasticsearchException("search_after page [{}] had [{}] failed shards", pages + 1,
+                    response.getFailedShards());
+        }
+        return response;
+    }
+
+    private static boolean endsWithTiebreaker(SearchSourceBuilder source) {
+        SortBuilder<?> last = source.sorts().get(source.sorts().size() - 1);
+        return last instanceof FieldSortBuilder && TIEBREAKER.equals(((FieldSortBuilder) last).getFieldName());
+    }
+}
@@ -1,5 +1,18 @@
 package github.qh.es.infrastructure.search;
 
+import github.qh.es.infrastructure.search.cache.SearchResultCache;
+import github.qh.es.infrastructure.search.decode.SourceDecoder;
+import github.qh.es.infrastructure.search.decode.SourceDecoders;
+import github.qh.es.infrastructure.search.export.ExportResult;
+import github.qh.es.infrastructure.search.export.HitSink;
+import github.qh.es.infrastructure.search.export.ScrollExport;
+import github.qh.es.infrastructure.search.export.SlicedScrollExporter;
+import github.qh.es.infrastructure.search.stream.SearchHitHandler;
+import github.qh.es.infrastructure.search.stream.StreamedSearchResult;
+import github.qh.es.infrastructure.search.stream.StreamingSearch;
+import github.qh.es.infrastructure.support.Deadline;
+import github.qh.es.infrastructure.support.MicroBatcher;
+import github.qh.es.infrastructure.support.RequestCoalescer;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.lucene.search.TotalHits;
 import org.elasticsearch.action.ActionListener;
@@ -9,6 +22,7 @@ import org.elasticsearch.action.search.ShardSearchFailure;
 import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.CheckedConsumer;
 import org.elasticsearch.common.text.Text;
 import org.elasticsearch.common.unit.Fuzziness;
 import org.elasticsearch.common.unit.TimeValue;
@@ -33,13 +47,20 @@ import org.elasticsearch.search.sort.SortOrder;
 import org.elasticsearch.search.suggest.SuggestBuilder;
 import org.elasticsearch.search.suggest.SuggestBuilders;
 import org.elasticsearch.search.suggest.term.TermSuggestionBuilder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.Resource;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author qu.hao
@@ -55,6 +76,201 @@ public class SearchApiRepository {
     @Resource
     private RestHighLevelClient client;
 
+    @Resource
+    private SlicedScrollExporter slicedScrollExporter;
+
+    @Resource
+    private StreamingSearch streamingSearch;
+
+    /**
+     * es.search.cache.enabled=true 时才有
+     */
+    @Autowired
+    private ObjectProvider<SearchResultCache> searchResultCache;
+
+    /**
+     * es.search.coalesce.enabled=true 时才有
+     */
+    @Autowired
+    private ObjectProvider<RequestCoalescer<SearchRequest, SearchResponse>> searchCoalescer;
+
+    /**
+     * es.search.batch.enabled=true 时才有
+     */
+    @Autowired
+    private ObjectProvider<MicroBatcher<SearchRequest, SearchResponse>> searchBatcher;
+
+    /**
+     * es.search.hedge.enabled=true 时才有
+     */
+    @Autowired
+    private ObjectProvider<HedgedSearcher> hedgedSearcher;
+
+    /**
+     * 执行查询，开启了查询结果缓存时先查缓存，未命中时合并同一时刻的相同查询，
+     * 开启了批量查询时和同一时间窗口内的其他查询一起通过 _msearch 发送
+     */
+    public SearchResponse search(SearchRequest searchRequest) throws IOException {
+        SearchResultCache cache = searchResultCache.getIfAvailable();
+        if (cache == null) {
+            return load(searchRequest);
+        }
+        return cache.search(searchRequest, this::load);
+    }
+
+    public void searchAsync(SearchRequest searchRequest, ActionListener<SearchResponse> listener) {
+        SearchResultCache cache = searchResultCache.getIfAvailable();
+        if (cache == null) {
+            loadAsync(searchRequest, listener);
+            return;
+        }
+        cache.searchAsync(searchRequest, listener, this::loadAsync);
+    }
+
+    /**
+     * 执行查询并把每个命中的 _source 解码成 T，不经过 getSourceAsMap，没有 _source 的命中对应null
+     *
+     * @param decoder SourceDecoders#bean 或 SourceDecoders#fields
+     */
+    public <T> List<T> search(SearchRequest searchRequest, SourceDecoder<T> decoder) throws IOException {
+        return SourceDecoders.decode(search(searchRequest).getHits(), decoder);
+    }
+
+    /**
+     * 流式查询，响应边收边解析，每个命中马上交给 handler，内存占用和响应大小无关。
+     * 适合单次返回很多命中或很大聚合的查询；不经过查询缓存、请求合并和批量发送
+     */
+    public StreamedSearchResult searchStreaming(SearchRequest searchRequest, SearchHitHandler handler)
+            throws IOException {
+        return streamingSearch.search(searchRequest, handler);
+    }
+
+    /**
+     * 流式查询，每个命中的 _source 直接解码成 T，不创建 SearchHit
+     */
+    public <T> StreamedSearchResult searchStreaming(SearchRequest searchRequest, SourceDecoder<T> decoder,
+                                                    CheckedConsumer<T, IOException> consumer) throws IOException {
+        return streamingSearch.search(searchRequest, decoder, consumer);
+    }
+
+    /**
+     * 用 search_after 逐页遍历全部命中结果，适合导出大量数据，内存占用和总条数无关。
+     * 不经过查询缓存和请求合并；用完要关闭 Stream（try-with-resources）
+     *
+     * @param searchRequest 查询条件，排序的最后必须是 _id，没有排序时按 _id 升序
+     * @param pageSize      每页条数
+     */
+    public Stream<SearchHit> stream(SearchRequest searchRequest, int pageSize) {
+        SearchAfterIterator iterator = new SearchAfterIterator(searchRequest, pageSize,
+                (request, listener) -> client.searchAsync(request, RequestOptions.DEFAULT, listener));
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::close);
+    }
+
+    /**
+     * 和 stream(searchRequest, pageSize) 一样，每个命中解码成 T
+     */
+    public <T> Stream<T> stream(SearchRequest searchRequest, int pageSize, SourceDecoder<T> decoder) {
+        return stream(searchRequest, pageSize).map(hit -> {
+            try {
+                return SourceDecoders.decode(hit, decoder);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * 用 sliced scroll 并发导出全部命中结果，slice 数等于分片数，不保证顺序
+     */
+    public ExportResult export(SearchRequest searchRequest, HitSink sink) throws IOException, InterruptedException {
+        return slicedScrollExporter.export(searchRequest, sink);
+    }
+
+    /**
+     * 开始导出并马上返回，可以通过返回值查看每个 slice 的进度、调整并发数
+     *
+     * @param slices 拆成几个 slice，小于1时等于分片数
+     */
+    public ScrollExport startExport(SearchRequest searchRequest, int slices, HitSink sink) throws IOException {
+        return slicedScrollExporter.start(searchRequest, slices, sink);
+    }
+
+    /**
+     * 带截止时间（Deadline）的查询不合并，也不走 _msearch 批量发送，见 Deadline
+     */
+    private SearchResponse load(SearchRequest searchRequest) throws IOException {
+        RequestCoalescer<SearchRequest, SearchResponse> coalescer = searchCoalescer.getIfAvailable();
+        if (coalescer == null || Deadline.current() != null) {
+            return send(searchRequest);
+        }
+        return coalescer.execute(searchRequest, this::send);
+    }
+
+    private void loadAsync(SearchRequest searchRequest, ActionListener<SearchResponse> listener) {
+        RequestCoalescer<SearchRequest, SearchResponse> coalescer = searchCoalescer.getIfAvailable();
+        if (coalescer == null || Deadline.current() != null) {
+            sendAsync(searchRequest, listener);
+            return;
+        }
+        coalescer.executeAsync(searchRequest, listener, this::sendAsync);
+    }
+
+    /**
+     * 开启了对冲查询时，慢的查询会换一个分片副本再发一次
+     */
+    private SearchResponse send(SearchRequest searchRequest) throws IOException {
+        SearchRequest request = withDeadline(searchRequest);
+        HedgedSearcher hedger = hedgedSearcher.getIfAvailable();
+        if (hedger == null) {
+            return dispatch(request);
+        }
+        return hedger.search(request, this::dispatchAsync);
+    }
+
+    private void sendAsync(SearchRequest searchRequest, ActionListener<SearchResponse> listener) {
+        SearchRequest request = withDeadline(searchRequest);
+        HedgedSearcher hedger = hedgedSearcher.getIfAvailable();
+        if (hedger == null) {
+            dispatchAsync(request, listener);
+            return;
+        }
+        hedger.searchAsync(request, listener, this::dispatchAsync);
+    }
+
+    /**
+     * 服务端 timeout 取剩余时间的90%，超时的分片返回已经查到的部分结果（timed_out=true），不用等到请求被中止。
+     * 在缓存和合并的key算完之后再设置，不影响命中；发送的是复制的请求和 source，
+     * 调用方的对象不变，翻页、重试时重复使用也不会带上上一次的 timeout
+     */
+    private static SearchRequest withDeadline(SearchRequest searchRequest) {
+        if (Deadline.current() == null || searchRequest.source() == null) {
+            return searchRequest;
+        }
+        SearchSourceBuilder source = searchRequest.source();
+        return HedgedSearcher.copy(searchRequest)
+                .source(source.shallowCopy().timeout(Deadline.serverTimeout(source.timeout())));
+    }
+
+    private SearchResponse dispatch(SearchRequest searchRequest) throws IOException {
+        MicroBatcher<SearchRequest, SearchResponse> batcher = searchBatcher.getIfAvailable();
+        //_msearch 不支持 scroll
+        if (batcher == null || searchRequest.scroll() != null || Deadline.current() != null) {
+            return client.search(searchRequest, RequestOptions.DEFAULT);
+        }
+        return batcher.execute(searchRequest);
+    }
+
+    private void dispatchAsync(SearchRequest searchRequest, ActionListener<SearchResponse> listener) {
+        MicroBatcher<SearchRequest, SearchResponse> batcher = searchBatcher.getIfAvailable();
+        if (batcher == null || searchRequest.scroll() != null || Deadline.current() != null) {
+            client.searchAsync(searchRequest, RequestOptions.DEFAULT, listener);
+            return;
+        }
+        batcher.submit(searchRequest, listener);
+    }
+
     public void query(){
         //在最基本的形式中，我们可以向请求添加一个查询:
         //创建一个查询请求
@@ -98,8 +314,10 @@ public class SearchApiRepository {
         sourceBuilder.query(matchQueryBuilder);
         sourceBuilder.query(matchQueryBuilder1);
 
+        //from 只适合浅分页，翻得越深集群上越慢越占内存，深分页和导出用 stream(searchRequest, pageSize)
         sourceBuilder.from(0);
         sourceBuilder.size(5);
+        //调用方设置了截止时间（Deadline）时，实际发出的 timeout 取这里和剩余时间里较小的
         sourceBuilder.timeout(new TimeValue(60, TimeUnit.SECONDS));
 
         searchRequest.source(sourceBuilder);
@@ -155,9 +373,9 @@ public class SearchApiRepository {
             }
         };
         try {
-            client.searchAsync(searchRequest, RequestOptions.DEFAULT, listener);
+            searchAsync(searchRequest, listener);
 
-            SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
+            SearchResponse searchResponse = search(searchRequest);
             RestStatus status = searchResponse.status();
             TimeValue took = searchResponse.getTook();
             Boolean terminatedEarly = searchResponse.isTerminatedEarly();
@@ -177,17 +395,19 @@ public class SearchApiRepository {
             float maxScore = hits.getMaxScore();
 
             SearchHit[] searchHits = hits.getHits();
+            //getSourceAsMap 会把整个文档建成 Map，只用到几个字段时用 SourceDecoders 直接解析需要的字段，解码器可以复用
+            SourceDecoder<Map<String, Object>> projection = SourceDecoders.fields("title", "user", "innerObject");
             for (SearchHit hit : searchHits) {
                 // do something with the SearchHit
                 String index = hit.getIndex();
                 String id = hit.getId();
                 float score = hit.getScore();
                 String sourceAsString = hit.getSourceAsString();
-                Map<String, Object> sourceAsMap = hit.getSourceAsMap();
-                String documentTitle = (String) sourceAsMap.get("title");
-                List<Object> users = (List<Object>) sourceAsMap.get("user");
+                Map<String, Object> fields = SourceDecoders.decode(hit, projection);
+                String documentTitle = (String) fields.get("title");
+                List<Object> users = (List<Object>) fields.get("user");
                 Map<String, Object> innerObject =
-                        (Map<String, Object>) sourceAsMap.get("innerObject");
+                        (Map<String, Object>) fields.get("innerObject");
             }
 
             SearchHits hits1 = searchResponse.getHits();
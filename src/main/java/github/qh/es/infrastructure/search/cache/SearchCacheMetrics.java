@@ -0,0 +1,48 @@
+package github.qh.es.infrastructure.search.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-24- 11:20 上午
+ * @email quhao.mi@foxmail.com
+ * 查询结果缓存的指标快照
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class SearchCacheMetrics {
+
+    private final long hits;
+
+    private final long misses;
+
+    /**
+     * 命中了但是索引有写入或者过期，当作未命中处理的次数
+     */
+    private final long staleHits;
+
+    /**
+     * 查询结果没有放进缓存的次数（索引刚写入还没刷新、查询期间有写入、分片失败等）
+     */
+    private final long skippedPuts;
+
+    /**
+     * 因为容量不足被淘汰的条目数
+     */
+    private final long evictions;
+
+    private final long entries;
+
+    /**
+     * 缓存的估算字节数
+     */
+    private final long weightBytes;
+
+    public double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
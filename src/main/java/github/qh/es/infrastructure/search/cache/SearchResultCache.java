@@ -0,0 +1,342 @@
+package github.qh.es.infrastructure.search.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.hash.HashCode;
+import github.qh.es.application.config.EsSearchProperties;
+import github.qh.es.infrastructure.document.DocumentWriteEvent;
+import github.qh.es.infrastructure.support.RequestKeys;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.springframework.context.ApplicationListener;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-24- 10:30 上午
+ * @email quhao.mi@foxmail.com
+ * 客户端的查询结果缓存，看板这类相同查询每秒重复几百次的场景不用每次都发到集群。
+ * 1.key 是 SearchSourceBuilder 的json + 索引 + preference/routing 等请求参数的128位哈希（RequestKeys）
+ * 2.按估算的字节数限制容量（Guava maximumWeight），每个索引可以单独设置TTL，多个索引取最小值
+ * 3.通过本应用写入文档时（DocumentWriteEvent）相关索引的版本号加一，缓存条目记录了查询前各索引的版本号，
+ * 取出时版本号变了就当作未命中；通配符查询依赖全局版本号，任何写入都会让它失效
+ * 4.写入后要等 refresh 才能查到，刷新间隔内的查询结果可能还是旧的，这段时间内不放进缓存；refresh=true/wait_for 的写入不受影响
+ * 5.带 scroll、profile、显式关闭 request_cache 和包含 now 的查询不缓存
+ * 缓存的是同一个 SearchResponse 对象，调用方不要修改它。
+ */
+@Slf4j
+public class SearchResultCache implements ApplicationListener<DocumentWriteEvent> {
+
+    private final EsSearchProperties.Cache properties;
+
+    private final Cache<HashCode, CachedSearch> cache;
+
+    /**
+     * 每个索引的版本号和未刷新截止时间
+     */
+    private final Map<String, IndexState> indexStates = new ConcurrentHashMap<>();
+
+    /**
+     * 任何写入都会加一，通配符和不指定索引的查询依赖它
+     */
+    private final IndexState globalState = new IndexState();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong skippedPuts = new AtomicLong();
+    private final AtomicLong weightBytes = new AtomicLong();
+
+    public SearchResultCache(EsSearchProperties.Cache properties) {
+        this.properties = properties;
+        Duration maxTtl = properties.getTtl();
+        for (Duration ttl : properties.getIndexTtl().values()) {
+            if (ttl.compareTo(maxTtl) > 0) {
+                maxTtl = ttl;
+            }
+        }
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(properties.getMaxBytes())
+                .<HashCode, CachedSearch>weigher((key, value) -> value.weight)
+                .expireAfterWrite(maxTtl.toNanos(), TimeUnit.NANOSECONDS)
+                .removalListener(notification -> {
+                    CachedSearch value = notification.getValue();
+                    if (value == null) {
+                        return;
+                    }
+                    weightBytes.addAndGet(-value.weight);
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        log.debug("search cache evicted entry of {} bytes", value.weight);
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 同步查询，命中缓存时不调用 loader
+     */
+    public SearchResponse search(SearchRequest request,
+                                 CheckedFunction<SearchRequest, SearchResponse, IOException> loader) throws IOException {
+        if (!isCacheable(request)) {
+            return loader.apply(request);
+        }
+        HashCode key = RequestKeys.search(request);
+        SearchResponse cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+        long[] generations = generations(request.indices());
+        SearchResponse response = loader.apply(request);
+        put(key, request, generations, response);
+        return response;
+    }
+
+    /**
+     * 异步查询，命中缓存时直接在调用线程回调
+     */
+    public void searchAsync(SearchRequest request, ActionListener<SearchResponse> listener,
+                            BiConsumer<SearchRequest, ActionListener<SearchResponse>> loader) {
+        if (!isCacheable(request)) {
+            loader.accept(request, listener);
+            return;
+        }
+        HashCode key = RequestKeys.search(request);
+        SearchResponse cached = lookup(key);
+        if (cached != null) {
+            listener.onResponse(cached);
+            return;
+        }
+        long[] generations = generations(request.indices());
+        loader.accept(request, ActionListener.wrap(response -> {
+            put(key, request, generations, response);
+            listener.onResponse(response);
+        }, listener::onFailure));
+    }
+
+    @Override
+    public void onApplicationEvent(DocumentWriteEvent event) {
+        long dirtyUntil = event.isRefreshed() ? 0 : System.nanoTime() + properties.getRefreshInterval().toNanos();
+        for (String index : event.getIndices()) {
+            indexStates.computeIfAbsent(index, i -> new IndexState()).onWrite(dirtyUntil);
+        }
+        globalState.onWrite(dirtyUntil);
+    }
+
+    public SearchCacheMetrics metrics() {
+        return new SearchCacheMetrics(hits.get(), misses.get(), staleHits.get(), skippedPuts.get(),
+                cache.stats().evictionCount(), cache.size(), weightBytes.get());
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private SearchResponse lookup(HashCode key) {
+        CachedSearch cached = cache.getIfPresent(key);
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (System.nanoTime() - cached.expiresAtNanos > 0 || !generationsMatch(cached)) {
+            cache.invalidate(key);
+            staleHits.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return cached.response;
+    }
+
+    private void put(HashCode key, SearchRequest request, long[] generations, SearchResponse response) {
+        String[] indices = request.indices();
+        long ttlNanos = ttlNanos(indices);
+        if (ttlNanos <= 0 || response.getFailedShards() > 0 || response.isTimedOut()
+                || isDirty(indices) || !Arrays.equals(generations, generations(indices))) {
+            skippedPuts.incrementAndGet();
+            return;
+        }
+        int weight = weigh(response);
+        weightBytes.addAndGet(weight);
+        cache.put(key, new CachedSearch(response, indices, generations, System.nanoTime() + ttlNanos, weight));
+    }
+
+    private boolean isCacheable(SearchRequest request) {
+        if (request.scroll() != null || Boolean.FALSE.equals(request.requestCache())) {
+            return false;
+        }
+        if (request.source() == null) {
+            return true;
+        }
+        if (request.source().profile()) {
+            return false;
+        }
+        //和es的请求缓存一样，包含 now 的日期范围每次结果都可能不同
+        return !request.source().toString().contains("\"now");
+    }
+
+    /**
+     * 通配符、_all 和不指定索引的查询无法在客户端解析出具体索引，按全局版本号判断
+     */
+    private static boolean isPattern(String index) {
+        return index.indexOf('*') >= 0 || "_all".equals(index);
+    }
+
+    private long[] generations(String[] indices) {
+        long[] generations = new long[indices.length + 1];
+        generations[0] = globalState.generation.get();
+        for (int i = 0; i < indices.length; i++) {
+            IndexState state = indexStates.get(indices[i]);
+            generations[i + 1] = state == null ? 0 : state.generation.get();
+        }
+        return generations;
+    }
+
+    private boolean generationsMatch(CachedSearch cached) {
+        if (dependsOnGlobal(cached.indices)) {
+            if (globalState.generation.get() != cached.generations[0]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < cached.indices.length; i++) {
+            IndexState state = indexStates.get(cached.indices[i]);
+            long generation = state == null ? 0 : state.generation.get();
+            if (generation != cached.generations[i + 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean dependsOnGlobal(String[] indices) {
+        if (indices.length == 0) {
+            return true;
+        }
+        for (String index : indices) {
+            if (isPattern(index)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isDirty(String[] indices) {
+        long now = System.nanoTime();
+        if (dependsOnGlobal(indices)) {
+            return globalState.isDirty(now);
+        }
+        for (String index : indices) {
+            IndexState state = indexStates.get(index);
+            if (state != null && state.isDirty(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long ttlNanos(String[] indices) {
+        long ttl = properties.getTtl().toNanos();
+        for (String index : indices) {
+            Duration indexTtl = properties.getIndexTtl().get(index);
+            if (indexTtl != null) {
+                ttl = Math.min(ttl, indexTtl.toNanos());
+            }
+        }
+        return ttl;
+    }
+
+    /**
+     * 估算结果占用的字节数：命中文档的source长度加上固定开销，聚合按json长度算
+     */
+    static int weigh(SearchResponse response) {
+        long bytes = 1024;
+        SearchHits hits = response.getHits();
+        if (hits != null) {
+            for (SearchHit hit : hits.getHits()) {
+                bytes += 256;
+                BytesReference source = hit.getSourceRef();
+                if (source != null) {
+                    bytes += source.length();
+                }
+            }
+        }
+        if (response.getAggregations() != null) {
+            try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+                builder.startObject();
+                response.getAggregations().toXContent(builder, ToXContent.EMPTY_PARAMS);
+                builder.endObject();
+                bytes += BytesReference.bytes(builder).length();
+            } catch (IOException | RuntimeException e) {
+                bytes += 4096;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    private static final class IndexState {
+
+        private final AtomicLong generation = new AtomicLong();
+
+        private volatile long dirtyUntilNanos;
+
+        private volatile boolean dirty;
+
+        private void onWrite(long dirtyUntil) {
+            generation.incrementAndGet();
+            if (dirtyUntil != 0) {
+                dirtyUntilNanos = dirtyUntil;
+                dirty = true;
+            }
+        }
+
+        private boolean isDirty(long now) {
+            if (dirty && now - dirtyUntilNanos >= 0) {
+                dirty = false;
+            }
+            return dirty;
+        }
+    }
+
+    private static final class CachedSearch {
+
+        private final SearchResponse response;
+
+        private final String[] indices;
+
+        /**
+         * 查询前的版本号，第0个是全局版本号
+         */
+        private final long[] generations;
+
+        private final long expiresAtNanos;
+
+        private final int weight;
+
+        private CachedSearch(SearchResponse response, String[] indices, long[] generations, long expiresAtNanos,
+                             int weight) {
+            this.response = response;
+            this.indices = indices;
+            this.generations = generations;
+            this.expiresAtNanos = expiresAtNanos;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package github.qh.es.infrastructure.search.decode;
+
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-02- 10:40 上午
+ * @email quhao.mi@foxmail.com
+ * 按字段名把 _source 绑定到类的字段上，类需要有无参构造方法。
+ * 1.字段名默认是Java字段名，可以用 SourceField 指定；类里没有的字段直接跳过（skipChildren），不创建任何对象
+ * 2.支持字符串、基本类型和包装类、BigDecimal、枚举、List/Set（元素按泛型类型读，单个值当作只有一个元素）、Map、Object 和嵌套的类
+ * 3.反射信息在第一次使用时解析，之后每个文档只有目标对象本身和字段值的分配
+ */
+final class BeanSourceDecoder<T> implements SourceDecoder<T> {
+
+    private final Class<T> type;
+
+    private final Constructor<T> constructor;
+
+    private final Map<String, Binding> bindings = new HashMap<>();
+
+    BeanSourceDecoder(Class<T> type) {
+        this.type = type;
+        try {
+            this.constructor = type.getDeclaredConstructor();
+            this.constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(type.getName() + " needs a no-arg constructor to decode _source", e);
+        }
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                field.setAccessible(true);
+                SourceField sourceField = field.getAnnotation(SourceField.class);
+                String name = sourceField == null ? field.getName() : sourceField.value();
+                //子类的字段优先
+                bindings.putIfAbsent(name, new Binding(field, reader(field.getType(), field.getGenericType())));
+            }
+        }
+    }
+
+    @Override
+    public T decode(XContentParser parser) throws IOException {
+        XContentParser.Token token = parser.currentToken();
+        if (token == XContentParser.Token.VALUE_NULL) {
+            return null;
+        }
+        if (token != XContentParser.Token.START_OBJECT) {
+            throw SourceValues.unexpected(parser, type.getName());
+        }
+        T target = newInstance();
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+            Binding binding = bindings.get(parser.currentName());
+            parser.nextToken();
+            if (binding == null) {
+                parser.skipChildren();
+                continue;
+            }
+            Object value = binding.reader.read(parser);
+            //基本类型字段遇到 null 保留默认值
+            if (value != null || !binding.field.getType().isPrimitive()) {
+                try {
+                    binding.field.set(target, value);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return target;
+    }
+
+    private T newInstance() {
+        try {
+            return constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("failed to create " + type.getName(), e);
+        }
+    }
+
+    private static ValueReader reader(Class<?> raw, Type generic) {
+        if (raw == String.class) {
+            return parser -> parser.currentToken() == XContentParser.Token.VALUE_NULL ? null : scalar(parser).text();
+        }
+        if (raw == int.class || raw == Integer.class) {
+            return parser -> isNull(parser) ? null : scalar(parser).intValue();
+        }
+        if (raw == long.class || raw == Long.class) {
+            return parser -> isNull(parser) ? null : scalar(parser).longValue();
+        }
+        if (raw == double.class || raw == Double.class) {
+            return parser -> isNull(parser) ? null : scalar(parser).doubleValue();
+        }
+        if (raw == float.class || raw == Float.class) {
+            return parser -> isNull(parser) ? null : scalar(parser).floatValue();
+        }
+        if (raw == short.class || raw == Short.class) {
+            return parser -> isNull(parser) ? null : scalar(parser).shortValue();
+        }
+        if (raw == byte.class || raw == Byte.class) {
+            return parser -> isNull(parser) ? null : (byte) scalar(parser).intValue();
+        }
+        if (raw == boolean.class || raw == Boolean.class) {
+            return parser -> isNull(parser) ? null : scalar(parser).booleanValue();
+        }
+        if (raw == BigDecimal.class) {
+            return parser -> isNull(parser) ? null : new BigDecimal(scalar(parser).text());
+        }
+        if (raw.isEnum()) {
+            return parser -> isNull(parser) ? null : enumValue(raw, scalar(parser).text());
+        }
+        if (Collection.class.isAssignableFrom(raw)) {
+            ValueReader element = elementReader(generic);
+            boolean set = Set.class.isAssignableFrom(raw);
+            return parser -> readCollection(parser, element, set);
+        }
+        if (raw == Object.class || Map.class.isAssignableFrom(raw)) {
+            return SourceValues::read;
+        }
+        //嵌套的类在用到时才解析，类型可以引用自己
+        return parser -> SourceDecoders.bean(raw).decode(parser);
+    }
+
+    private static ValueReader elementReader(Type generic) {
+        if (generic instanceof ParameterizedType) {
+            Type argument = ((ParameterizedType) generic).getActualTypeArguments()[0];
+            if (argument instanceof Class) {
+                return reader((Class<?>) argument, argument);
+            }
+            if (argument instanceof ParameterizedType) {
+                return reader((Class<?>) ((ParameterizedType) argument).getRawType(), argument);
+            }
+        }
+        return SourceValues::read;
+    }
+
+    private static Collection<Object> readCollection(XContentParser parser, ValueReader element, boolean set)
+            throws IOException {
+        if (isNull(parser)) {
+            return null;
+        }
+        Collection<Object> values = set ? new LinkedHashSet<>() : new ArrayList<>();
+        if (parser.currentToken() != XContentParser.Token.START_ARRAY) {
+            values.add(element.read(parser));
+            return values;
+        }
+        while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+            values.add(element.read(parser));
+        }
+        return values;
+    }
+
+    private static boolean isNull(XContentParser parser) {
+        return parser.currentToken() == XContentParser.Token.VALUE_NULL;
+    }
+
+    /**
+     * 标量字段遇到对象或数组时报错，不静默丢数据
+     */
+    private static XContentParser scalar(XContentParser parser) {
+        if (!parser.currentToken().isValue()) {
+            throw SourceValues.unexpected(parser, "a single value");
+        }
+        return parser;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object enumValue(Class<?> type, String name) {
+        return Enum.valueOf((Class<? extends Enum>) type, name);
+    }
+
+    @FunctionalInterface
+    private interface ValueReader {
+
+        Object read(XContentParser parser) throws IOException;
+    }
+
+    private static final class Binding {
+
+        private final Field field;
+
+        private final ValueReader reader;
+
+        private Binding(Field field, ValueReader reader) {
+            this.field = field;
+            this.reader = reader;
+        }
+    }
+}
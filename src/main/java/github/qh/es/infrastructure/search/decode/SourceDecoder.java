@@ -0,0 +1,19 @@
+package github.qh.es.infrastructure.search.decode;
+
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import java.io.IOException;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-02- 10:00 上午
+ * @email quhao.mi@foxmail.com
+ * 把一个文档的 _source 直接从解析器读成目标对象，不经过 getSourceAsMap 的 Map/List。
+ * 调用时解析器停在值的第一个token上（START_OBJECT 或 VALUE_NULL），返回时要停在值的最后一个token上。
+ * 转成类用 SourceDecoders#bean，只取几个字段用 SourceDecoders#fields，也可以自己实现
+ */
+@FunctionalInterface
+public interface SourceDecoder<T> {
+
+    T decode(XContentParser parser) throws IOException;
+}
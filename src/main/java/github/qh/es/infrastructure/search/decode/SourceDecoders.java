@@ -0,0 +1,86 @@
+package github.qh.es.infrastructure.search.decode;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-02- 11:50 上午
+ * @email quhao.mi@foxmail.com
+ * 用解析器直接读命中结果的 _source，代替 hit.getSourceAsMap() 加强转。
+ * getSourceAsMap 每个命中都要把整个文档建成 Map/List，只用到一两个字段时大部分CPU和内存都浪费了；
+ * 这里直接在 _source 的原始字节上解析，不需要的字段跳过。
+ * <pre>
+ * List&lt;Post&gt; posts = SourceDecoders.decode(response.getHits(), SourceDecoders.bean(Post.class));
+ * Map&lt;String, Object&gt; title = SourceDecoders.decode(hit, SourceDecoders.fields("title", "author.name"));
+ * </pre>
+ */
+public final class SourceDecoders {
+
+    private static final Map<Class<?>, BeanSourceDecoder<?>> BEANS = new ConcurrentHashMap<>();
+
+    private SourceDecoders() {
+    }
+
+    /**
+     * 按字段名绑定到类上，同一个类的解码器会被缓存
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> SourceDecoder<T> bean(Class<T> type) {
+        //嵌套类型在解码时才取，构造时不会递归调用这里
+        return (SourceDecoder<T>) BEANS.computeIfAbsent(type, BeanSourceDecoder::new);
+    }
+
+    /**
+     * 只取这几个字段，结果的key是完整路径，没有的字段不在结果里。创建时解析路径，可以复用
+     */
+    public static SourceDecoder<Map<String, Object>> fields(String... paths) {
+        return new SourceProjection(paths);
+    }
+
+    /**
+     * 解码一个命中结果，没有 _source 时返回null
+     */
+    public static <T> T decode(SearchHit hit, SourceDecoder<T> decoder) throws IOException {
+        return decode(hit.getSourceRef(), decoder);
+    }
+
+    /**
+     * 解码一页命中结果，没有 _source 的命中对应null
+     */
+    public static <T> List<T> decode(SearchHits hits, SourceDecoder<T> decoder) throws IOException {
+        SearchHit[] array = hits.getHits();
+        List<T> result = new ArrayList<>(array.length);
+        for (SearchHit hit : array) {
+            result.add(decode(hit, decoder));
+        }
+        return result;
+    }
+
+    /**
+     * 解码一段 _source，GetResponse#getSourceInternal 也可以用
+     */
+    public static <T> T decode(BytesReference source, SourceDecoder<T> decoder) throws IOException {
+        if (source == null) {
+            return null;
+        }
+        //BytesArray 直接在原数组上解析，不复制
+        try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, source, XContentType.JSON)) {
+            parser.nextToken();
+            return decoder.decode(parser);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package github.qh.es.infrastructure.search.decode;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-02- 10:10 上午
+ * @email quhao.mi@foxmail.com
+ * 指定字段在 _source 里的名字，比如 {@code @SourceField("create_time") private long createTime;}
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface SourceField {
+
+    String value();
+}
@@ -0,0 +1,134 @@
+package github.qh.es.infrastructure.search.decode;
+
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-02- 11:20 上午
+ * @email quhao.mi@foxmail.com
+ * 只取 _source 里的几个字段，结果的key是完整路径（比如 author.name），其他字段直接跳过。
+ * 1.路径按 . 分段组成一棵树，解析时只进入树上有的对象；_source 里带点的字段名（{"author.name": ...}）也能匹配
+ * 2.路径经过数组时每个元素都取，同一路径有多个值时结果是 List
+ * 3.取到的是对象或数组时整体读成 Map/List
+ * 配合 fetchSource(includes, null) 还能减少网络传输
+ */
+final class SourceProjection implements SourceDecoder<Map<String, Object>> {
+
+    private final Node root = new Node();
+
+    private final int size;
+
+    SourceProjection(String... paths) {
+        if (paths.length == 0) {
+            throw new IllegalArgumentException("at least one field is required");
+        }
+        for (String path : paths) {
+            Node node = root;
+            for (String segment : path.split("\\.")) {
+                node = node.children.computeIfAbsent(segment, s -> new Node());
+            }
+            node.path = path;
+        }
+        this.size = paths.length;
+    }
+
+    @Override
+    public Map<String, Object> decode(XContentParser parser) throws IOException {
+        if (parser.currentToken() == XContentParser.Token.VALUE_NULL) {
+            return null;
+        }
+        if (parser.currentToken() != XContentParser.Token.START_OBJECT) {
+            throw SourceValues.unexpected(parser, "an object");
+        }
+        Map<String, Object> result = new HashMap<>(size * 2);
+        readObject(parser, root, result);
+        return result;
+    }
+
+    /**
+     * 解析器停在 START_OBJECT 上，返回时停在对应的 END_OBJECT 上
+     */
+    private static void readObject(XContentParser parser, Node node, Map<String, Object> result) throws IOException {
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+            Node child = node.resolve(parser.currentName());
+            parser.nextToken();
+            if (child == null) {
+                parser.skipChildren();
+                continue;
+            }
+            readValue(parser, child, result);
+        }
+    }
+
+    private static void readValue(XContentParser parser, Node node, Map<String, Object> result) throws IOException {
+        if (node.path != null) {
+            put(result, node.path, SourceValues.read(parser));
+            return;
+        }
+        XContentParser.Token token = parser.currentToken();
+        if (token == XContentParser.Token.START_OBJECT) {
+            readObject(parser, node, result);
+        } else if (token == XContentParser.Token.START_ARRAY) {
+            while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                readValue(parser, node, result);
+            }
+        } else {
+            parser.skipChildren();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void put(Map<String, Object> result, String path, Object value) {
+        Object existing = result.putIfAbsent(path, value);
+        if (existing == null) {
+            return;
+        }
+        List<Object> values;
+        if (existing instanceof MultiValue) {
+            values = (List<Object>) existing;
+        } else {
+            values = new MultiValue();
+            values.add(existing);
+            result.put(path, values);
+        }
+        values.add(value);
+    }
+
+    /**
+     * 同一路径取到多个值时的结果，和 _source 里本来就是数组的值区分开
+     */
+    private static final class MultiValue extends ArrayList<Object> {
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> children = new LinkedHashMap<>();
+
+        /**
+         * 要取的字段的完整路径，中间节点为null
+         */
+        private String path;
+
+        private Node resolve(String name) {
+            Node child = children.get(name);
+            if (child != null || name.indexOf('.') < 0) {
+                return child;
+            }
+            Node node = this;
+            for (String segment : name.split("\\.")) {
+                node = node.children.get(segment);
+                if (node == null) {
+                    return null;
+                }
+            }
+            return node;
+        }
+    }
+}
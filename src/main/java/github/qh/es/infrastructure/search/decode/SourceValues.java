@@ -0,0 +1,41 @@
+package github.qh.es.infrastructure.search.decode;
+
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import java.io.IOException;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-02- 10:20 上午
+ * @email quhao.mi@foxmail.com
+ * 不知道目标类型时读一个值：标量直接读，对象和数组才建 Map/List
+ */
+final class SourceValues {
+
+    private SourceValues() {
+    }
+
+    static Object read(XContentParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+                return parser.text();
+            case VALUE_NUMBER:
+                return parser.numberValue();
+            case VALUE_BOOLEAN:
+                return parser.booleanValue();
+            case START_OBJECT:
+                return parser.mapOrdered();
+            case START_ARRAY:
+                return parser.list();
+            default:
+                return parser.objectText();
+        }
+    }
+
+    static ParsingException unexpected(XContentParser parser, String target) {
+        return new ParsingException(parser.getTokenLocation(), "cannot read [{}] as {}", parser.currentToken(), target);
+    }
+}
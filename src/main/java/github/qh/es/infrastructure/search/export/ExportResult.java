@@ -0,0 +1,29 @@
+package github.qh.es.infrastructure.search.export;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-27- 10:25 上午
+ * @email quhao.mi@foxmail.com
+ * 导出结果
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class ExportResult {
+
+    private final long docs;
+
+    private final long tookMillis;
+
+    private final List<SliceProgress> slices;
+
+    public double getDocsPerSecond() {
+        return tookMillis == 0 ? 0 : docs * 1000.0 / tookMillis;
+    }
+}
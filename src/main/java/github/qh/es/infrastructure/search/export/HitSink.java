@@ -0,0 +1,31 @@
+package github.qh.es.infrastructure.search.export;
+
+import org.elasticsearch.search.SearchHit;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-27- 9:30 上午
+ * @email quhao.mi@foxmail.com
+ * 导出结果的去处，多个分片（slice）的线程会同时调用，实现需要线程安全。
+ * 简单场景直接传lambda，写文件用 NdjsonFileHitSink，写到另一个索引用 IndexHitSink
+ */
+@FunctionalInterface
+public interface HitSink extends Closeable {
+
+    /**
+     * 接收一页数据，抛出异常时整个导出失败
+     *
+     * @param slice 数据来自哪个分片
+     */
+    void accept(int slice, SearchHit[] hits) throws IOException;
+
+    /**
+     * 导出结束（成功或失败）后调用一次
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
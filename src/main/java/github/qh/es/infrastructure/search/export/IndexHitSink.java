@@ -0,0 +1,44 @@
+package github.qh.es.infrastructure.search.export;
+
+import github.qh.es.infrastructure.document.bulk.AdaptiveBulkIngester;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-27- 10:05 上午
+ * @email quhao.mi@foxmail.com
+ * 把数据写到另一个索引，保留 _id 和 _routing，写入交给 AdaptiveBulkIngester
+ * （批次大小、并发和429重试都由它处理，队列满时按它的溢出策略阻塞导出线程）
+ */
+public class IndexHitSink implements HitSink {
+
+    private final AdaptiveBulkIngester ingester;
+
+    private final String targetIndex;
+
+    public IndexHitSink(AdaptiveBulkIngester ingester, String targetIndex) {
+        this.ingester = ingester;
+        this.targetIndex = targetIndex;
+    }
+
+    @Override
+    public void accept(int slice, SearchHit[] hits) {
+        for (SearchHit hit : hits) {
+            IndexRequest request = new IndexRequest(targetIndex).id(hit.getId())
+                    .source(hit.getSourceRef(), XContentType.JSON);
+            DocumentField routing = hit.field("_routing");
+            if (routing != null) {
+                request.routing(routing.getValue());
+            }
+            ingester.add(request);
+        }
+    }
+
+    @Override
+    public void close() {
+        ingester.flush();
+    }
+}
@@ -0,0 +1,73 @@
+package github.qh.es.infrastructure.search.export;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-27- 9:45 上午
+ * @email quhao.mi@foxmail.com
+ * 把每条数据的 _source 写成一行json，生成的文件可以直接用 NdjsonFileImporter 导回去。
+ * 多个分片共用一个文件，按页加锁写入，行的顺序和分片无关。
+ * _source 里不包含 _id，指定 idField 时把 _id 写进这个顶层字段，导入时配置同样的 es.bulk.file-import.id-field
+ * 就能保留原来的id，中断后重放也不会产生重复文档。
+ */
+public class NdjsonFileHitSink implements HitSink {
+
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private final OutputStream out;
+
+    /**
+     * 为空时只写 _source
+     */
+    private final String idField;
+
+    public NdjsonFileHitSink(Path file) throws IOException {
+        this(file, null);
+    }
+
+    public NdjsonFileHitSink(Path file, String idField) throws IOException {
+        this.out = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_BYTES);
+        this.idField = idField;
+    }
+
+    @Override
+    public synchronized void accept(int slice, SearchHit[] hits) throws IOException {
+        for (SearchHit hit : hits) {
+            BytesReference source = hit.getSourceRef();
+            if (source == null) {
+                throw new IllegalStateException("hit [" + hit.getId() + "] has no _source to export");
+            }
+            if (idField != null) {
+                Map<String, Object> document = XContentHelper.convertToMap(source, true, XContentType.JSON).v2();
+                document.put(idField, hit.getId());
+                out.write(Strings.toString(XContentFactory.jsonBuilder().map(document)).getBytes(StandardCharsets.UTF_8));
+            } else if (source.indexOf((byte) '\n', 0) >= 0) {
+                //写入时格式化过的 _source 里带换行，压成一行
+                out.write(XContentHelper.convertToJson(source, true, false, XContentType.JSON)
+                        .getBytes(StandardCharsets.UTF_8));
+            } else {
+                source.writeTo(out);
+            }
+            out.write('\n');
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
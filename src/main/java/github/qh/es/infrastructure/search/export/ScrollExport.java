@@ -0,0 +1,277 @@
+package github.qh.es.infrastructure.search.export;
+
+import github.qh.es.infrastructure.support.ResizableSemaphore;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-27- 10:40 上午
+ * @email quhao.mi@foxmail.com
+ * 一次正在进行的分片导出，由 SlicedScrollExporter#start 创建。
+ * 每个分片一个线程，同时在途的scroll请求数由 setParallelism 控制，可以在运行中调整；
+ * 等待许可的分片的scroll上下文还开着，等待时间不能超过 keepAlive。
+ * 任何一个分片失败时其他分片在下一页停止，所有scroll上下文都会被清理。
+ */
+@Slf4j
+public class ScrollExport {
+
+    private final RestHighLevelClient client;
+
+    private final HitSink sink;
+
+    private final TimeValue keepAlive;
+
+    private final ResizableSemaphore permits;
+
+    private final Slice[] slices;
+
+    private final ExecutorService executor;
+
+    private final CompletableFuture<ExportResult> result = new CompletableFuture<>();
+
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    private final AtomicInteger running;
+
+    private final long startNanos = System.nanoTime();
+
+    private volatile boolean cancelled;
+
+    ScrollExport(RestHighLevelClient client, SearchRequest template, int sliceCount, int parallelism, int pageSize,
+                 TimeValue keepAlive, HitSink sink) {
+        this.client = client;
+        this.sink = sink;
+        this.keepAlive = keepAlive;
+        this.permits = new ResizableSemaphore(parallelism);
+        this.slices = new Slice[sliceCount];
+        this.running = new AtomicInteger(sliceCount);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(sliceCount, r -> {
+            Thread thread = new Thread(r, "es-scroll-export-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < sliceCount; i++) {
+            slices[i] = new Slice(i, sliceRequest(template, i, sliceCount, pageSize));
+        }
+        for (Slice slice : slices) {
+            executor.execute(slice::run);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * 调整同时在途的scroll请求数，在下一页生效
+     */
+    public void setParallelism(int parallelism) {
+        permits.resize(Math.max(1, Math.min(parallelism, slices.length)));
+    }
+
+    public int getParallelism() {
+        return permits.getPermits();
+    }
+
+    public int getSliceCount() {
+        return slices.length;
+    }
+
+    /**
+     * 每个分片的进度
+     */
+    public List<SliceProgress> progress() {
+        List<SliceProgress> progress = new ArrayList<>(slices.length);
+        for (Slice slice : slices) {
+            progress.add(slice.progress());
+        }
+        return progress;
+    }
+
+    /**
+     * 停止导出，各分片在当前页结束后退出
+     */
+    public void cancel() {
+        cancelled = true;
+        failure.compareAndSet(null, new CancellationException("export cancelled"));
+    }
+
+    public CompletableFuture<ExportResult> future() {
+        return result;
+    }
+
+    /**
+     * 等待导出结束
+     */
+    public ExportResult await() throws IOException, InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ElasticsearchException(cause);
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    private SearchRequest sliceRequest(SearchRequest template, int id, int max, int pageSize) {
+        SearchSourceBuilder source = template.source() == null ? new SearchSourceBuilder() : template.source().shallowCopy();
+        source.size(pageSize);
+        if (max > 1) {
+            source.slice(new SliceBuilder(id, max));
+        }
+        if (source.sorts() == null) {
+            //不需要排序时按 _doc 取数据最快
+            source.sort("_doc");
+        }
+        return new SearchRequest(template.indices(), source)
+                .routing(template.routing())
+                .preference(template.preference())
+                .indicesOptions(template.indicesOptions())
+                .scroll(keepAlive);
+    }
+
+    private void onSliceFinished(Slice slice, Exception e) {
+        if (e != null && failure.compareAndSet(null, e)) {
+            cancelled = true;
+        } else if (e != null && failure.get() != e) {
+            failure.get().addSuppressed(e);
+        }
+        SliceProgress progress = slice.progress();
+        log.info("slice {}/{} exported {} docs in {} pages, {} docs/s", slice.id, slices.length, progress.getDocs(),
+                progress.getPages(), (long) progress.getDocsPerSecond());
+        if (running.decrementAndGet() > 0) {
+            return;
+        }
+        try {
+            sink.close();
+        } catch (IOException | RuntimeException closeFailure) {
+            if (!failure.compareAndSet(null, closeFailure)) {
+                failure.get().addSuppressed(closeFailure);
+            }
+        }
+        if (failure.get() != null) {
+            result.completeExceptionally(failure.get());
+            return;
+        }
+        long docs = 0;
+        for (Slice s : slices) {
+            docs += s.docs.get();
+        }
+        result.complete(new ExportResult(docs, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+                progress()));
+    }
+
+    private final class Slice {
+
+        private final int id;
+
+        private final SearchRequest request;
+
+        private final AtomicLong docs = new AtomicLong();
+
+        private final AtomicLong pages = new AtomicLong();
+
+        private volatile long startNanos;
+
+        private volatile long endNanos;
+
+        private Slice(int id, SearchRequest request) {
+            this.id = id;
+            this.request = request;
+        }
+
+        private void run() {
+            startNanos = System.nanoTime();
+            String scrollId = null;
+            Exception error = null;
+            try {
+                SearchResponse response = page(null);
+                while (true) {
+                    scrollId = response.getScrollId();
+                    SearchHit[] hits = response.getHits().getHits();
+                    if (hits.length == 0 || cancelled) {
+                        break;
+                    }
+                    sink.accept(id, hits);
+                    docs.addAndGet(hits.length);
+                    pages.incrementAndGet();
+                    response = page(scrollId);
+                }
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                endNanos = System.nanoTime();
+                clear(scrollId);
+            }
+            onSliceFinished(this, error);
+        }
+
+        private SearchResponse page(String scrollId) throws IOException, InterruptedException {
+            permits.acquire();
+            SearchResponse response;
+            try {
+                response = scrollId == null ? client.search(request, RequestOptions.DEFAULT)
+                        : client.scroll(new SearchScrollRequest(scrollId).scroll(keepAlive), RequestOptions.DEFAULT);
+            } finally {
+                permits.release();
+            }
+            if (response.getFailedShards() > 0) {
+                throw new ElasticsearchException("slice [{}] page had [{}] failed shards", id,
+                        response.getFailedShards());
+            }
+            return response;
+        }
+
+        private void clear(String scrollId) {
+            if (scrollId == null) {
+                return;
+            }
+            ClearScrollRequest clear = new ClearScrollRequest();
+            clear.addScrollId(scrollId);
+            try {
+                client.clearScroll(clear, RequestOptions.DEFAULT);
+            } catch (IOException | RuntimeException e) {
+                //清理失败时上下文会在 keepAlive 之后自己过期
+                log.warn("failed to clear scroll of slice [{}]", id, e);
+            }
+        }
+
+        private SliceProgress progress() {
+            long start = startNanos;
+            long end = endNanos;
+            long elapsed = start == 0 ? 0 : (end == 0 ? System.nanoTime() : end) - start;
+            return new SliceProgress(id, docs.get(), pages.get(), TimeUnit.NANOSECONDS.toMillis(elapsed), end != 0);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package github.qh.es.infrastructure.search.export;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-27- 10:20 上午
+ * @email quhao.mi@foxmail.com
+ * 一个分片（slice）的导出进度快照
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class SliceProgress {
+
+    private final int slice;
+
+    private final long docs;
+
+    private final long pages;
+
+    private final long elapsedMillis;
+
+    private final boolean done;
+
+    public double getDocsPerSecond() {
+        return elapsedMillis == 0 ? 0 : docs * 1000.0 / elapsedMillis;
+    }
+}
@@ -0,0 +1,70 @@
+package github.qh.es.infrastructure.search.export;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.io.IOException;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-27- 11:30 上午
+ * @email quhao.mi@foxmail.com
+ * 把一个查询拆成N个 sliced scroll 并发导出整个索引。
+ * 1.分片数（slice）默认等于要查询的主分片数，每个 slice 正好对应一个分片时es的开销最小
+ * 2.每个 slice 一个线程，同时在途的请求数默认等于 slice 数，可以在运行中通过 ScrollExport#setParallelism 调整
+ * 3.结果交给 HitSink，可以写文件、回调或者写到另一个索引
+ * 需要有序的导出用 SearchApiRepository#stream。
+ */
+public class SlicedScrollExporter {
+
+    private final RestHighLevelClient client;
+
+    private final int pageSize;
+
+    private final TimeValue keepAlive;
+
+    private final int maxSlices;
+
+    public SlicedScrollExporter(RestHighLevelClient client, int pageSize, TimeValue keepAlive, int maxSlices) {
+        this.client = client;
+        this.pageSize = pageSize;
+        this.keepAlive = keepAlive;
+        this.maxSlices = maxSlices;
+    }
+
+    /**
+     * 按分片数导出并等待结束
+     */
+    public ExportResult export(SearchRequest request, HitSink sink) throws IOException, InterruptedException {
+        return start(request, 0, sink).await();
+    }
+
+    /**
+     * 开始导出，马上返回
+     *
+     * @param slices 拆成几个 slice，小于1时等于要查询的分片数；不超过 maxSlices
+     */
+    public ScrollExport start(SearchRequest request, int slices, HitSink sink) throws IOException {
+        if (request.scroll() != null) {
+            throw new IllegalArgumentException("scroll is managed by the exporter, do not set it on the request");
+        }
+        int count = slices > 0 ? slices : shardCount(request);
+        count = Math.max(1, Math.min(count, maxSlices));
+        return new ScrollExport(client, request, count, count, pageSize, keepAlive, sink);
+    }
+
+    /**
+     * 用一个 size=0 的查询拿到要查询的分片数，别名和通配符也能正确处理
+     */
+    int shardCount(SearchRequest request) throws IOException {
+        SearchRequest probe = new SearchRequest(request.indices(), new SearchSourceBuilder().size(0).trackTotalHits(false))
+                .routing(request.routing())
+                .indicesOptions(request.indicesOptions());
+        SearchResponse response = client.search(probe, RequestOptions.DEFAULT);
+        return response.getTotalShards() - response.getSkippedShards();
+    }
+}
@@ -0,0 +1,29 @@
+package github.qh.es.infrastructure.search.stream;
+
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.IOException;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-03- 2:00 下午
+ * @email quhao.mi@foxmail.com
+ * 流式查询的回调，在调用线程上按响应里的顺序调用，抛出异常时查询中止
+ */
+@FunctionalInterface
+public interface SearchHitHandler {
+
+    /**
+     * 每解析出一个命中调用一次，之后这个对象就不再被引用
+     */
+    void onHit(SearchHit hit) throws IOException;
+
+    /**
+     * 每个顶层聚合调用一次，解析器停在聚合的 START_OBJECT 上，返回时要停在对应的 END_OBJECT 上。
+     * 默认跳过，需要时可以用 StreamingSearch#forEachBucket 逐个读桶
+     */
+    default void onAggregation(String name, XContentParser parser) throws IOException {
+        parser.skipChildren();
+    }
+}
@@ -0,0 +1,47 @@
+package github.qh.es.infrastructure.search.stream;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-03- 2:10 下午
+ * @email quhao.mi@foxmail.com
+ * 流式查询的响应头信息，命中和聚合已经交给回调，这里不保留
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class StreamedSearchResult {
+
+    private final long tookMillis;
+
+    private final boolean timedOut;
+
+    private final int totalShards;
+
+    private final int successfulShards;
+
+    private final int failedShards;
+
+    /**
+     * 总命中数，track_total_hits=false 时为 -1
+     */
+    private final long totalHits;
+
+    /**
+     * 总命中数是否是下限（relation=gte）
+     */
+    private final boolean totalHitsLowerBound;
+
+    /**
+     * 这次响应里回调的命中数
+     */
+    private final long hits;
+
+    /**
+     * 带 scroll 参数时的 scroll id，用完要清理
+     */
+    private final String scrollId;
+}
@@ -0,0 +1,268 @@
+package github.qh.es.infrastructure.search.stream;
+
+import github.qh.es.infrastructure.search.decode.SourceDecoder;
+import github.qh.es.infrastructure.support.Endpoints;
+import github.qh.es.infrastructure.support.StreamingResponseReader;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.common.CheckedConsumer;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-03- 2:30 下午
+ * @email quhao.mi@foxmail.com
+ * 流式查询：不经过 RestHighLevelClient 的 SearchResponse，响应边收边解析，每个命中解析完马上交给回调。
+ * 1.内存占用和响应大小无关（见 StreamingResponseReader），不受 HeapBufferedResponseConsumerFactory 的大小限制
+ * 2.可以直接把 _source 解码成对象（SourceDecoder），连 SearchHit 都不创建
+ * 3.大的聚合通过 SearchHitHandler#onAggregation 拿到解析器，用 forEachBucket 一次只读一个桶
+ * 不经过查询缓存、请求合并和 _msearch 批量发送；响应里的 shard 失败只统计个数，需要详情时用普通查询。
+ */
+public class StreamingSearch {
+
+    private final StreamingResponseReader reader;
+
+    public StreamingSearch(StreamingResponseReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * 执行查询，每个命中调用一次 handler
+     */
+    public StreamedSearchResult search(SearchRequest searchRequest, SearchHitHandler handler) throws IOException {
+        return reader.execute(request(searchRequest), parser -> parseResponse(parser, hitParser -> {
+            handler.onHit(SearchHit.fromXContent(hitParser));
+        }, handler));
+    }
+
+    /**
+     * 执行查询，每个命中的 _source 直接解码成 T 交给 consumer，没有 _source 的命中传null
+     */
+    public <T> StreamedSearchResult search(SearchRequest searchRequest, SourceDecoder<T> decoder,
+                                           CheckedConsumer<T, IOException> consumer) throws IOException {
+        return reader.execute(request(searchRequest), parser -> parseResponse(parser, hitParser -> {
+            T value = null;
+            while (hitParser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                String name = hitParser.currentName();
+                hitParser.nextToken();
+                if ("_source".equals(name)) {
+                    value = decoder.decode(hitParser);
+                } else {
+                    hitParser.skipChildren();
+                }
+            }
+            consumer.accept(value);
+        }, (SearchHitHandler) hit -> {
+        }));
+    }
+
+    /**
+     * 逐个读取聚合的桶，解析器停在聚合的 START_OBJECT 上，返回时停在对应的 END_OBJECT 上。
+     * 每个桶（包括子聚合）读成一个 Map，keyed 的桶把key放在 "key" 里；聚合里桶以外的字段跳过
+     */
+    public static void forEachBucket(XContentParser parser, CheckedConsumer<Map<String, Object>, IOException> consumer)
+            throws IOException {
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+            String name = parser.currentName();
+            XContentParser.Token token = parser.nextToken();
+            if (!"buckets".equals(name)) {
+                parser.skipChildren();
+                continue;
+            }
+            if (token == XContentParser.Token.START_ARRAY) {
+                while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                    consumer.accept(parser.mapOrdered());
+                }
+            } else if (token == XContentParser.Token.START_OBJECT) {
+                while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                    String key = parser.currentName();
+                    parser.nextToken();
+                    Map<String, Object> bucket = parser.mapOrdered();
+                    bucket.putIfAbsent("key", key);
+                    consumer.accept(bucket);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static StreamedSearchResult parseResponse(XContentParser parser,
+                                                      CheckedConsumer<XContentParser, IOException> hitReader,
+                                                      SearchHitHandler handler) throws IOException {
+        ensure(parser, parser.nextToken(), XContentParser.Token.START_OBJECT);
+        ResultBuilder result = new ResultBuilder();
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+            String name = parser.currentName();
+            parser.nextToken();
+            switch (name) {
+                case "_scroll_id":
+                    result.scrollId = parser.text();
+                    break;
+                case "took":
+                    result.took = parser.longValue();
+                    break;
+                case "timed_out":
+                    result.timedOut = parser.booleanValue();
+                    break;
+                case "_shards":
+                    parseShards(parser, result);
+                    break;
+                case "hits":
+                    parseHits(parser, hitReader, result);
+                    break;
+                case "aggregations":
+                    ensure(parser, parser.currentToken(), XContentParser.Token.START_OBJECT);
+                    while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                        String aggregation = parser.currentName();
+                        ensure(parser, parser.nextToken(), XContentParser.Token.START_OBJECT);
+                        handler.onAggregation(aggregation, parser);
+                        ensure(parser, parser.currentToken(), XContentParser.Token.END_OBJECT);
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return result.build();
+    }
+
+    private static void parseShards(XContentParser parser, ResultBuilder result) throws IOException {
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+            String name = parser.currentName();
+            parser.nextToken();
+            switch (name) {
+                case "total":
+                    result.totalShards = parser.intValue();
+                    break;
+                case "successful":
+                    result.successfulShards = parser.intValue();
+                    break;
+                case "failed":
+                    result.failedShards = parser.intValue();
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    private static void parseHits(XContentParser parser, CheckedConsumer<XContentParser, IOException> hitReader,
+                                  ResultBuilder result) throws IOException {
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+            String name = parser.currentName();
+            XContentParser.Token token = parser.nextToken();
+            if ("total".equals(name)) {
+                if (token == XContentParser.Token.VALUE_NUMBER) {
+                    //rest_total_hits_as_int=true
+                    result.totalHits = parser.longValue();
+                } else if (token == XContentParser.Token.START_OBJECT) {
+                    while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                        String field = parser.currentName();
+                        parser.nextToken();
+                        if ("value".equals(field)) {
+                            result.totalHits = parser.longValue();
+                        } else if ("relation".equals(field)) {
+                            result.totalHitsLowerBound = "gte".equals(parser.text());
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            } else if ("hits".equals(name) && token == XContentParser.Token.START_ARRAY) {
+                while (parser.nextToken() == XContentParser.Token.START_OBJECT) {
+                    hitReader.accept(parser);
+                    ensure(parser, parser.currentToken(), XContentParser.Token.END_OBJECT);
+                    result.hits++;
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static void ensure(XContentParser parser, XContentParser.Token actual, XContentParser.Token expected) {
+        if (actual != expected) {
+            throw new IllegalStateException("unexpected token [" + actual + "] at " + parser.getTokenLocation()
+                    + ", expected [" + expected + "]");
+        }
+    }
+
+    /**
+     * 和 RestHighLevelClient 发出的 _search 请求一致的路径（逐段url编码）和参数
+     */
+    static Request request(SearchRequest searchRequest) {
+        Request request = new Request("POST", Endpoints.endpoint(Endpoints.join(searchRequest.indices()),
+                Endpoints.join(searchRequest.types()), "_search"));
+        if (searchRequest.routing() != null) {
+            request.addParameter("routing", searchRequest.routing());
+        }
+        if (searchRequest.preference() != null) {
+            request.addParameter("preference", searchRequest.preference());
+        }
+        if (searchRequest.searchType() != SearchType.DEFAULT) {
+            request.addParameter("search_type", searchRequest.searchType().name().toLowerCase(Locale.ROOT));
+        }
+        if (searchRequest.requestCache() != null) {
+            request.addParameter("request_cache", Boolean.toString(searchRequest.requestCache()));
+        }
+        if (searchRequest.allowPartialSearchResults() != null) {
+            request.addParameter("allow_partial_search_results",
+                    Boolean.toString(searchRequest.allowPartialSearchResults()));
+        }
+        request.addParameter("batched_reduce_size", Integer.toString(searchRequest.getBatchedReduceSize()));
+        request.addParameter("max_concurrent_shard_requests",
+                Integer.toString(searchRequest.getMaxConcurrentShardRequests()));
+        request.addParameter("pre_filter_shard_size", Integer.toString(searchRequest.getPreFilterShardSize()));
+        request.addParameter("ccs_minimize_roundtrips", Boolean.toString(searchRequest.isCcsMinimizeRoundtrips()));
+        if (searchRequest.scroll() != null) {
+            request.addParameter("scroll", searchRequest.scroll().keepAlive().getStringRep());
+        }
+        IndicesOptions options = searchRequest.indicesOptions();
+        request.addParameter("ignore_unavailable", Boolean.toString(options.ignoreUnavailable()));
+        request.addParameter("allow_no_indices", Boolean.toString(options.allowNoIndices()));
+        request.addParameter("expand_wildcards", expandWildcards(options));
+        if (searchRequest.source() != null) {
+            request.setEntity(new NStringEntity(Strings.toString(searchRequest.source()), ContentType.APPLICATION_JSON));
+        }
+        return request;
+    }
+
+    private static String expandWildcards(IndicesOptions options) {
+        if (options.expandWildcardsOpen() && options.expandWildcardsClosed()) {
+            return "open,closed";
+        }
+        if (options.expandWildcardsOpen()) {
+            return "open";
+        }
+        return options.expandWildcardsClosed() ? "closed" : "none";
+    }
+
+    private static final class ResultBuilder {
+
+        private long took;
+        private boolean timedOut;
+        private int totalShards;
+        private int successfulShards;
+        private int failedShards;
+        private long totalHits = -1;
+        private boolean totalHitsLowerBound;
+        private long hits;
+        private String scrollId;
+
+        private StreamedSearchResult build() {
+            return new StreamedSearchResult(took, timedOut, totalShards, successfulShards, failedShards, totalHits,
+                    totalHitsLowerBound, hits, scrollId);
+        }
+    }
+}
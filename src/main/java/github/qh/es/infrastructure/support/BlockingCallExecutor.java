@@ -0,0 +1,202 @@
+package github.qh.es.infrastructure.support;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.CheckedSupplier;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-10- 10:30 上午
+ * @email quhao.mi@foxmail.com
+ * 在别的线程上执行同步的仓库调用（client.get、client.search 等），调用方保持简单的阻塞写法，同时发起大量调用：
+ * <pre>
+ * List&lt;GetResponse&gt; responses = executor.invokeAll(ids, id -&gt; esGetApiRepository.get(new GetRequest("posts", id)));
+ * </pre>
+ * 1.PLATFORM：固定大小的平台线程池，同时在途的调用数等于线程数
+ * 2.VIRTUAL：每个调用一个虚拟线程（JDK 21+），等待响应时不占用平台线程，同时在途的调用数只受 maxConcurrency 限制；
+ * 运行在没有虚拟线程的JDK上时退回 PLATFORM
+ * 3.提交线程的截止时间（Deadline）和取消（Cancellation）带到执行线程上
+ * 项目按 Java 8 编译，虚拟线程通过反射创建，同一个包在 8 和 21 上都能运行。
+ * 真正发给集群的并发仍然受连接池和 GradientConcurrencyLimiter 限制，多出来的调用在连接池里排队，
+ * 虚拟线程只是让排队的调用不再各占一个平台线程。
+ */
+@Slf4j
+public class BlockingCallExecutor implements Closeable {
+
+    public enum Mode {
+        PLATFORM, VIRTUAL
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor()，JDK 21 之前没有这个方法，为空
+     */
+    private static final Method VIRTUAL_THREAD_FACTORY = virtualThreadFactory();
+
+    private final Mode mode;
+
+    private final ExecutorService executor;
+
+    /**
+     * 同时在途的调用数上限，平台线程池由线程数限制，不需要
+     */
+    private final Semaphore permits;
+
+    /**
+     * @param mode            期望的模式，VIRTUAL 不可用时退回 PLATFORM
+     * @param platformThreads PLATFORM 模式的线程数
+     * @param maxConcurrency  VIRTUAL 模式同时在途的调用数上限
+     */
+    public BlockingCallExecutor(Mode mode, int platformThreads, int maxConcurrency) {
+        ExecutorService virtual = mode == Mode.VIRTUAL && isVirtualThreadSupported() ? virtualThreadExecutor() : null;
+        if (virtual != null) {
+            log.info("es同步调用使用虚拟线程执行，同时在途的调用最多 {} 个", maxConcurrency);
+            this.mode = Mode.VIRTUAL;
+            this.executor = virtual;
+            this.permits = new Semaphore(maxConcurrency);
+        } else {
+            if (mode == Mode.VIRTUAL) {
+                log.warn("当前JDK {} 不支持虚拟线程，es同步调用改用 {} 个平台线程执行",
+                        System.getProperty("java.version"), platformThreads);
+            }
+            AtomicInteger sequence = new AtomicInteger();
+            this.mode = Mode.PLATFORM;
+            this.executor = Executors.newFixedThreadPool(platformThreads, r -> {
+                Thread thread = new Thread(r, "es-blocking-call-" + sequence.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.permits = null;
+        }
+    }
+
+    /**
+     * 当前JDK是否支持虚拟线程
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * 实际使用的模式
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * 异步执行一个同步调用
+     */
+    public <T> CompletableFuture<T> submit(CheckedSupplier<T, ? extends Exception> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Deadline deadline = Deadline.current();
+        Cancellation cancellation = Cancellation.current();
+        try {
+            executor.execute(() -> run(call, future, deadline, cancellation));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 对每个输入并发执行一次同步调用，全部结束后按输入的顺序返回结果；有调用失败时抛出第一个失败
+     */
+    public <I, T> List<T> invokeAll(Collection<I> inputs, CheckedFunction<I, T, ? extends Exception> call)
+            throws IOException {
+        List<CompletableFuture<T>> futures = new ArrayList<>(inputs.size());
+        for (I input : inputs) {
+            futures.add(submit(() -> call.apply(input)));
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<T> future : futures) {
+            results.add(await(future));
+        }
+        return results;
+    }
+
+    /**
+     * 不再接收新的调用，已经提交的调用继续执行完
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private <T> void run(CheckedSupplier<T, ? extends Exception> call, CompletableFuture<T> future,
+                         Deadline deadline, Cancellation cancellation) {
+        if (permits != null) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(new InterruptedIOException("interrupted while waiting for a permit"));
+                return;
+            }
+        }
+        try (Deadline.Scope ignored = deadline == null ? null : deadline.attach();
+             Cancellation.Scope ignored2 = cancellation == null ? null : cancellation.attach()) {
+            future.complete(call.get());
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        } catch (Error e) {
+            //不能让调用方一直等下去
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for blocking call");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ElasticsearchException(cause);
+        }
+    }
+
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) VIRTUAL_THREAD_FACTORY.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("创建虚拟线程执行器失败", e);
+            return null;
+        }
+    }
+
+    private static Method virtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
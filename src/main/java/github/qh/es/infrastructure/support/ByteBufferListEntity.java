@@ -0,0 +1,128 @@
+package github.qh.es.infrastructure.support;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-17- 3:05 下午
+ * @email quhao.mi@foxmail.com
+ * 由一组 ByteBuffer 组成的请求体。
+ * 实现了 HttpAsyncContentProducer，异步http客户端会直接调用 {@link #produceContent} 把 buffer 写进socket，
+ * 不会像普通 entity 那样先通过 InputStream 拷贝一遍；堆外 buffer 可以直接写出，不经过堆。
+ * 每次发送都从 buffer 的副本开始，所以失败后换节点重试时可以重复发送。
+ */
+public class ByteBufferListEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+    private final List<ByteBuffer> buffers;
+
+    private final long length;
+
+    private int index;
+
+    private ByteBuffer current;
+
+    public ByteBufferListEntity(List<ByteBuffer> buffers, ContentType contentType) {
+        this.buffers = buffers;
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        this.length = total;
+        setContentType(contentType.toString());
+    }
+
+    @Override
+    public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+        while (true) {
+            if (current == null || !current.hasRemaining()) {
+                if (index == buffers.size()) {
+                    encoder.complete();
+                    close();
+                    return;
+                }
+                current = buffers.get(index++).duplicate();
+            }
+            encoder.write(current);
+            if (current.hasRemaining()) {
+                //socket缓冲区满了，等下次可写时再继续
+                return;
+            }
+        }
+    }
+
+    /**
+     * 重置发送进度，不释放 buffer
+     */
+    @Override
+    public void close() {
+        index = 0;
+        current = null;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getContent() {
+        return new InputStream() {
+
+            private int next;
+
+            private ByteBuffer buffer;
+
+            @Override
+            public int read() {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int len) {
+                while (buffer == null || !buffer.hasRemaining()) {
+                    if (next == buffers.size()) {
+                        return -1;
+                    }
+                    buffer = buffers.get(next++).duplicate();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.get(bytes, offset, n);
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] chunk = new byte[8192];
+        for (ByteBuffer buffer : buffers) {
+            ByteBuffer source = buffer.duplicate();
+            while (source.hasRemaining()) {
+                int n = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
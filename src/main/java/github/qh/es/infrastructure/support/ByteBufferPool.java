@@ -0,0 +1,77 @@
+package github.qh.es.infrastructure.support;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-17- 2:10 下午
+ * @email quhao.mi@foxmail.com
+ * 固定大小的 ByteBuffer 池，可选堆外内存。
+ * 归还的 buffer 超过上限后直接丢给GC，池本身占用的内存不会超过 maxPooled * chunkBytes。
+ */
+public class ByteBufferPool {
+
+    private final int chunkBytes;
+
+    private final int maxPooled;
+
+    private final boolean direct;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final AtomicLong allocated = new AtomicLong();
+
+    private final AtomicLong reused = new AtomicLong();
+
+    public ByteBufferPool(int chunkBytes, int maxPooled, boolean direct) {
+        this.chunkBytes = chunkBytes;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            reused.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        allocated.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(chunkBytes) : ByteBuffer.allocate(chunkBytes);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != chunkBytes || buffer.isDirect() != direct) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            pool.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public int getChunkBytes() {
+        return chunkBytes;
+    }
+
+    /**
+     * 新分配的 buffer 数
+     */
+    public long allocatedCount() {
+        return allocated.get();
+    }
+
+    /**
+     * 从池里复用的次数
+     */
+    public long reusedCount() {
+        return reused.get();
+    }
+}
@@ -0,0 +1,147 @@
+package github.qh.es.infrastructure.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-09- 2:30 下午
+ * @email quhao.mi@foxmail.com
+ * 调用方主动取消请求，用法和 Deadline 一样绑定在当前线程上：
+ * <pre>
+ * Cancellation cancellation = new Cancellation();
+ * try (Cancellation.Scope ignored = cancellation.attach()) {
+ *     client.searchAsync(request, RequestOptions.DEFAULT, listener);
+ * }
+ * //之后在任意线程
+ * cancellation.cancel();
+ * </pre>
+ * 1.EsHttpAsyncClient 把绑定期间发出的http请求登记到这里，cancel 时中止它们、丢弃连接，RestClient 不会换节点重试
+ * 2.已经取消后再发出的请求（比如 RestClient 的重试）直接以取消结束，不发出去
+ * 3.请求合并和批量发送的http请求是共享的，它们发送时会解除绑定，只有单独发出的请求会被中止
+ * 4.child() 创建子取消，父取消时子取消一起取消，子取消单独取消不影响父取消，用于只中止一次调用里的部分请求（比如对冲查询输掉的那个）
+ * es 7.2 的客户端没有 Cancellable，这里取消的是http请求本身，服务端已经开始执行的查询会继续执行完。
+ */
+public final class Cancellation {
+
+    private static final ThreadLocal<Cancellation> CURRENT = new ThreadLocal<>();
+
+    private List<Future<?>> futures = new ArrayList<>(1);
+
+    private boolean cancelled;
+
+    /**
+     * 子取消在父取消上登记的占位，父取消时以取消结束，子取消结束后正常完成，父取消就不再持有它
+     */
+    private CompletableFuture<Void> parentLink;
+
+    /**
+     * 当前线程绑定的取消，没有绑定时为空
+     */
+    public static Cancellation current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * 解除当前线程的绑定，发送共享的请求时使用，关闭 Scope 时恢复
+     */
+    public static Scope detach() {
+        Cancellation previous = CURRENT.get();
+        if (previous == null) {
+            return new Scope(null);
+        }
+        CURRENT.remove();
+        return new Scope(previous);
+    }
+
+    /**
+     * 绑定到当前线程，关闭 Scope 时恢复之前的绑定
+     */
+    public Scope attach() {
+        Cancellation previous = CURRENT.get();
+        CURRENT.set(this);
+        return new Scope(previous);
+    }
+
+    /**
+     * 创建子取消，当前已经取消时子取消也是已取消的
+     */
+    public Cancellation child() {
+        Cancellation child = new Cancellation();
+        CompletableFuture<Void> link = new CompletableFuture<>();
+        link.whenComplete((ignored, e) -> {
+            if (e != null) {
+                child.cancel();
+            }
+        });
+        child.parentLink = link;
+        register(link);
+        return child;
+    }
+
+    /**
+     * 取消已经登记的请求，可以重复调用
+     */
+    public void cancel() {
+        List<Future<?>> registered;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            registered = futures;
+            futures = null;
+        }
+        for (Future<?> future : registered) {
+            future.cancel(true);
+        }
+        release();
+    }
+
+    /**
+     * 子取消不再使用时调用，从父取消上解除登记；不是子取消时什么都不做
+     */
+    public void release() {
+        if (parentLink != null) {
+            parentLink.complete(null);
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 登记一个已经发出的请求，已经取消时马上中止它
+     */
+    void register(Future<?> future) {
+        synchronized (this) {
+            if (!cancelled) {
+                futures.removeIf(Future::isDone);
+                futures.add(future);
+                return;
+            }
+        }
+        future.cancel(true);
+    }
+
+    public static final class Scope implements AutoCloseable {
+
+        private final Cancellation previous;
+
+        private Scope(Cancellation previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package github.qh.es.infrastructure.support;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-25- 10:30 上午
+ * @email quhao.mi@foxmail.com
+ * 合并相同请求的指标快照
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class CoalescerMetrics {
+
+    /**
+     * 真正发出去的请求数
+     */
+    private final long leaders;
+
+    /**
+     * 搭车等待别人结果的请求数
+     */
+    private final long followers;
+
+    /**
+     * 因为超过限制或者不能合并而单独发送的请求数
+     */
+    private final long bypassed;
+
+    /**
+     * 当前在途的不同请求数
+     */
+    private final int inFlight;
+
+    /**
+     * 被合并掉的请求占比
+     */
+    public double getCoalescedRatio() {
+        long total = leaders + followers + bypassed;
+        return total == 0 ? 0 : (double) followers / total;
+    }
+}
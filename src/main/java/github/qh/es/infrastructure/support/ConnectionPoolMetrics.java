@@ -0,0 +1,49 @@
+package github.qh.es.infrastructure.support;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-20- 10:40 上午
+ * @email quhao.mi@foxmail.com
+ * 连接池指标快照
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class ConnectionPoolMetrics {
+
+    /**
+     * 正在使用的连接数
+     */
+    private final int leased;
+
+    /**
+     * 等待连接的请求数，大于0说明连接池不够用
+     */
+    private final int pending;
+
+    /**
+     * 空闲的连接数
+     */
+    private final int available;
+
+    /**
+     * 最大连接数
+     */
+    private final int max;
+
+    public static ConnectionPoolMetrics of(PoolStats stats) {
+        return new ConnectionPoolMetrics(stats.getLeased(), stats.getPending(), stats.getAvailable(), stats.getMax());
+    }
+
+    /**
+     * 使用率
+     */
+    public double getUtilisation() {
+        return max == 0 ? 0 : (double) leased / max;
+    }
+}
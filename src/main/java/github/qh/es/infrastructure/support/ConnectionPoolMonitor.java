@@ -0,0 +1,74 @@
+package github.qh.es.infrastructure.support;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-20- 10:50 上午
+ * @email quhao.mi@foxmail.com
+ * 连接池监控，可以获取总体和每个节点的 leased/pending/available。
+ * 开启定时打印后，有请求在等待连接时打warn日志，说明瓶颈在连接池而不是es
+ */
+@Slf4j
+public class ConnectionPoolMonitor implements Closeable {
+
+    private final PoolingNHttpClientConnectionManager connectionManager;
+
+    private final ScheduledExecutorService scheduler;
+
+    public ConnectionPoolMonitor(PoolingNHttpClientConnectionManager connectionManager, Duration logInterval) {
+        this.connectionManager = connectionManager;
+        if (logInterval.isZero() || logInterval.isNegative()) {
+            this.scheduler = null;
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "es-pool-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::logMetrics, logInterval.toMillis(), logInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    public ConnectionPoolMetrics metrics() {
+        return ConnectionPoolMetrics.of(connectionManager.getTotalStats());
+    }
+
+    /**
+     * 每个节点的连接池指标，key是节点地址
+     */
+    public Map<String, ConnectionPoolMetrics> routeMetrics() {
+        Map<String, ConnectionPoolMetrics> metrics = new LinkedHashMap<>();
+        for (HttpRoute route : connectionManager.getRoutes()) {
+            metrics.put(route.getTargetHost().toURI(), ConnectionPoolMetrics.of(connectionManager.getStats(route)));
+        }
+        return metrics;
+    }
+
+    private void logMetrics() {
+        ConnectionPoolMetrics metrics = metrics();
+        if (metrics.getPending() > 0) {
+            log.warn("es连接池不够用，{}，各节点 {}", metrics, routeMetrics());
+        } else {
+            log.debug("es连接池 {}", metrics);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package github.qh.es.infrastructure.support;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-08- 10:10 上午
+ * @email quhao.mi@foxmail.com
+ * 一次调用的截止时间。调用方设置一个总的时间预算，之后经过的各层都从剩余时间推算自己的超时：
+ * <pre>
+ * try (Deadline.Scope ignored = Deadline.after(Duration.ofMillis(300)).attach()) {
+ *     searchApiRepository.search(request);
+ * }
+ * </pre>
+ * 1.仓库把查询、写入请求的服务端 timeout 设置成剩余时间的90%（见 serverTimeout），留出网络传输和解析响应的时间
+ * 2.EsHttpAsyncClient 在截止时间到达时中止还没完成的http请求，调用方收到408；
+ * RestClient 换节点重试时只用剩余的时间，已经过期时不再重试
+ * 3.带截止时间的请求不参与请求合并和批量发送，它们的http请求是共享的，不能按某一个调用方的时间中止
+ * 截止时间绑定在当前线程上，嵌套设置时取较早的一个。
+ */
+public final class Deadline {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    /**
+     * 服务端超时占剩余时间的比例
+     */
+    private static final double SERVER_SHARE = 0.9;
+
+    private final long deadlineNanos;
+
+    private Deadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public static Deadline after(Duration budget) {
+        return after(budget.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    public static Deadline after(long budget, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(budget));
+    }
+
+    /**
+     * 当前线程的截止时间，没有设置时为空
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * 服务端超时：没有截止时间时就是 configured，否则取 configured 和剩余时间的90% 里较小的，最少1毫秒
+     *
+     * @param configured 请求上原来的超时，可以为空
+     */
+    public static TimeValue serverTimeout(TimeValue configured) {
+        Deadline deadline = current();
+        if (deadline == null) {
+            return configured;
+        }
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis((long) (deadline.remainingNanos() * SERVER_SHARE)));
+        if (configured != null && configured.millis() >= 0 && configured.millis() < millis) {
+            return configured;
+        }
+        return TimeValue.timeValueMillis(millis);
+    }
+
+    public long remainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    public boolean isExpired() {
+        return remainingNanos() <= 0;
+    }
+
+    /**
+     * 已经过期时抛出 ElasticsearchTimeoutException
+     */
+    public void check() {
+        if (isExpired()) {
+            throw new ElasticsearchTimeoutException("deadline exceeded");
+        }
+    }
+
+    /**
+     * 绑定到当前线程，关闭 Scope 时恢复之前的截止时间
+     */
+    public Scope attach() {
+        Deadline previous = CURRENT.get();
+        CURRENT.set(previous != null && previous.deadlineNanos - deadlineNanos < 0 ? previous : this);
+        return new Scope(previous);
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline[remaining=" + TimeUnit.NANOSECONDS.toMillis(remainingNanos()) + "ms]";
+    }
+
+    public static final class Scope implements AutoCloseable {
+
+        private final Deadline previous;
+
+        private Scope(Deadline previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+}
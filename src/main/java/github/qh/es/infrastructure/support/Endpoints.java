@@ -0,0 +1,44 @@
+package github.qh.es.infrastructure.support;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-02- 4:20 下午
+ * @email quhao.mi@foxmail.com
+ * 直接用 RestClient 发请求时拼接路径，和 RestHighLevelClient 的 EndpointBuilder 一样对每一段做url编码：
+ * 索引名、id里的 / # ? % 空格等字符会被编码（非ASCII字符和 EndpointBuilder 一样原样保留），空的段跳过，多个索引用逗号连接
+ */
+public final class Endpoints {
+
+    private Endpoints() {
+    }
+
+    public static String endpoint(String... parts) {
+        StringBuilder endpoint = new StringBuilder();
+        for (String part : parts) {
+            if (part != null && !part.isEmpty()) {
+                endpoint.append('/').append(encodePart(part));
+            }
+        }
+        return endpoint.length() == 0 ? "/" : endpoint.toString();
+    }
+
+    /**
+     * 多个索引（或者type）连成一段，为空时返回null，由 endpoint 跳过
+     */
+    public static String join(String[] values) {
+        return values == null || values.length == 0 ? null : String.join(",", values);
+    }
+
+    private static String encodePart(String part) {
+        try {
+            //URI 按路径的规则编码，但是不会编码路径里的 /，这里还要把它当作普通字符编码
+            return new URI(null, null, null, -1, "/" + part, null, null).getRawPath().substring(1)
+                    .replaceAll("/", "%2F");
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Path part [" + part + "] couldn't be encoded", e);
+        }
+    }
+}
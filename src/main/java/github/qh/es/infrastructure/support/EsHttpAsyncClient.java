@@ -0,0 +1,384 @@
+package github.qh.es.infrastructure.support;
+
+import github.qh.es.infrastructure.client.GradientConcurrencyLimiter;
+import github.qh.es.infrastructure.client.IndexCircuitBreaker;
+import github.qh.es.infrastructure.client.NodeStatsTracker;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-20- 11:20 上午
+ * @email quhao.mi@foxmail.com
+ * RestClient 底层的异步http客户端的包装，RestClient 的所有请求（包括 RestHighLevelClient 发出的）都经过这里。
+ * RestClient 在这一层之前就已经根据 entity 创建好了 HttpAsyncRequestProducer，
+ * 所以请求拦截器里替换 entity 是不生效的，需要改写请求体的功能（比如gzip压缩）放在这里包装 producer。
+ * 每个请求的目标节点、耗时和结果也在这里记录到 NodeStatsTracker，用于按负载选择节点。
+ * 并发限制（GradientConcurrencyLimiter）和按索引熔断（IndexCircuitBreaker）也在这里：被拒绝的请求不发出去，
+ * 直接返回和es线程池满时一样的429响应。不能返回异常或者503，RestClient 会把节点标记为不可用并换节点重试；
+ * 429 不会重试，RestHighLevelClient 转成 ElasticsearchStatusException(TOO_MANY_REQUESTS)，批量写入等已有的429处理逻辑照常生效。
+ * 当前线程设置了截止时间（Deadline）时，到时间还没完成的请求被中止，返回408（REQUEST_TIMEOUT）。
+ * 当前线程绑定了取消（Cancellation）时，发出的请求登记到它上面，调用方取消时中止。
+ * 通过 {@link EsHttpAsyncClientBuilder} 创建。
+ */
+public class EsHttpAsyncClient extends CloseableHttpAsyncClient {
+
+    private final CloseableHttpAsyncClient delegate;
+
+    /**
+     * 压缩请求体的最小大小，小于0表示不压缩
+     */
+    private final int compressionMinBytes;
+
+    /**
+     * 为空表示不记录
+     */
+    private final NodeStatsTracker nodeStats;
+
+    /**
+     * 为空表示不限制
+     */
+    private final GradientConcurrencyLimiter limiter;
+
+    /**
+     * 为空表示不熔断
+     */
+    private final IndexCircuitBreaker circuitBreaker;
+
+    /**
+     * 到截止时间时中止请求
+     */
+    private final ScheduledThreadPoolExecutor timeouts;
+
+    public EsHttpAsyncClient(CloseableHttpAsyncClient delegate, int compressionMinBytes, NodeStatsTracker nodeStats) {
+        this(delegate, compressionMinBytes, nodeStats, null, null);
+    }
+
+    public EsHttpAsyncClient(CloseableHttpAsyncClient delegate, int compressionMinBytes, NodeStatsTracker nodeStats,
+                             GradientConcurrencyLimiter limiter, IndexCircuitBreaker circuitBreaker) {
+        this.delegate = delegate;
+        this.compressionMinBytes = compressionMinBytes;
+        this.nodeStats = nodeStats;
+        this.limiter = limiter;
+        this.circuitBreaker = circuitBreaker;
+        this.timeouts = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "es-request-deadline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timeouts.setRemoveOnCancelPolicy(true);
+        if (nodeStats != null) {
+            nodeStats.setProbe(this::probe);
+        }
+    }
+
+    @Override
+    public <T> Future<T> execute(HttpAsyncRequestProducer requestProducer,
+                                 HttpAsyncResponseConsumer<T> responseConsumer,
+                                 HttpContext context,
+                                 FutureCallback<T> callback) {
+        Deadline deadline = Deadline.current();
+        if (deadline != null && deadline.isExpired()) {
+            return reject(requestProducer, responseConsumer, callback, 408, "timeout_exception", "deadline exceeded");
+        }
+        Cancellation cancellation = Cancellation.current();
+        if (cancellation != null && cancellation.isCancelled()) {
+            return cancelled(requestProducer, responseConsumer, callback);
+        }
+        String index = circuitBreaker == null ? null : index(requestProducer);
+        if (circuitBreaker != null && !circuitBreaker.allow(index)) {
+            return reject(requestProducer, responseConsumer, callback, 429, "circuit_breaking_exception",
+                    "circuit breaker is open for index [" + index + "]");
+        }
+        if (limiter != null && !limiter.tryAcquire()) {
+            if (circuitBreaker != null) {
+                circuitBreaker.onCancelled(index);
+            }
+            return reject(requestProducer, responseConsumer, callback, 429, "es_rejected_execution_exception",
+                    "rejected by client concurrency limit [" + limiter.getLimit() + "]");
+        }
+        HttpAsyncRequestProducer producer = requestProducer;
+        if (compressionMinBytes >= 0) {
+            producer = new GzipRequestProducer(producer, compressionMinBytes);
+        }
+        if (nodeStats == null && limiter == null && circuitBreaker == null && deadline == null && cancellation == null) {
+            return delegate.execute(producer, responseConsumer, context, callback);
+        }
+        HttpHost host = requestProducer.getTarget();
+        long start = nodeStats == null ? System.nanoTime() : nodeStats.onRequestStart(host);
+        TrackedCallback<T> tracked = new TrackedCallback<>(callback, host, index, start, deadline, cancellation);
+        Future<T> future;
+        try {
+            future = delegate.execute(producer, responseConsumer, context, tracked);
+        } catch (RuntimeException e) {
+            //http客户端已经关闭等情况下直接抛异常，不会回调，占用的名额在这里还回去
+            tracked.release();
+            throw e;
+        }
+        tracked.scheduleTimeout(future);
+        if (cancellation != null) {
+            cancellation.register(future);
+        }
+        return future;
+    }
+
+    private static int status(Object result) {
+        return result instanceof HttpResponse ? ((HttpResponse) result).getStatusLine().getStatusCode() : 200;
+    }
+
+    /**
+     * 和 RestClient 一样，502/503/504 表示节点不可用
+     */
+    private static boolean isUnavailable(int status) {
+        return status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * 路径的第一段，以_开头（/_search、/_bulk、/_cluster/health 等）时为空
+     */
+    static String index(HttpAsyncRequestProducer producer) {
+        String uri;
+        try {
+            uri = producer.generateRequest().getRequestLine().getUri();
+        } catch (IOException | HttpException e) {
+            return null;
+        }
+        int start = uri.startsWith("/") ? 1 : 0;
+        int end = start;
+        while (end < uri.length() && uri.charAt(end) != '/' && uri.charAt(end) != '?') {
+            end++;
+        }
+        if (end == start || uri.charAt(start) == '_') {
+            return null;
+        }
+        return uri.substring(start, end);
+    }
+
+    /**
+     * 不发请求，直接返回和es拒绝请求时格式一样的错误响应
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Future<T> reject(HttpAsyncRequestProducer producer, HttpAsyncResponseConsumer<T> consumer,
+                                        FutureCallback<T> callback, int status, String type, String reason) {
+        closeQuietly(producer);
+        closeQuietly(consumer);
+        BasicFuture<T> future = new BasicFuture<>(callback);
+        //RestClient 的 consumer 产出的都是 HttpResponse
+        future.completed((T) errorResponse(status, type, reason));
+        return future;
+    }
+
+    /**
+     * 调用方已经取消，不发请求，直接以取消结束
+     */
+    private static <T> Future<T> cancelled(HttpAsyncRequestProducer producer, HttpAsyncResponseConsumer<T> consumer,
+                                           FutureCallback<T> callback) {
+        closeQuietly(producer);
+        closeQuietly(consumer);
+        BasicFuture<T> future = new BasicFuture<>(callback);
+        future.cancel(true);
+        return future;
+    }
+
+    private static HttpResponse errorResponse(int status, String type, String reason) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status,
+                status == 408 ? "Request Timeout" : "Too Many Requests");
+        response.setEntity(new NStringEntity("{\"error\":{\"root_cause\":[{\"type\":\"" + type + "\",\"reason\":\""
+                + reason + "\"}],\"type\":\"" + type + "\",\"reason\":\"" + reason + "\"},\"status\":" + status + "}",
+                ContentType.APPLICATION_JSON));
+        return response;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            //没有发出去的请求，关闭失败不影响结果
+        }
+    }
+
+    /**
+     * 探测节点是否恢复，直接发给被包装的客户端，不计入节点统计
+     */
+    private void probe(HttpHost host, Consumer<Boolean> result) {
+        delegate.execute(HttpAsyncMethods.create(host, new HttpGet("/")), HttpAsyncMethods.createConsumer(),
+                new FutureCallback<HttpResponse>() {
+                    @Override
+                    public void completed(HttpResponse response) {
+                        result.accept(response.getStatusLine().getStatusCode() < 500);
+                    }
+
+                    @Override
+                    public void failed(Exception ex) {
+                        result.accept(false);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        result.accept(false);
+                    }
+                });
+    }
+
+    @Override
+    public boolean isRunning() {
+        return delegate.isRunning();
+    }
+
+    @Override
+    public void start() {
+        delegate.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        timeouts.shutdownNow();
+        delegate.close();
+    }
+
+    /**
+     * 记录请求结果，到截止时间时中止请求
+     */
+    private final class TrackedCallback<T> implements FutureCallback<T> {
+
+        private final FutureCallback<T> callback;
+
+        private final HttpHost host;
+
+        private final String index;
+
+        private final long start;
+
+        private final Deadline deadline;
+
+        private final Cancellation cancellation;
+
+        private volatile boolean timedOut;
+
+        private volatile ScheduledFuture<?> timer;
+
+        private TrackedCallback(FutureCallback<T> callback, HttpHost host, String index, long start,
+                                Deadline deadline, Cancellation cancellation) {
+            this.callback = callback;
+            this.host = host;
+            this.index = index;
+            this.start = start;
+            this.deadline = deadline;
+            this.cancellation = cancellation;
+        }
+
+        private void scheduleTimeout(Future<T> future) {
+            if (deadline == null) {
+                return;
+            }
+            //取消 http 客户端返回的 future 会中止请求、丢弃连接，然后回调 cancelled
+            timer = timeouts.schedule(() -> {
+                timedOut = true;
+                future.cancel(true);
+            }, deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void completed(T result) {
+            cancelTimeout();
+            int status = status(result);
+            if (nodeStats != null) {
+                nodeStats.onRequestEnd(host, start, !isUnavailable(status));
+            }
+            if (limiter != null) {
+                limiter.onComplete(System.nanoTime() - start, status == 429 || isUnavailable(status));
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.onResult(index, status != 429 && status < 500);
+            }
+            deliver(() -> callback.completed(result));
+        }
+
+        @Override
+        public void failed(Exception ex) {
+            cancelTimeout();
+            if (nodeStats != null) {
+                nodeStats.onRequestEnd(host, start, false);
+            }
+            if (limiter != null) {
+                limiter.onComplete(System.nanoTime() - start, true);
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.onResult(index, false);
+            }
+            deliver(() -> callback.failed(ex));
+        }
+
+        /**
+         * 到截止时间或者被调用方取消而中止的请求不算节点或索引的失败，也不作为并发限制的样本
+         */
+        @Override
+        @SuppressWarnings("unchecked")
+        public void cancelled() {
+            cancelTimeout();
+            release();
+            if (timedOut) {
+                //不能让 RestClient 收到 cancelled，它会变成没有类型的 ExecutionException
+                deliver(() -> callback.completed((T) errorResponse(408, "timeout_exception", "deadline exceeded")));
+            } else {
+                deliver(() -> callback.cancelled());
+            }
+        }
+
+        /**
+         * 请求没有结果，只还回在途数、并发名额和熔断器的探测名额
+         */
+        private void release() {
+            if (nodeStats != null) {
+                nodeStats.onRequestCancelled(host);
+            }
+            if (limiter != null) {
+                limiter.onCancelled();
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.onCancelled(index);
+            }
+        }
+
+        private void cancelTimeout() {
+            ScheduledFuture<?> current = timer;
+            if (current != null) {
+                current.cancel(false);
+            }
+        }
+
+        /**
+         * RestClient 在回调里换节点重试，重新绑定截止时间和取消，重试的请求只用剩余的时间，取消时一起中止
+         */
+        private void deliver(Runnable action) {
+            if (callback == null) {
+                return;
+            }
+            try (Deadline.Scope ignored = deadline == null ? null : deadline.attach();
+                 Cancellation.Scope ignored2 = cancellation == null ? null : cancellation.attach()) {
+                action.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package github.qh.es.infrastructure.support;
+
+import github.qh.es.infrastructure.client.GradientConcurrencyLimiter;
+import github.qh.es.infrastructure.client.IndexCircuitBreaker;
+import github.qh.es.infrastructure.client.NodeStatsTracker;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-20- 11:30 上午
+ * @email quhao.mi@foxmail.com
+ * 在 RestClientBuilder#setHttpClientConfigCallback 里返回，让 RestClient 使用包装后的 EsHttpAsyncClient：
+ * <pre>
+ * builder.setHttpClientConfigCallback(httpClientBuilder ->
+ *         new EsHttpAsyncClientBuilder(httpClientBuilder.setXxx(...)).compression(1024).nodeStats(tracker))
+ * </pre>
+ * 配置都设置在 RestClient 传进来的 builder 上（保留它的默认配置），这个类只负责在 build 时包装结果，
+ * 直接调用这个类继承来的 setXxx 方法是不生效的。
+ */
+public class EsHttpAsyncClientBuilder extends HttpAsyncClientBuilder {
+
+    private final HttpAsyncClientBuilder delegate;
+
+    private int compressionMinBytes = -1;
+
+    private NodeStatsTracker nodeStats;
+
+    private GradientConcurrencyLimiter limiter;
+
+    private IndexCircuitBreaker circuitBreaker;
+
+    public EsHttpAsyncClientBuilder(HttpAsyncClientBuilder delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * 压缩请求体
+     *
+     * @param minBytes 请求体小于这个大小时不压缩，小于0表示不压缩
+     */
+    public EsHttpAsyncClientBuilder compression(int minBytes) {
+        this.compressionMinBytes = minBytes;
+        return this;
+    }
+
+    /**
+     * 记录每个节点的负载和失败情况
+     */
+    public EsHttpAsyncClientBuilder nodeStats(NodeStatsTracker nodeStats) {
+        this.nodeStats = nodeStats;
+        return this;
+    }
+
+    /**
+     * 限制整个客户端的在途请求数，超过上限的请求直接返回429
+     */
+    public EsHttpAsyncClientBuilder limiter(GradientConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+        return this;
+    }
+
+    /**
+     * 按索引熔断，熔断期间的请求直接返回429
+     */
+    public EsHttpAsyncClientBuilder circuitBreaker(IndexCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    @Override
+    public CloseableHttpAsyncClient build() {
+        return new EsHttpAsyncClient(delegate.build(), compressionMinBytes, nodeStats, limiter, circuitBreaker);
+    }
+}
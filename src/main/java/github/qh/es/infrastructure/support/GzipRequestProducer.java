@@ -0,0 +1,118 @@
+package github.qh.es.infrastructure.support;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-20- 11:40 上午
+ * @email quhao.mi@foxmail.com
+ * 生成请求时把请求体压缩成gzip，es会根据 Content-Encoding 自动解压。
+ * bulk请求的文档重复度高，压缩后通常只剩几分之一，网络是瓶颈时用cpu换带宽。
+ * 已经带 Content-Encoding 的、长度小于阈值的请求体不压缩。
+ */
+class GzipRequestProducer implements HttpAsyncRequestProducer {
+
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+
+    private final HttpAsyncRequestProducer delegate;
+
+    private final int minBytes;
+
+    /**
+     * 压缩后的请求体，为空表示没有压缩，直接由 delegate 发送
+     */
+    private NByteArrayEntity compressed;
+
+    GzipRequestProducer(HttpAsyncRequestProducer delegate, int minBytes) {
+        this.delegate = delegate;
+        this.minBytes = minBytes;
+    }
+
+    @Override
+    public HttpHost getTarget() {
+        return delegate.getTarget();
+    }
+
+    @Override
+    public HttpRequest generateRequest() throws IOException, HttpException {
+        HttpRequest request = delegate.generateRequest();
+        if (compressed != null || !(request instanceof HttpEntityEnclosingRequest)
+                || request.containsHeader(CONTENT_ENCODING)) {
+            return request;
+        }
+        HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+        HttpEntity entity = enclosing.getEntity();
+        if (entity == null || entity.getContentEncoding() != null
+                || (entity.getContentLength() >= 0 && entity.getContentLength() < minBytes)) {
+            return request;
+        }
+        long length = entity.getContentLength();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? (int) Math.min(length / 4, 1 << 20) : 1024);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192)) {
+            entity.writeTo(gzip);
+        }
+        NByteArrayEntity gzipped = new NByteArrayEntity(out.toByteArray());
+        Header contentType = entity.getContentType();
+        if (contentType != null) {
+            gzipped.setContentType(contentType);
+        }
+        gzipped.setContentEncoding("gzip");
+        enclosing.setEntity(gzipped);
+        compressed = gzipped;
+        return request;
+    }
+
+    @Override
+    public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+        if (compressed != null) {
+            compressed.produceContent(encoder, ioControl);
+        } else {
+            delegate.produceContent(encoder, ioControl);
+        }
+    }
+
+    @Override
+    public void requestCompleted(HttpContext context) {
+        delegate.requestCompleted(context);
+    }
+
+    @Override
+    public void failed(Exception ex) {
+        delegate.failed(ex);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return delegate.isRepeatable();
+    }
+
+    @Override
+    public void resetRequest() throws IOException {
+        if (compressed != null) {
+            compressed.close();
+        }
+        delegate.resetRequest();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (compressed != null) {
+            compressed.close();
+        }
+        delegate.close();
+    }
+}
@@ -0,0 +1,217 @@
+package github.qh.es.infrastructure.support;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-28- 9:40 上午
+ * @email quhao.mi@foxmail.com
+ * 把短时间内到达的多个请求攒成一批发送，比如多个 search 合成一个 _msearch、多个 get 合成一个 _mget。
+ * 1.一批的第一个请求到达后最多等待 window，或者攒够 maxBatchSize 个时立即发送
+ * 2.batchFunction 负责发送一批请求并逐个完成 Item，它抛出异常时这批请求全部失败
+ * 3.window 为0时不攒批，每个请求单独发送
+ * 攒满时在调用线程发送，等待超时时在定时线程发送，batchFunction 不要阻塞。
+ *
+ * @param <R> 请求
+ * @param <V> 响应
+ */
+@Slf4j
+public class MicroBatcher<R, V> implements Closeable {
+
+    private final Consumer<List<Item<R, V>>> batchFunction;
+
+    private final int maxBatchSize;
+
+    private final long windowNanos;
+
+    private final ScheduledExecutorService scheduler;
+
+    private List<Item<R, V>> batch = new ArrayList<>();
+
+    /**
+     * 当前这一批的编号，定时任务只发送自己调度的那一批
+     */
+    private long batchSequence;
+
+    private boolean closed;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong items = new AtomicLong();
+
+    public MicroBatcher(String name, Consumer<List<Item<R, V>>> batchFunction, int maxBatchSize, long window,
+                        TimeUnit unit) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("max batch size must be >= 1 but was " + maxBatchSize);
+        }
+        this.batchFunction = batchFunction;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = unit.toNanos(window);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "es-" + name + "-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 提交一个请求
+     */
+    public CompletableFuture<V> submit(R request) {
+        Item<R, V> item = new Item<>(request);
+        List<Item<R, V>> full = null;
+        synchronized (this) {
+            if (closed) {
+                item.fail(new EsRejectedExecutionException("batcher already closed", true));
+                return item.future;
+            }
+            batch.add(item);
+            if (batch.size() >= maxBatchSize || windowNanos <= 0) {
+                full = takeBatch();
+            } else if (batch.size() == 1) {
+                long sequence = batchSequence;
+                scheduler.schedule(() -> flush(sequence), windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (full != null) {
+            dispatch(full);
+        }
+        return item.future;
+    }
+
+    public void submit(R request, ActionListener<V> listener) {
+        submit(request).whenComplete((response, failure) -> {
+            if (failure == null) {
+                listener.onResponse(response);
+            } else {
+                listener.onFailure(failure instanceof Exception ? (Exception) failure : new ElasticsearchException(failure));
+            }
+        });
+    }
+
+    /**
+     * 提交一个请求并等待结果
+     */
+    public V execute(R request) throws IOException {
+        try {
+            return submit(request).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for batched request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ElasticsearchException(cause);
+        }
+    }
+
+    /**
+     * 发送过的批次数
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * 平均每批的请求数
+     */
+    public double getAverageBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0 : (double) items.get() / count;
+    }
+
+    /**
+     * 发送剩余的请求，之后提交的请求直接失败
+     */
+    @Override
+    public void close() {
+        List<Item<R, V>> remaining;
+        synchronized (this) {
+            closed = true;
+            remaining = batch.isEmpty() ? null : takeBatch();
+        }
+        if (remaining != null) {
+            dispatch(remaining);
+        }
+        scheduler.shutdown();
+    }
+
+    private void flush(long sequence) {
+        List<Item<R, V>> due;
+        synchronized (this) {
+            if (sequence != batchSequence || batch.isEmpty()) {
+                //这一批已经因为攒满被发送了
+                return;
+            }
+            due = takeBatch();
+        }
+        dispatch(due);
+    }
+
+    private List<Item<R, V>> takeBatch() {
+        List<Item<R, V>> taken = batch;
+        batch = new ArrayList<>(Math.min(maxBatchSize, 64));
+        batchSequence++;
+        return taken;
+    }
+
+    private void dispatch(List<Item<R, V>> due) {
+        batches.incrementAndGet();
+        items.addAndGet(due.size());
+        //一批请求是共享的，在提交线程上发送时解除取消（Cancellation）的绑定
+        try (Cancellation.Scope ignored = Cancellation.detach()) {
+            batchFunction.accept(due);
+        } catch (RuntimeException e) {
+            log.warn("failed to dispatch batch of {} requests", due.size(), e);
+            for (Item<R, V> item : due) {
+                item.fail(e);
+            }
+        }
+    }
+
+    /**
+     * 一批中的一个请求
+     */
+    public static final class Item<R, V> {
+
+        private final R request;
+
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+
+        private Item(R request) {
+            this.request = request;
+        }
+
+        public R getRequest() {
+            return request;
+        }
+
+        public void complete(V response) {
+            future.complete(response);
+        }
+
+        public void fail(Exception e) {
+            future.completeExceptionally(e);
+        }
+    }
+}
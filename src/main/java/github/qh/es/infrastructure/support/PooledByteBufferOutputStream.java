@@ -0,0 +1,89 @@
+package github.qh.es.infrastructure.support;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-17- 2:30 下午
+ * @email quhao.mi@foxmail.com
+ * 写入池化 buffer 链的输出流，写满一块再从池里取下一块，不会像 ByteArrayOutputStream 那样扩容拷贝。
+ * 用完后必须调用 {@link #release()} 把 buffer 还回池里。
+ */
+public class PooledByteBufferOutputStream extends OutputStream {
+
+    private final ByteBufferPool pool;
+
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+
+    private ByteBuffer current;
+
+    private long size;
+
+    public PooledByteBufferOutputStream(ByteBufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining().put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer buffer = ensureRemaining();
+            int n = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+            size += n;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * 已写入数据的只读视图，每个元素 position=0、limit=写入长度
+     */
+    public List<ByteBuffer> buffers() {
+        List<ByteBuffer> views = new ArrayList<>(buffers.size());
+        for (ByteBuffer buffer : buffers) {
+            ByteBuffer view = buffer.duplicate();
+            view.flip();
+            views.add(view.asReadOnlyBuffer());
+        }
+        return views;
+    }
+
+    /**
+     * 把所有 buffer 还回池里，之后不能再使用
+     */
+    public void release() {
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        buffers.clear();
+        current = null;
+    }
+
+    /**
+     * 关闭时不释放 buffer，数据还要交给http客户端发送
+     */
+    @Override
+    public void close() {
+    }
+
+    private ByteBuffer ensureRemaining() {
+        if (current == null || !current.hasRemaining()) {
+            current = pool.acquire();
+            buffers.add(current);
+        }
+        return current;
+    }
+}
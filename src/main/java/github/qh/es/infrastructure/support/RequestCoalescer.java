@@ -0,0 +1,182 @@
+package github.qh.es.infrastructure.support;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.CheckedFunction;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-25- 10:00 上午
+ * @email quhao.mi@foxmail.com
+ * 合并同一时刻的相同请求（single-flight）：热点key被大量线程同时查询时只发一次请求，结果分给所有等待的调用方。
+ * 1.key 由 keyFunction 计算，返回null的请求不合并
+ * 2.第一个到达的请求（leader）负责发送，之后相同key的请求（follower）等待它的结果，失败时一起失败
+ * 3.请求结束后马上移除，之后到达的请求会重新发送，不会拿到旧结果
+ * 4.在途的不同key超过 maxKeys，或者一个key的follower超过 maxFollowers 时不再合并，直接单独发送
+ * 所有调用方拿到的是同一个响应对象，调用方不要修改它。
+ * leader 发送时解除取消（Cancellation）的绑定，一个调用方取消不能中止其他调用方也在等的请求。
+ *
+ * @param <R> 请求
+ * @param <V> 响应
+ */
+public class RequestCoalescer<R, V> {
+
+    private final Function<R, ?> keyFunction;
+
+    private final int maxKeys;
+
+    private final int maxFollowers;
+
+    private final ConcurrentHashMap<Object, Call<V>> calls = new ConcurrentHashMap<>();
+
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong followers = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+
+    public RequestCoalescer(Function<R, ?> keyFunction, int maxKeys, int maxFollowers) {
+        this.keyFunction = keyFunction;
+        this.maxKeys = maxKeys;
+        this.maxFollowers = maxFollowers;
+    }
+
+    /**
+     * 同步执行，follower 在调用线程等待 leader 的结果
+     */
+    public V execute(R request, CheckedFunction<R, V, IOException> loader) throws IOException {
+        Object key = keyFunction.apply(request);
+        Call<V> call = new Call<>();
+        Call<V> acquired = acquire(key, call);
+        if (acquired == null) {
+            return loader.apply(request);
+        }
+        if (acquired != call) {
+            return acquired.await();
+        }
+        V response;
+        try (Cancellation.Scope ignored = Cancellation.detach()) {
+            response = loader.apply(request);
+        } catch (IOException | RuntimeException e) {
+            finish(key, call, null, e);
+            throw e;
+        } catch (Error e) {
+            finish(key, call, null, new RuntimeException(e));
+            throw e;
+        }
+        finish(key, call, response, null);
+        return response;
+    }
+
+    /**
+     * 异步执行，follower 的回调在 leader 的响应线程里执行
+     */
+    public void executeAsync(R request, ActionListener<V> listener, BiConsumer<R, ActionListener<V>> loader) {
+        Object key = keyFunction.apply(request);
+        Call<V> call = new Call<>();
+        Call<V> acquired = acquire(key, call);
+        if (acquired == null) {
+            loader.accept(request, listener);
+            return;
+        }
+        acquired.whenComplete(listener);
+        if (acquired != call) {
+            return;
+        }
+        try (Cancellation.Scope ignored = Cancellation.detach()) {
+            loader.accept(request, ActionListener.wrap(
+                    response -> finish(key, call, response, null),
+                    e -> finish(key, call, null, e)));
+        } catch (RuntimeException e) {
+            finish(key, call, null, e);
+        }
+    }
+
+    public CoalescerMetrics metrics() {
+        return new CoalescerMetrics(leaders.get(), followers.get(), bypassed.get(), calls.size());
+    }
+
+    /**
+     * 登记请求
+     *
+     * @param created 新建的调用，登记成功时作为 leader 返回
+     * @return 返回 created 时由调用方发送；返回其他调用时等待它的结果；返回null时不合并，单独发送
+     */
+    private Call<V> acquire(Object key, Call<V> created) {
+        if (key == null) {
+            bypassed.incrementAndGet();
+            return null;
+        }
+        Call<V> existing = calls.get(key);
+        if (existing == null) {
+            if (calls.size() >= maxKeys) {
+                bypassed.incrementAndGet();
+                return null;
+            }
+            existing = calls.putIfAbsent(key, created);
+            if (existing == null) {
+                leaders.incrementAndGet();
+                return created;
+            }
+        }
+        if (existing.followers.incrementAndGet() > maxFollowers) {
+            existing.followers.decrementAndGet();
+            bypassed.incrementAndGet();
+            return null;
+        }
+        followers.incrementAndGet();
+        return existing;
+    }
+
+    private void finish(Object key, Call<V> call, V response, Exception failure) {
+        //先移除再通知，之后到达的请求会重新发送
+        calls.remove(key, call);
+        if (failure == null) {
+            call.future.complete(response);
+        } else {
+            call.future.completeExceptionally(failure);
+        }
+    }
+
+    private static final class Call<V> {
+
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+
+        private final AtomicInteger followers = new AtomicInteger();
+
+        private V await() throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for coalesced request");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+
+        private void whenComplete(ActionListener<V> listener) {
+            future.whenComplete((response, failure) -> {
+                if (failure == null) {
+                    listener.onResponse(response);
+                } else {
+                    listener.onFailure(failure instanceof Exception ? (Exception) failure : new RuntimeException(failure));
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package github.qh.es.infrastructure.support;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.Strings;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-25- 9:40 上午
+ * @email quhao.mi@foxmail.com
+ * 请求的128位哈希，只要会影响返回结果的参数都参与计算，
+ * 用作查询结果缓存和合并相同请求（RequestCoalescer）的key
+ */
+public final class RequestKeys {
+
+    private RequestKeys() {
+    }
+
+    public static HashCode search(SearchRequest request) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString("search", StandardCharsets.UTF_8);
+        for (String index : request.indices()) {
+            putNullable(hasher, index);
+        }
+        hasher.putByte((byte) 1);
+        putNullable(hasher, request.preference());
+        putNullable(hasher, request.routing());
+        putNullable(hasher, request.searchType().name());
+        putNullable(hasher, request.indicesOptions().toString());
+        hasher.putBoolean(request.isCcsMinimizeRoundtrips());
+        putNullable(hasher, request.requestCache() == null ? null : request.requestCache().toString());
+        putNullable(hasher, request.scroll() == null ? null : request.scroll().toString());
+        putNullable(hasher, request.source() == null ? null : Strings.toString(request.source()));
+        return hasher.hash();
+    }
+
+    public static HashCode get(GetRequest request) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString("get", StandardCharsets.UTF_8);
+        putNullable(hasher, request.index());
+        putNullable(hasher, request.id());
+        putNullable(hasher, request.routing());
+        putNullable(hasher, request.preference());
+        hasher.putBoolean(request.realtime())
+                .putBoolean(request.refresh())
+                .putLong(request.version());
+        putNullable(hasher, request.versionType().name());
+        if (request.storedFields() != null) {
+            for (String field : request.storedFields()) {
+                putNullable(hasher, field);
+            }
+        }
+        hasher.putByte((byte) 1);
+        putNullable(hasher, request.fetchSourceContext() == null ? null : Strings.toString(request.fetchSourceContext()));
+        return hasher.hash();
+    }
+
+    private static void putNullable(Hasher hasher, String value) {
+        if (value == null) {
+            hasher.putByte((byte) 0);
+        } else {
+            hasher.putByte((byte) 1).putString(value, StandardCharsets.UTF_8);
+        }
+        hasher.putByte((byte) 0);
+    }
+}
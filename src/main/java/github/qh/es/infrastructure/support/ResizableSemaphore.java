@@ -0,0 +1,88 @@
+package github.qh.es.infrastructure.support;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author qu.hao
+ * @date 2021-05-06- 2:10 下午
+ * @email quhao.mi@foxmail.com
+ * 可以在运行时调整许可数量的信号量，用于动态控制并发请求数。
+ * 缩小许可时不会打断已经拿到许可的请求，只是让后续的请求等待到在途请求数降下来为止。
+ */
+public class ResizableSemaphore {
+
+    private final AdjustableSemaphore semaphore;
+
+    private int permits;
+
+    public ResizableSemaphore(int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("permits must be >= 1 but was " + permits);
+        }
+        this.semaphore = new AdjustableSemaphore(permits);
+        this.permits = permits;
+    }
+
+    public void acquire() throws InterruptedException {
+        semaphore.acquire();
+    }
+
+    public boolean tryAcquire() {
+        return semaphore.tryAcquire();
+    }
+
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return semaphore.tryAcquire(timeout, unit);
+    }
+
+    public void release() {
+        semaphore.release();
+    }
+
+    /**
+     * 调整许可总数
+     *
+     * @param newPermits 新的许可总数，最小为1
+     */
+    public synchronized void resize(int newPermits) {
+        if (newPermits < 1) {
+            throw new IllegalArgumentException("permits must be >= 1 but was " + newPermits);
+        }
+        int delta = newPermits - permits;
+        if (delta > 0) {
+            semaphore.release(delta);
+        } else if (delta < 0) {
+            semaphore.reducePermits(-delta);
+        }
+        permits = newPermits;
+    }
+
+    public synchronized int getPermits() {
+        return permits;
+    }
+
+    /**
+     * 当前已经被占用的许可数，缩容后可能短暂大于许可总数
+     */
+    public synchronized int getInUse() {
+        return permits - semaphore.availablePermits();
+    }
+
+    /**
+     * Semaphore#reducePermits 是protected的，这里暴露出来
+     */
+    private static final class AdjustableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        AdjustableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
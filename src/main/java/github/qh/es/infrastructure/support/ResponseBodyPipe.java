@@ -0,0 +1,174 @@
+package github.qh.es.infrastructure.support;
+
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-03- 10:00 上午
+ * @email quhao.mi@foxmail.com
+ * io线程写、解析线程读的有界管道。
+ * io线程把连接上收到的数据读进池化的块里，缓冲的数据超过上限时暂停读取连接（suspendInput），
+ * 解析线程读掉一半后恢复（requestInput），所以不管响应多大，内存里最多只有 maxBufferedBytes 加一个块。
+ * 读的一方提前关闭时，剩下的响应读出来直接丢掉：中断连接会让 RestClient 把节点标记为失败并重试请求。
+ */
+class ResponseBodyPipe extends InputStream {
+
+    private final ByteBufferPool pool;
+
+    private final int maxBufferedBytes;
+
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+
+    private int bufferedBytes;
+
+    private IOControl suspended;
+
+    private boolean completed;
+
+    private boolean closed;
+
+    private IOException failure;
+
+    ResponseBodyPipe(ByteBufferPool pool, int maxBufferedBytes) {
+        this.pool = pool;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * io线程调用，读取当前能读到的所有数据
+     */
+    void write(ContentDecoder decoder, IOControl ioControl) throws IOException {
+        while (true) {
+            ByteBuffer chunk = pool.acquire();
+            int read = decoder.read(chunk);
+            if (read > 0) {
+                chunk.flip();
+            }
+            synchronized (this) {
+                if (closed) {
+                    pool.release(chunk);
+                    if (decoder.isCompleted()) {
+                        complete();
+                        return;
+                    }
+                    if (read <= 0) {
+                        return;
+                    }
+                    continue;
+                }
+                if (read > 0) {
+                    chunks.addLast(chunk);
+                    bufferedBytes += read;
+                    notifyAll();
+                } else {
+                    pool.release(chunk);
+                }
+                if (decoder.isCompleted()) {
+                    complete();
+                    return;
+                }
+                if (read <= 0) {
+                    return;
+                }
+                if (bufferedBytes >= maxBufferedBytes) {
+                    ioControl.suspendInput();
+                    suspended = ioControl;
+                    return;
+                }
+            }
+        }
+    }
+
+    synchronized void complete() {
+        completed = true;
+        notifyAll();
+    }
+
+    /**
+     * 连接异常结束，已经完成的管道不受影响
+     */
+    synchronized void fail(IOException e) {
+        if (!completed && failure == null) {
+            failure = e;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int read = read(one, 0, 1);
+        return read < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (chunks.isEmpty()) {
+            if (failure != null) {
+                throw failure;
+            }
+            if (completed) {
+                return -1;
+            }
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for response data");
+            }
+        }
+        ByteBuffer chunk = chunks.peekFirst();
+        int read = Math.min(length, chunk.remaining());
+        chunk.get(bytes, offset, read);
+        if (!chunk.hasRemaining()) {
+            chunks.pollFirst();
+            pool.release(chunk);
+        }
+        bufferedBytes -= read;
+        if (suspended != null && bufferedBytes <= maxBufferedBytes / 2) {
+            suspended.requestInput();
+            suspended = null;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized int available() {
+        return chunks.isEmpty() ? 0 : chunks.peekFirst().remaining();
+    }
+
+    /**
+     * 解析线程不再读取，没读完的响应由io线程读完丢掉
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        bufferedBytes = 0;
+        if (suspended != null) {
+            //恢复读取，让io线程把剩下的数据读完
+            suspended.requestInput();
+            suspended = null;
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,114 @@
+package github.qh.es.infrastructure.support;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-03- 10:40 上午
+ * @email quhao.mi@foxmail.com
+ * 代替 HeapBufferedResponseConsumer：2xx 响应的响应体不缓存，收到多少就写进 ResponseBodyPipe 交给解析线程，
+ * 返回给 RestClient 的 HttpResponse 没有 entity；非 2xx 的响应体最多保留 errorBodyLimit 字节，RestClient 照常生成 ResponseException。
+ * RestClient 重试时每次尝试都会创建新的 consumer，只有 2xx 的那次会接上管道。
+ */
+class StreamingResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+    private final ByteBufferPool pool;
+
+    private final int maxBufferedBytes;
+
+    private final int errorBodyLimit;
+
+    /**
+     * 收到 2xx 响应头时回调，之后响应体从管道里读
+     */
+    private final BiConsumer<ResponseBodyPipe, HttpResponse> onStreaming;
+
+    private HttpResponse response;
+
+    private ResponseBodyPipe pipe;
+
+    private ByteArrayOutputStream errorBody;
+
+    private ContentType contentType;
+
+    StreamingResponseConsumer(ByteBufferPool pool, int maxBufferedBytes, int errorBodyLimit,
+                              BiConsumer<ResponseBodyPipe, HttpResponse> onStreaming) {
+        this.pool = pool;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.errorBodyLimit = errorBodyLimit;
+        this.onStreaming = onStreaming;
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) {
+        this.response = response;
+        int status = response.getStatusLine().getStatusCode();
+        if (status >= 200 && status < 300) {
+            pipe = new ResponseBodyPipe(pool, maxBufferedBytes);
+            onStreaming.accept(pipe, response);
+        }
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+        this.contentType = contentType;
+        if (pipe == null) {
+            long length = entity.getContentLength();
+            errorBody = new ByteArrayOutputStream(length > 0 ? (int) Math.min(length, errorBodyLimit) : 1024);
+        }
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+        if (pipe != null) {
+            pipe.write(decoder, ioControl);
+            return;
+        }
+        ByteBuffer chunk = pool.acquire();
+        try {
+            int read;
+            while ((read = decoder.read(chunk)) > 0) {
+                int keep = Math.min(read, errorBodyLimit - errorBody.size());
+                if (keep > 0) {
+                    errorBody.write(chunk.array(), chunk.arrayOffset(), keep);
+                }
+                chunk.clear();
+            }
+        } finally {
+            pool.release(chunk);
+        }
+    }
+
+    @Override
+    protected HttpResponse buildResult(HttpContext context) {
+        if (pipe != null) {
+            pipe.complete();
+            //响应体已经交给管道，RestClient 不会再读
+            response.setEntity(null);
+        } else if (errorBody != null) {
+            ByteArrayEntity entity = new ByteArrayEntity(errorBody.toByteArray(), contentType);
+            entity.setContentEncoding(response.getFirstHeader("Content-Encoding"));
+            response.setEntity(entity);
+        }
+        return response;
+    }
+
+    @Override
+    protected void releaseResources() {
+        if (pipe != null) {
+            pipe.fail(new IOException("connection closed before the response was fully received"));
+        }
+    }
+}
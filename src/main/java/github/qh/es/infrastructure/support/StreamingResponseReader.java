@@ -0,0 +1,150 @@
+package github.qh.es.infrastructure.support;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * @author qu.hao
+ * @date 2021-06-03- 11:20 上午
+ * @email quhao.mi@foxmail.com
+ * 用低级客户端发请求，边收响应边在调用线程上解析，不把整个响应体读进堆内存。
+ * 1.响应体经过 StreamingResponseConsumer 写进有界的 ResponseBodyPipe，调用线程用 XContentParser 从管道里拉取
+ * 2.解析得慢时暂停读取连接，内存占用只和 maxBufferedBytes 有关；但暂停太久会触发 socket timeout，回调里不要做太慢的事
+ * 3.reader 提前返回或抛异常时关闭管道，剩下的响应在io线程里读完丢掉，不占内存也不影响连接复用
+ * 非 2xx 的响应和平时一样抛 ResponseException，加进 ignore 参数的状态码的响应体交给 reader 解析。
+ */
+public class StreamingResponseReader {
+
+    private final RestClient client;
+
+    private final ByteBufferPool pool;
+
+    private final int maxBufferedBytes;
+
+    private final int errorBodyLimit;
+
+    public StreamingResponseReader(RestClient client, int chunkBytes, int maxBufferedBytes, int errorBodyLimit) {
+        this.client = client;
+        //块要用堆内存，错误响应直接从数组里复制
+        this.pool = new ByteBufferPool(chunkBytes, Math.max(2, maxBufferedBytes / chunkBytes + 1), false);
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.errorBodyLimit = errorBodyLimit;
+    }
+
+    /**
+     * 发送请求并在当前线程解析响应，reader 拿到的解析器还没有读过任何token
+     */
+    public <T> T execute(Request request, CheckedFunction<XContentParser, T, IOException> reader) throws IOException {
+        CompletableFuture<InputStream> body = new CompletableFuture<>();
+        RequestOptions.Builder options = request.getOptions().toBuilder();
+        options.setHttpAsyncResponseConsumerFactory(() -> new StreamingResponseConsumer(pool, maxBufferedBytes,
+                errorBodyLimit, (pipe, response) -> body.complete(decompress(pipe, response))));
+        request.setOptions(options);
+        client.performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                //2xx 时已经接上了管道，这里只处理 ignore 的错误状态码
+                HttpEntity entity = response.getEntity();
+                try {
+                    body.complete(entity == null ? new ByteArrayInputStream(new byte[0]) : entity.getContent());
+                } catch (IOException e) {
+                    body.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                body.completeExceptionally(exception);
+            }
+        });
+        try (InputStream in = await(body);
+             XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                     DeprecationHandler.THROW_UNSUPPORTED_OPERATION, in)) {
+            return reader.apply(parser);
+        }
+    }
+
+    /**
+     * 响应头用来判断是否压缩，管道里是原始字节
+     */
+    private static InputStream decompress(ResponseBodyPipe pipe, HttpResponse response) {
+        Header encoding = response.getFirstHeader("Content-Encoding");
+        if (encoding == null || !"gzip".equalsIgnoreCase(encoding.getValue())) {
+            return pipe;
+        }
+        return new LazyGzipInputStream(pipe);
+    }
+
+    private static InputStream await(CompletableFuture<InputStream> body) throws IOException {
+        try {
+            return body.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * GZIPInputStream 构造时就要读文件头，在io线程里不能阻塞，所以等第一次读的时候再创建
+     */
+    private static final class LazyGzipInputStream extends InputStream {
+
+        private final ResponseBodyPipe pipe;
+
+        private GZIPInputStream gzip;
+
+        private LazyGzipInputStream(ResponseBodyPipe pipe) {
+            this.pipe = pipe;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return gzip().read();
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            return gzip().read(bytes, offset, length);
+        }
+
+        private GZIPInputStream gzip() throws IOException {
+            if (gzip == null) {
+                gzip = new GZIPInputStream(pipe);
+            }
+            return gzip;
+        }
+
+        @Override
+        public void close() {
+            pipe.close();
+        }
+    }
+}
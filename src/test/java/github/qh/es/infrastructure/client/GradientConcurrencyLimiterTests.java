@@ -0,0 +1,77 @@
+package github.qh.es.infrastructure.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 窗口设为0，每攒够一个窗口的样本就调整一次，不依赖真实的时间
+ */
+class GradientConcurrencyLimiterTests {
+
+    private static GradientConcurrencyLimiter limiter(int initialLimit) {
+        return new GradientConcurrencyLimiter(initialLimit, 2, 1000, 1.5, 0.2, 0.9, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 占满上限后全部以同样的耗时结束
+     */
+    private static void saturate(GradientConcurrencyLimiter limiter, long rttMillis, boolean overloaded) {
+        int acquired = 0;
+        while (limiter.tryAcquire()) {
+            acquired++;
+        }
+        for (int i = 0; i < acquired; i++) {
+            limiter.onComplete(TimeUnit.MILLISECONDS.toNanos(rttMillis), overloaded);
+        }
+    }
+
+    @Test
+    void rejectsRequestsOverTheLimit() {
+        GradientConcurrencyLimiter limiter = limiter(2);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(1, limiter.metrics().getRejected());
+
+        limiter.onCancelled();
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    void growsWhileLatencyIsStableAndShrinksWhenItRises() {
+        GradientConcurrencyLimiter limiter = limiter(20);
+        for (int i = 0; i < 20; i++) {
+            saturate(limiter, 10, false);
+        }
+        int grown = limiter.getLimit();
+        assertTrue(grown > 20, "limit " + grown);
+
+        for (int i = 0; i < 5; i++) {
+            saturate(limiter, 100, false);
+        }
+        assertTrue(limiter.getLimit() < grown, "limit " + limiter.getLimit() + " grown " + grown);
+    }
+
+    @Test
+    void backsOffWhenTheClusterRejects() {
+        GradientConcurrencyLimiter limiter = limiter(100);
+        saturate(limiter, 10, true);
+        assertTrue(limiter.getLimit() < 100);
+        assertEquals(100, limiter.metrics().getOverloaded());
+    }
+
+    @Test
+    void doesNotGrowWhenMostPermitsAreIdle() {
+        GradientConcurrencyLimiter limiter = limiter(100);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onComplete(TimeUnit.MILLISECONDS.toNanos(10), false);
+        }
+        assertEquals(100, limiter.getLimit());
+    }
+}
@@ -0,0 +1,61 @@
+package github.qh.es.infrastructure.client;
+
+import github.qh.es.infrastructure.support.EsHttpAsyncClientBuilder;
+import github.qh.es.support.StubEsServer;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RestClient;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 多个本地模拟节点：一个正常、一个慢、一个不可用
+ */
+class HealthAwareNodeSelectorTests {
+
+    @Test
+    void prefersFastNodesAndQuarantinesDeadOnes() throws Exception {
+        try (StubEsServer fast = new StubEsServer();
+             StubEsServer slow = new StubEsServer();
+             StubEsServer down = new StubEsServer();
+             NodeStatsTracker tracker = new NodeStatsTracker(1, Duration.ofMillis(100), Duration.ofSeconds(1))) {
+            slow.setResponseDelayMillis(100);
+            down.setUnavailable(true);
+            try (RestClient client = RestClient.builder(fast.host(), slow.host(), down.host())
+                    .setNodeSelector(new HealthAwareNodeSelector(tracker, 1.5))
+                    .setHttpClientConfigCallback(httpClient -> new EsHttpAsyncClientBuilder(httpClient).nodeStats(tracker))
+                    .build()) {
+                for (int i = 0; i < 200; i++) {
+                    client.performRequest(new Request("GET", "/"));
+                }
+                assertTrue(tracker.isQuarantined(down.host()));
+                assertTrue(tracker.score(fast.host()) < tracker.score(slow.host()));
+                //慢节点的分数超过 最优分数 * slack，被隔离的节点也不保留，只剩正常的节点
+                List<Node> nodes = new ArrayList<>(Arrays.asList(
+                        new Node(fast.host()), new Node(slow.host()), new Node(down.host())));
+                new HealthAwareNodeSelector(tracker, 1.5).select(nodes);
+                assertEquals(Collections.singletonList(fast.host()),
+                        nodes.stream().map(Node::getHost).collect(Collectors.toList()));
+
+                //节点恢复后由探测请求解除隔离
+                down.setUnavailable(false);
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (tracker.isQuarantined(down.host()) && System.nanoTime() < deadline) {
+                    Thread.sleep(50);
+                }
+                assertFalse(tracker.isQuarantined(down.host()));
+            }
+        }
+    }
+}
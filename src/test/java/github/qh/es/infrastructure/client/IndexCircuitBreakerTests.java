@@ -0,0 +1,66 @@
+package github.qh.es.infrastructure.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IndexCircuitBreakerTests {
+
+    private static void fail(IndexCircuitBreaker breaker, String index, int times) {
+        for (int i = 0; i < times; i++) {
+            assertTrue(breaker.allow(index));
+            breaker.onResult(index, false);
+        }
+    }
+
+    @Test
+    void opensOnSustainedFailuresAndRecoversThroughOneTrial() throws InterruptedException {
+        IndexCircuitBreaker breaker = new IndexCircuitBreaker(0.5, 4, 10_000, 100, TimeUnit.MILLISECONDS);
+        fail(breaker, "posts", 3);
+        assertFalse(breaker.isOpen("posts"));
+        fail(breaker, "posts", 1);
+        assertTrue(breaker.isOpen("posts"));
+        assertFalse(breaker.allow("posts"));
+        assertTrue(breaker.allow("users"));
+
+        Thread.sleep(150);
+        assertTrue(breaker.allow("posts"));
+        //半开时只放行一个试探请求
+        assertFalse(breaker.allow("posts"));
+        breaker.onResult("posts", true);
+        assertFalse(breaker.isOpen("posts"));
+        assertTrue(breaker.allow("posts"));
+        assertEquals(2, breaker.metrics().get("posts").getRejected());
+    }
+
+    @Test
+    void failedTrialReopens() throws InterruptedException {
+        IndexCircuitBreaker breaker = new IndexCircuitBreaker(0.5, 2, 10_000, 100, TimeUnit.MILLISECONDS);
+        fail(breaker, "posts", 2);
+        Thread.sleep(150);
+        fail(breaker, "posts", 1);
+        assertFalse(breaker.allow("posts"));
+        assertEquals("OPEN", breaker.metrics().get("posts").getState());
+    }
+
+    @Test
+    void cancelledTrialCanBeRetried() throws InterruptedException {
+        IndexCircuitBreaker breaker = new IndexCircuitBreaker(0.5, 2, 10_000, 100, TimeUnit.MILLISECONDS);
+        fail(breaker, "posts", 2);
+        Thread.sleep(150);
+        assertTrue(breaker.allow("posts"));
+        breaker.onCancelled("posts");
+        assertTrue(breaker.allow("posts"));
+    }
+
+    @Test
+    void requestsWithoutIndexAreAlwaysAllowed() {
+        IndexCircuitBreaker breaker = new IndexCircuitBreaker(0.5, 1, 10_000, 10_000, TimeUnit.MILLISECONDS);
+        breaker.onResult(null, false);
+        assertTrue(breaker.allow(null));
+    }
+}
@@ -0,0 +1,47 @@
+package github.qh.es.infrastructure.document;
+
+import github.qh.es.infrastructure.document.filter.ExistsFilter;
+import github.qh.es.infrastructure.support.MicroBatcher;
+import github.qh.es.support.StubEsServer;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EsExistsApiRepositoryTests {
+
+    @Test
+    void batchedExistsOnMissingIndexIsFalse() throws Exception {
+        try (StubEsServer server = new StubEsServer();
+             RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(server.host()));
+             MicroBatcher<GetRequest, GetResponse> batcher = new MicroBatcher<>("mget",
+                     new MultiGetDispatcher(client), 100, 20, TimeUnit.MILLISECONDS)) {
+            StaticListableBeanFactory beans = new StaticListableBeanFactory();
+            beans.addBean("getBatcher", batcher);
+            EsExistsApiRepository repository = new EsExistsApiRepository();
+            ReflectionTestUtils.setField(repository, "client", client);
+            ReflectionTestUtils.setField(repository, "getBatcher", beans.getBeanProvider(MicroBatcher.class));
+            ReflectionTestUtils.setField(repository, "existsFilter", beans.getBeanProvider(ExistsFilter.class));
+
+            //和 HEAD 请求一样，索引不存在就是文档不存在，而不是抛出 _mget 的条目错误
+            assertFalse(repository.exists(new GetRequest("no-index", "no-index-1")));
+            PlainActionFuture<Boolean> async = PlainActionFuture.newFuture();
+            repository.existsAsync(new GetRequest("no-index", "no-index-2"), async);
+            assertFalse(async.get(5, TimeUnit.SECONDS));
+
+            assertTrue(repository.exists(new GetRequest("posts", "1")));
+            assertFalse(repository.exists(new GetRequest("posts", "missing-1")));
+            assertEquals(4, server.getMgetItems());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package github.qh.es.infrastructure.document;
+
+import github.qh.es.infrastructure.support.MicroBatcher;
+import github.qh.es.support.StubEsServer;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MultiGetDispatcherTests {
+
+    @Test
+    void packsGetsIntoOneMgetAndDeduplicatesIds() throws Exception {
+        try (StubEsServer server = new StubEsServer();
+             RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(server.host()));
+             MicroBatcher<GetRequest, GetResponse> batcher = new MicroBatcher<>("mget",
+                     new MultiGetDispatcher(client), 100, 20, TimeUnit.MILLISECONDS)) {
+            List<CompletableFuture<GetResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                futures.add(batcher.submit(new GetRequest("posts", String.valueOf(i % 10))));
+            }
+            CompletableFuture<GetResponse> missing = batcher.submit(new GetRequest("posts", "missing-1"));
+            for (int i = 0; i < 30; i++) {
+                GetResponse response = futures.get(i).get(5, TimeUnit.SECONDS);
+                assertTrue(response.isExists());
+                assertEquals(String.valueOf(i % 10), response.getId());
+            }
+            assertFalse(missing.get(5, TimeUnit.SECONDS).isExists());
+            assertEquals(1, server.getMgetRequests());
+            assertEquals(11, server.getMgetItems());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import github.qh.es.application.config.EsBulkProperties;
+import github.qh.es.infrastructure.support.ByteBufferPool;
+import github.qh.es.support.StubEsServer;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * 对比 client.bulkAsync 和池化请求体（NdjsonBulkTransport）两种发送方式的写入吞吐。
+ * 不是单元测试，直接运行 main，参数是文档数（默认 50000）。
+ * 模拟节点不做真正的写入，结果只反映客户端组批、序列化和发送的开销。
+ */
+@Slf4j
+public class AdaptiveBulkIngesterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int docs = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        try (StubEsServer server = new StubEsServer();
+             RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(server.host()))) {
+            EsBulkProperties properties = new EsBulkProperties();
+            properties.setInitialBatchBytes(64 * 1024);
+            properties.setConcurrencyIncreaseInterval(2);
+            //预热连接和JIT
+            run("warmup", docs, properties,
+                    (request, listener) -> client.bulkAsync(request, RequestOptions.DEFAULT, listener));
+
+            run("rhlc", docs, properties,
+                    (request, listener) -> client.bulkAsync(request, RequestOptions.DEFAULT, listener));
+            ByteBufferPool pool = new ByteBufferPool(64 * 1024, 256, true);
+            run("pooled", docs, properties, new NdjsonBulkTransport(client.getLowLevelClient(), pool,
+                    RequestOptions.DEFAULT));
+            log.info("pooled buffers allocated {}, reused {}", pool.allocatedCount(), pool.reusedCount());
+        }
+    }
+
+    private static void run(String name, int docs, EsBulkProperties properties,
+                            BiConsumer<BulkRequest, ActionListener<BulkResponse>> consumer) throws InterruptedException {
+        AdaptiveBulkIngester ingester = new AdaptiveBulkIngester(consumer, properties);
+        long start = System.nanoTime();
+        for (int i = 0; i < docs; i++) {
+            ingester.add(new IndexRequest("posts").id(String.valueOf(i))
+                    .source(XContentType.JSON, "title", "benchmark document " + i));
+        }
+        if (!ingester.awaitClose(5, TimeUnit.MINUTES)) {
+            throw new IllegalStateException(name + " did not finish");
+        }
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        log.info(String.format("%-7s %6d ms  %8.0f docs/s  %s", name, millis, docs * 1000.0 / millis,
+                ingester.metrics()));
+    }
+}
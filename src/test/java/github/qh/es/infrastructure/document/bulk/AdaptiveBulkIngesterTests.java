@@ -0,0 +1,157 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import github.qh.es.application.config.EsBulkProperties;
+import github.qh.es.infrastructure.support.ByteBufferPool;
+import github.qh.es.infrastructure.support.EsHttpAsyncClientBuilder;
+import github.qh.es.support.StubEsServer;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 使用本地模拟节点测试自适应批量写入，吞吐的压测见 AdaptiveBulkIngesterBenchmark
+ */
+class AdaptiveBulkIngesterTests {
+
+    @Test
+    void growsBatchesAndWritesEveryDocument() throws Exception {
+        try (StubEsServer server = new StubEsServer();
+             RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(server.host()))) {
+            EsBulkProperties properties = new EsBulkProperties();
+            properties.setInitialBatchBytes(64 * 1024);
+            properties.setConcurrencyIncreaseInterval(2);
+            AdaptiveBulkIngester ingester = new AdaptiveBulkIngester(
+                    (request, listener) -> client.bulkAsync(request, RequestOptions.DEFAULT, listener), properties);
+
+            int docs = 50000;
+            for (int i = 0; i < docs; i++) {
+                ingester.add(new IndexRequest("posts").id(String.valueOf(i))
+                        .source(XContentType.JSON, "title", "benchmark document " + i));
+            }
+            assertTrue(ingester.awaitClose(30, TimeUnit.SECONDS));
+
+            BulkIngestMetrics metrics = ingester.metrics();
+            assertEquals(docs, server.getBulkItems());
+            assertEquals(docs, metrics.getOperations());
+            assertEquals(server.getBulkRequests(), metrics.getBatches());
+            assertEquals(0, metrics.getFailedBatches());
+            assertEquals(0, metrics.getDeadLetters());
+            //模拟节点响应很快，批次大小和并发都应该往上调
+            assertTrue(metrics.getBatchBytes() > properties.getInitialBatchBytes());
+            assertTrue(metrics.getConcurrency() > properties.getInitialConcurrency());
+        }
+    }
+
+    @Test
+    void pooledBodyMatchesHighLevelClientBody() throws Exception {
+        for (boolean gzip : new boolean[]{false, true}) {
+            try (StubEsServer server = new StubEsServer();
+                 RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(server.host())
+                         .setHttpClientConfigCallback(httpClient -> gzip
+                                 ? new EsHttpAsyncClientBuilder(httpClient).compression(1) : httpClient))) {
+                BulkRequest request = new BulkRequest()
+                        .add(new IndexRequest("posts").id("1").routing("user-1")
+                                .source(XContentType.JSON, "title", "routed document"))
+                        .add(new IndexRequest("posts").source(XContentType.JSON, "title", "document without id"))
+                        .add(new IndexRequest("posts").id("2").create(true)
+                                .source(XContentType.JSON, "title", "created document"))
+                        .add(new UpdateRequest("posts", "3").doc(XContentType.JSON, "title", "updated document")
+                                .upsert(XContentType.JSON, "title", "upserted document").retryOnConflict(3))
+                        .add(new DeleteRequest("posts", "4"))
+                        .add(new IndexRequest("posts").id("5").version(7).versionType(VersionType.EXTERNAL)
+                                .source(XContentType.JSON, "title", "versioned document"))
+                        .add(new IndexRequest("posts").id("6").setPipeline("timestamp")
+                                .source(XContentType.JSON, "title", "pipeline document"));
+
+                client.bulk(request, RequestOptions.DEFAULT);
+                byte[] expected = server.getLastBulkBody();
+
+                //buffer故意切得很小，请求体跨多个buffer
+                ByteBufferPool pool = new ByteBufferPool(64, 256, true);
+                NdjsonBulkTransport transport = new NdjsonBulkTransport(client.getLowLevelClient(), pool,
+                        RequestOptions.DEFAULT);
+                send(transport, request);
+                assertArrayEquals(expected, server.getLastBulkBody());
+                assertTrue(pool.allocatedCount() > 1);
+
+                //请求结束后buffer都还回池里，再发一次不需要新分配
+                long allocated = pool.allocatedCount();
+                send(transport, request);
+                assertArrayEquals(expected, server.getLastBulkBody());
+                assertEquals(allocated, pool.allocatedCount());
+                assertEquals(gzip ? 3 : 0, server.getGzipRequests());
+            }
+        }
+    }
+
+    @Test
+    void rejectionsShrinkConcurrency() throws Exception {
+        try (StubEsServer server = new StubEsServer();
+             RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(server.host()))) {
+            EsBulkProperties properties = new EsBulkProperties();
+            properties.setInitialConcurrency(8);
+            server.setRejectItem(i -> i % 10 == 0);
+            AdaptiveBulkIngester ingester = new AdaptiveBulkIngester(
+                    (request, listener) -> client.bulkAsync(request, RequestOptions.DEFAULT, listener), properties);
+            AtomicInteger acknowledged = new AtomicInteger();
+            for (int i = 0; i < 20000; i++) {
+                ingester.add(new IndexRequest("posts").id(String.valueOf(i))
+                                .source(XContentType.JSON, "title", "rejected document " + i),
+                        ActionListener.wrap(r -> acknowledged.incrementAndGet(), e -> {
+                        }));
+            }
+            assertTrue(ingester.awaitClose(30, TimeUnit.SECONDS));
+            assertEquals(properties.getMinConcurrency(), ingester.metrics().getConcurrency());
+            assertTrue(ingester.metrics().getRejectedOperations() > 0);
+            //被拒绝的条目只单独重试，最终全部写入成功
+            assertEquals(20000, acknowledged.get());
+            assertEquals(0, ingester.metrics().getDeadLetters());
+        }
+    }
+
+    @Test
+    void failFastWhenQueueIsFull() throws Exception {
+        EsBulkProperties properties = new EsBulkProperties();
+        properties.getQueue().setMaxOperations(10);
+        properties.getQueue().setOverflowPolicy(OverflowPolicy.FAIL_FAST);
+        //模拟集群卡住：第一批一直不返回，后面的数据只能留在队列里
+        AdaptiveBulkIngester ingester = new AdaptiveBulkIngester((request, listener) -> {
+        }, properties);
+        List<CompletableFuture<BulkItemResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(ingester.offer(new IndexRequest("posts").id(String.valueOf(i))
+                    .source(XContentType.JSON, "title", "stalled document " + i)));
+        }
+        long rejected = futures.stream().filter(CompletableFuture::isCompletedExceptionally).count();
+        assertTrue(rejected > 0);
+        assertEquals(rejected, ingester.metrics().getRejectedOffers());
+        assertTrue(ingester.metrics().getQueuedOperations() <= 10);
+    }
+
+    private static void send(NdjsonBulkTransport transport, BulkRequest request) throws Exception {
+        CompletableFuture<BulkResponse> future = new CompletableFuture<>();
+        transport.accept(request, ActionListener.wrap(future::complete, future::completeExceptionally));
+        assertFalse(future.get(10, TimeUnit.SECONDS).hasFailures());
+    }
+}
@@ -0,0 +1,135 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BulkSpoolTests {
+
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path directory;
+
+    private static IndexRequest doc(int id) {
+        return new IndexRequest("posts").id(String.valueOf(id)).source(XContentType.JSON, "title", "spooled document " + id);
+    }
+
+    private static String poll(BulkSpool spool) throws IOException, InterruptedException {
+        BulkSpool.SpoolRecord record = spool.poll(0, TimeUnit.MILLISECONDS);
+        return record == null ? null : record.getRequest().id();
+    }
+
+    private int segmentFiles() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Path ignored : stream) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    void replaysUnackedRecordsFromTheCheckpoint() throws Exception {
+        try (BulkSpool spool = new BulkSpool(directory, SEGMENT_BYTES)) {
+            for (int i = 0; i < 3; i++) {
+                spool.append(doc(i));
+            }
+            BulkSpool.SpoolRecord first = spool.poll(0, TimeUnit.MILLISECONDS);
+            assertEquals("1", poll(spool));
+            spool.ack(first.getPosition());
+            spool.checkpoint();
+        }
+        try (BulkSpool spool = new BulkSpool(directory, SEGMENT_BYTES)) {
+            //第二条读出了但没有确认，和没读过的第三条一起重放
+            assertEquals("1", poll(spool));
+            assertEquals("2", poll(spool));
+            assertNull(poll(spool));
+        }
+    }
+
+    @Test
+    void recoversFromATornTailRecord() throws Exception {
+        long torn;
+        try (BulkSpool spool = new BulkSpool(directory, SEGMENT_BYTES)) {
+            spool.append(doc(0));
+            torn = spool.append(doc(1));
+        }
+        //模拟写了一半就崩溃：第二条记录的内容和crc对不上
+        try (FileChannel channel = FileChannel.open(directory.resolve(String.format("segment-%016d.log", 0)),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0x7f, 0x7f}), (int) torn + 8);
+        }
+        try (BulkSpool spool = new BulkSpool(directory, SEGMENT_BYTES)) {
+            assertEquals("0", poll(spool));
+            assertNull(poll(spool));
+            //不完整的记录被后面的写入覆盖
+            spool.append(doc(2));
+            assertEquals("2", poll(spool));
+        }
+        try (BulkSpool spool = new BulkSpool(directory, SEGMENT_BYTES)) {
+            assertEquals("0", poll(spool));
+            assertEquals("2", poll(spool));
+            assertNull(poll(spool));
+        }
+    }
+
+    @Test
+    void rollsSegmentsAndDeletesThemOnceAcked() throws Exception {
+        try (BulkSpool spool = new BulkSpool(directory, SEGMENT_BYTES)) {
+            int docs = 0;
+            while (segmentFiles() < 3) {
+                spool.append(doc(docs++));
+            }
+            List<Long> positions = new ArrayList<>();
+            for (int i = 0; i < docs; i++) {
+                BulkSpool.SpoolRecord record = spool.poll(0, TimeUnit.MILLISECONDS);
+                assertEquals(String.valueOf(i), record.getRequest().id());
+                positions.add(record.getPosition());
+            }
+            assertNull(poll(spool));
+
+            //第一段还有没确认的记录，不能删
+            for (int i = 1; i < docs; i++) {
+                spool.ack(positions.get(i));
+            }
+            spool.checkpoint();
+            assertEquals(3, segmentFiles());
+
+            spool.ack(positions.get(0));
+            spool.checkpoint();
+            assertEquals(1, segmentFiles());
+            assertEquals(0, spool.backlogBytes());
+        }
+    }
+
+    @Test
+    void rejectsRecordsLargerThanASegment() throws IOException {
+        try (BulkSpool spool = new BulkSpool(directory, SEGMENT_BYTES)) {
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; i < SEGMENT_BYTES; i++) {
+                large.append('x');
+            }
+            DocWriteRequest<?> request = new IndexRequest("posts").id("large").source(XContentType.JSON, "body", large);
+            assertThrows(IOException.class, () -> spool.append(request));
+        }
+    }
+}
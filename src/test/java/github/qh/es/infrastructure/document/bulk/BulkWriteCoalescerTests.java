@@ -0,0 +1,82 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BulkWriteCoalescerTests {
+
+    private final BulkWriteCoalescer coalescer = new BulkWriteCoalescer();
+
+    @Test
+    void mergesPartialUpdatesLastWriterWins() {
+        List<BulkOperation> merged = coalescer.coalesce(operations(
+                new UpdateRequest("posts", "1").doc(XContentType.JSON, "status", "a", "count", 1),
+                new UpdateRequest("posts", "2").doc(XContentType.JSON, "status", "x"),
+                new UpdateRequest("posts", "1").doc(XContentType.JSON, "count", 2)));
+
+        assertEquals(2, merged.size());
+        UpdateRequest first = (UpdateRequest) merged.get(0).getRequest();
+        Map<String, Object> doc = first.doc().sourceAsMap();
+        assertEquals("a", doc.get("status"));
+        assertEquals(2, doc.get("count"));
+    }
+
+    @Test
+    void indexThenDeleteCollapsesToDelete() {
+        List<BulkOperation> merged = coalescer.coalesce(operations(
+                new IndexRequest("posts").id("1").source(XContentType.JSON, "title", "t"),
+                new UpdateRequest("posts", "1").doc(XContentType.JSON, "status", "a"),
+                new DeleteRequest("posts", "1")));
+
+        assertEquals(1, merged.size());
+        assertTrue(merged.get(0).getRequest() instanceof DeleteRequest);
+    }
+
+    @Test
+    void versionedWriteSeparatesMerges() {
+        List<BulkOperation> merged = coalescer.coalesce(operations(
+                new UpdateRequest("posts", "1").doc(XContentType.JSON, "count", 1),
+                new IndexRequest("posts").id("1").source(XContentType.JSON, "count", 5).setIfSeqNo(3).setIfPrimaryTerm(1),
+                new UpdateRequest("posts", "1").doc(XContentType.JSON, "count", 2)));
+
+        assertEquals(3, merged.size());
+    }
+
+    @Test
+    void mergedResultIsDeliveredToEveryCaller() {
+        List<String> acknowledged = new ArrayList<>();
+        List<BulkOperation> operations = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String name = "caller-" + i;
+            operations.add(new BulkOperation(new UpdateRequest("posts", "1").doc(XContentType.JSON, "count", i),
+                    ActionListener.wrap(r -> acknowledged.add(name), e -> {
+                    })));
+        }
+        List<BulkOperation> merged = coalescer.coalesce(operations);
+        assertEquals(1, merged.size());
+        merged.get(0).getListener().onResponse(null);
+        assertEquals(3, acknowledged.size());
+    }
+
+    private static List<BulkOperation> operations(DocWriteRequest<?>... requests) {
+        List<BulkOperation> operations = new ArrayList<>();
+        for (DocWriteRequest<?> request : requests) {
+            operations.add(new BulkOperation(request, ActionListener.wrap(r -> {
+            }, e -> {
+            })));
+        }
+        return operations;
+    }
+}
@@ -0,0 +1,154 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import github.qh.es.application.config.EsBulkProperties;
+import github.qh.es.infrastructure.document.DocumentWriteEvent;
+import github.qh.es.support.StubEsServer;
+import org.elasticsearch.client.RestClient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 使用本地模拟节点测试NDJSON文件导入
+ */
+class NdjsonFileImporterTests {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void importsMappedFileWithRetries() throws Exception {
+        Path file = dir.resolve("posts.ndjson");
+        int docs = 20000;
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(out, docs);
+        }
+        try (StubEsServer server = new StubEsServer();
+             RestClient client = RestClient.builder(server.host()).build()) {
+            server.setRejectItem(i -> i % 7 == 0);
+            NdjsonFileImporter importer = new NdjsonFileImporter(client, properties(), new LoggingDeadLetterSink());
+
+            NdjsonImportResult result = importer.importFile(file, "posts");
+            assertEquals(docs, result.getDocuments());
+            assertEquals(0, result.getFailedDocuments());
+            assertEquals(Files.size(file), result.getBytes());
+            assertEquals(Long.toString(Files.size(file)), readCheckpoint(file));
+            //被拒绝的条目单独重发，请求数比一次发完多
+            assertEquals(result.getBulkRequests(), server.getBulkRequests());
+            assertTrue(result.getBulkRequests() > 1);
+        }
+    }
+
+    @Test
+    void replaysFromCheckpointWithoutDuplicatesWhenIdFieldIsSet() throws Exception {
+        Path file = dir.resolve("posts.ndjson");
+        int docs = 10000;
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(out, docs);
+        }
+        try (StubEsServer server = new StubEsServer();
+             RestClient client = RestClient.builder(server.host()).build()) {
+            EsBulkProperties properties = properties();
+            properties.getFileImport().setIdField("id");
+            NdjsonFileImporter importer = new NdjsonFileImporter(client, properties, new LoggingDeadLetterSink());
+            assertEquals(docs, importer.importFile(file, "posts").getDocuments());
+
+            //模拟写完后半段、断点还没持久化就崩溃了：从一半的位置重新导入
+            long half = (long) line(0).length * docs / 2;
+            Files.write(dir.resolve("posts.ndjson.checkpoint"), Long.toString(half).getBytes(StandardCharsets.UTF_8));
+            NdjsonImportResult result = importer.importFile(file, "posts");
+            assertEquals(half, result.getResumedFrom());
+            assertEquals(docs / 2, result.getDocuments());
+            assertEquals(Long.toString(Files.size(file)), readCheckpoint(file));
+
+            //后半段写了两次，但都带着同样的 _id，只是覆盖
+            assertEquals(docs + docs / 2, server.getBulkItems());
+            assertEquals(docs, server.getBulkIds().size());
+            assertTrue(server.getBulkIds().contains("00000000"));
+        }
+    }
+
+    @Test
+    void resumesGzipFileFromCheckpoint() throws Exception {
+        Path file = dir.resolve("posts.ndjson.gz");
+        int docs = 10000;
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            write(out, docs);
+        }
+        //前一半已经导入过
+        long half = (long) line(0).length * docs / 2;
+        Files.write(dir.resolve("posts.ndjson.gz.checkpoint"), Long.toString(half).getBytes(StandardCharsets.UTF_8));
+        try (StubEsServer server = new StubEsServer();
+             RestClient client = RestClient.builder(server.host()).build()) {
+            NdjsonFileImporter importer = new NdjsonFileImporter(client, properties(), new LoggingDeadLetterSink());
+
+            NdjsonImportResult result = importer.importFile(file, "posts");
+            assertEquals(half, result.getResumedFrom());
+            assertEquals(docs / 2, result.getDocuments());
+            assertEquals(docs / 2, server.getBulkItems());
+        }
+    }
+
+    @Test
+    void publishesWriteEventBeforeTheFirstChunk() throws Exception {
+        Path file = dir.resolve("posts.ndjson");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(out, 5000);
+        }
+        try (StubEsServer server = new StubEsServer();
+             RestClient client = RestClient.builder(server.host()).build()) {
+            List<Long> bulkRequestsAtEvent = new ArrayList<>();
+            NdjsonFileImporter importer = new NdjsonFileImporter(client, properties(), new LoggingDeadLetterSink(),
+                    event -> {
+                        assertEquals(Collections.singleton("posts"), ((DocumentWriteEvent) event).getIndices());
+                        assertNull(((DocumentWriteEvent) event).getDocuments());
+                        bulkRequestsAtEvent.add(server.getBulkRequests());
+                    });
+            importer.importFile(file, "posts");
+            //导入开始前让 ExistsFilter 失效，结束后再失效一次
+            assertEquals(Arrays.asList(0L, server.getBulkRequests()), bulkRequestsAtEvent);
+        }
+    }
+
+    private EsBulkProperties properties() {
+        EsBulkProperties properties = new EsBulkProperties();
+        properties.setRetryInitialBackoff(Duration.ofMillis(5));
+        properties.setRetryMaxBackoff(Duration.ofMillis(20));
+        properties.getFileImport().setBodyBytes(64 * 1024);
+        properties.getFileImport().setWorkers(4);
+        return properties;
+    }
+
+    private static void write(OutputStream out, int docs) throws IOException {
+        for (int i = 0; i < docs; i++) {
+            out.write(line(i));
+        }
+    }
+
+    /**
+     * 每行长度相同，便于计算断点位置
+     */
+    private static byte[] line(int i) {
+        return String.format("{\"id\":\"%08d\",\"title\":\"imported document\"}%n", i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readCheckpoint(Path file) throws IOException {
+        return new String(Files.readAllBytes(file.resolveSibling(file.getFileName() + ".checkpoint")),
+                StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,109 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import github.qh.es.application.config.EsBulkProperties;
+import github.qh.es.support.StubEsServer;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 分区写入在有429拒绝、调整分区数的情况下仍然按提交顺序确认同一文档的写操作
+ */
+class PartitionedBulkIngesterTests {
+
+    @Test
+    void sameRoutingGoesToSamePartition() {
+        IndexRequest first = new IndexRequest("posts").id("1").routing("user1");
+        IndexRequest second = new IndexRequest("posts").id("2").routing("user1");
+        assertEquals(PartitionedBulkIngester.partition(first, 8), PartitionedBulkIngester.partition(second, 8));
+    }
+
+    @Test
+    void preservesPerDocumentOrderAcrossRetriesAndResize() throws Exception {
+        try (StubEsServer server = new StubEsServer();
+             RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(server.host()))) {
+            server.setRejectItem(i -> i % 5 == 0);
+            EsBulkProperties properties = new EsBulkProperties();
+            properties.setInitialBatchBytes(16 * 1024);
+            properties.setRetryInitialBackoff(Duration.ofMillis(5));
+            properties.setRetryMaxBackoff(Duration.ofMillis(20));
+            PartitionedBulkIngester ingester = new PartitionedBulkIngester(() -> new AdaptiveBulkIngester(
+                    (request, listener) -> client.bulkAsync(request, RequestOptions.DEFAULT, listener),
+                    properties, new LoggingDeadLetterSink(), true), 4, 30000);
+
+            int docs = 200;
+            int versions = 6;
+            Map<String, List<Integer>> acknowledged = new ConcurrentHashMap<>();
+            for (int version = 0; version < versions; version++) {
+                if (version == versions / 2) {
+                    assertTrue(ingester.resize(2));
+                }
+                for (int i = 0; i < docs; i++) {
+                    String id = String.valueOf(i);
+                    int v = version;
+                    ingester.add(new IndexRequest("posts").id(id).source(XContentType.JSON, "version", v),
+                            ActionListener.wrap(r -> acknowledged
+                                    .computeIfAbsent(id, k -> Collections.synchronizedList(new ArrayList<>()))
+                                    .add(v), e -> {
+                            }));
+                }
+            }
+            ingester.close();
+
+            assertEquals(docs, acknowledged.size());
+            for (List<Integer> order : acknowledged.values()) {
+                for (int i = 1; i < order.size(); i++) {
+                    assertTrue(order.get(i - 1) < order.get(i), "out of order " + order);
+                }
+                assertEquals(versions - 1, order.get(order.size() - 1));
+            }
+        }
+    }
+
+    @Test
+    void keepsOldPartitionsWhenDrainTimesOut() throws Exception {
+        try (StubEsServer server = new StubEsServer();
+             RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(server.host()))) {
+            server.setResponseDelayMillis(500);
+            EsBulkProperties properties = new EsBulkProperties();
+            PartitionedBulkIngester ingester = new PartitionedBulkIngester(() -> new AdaptiveBulkIngester(
+                    (request, listener) -> client.bulkAsync(request, RequestOptions.DEFAULT, listener),
+                    properties, new LoggingDeadLetterSink(), true), 2, 50);
+
+            int docs = 100;
+            CountDownLatch acknowledged = new CountDownLatch(docs);
+            for (int i = 0; i < docs; i++) {
+                ingester.add(new IndexRequest("posts").id(String.valueOf(i)).source(XContentType.JSON, "title", "slow " + i),
+                        ActionListener.wrap(r -> acknowledged.countDown(), e -> {
+                        }));
+            }
+            //集群响应比等待时间慢，不切换分区
+            assertFalse(ingester.resize(4));
+            assertEquals(2, ingester.getPartitionCount());
+
+            //旧分区继续工作，每个操作都拿到结果，之后可以正常调整
+            assertTrue(acknowledged.await(30, TimeUnit.SECONDS));
+            assertEquals(docs, server.getBulkItems());
+            assertTrue(ingester.resize(4));
+            assertEquals(4, ingester.getPartitionCount());
+            ingester.close();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package github.qh.es.infrastructure.document.bulk;
+
+import github.qh.es.application.config.EsBulkProperties;
+import github.qh.es.support.StubEsServer;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpooledBulkIngesterTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void retriesRecordsRejectedByAFullQueue() throws Exception {
+        try (StubEsServer server = new StubEsServer();
+             RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(server.host()))) {
+            server.setResponseDelayMillis(200);
+            EsBulkProperties properties = new EsBulkProperties();
+            properties.getQueue().setMaxOperations(1);
+            properties.getQueue().setOverflowPolicy(OverflowPolicy.FAIL_FAST);
+            AdaptiveBulkIngester ingester = new AdaptiveBulkIngester(
+                    (request, listener) -> client.bulkAsync(request, RequestOptions.DEFAULT, listener), properties);
+            BulkSpool spool = new BulkSpool(directory, 1024 * 1024);
+
+            int docs = 20;
+            try (SpooledBulkIngester spooled = new SpooledBulkIngester(spool, ingester,
+                    Duration.ofMillis(50), Duration.ZERO)) {
+                for (int i = 0; i < docs; i++) {
+                    spooled.enqueue(new IndexRequest("posts").id(String.valueOf(i))
+                            .source(XContentType.JSON, "title", "spooled document " + i));
+                }
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+                while ((spool.unackedCount() > 0 || spooled.backlogBytes() > 0) && System.nanoTime() < deadline) {
+                    Thread.sleep(20);
+                }
+                //队列只能放一条，后面的记录都被拒绝过，重试后全部写入并确认，不会卡住checkpoint
+                assertEquals(0, spool.unackedCount());
+                assertEquals(0, spooled.backlogBytes());
+                assertTrue(ingester.metrics().getRejectedOffers() > 0);
+            }
+            assertTrue(ingester.awaitClose(5, TimeUnit.SECONDS));
+            assertEquals(docs, server.getBulkItems());
+        }
+    }
+}
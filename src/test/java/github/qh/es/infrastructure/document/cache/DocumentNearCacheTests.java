@@ -0,0 +1,136 @@
+package github.qh.es.infrastructure.document.cache;
+
+import github.qh.es.application.config.EsDocumentProperties;
+import github.qh.es.infrastructure.document.DocumentKey;
+import github.qh.es.infrastructure.document.DocumentWriteEvent;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 不需要es，用计数的 loader 代替真正的get，_seq_no 可以手动调整模拟文档被其他应用修改
+ */
+class DocumentNearCacheTests {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private final AtomicInteger versionLoads = new AtomicInteger();
+
+    private final AtomicLong seqNo = new AtomicLong();
+
+    private GetResponse load(GetRequest request) {
+        if (request.fetchSourceContext() != null && !request.fetchSourceContext().fetchSource()) {
+            versionLoads.incrementAndGet();
+            return new GetResponse(new GetResult(request.index(), "_doc", request.id(), seqNo.get(), 1, 1, true,
+                    null, Collections.emptyMap()));
+        }
+        loads.incrementAndGet();
+        return new GetResponse(new GetResult(request.index(), "_doc", request.id(), seqNo.get(), 1, 1, true,
+                new BytesArray("{\"seq\":" + seqNo.get() + "}"), Collections.emptyMap()));
+    }
+
+    private static DocumentWriteEvent written(String index, String id) {
+        return new DocumentWriteEvent(DocumentNearCacheTests.class, Collections.singleton(index), false,
+                Collections.singleton(new DocumentKey(index, id, null)));
+    }
+
+    @Test
+    void repeatedGetIsServedFromCacheUntilDocumentIsWritten() throws IOException {
+        DocumentNearCache cache = new DocumentNearCache(new EsDocumentProperties.NearCache());
+
+        cache.get(new GetRequest("posts", "1"), this::load);
+        assertEquals("{\"seq\":0}", cache.get(new GetRequest("posts", "1"), this::load).getSourceAsString());
+        assertEquals(1, loads.get());
+
+        //其他文档的写入不影响
+        cache.onApplicationEvent(written("posts", "2"));
+        cache.get(new GetRequest("posts", "1"), this::load);
+        assertEquals(1, loads.get());
+
+        seqNo.set(1);
+        cache.onApplicationEvent(written("posts", "1"));
+        assertEquals("{\"seq\":1}", cache.get(new GetRequest("posts", "1"), this::load).getSourceAsString());
+        assertEquals(2, loads.get());
+
+        //不知道写了哪些文档时整个索引失效
+        cache.onApplicationEvent(new DocumentWriteEvent(this, Collections.singleton("posts"), false));
+        cache.get(new GetRequest("posts", "1"), this::load);
+        assertEquals(3, loads.get());
+        assertEquals(3, cache.metrics().getMisses());
+        assertEquals(2, cache.metrics().getHits());
+    }
+
+    @Test
+    void getRacingWithWriteIsNotCached() throws IOException {
+        DocumentNearCache cache = new DocumentNearCache(new EsDocumentProperties.NearCache());
+
+        cache.get(new GetRequest("posts", "1"), request -> {
+            GetResponse response = load(request);
+            //取回来的是写入前的文档
+            cache.onApplicationEvent(written("posts", "1"));
+            return response;
+        });
+        cache.get(new GetRequest("posts", "1"), this::load);
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.metrics().getSkippedPuts());
+    }
+
+    @Test
+    void partialSourceIsNotCached() throws IOException {
+        DocumentNearCache cache = new DocumentNearCache(new EsDocumentProperties.NearCache());
+        GetRequest request = new GetRequest("posts", "1")
+                .fetchSourceContext(new FetchSourceContext(true, new String[]{"user"}, null));
+
+        cache.get(request, this::load);
+        cache.get(request, this::load);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void staleEntriesAreRevalidatedBySeqNo() throws IOException, InterruptedException {
+        EsDocumentProperties.NearCache properties = new EsDocumentProperties.NearCache();
+        properties.setRevalidateAfter(Duration.ofMillis(50));
+        DocumentNearCache cache = new DocumentNearCache(properties);
+
+        cache.get(new GetRequest("posts", "1"), this::load);
+        Thread.sleep(80);
+        assertEquals("{\"seq\":0}", cache.get(new GetRequest("posts", "1"), this::load).getSourceAsString());
+        assertEquals(1, loads.get());
+        assertEquals(1, versionLoads.get());
+
+        //其他应用修改了文档
+        seqNo.set(5);
+        Thread.sleep(80);
+        assertEquals("{\"seq\":5}", cache.get(new GetRequest("posts", "1"), this::load).getSourceAsString());
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.metrics().getStaleRevalidations());
+    }
+
+    @Test
+    void missingDocumentsAreNotCached() throws IOException {
+        DocumentNearCache cache = new DocumentNearCache(new EsDocumentProperties.NearCache());
+        GetRequest request = new GetRequest("posts", "1");
+
+        GetResponse missing = cache.get(request, r -> {
+            loads.incrementAndGet();
+            return new GetResponse(new GetResult("posts", "_doc", "1", -2, 0, -1, false, null, Collections.emptyMap()));
+        });
+        assertFalse(missing.isExists());
+        assertNull(missing.getSourceAsString());
+        cache.get(request, this::load);
+        assertEquals(2, loads.get());
+    }
+}
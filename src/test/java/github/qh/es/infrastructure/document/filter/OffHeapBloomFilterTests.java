@@ -0,0 +1,72 @@
+package github.qh.es.infrastructure.document.filter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OffHeapBloomFilterTests {
+
+    @Test
+    void neverReportsAddedIdsAsAbsent() {
+        OffHeapBloomFilter filter = new OffHeapBloomFilter(100_000, 0.01);
+        for (int i = 0; i < 100_000; i++) {
+            filter.put("doc-" + i);
+        }
+        for (int i = 0; i < 100_000; i++) {
+            assertTrue(filter.mightContain("doc-" + i));
+        }
+        assertEquals(100_000, filter.getInsertions());
+    }
+
+    @Test
+    void falsePositiveRateStaysNearConfiguredValue() {
+        OffHeapBloomFilter filter = new OffHeapBloomFilter(100_000, 0.01);
+        for (int i = 0; i < 100_000; i++) {
+            filter.put("doc-" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain("other-" + i)) {
+                falsePositives++;
+            }
+        }
+        double fpp = falsePositives / 100_000.0;
+        assertTrue(fpp < 0.02, "observed fpp " + fpp);
+        assertTrue(Math.abs(filter.expectedFpp() - 0.01) < 0.005, "expected fpp " + filter.expectedFpp());
+    }
+
+    @Test
+    void snapshotRoundTripKeepsBitsAndCounters() throws IOException {
+        OffHeapBloomFilter filter = new OffHeapBloomFilter(1000, 0.001);
+        for (int i = 0; i < 1000; i++) {
+            filter.put(Integer.toString(i));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filter.writeTo(new DataOutputStream(bytes));
+
+        OffHeapBloomFilter restored = OffHeapBloomFilter.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(filter.getNumBits(), restored.getNumBits());
+        assertEquals(filter.getNumHashes(), restored.getNumHashes());
+        assertEquals(1000, restored.getInsertions());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(restored.mightContain(Integer.toString(i)));
+        }
+    }
+
+    @Test
+    void corruptHeaderIsRejected() {
+        byte[] garbage = new byte[64];
+        garbage[7] = 3;
+        assertThrows(IOException.class,
+                () -> OffHeapBloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(garbage))));
+    }
+}
@@ -0,0 +1,44 @@
+package github.qh.es.infrastructure.reactive;
+
+import github.qh.es.infrastructure.document.DocumentKey;
+import github.qh.es.infrastructure.document.DocumentWriteEvent;
+import github.qh.es.support.StubEsServer;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReactiveDocumentApiRepositoryTests {
+
+    @Test
+    void publishesWriteEventsBeforeAndAfterAFailedWrite() throws Exception {
+        try (StubEsServer server = new StubEsServer();
+             RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(server.host()))) {
+            List<Object> events = new CopyOnWriteArrayList<>();
+            ApplicationEventPublisher publisher = events::add;
+            ReactiveDocumentApiRepository repository = new ReactiveDocumentApiRepository();
+            ReflectionTestUtils.setField(repository, "client", client);
+            ReflectionTestUtils.setField(repository, "eventPublisher", publisher);
+
+            //客户端看到失败的写入可能已经在集群上执行了，发送前先告诉存在过滤器
+            server.setUnavailable(true);
+            IndexRequest request = new IndexRequest("posts").id("1").source(XContentType.JSON, "title", "lost");
+            assertThrows(RuntimeException.class, () -> repository.index(request).block());
+            //结束后再发布一次，让期间放进文档缓存的旧数据失效
+            assertEquals(2, events.size());
+            for (Object event : events) {
+                assertTrue(((DocumentWriteEvent) event).getDocuments().contains(DocumentKey.of(request)));
+            }
+        }
+    }
+}
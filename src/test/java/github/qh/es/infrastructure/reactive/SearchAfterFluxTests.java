@@ -0,0 +1,81 @@
+package github.qh.es.infrastructure.reactive;
+
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 和 SearchAfterIteratorTests 一样模拟一个按 _id 排好序的索引
+ */
+class SearchAfterFluxTests {
+
+    private static final int DOCS = 2503;
+
+    private final List<SearchRequest> requests = new ArrayList<>();
+
+    private int failedShards;
+
+    private void load(SearchRequest request, ActionListener<SearchResponse> listener) {
+        requests.add(request);
+        int start = request.source().searchAfter() == null ? 0
+                : ((Number) request.source().searchAfter()[0]).intValue() + 1;
+        int end = Math.min(DOCS, start + request.source().size());
+        List<SearchHit> hits = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            SearchHit hit = new SearchHit(i, String.valueOf(i), new Text("_doc"), Collections.emptyMap());
+            hit.sortValues(new Object[]{(long) i}, new DocValueFormat[]{DocValueFormat.RAW});
+            hits.add(hit);
+        }
+        SearchHits searchHits = new SearchHits(hits.toArray(new SearchHit[0]),
+                new TotalHits(DOCS, TotalHits.Relation.EQUAL_TO), 1f);
+        listener.onResponse(new SearchResponse(new InternalSearchResponse(searchHits, null, null, null, false, null, 1),
+                null, 2, 2 - failedShards, 0, 1, ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY));
+    }
+
+    @Test
+    void walksAllHitsInOrder() {
+        List<SearchHit> hits = SearchAfterFlux.hits(new SearchRequest("posts"), 500, this::load).collectList().block();
+        assertEquals(DOCS, hits.size());
+        for (int i = 0; i < DOCS; i++) {
+            assertEquals(String.valueOf(i), hits.get(i).getId());
+        }
+        assertEquals(6, requests.size());
+        //每一页都用同一个 preference，search_after 不会修改上一页的请求
+        assertEquals(requests.get(0).preference(), requests.get(5).preference());
+        assertEquals(null, requests.get(0).source().searchAfter());
+    }
+
+    @Test
+    void fetchesPagesOnlyOnDemand() {
+        Flux<SearchHit> hits = SearchAfterFlux.hits(new SearchRequest("posts"), 100, this::load);
+        assertEquals(0, requests.size());
+
+        assertEquals(1, hits.limitRequest(1).count().block());
+        //第一页和预取的第二页
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    void failsOnShardFailures() {
+        failedShards = 1;
+        assertThrows(ElasticsearchException.class,
+                () -> SearchAfterFlux.hits(new SearchRequest("posts"), 100, this::load).blockLast());
+    }
+}
@@ -0,0 +1,182 @@
+package github.qh.es.infrastructure.search;
+
+import github.qh.es.infrastructure.support.Cancellation;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 不需要es，原请求和对冲请求按 preference 区分，原请求用定时任务模拟慢响应
+ */
+class HedgedSearcherTests {
+
+    private final ScheduledExecutorService shards = Executors.newScheduledThreadPool(2);
+
+    @AfterEach
+    void shutdown() {
+        shards.shutdownNow();
+    }
+
+    private static SearchResponse response(int failedShards) {
+        return new SearchResponse(InternalSearchResponse.empty(), null, 2, 2 - failedShards, 0, 1,
+                ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+    }
+
+    private static boolean isHedge(SearchRequest request) {
+        return request.preference() != null && request.preference().startsWith("hedge-");
+    }
+
+    private BiConsumer<SearchRequest, ActionListener<SearchResponse>> sender(long primaryMillis,
+                                                                            SearchResponse primary,
+                                                                            SearchResponse hedge) {
+        return (request, listener) -> {
+            if (isHedge(request)) {
+                listener.onResponse(hedge);
+            } else {
+                shards.schedule(() -> listener.onResponse(primary), primaryMillis, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    @Test
+    void slowSearchIsAnsweredByTheHedge() throws IOException {
+        SearchResponse primary = response(0);
+        SearchResponse hedge = response(0);
+        try (HedgedSearcher searcher = new HedgedSearcher(95, 5, 20, 100, 1, 10, TimeUnit.MILLISECONDS)) {
+            assertSame(hedge, searcher.search(new SearchRequest("posts"), sender(1000, primary, hedge)));
+
+            HedgeMetrics metrics = searcher.metrics();
+            assertEquals(1, metrics.getHedged());
+            assertEquals(1, metrics.getHedgeWins());
+        }
+    }
+
+    @Test
+    void fastSearchIsNotHedged() throws IOException {
+        SearchResponse primary = response(0);
+        try (HedgedSearcher searcher = new HedgedSearcher(95, 200, 200, 100, 1, 10, TimeUnit.MILLISECONDS)) {
+            for (int i = 0; i < 10; i++) {
+                assertSame(primary, searcher.search(new SearchRequest("posts"), sender(0, primary, response(0))));
+            }
+            assertEquals(10, searcher.metrics().getRequests());
+            assertEquals(0, searcher.metrics().getHedged());
+        }
+    }
+
+    @Test
+    void budgetLimitsHedges() throws IOException {
+        SearchResponse primary = response(0);
+        try (HedgedSearcher searcher = new HedgedSearcher(95, 10, 10, 100, 0.5, 1, TimeUnit.MILLISECONDS)) {
+            for (int i = 0; i < 4; i++) {
+                searcher.search(new SearchRequest("posts"), sender(200, primary, response(0)));
+            }
+            HedgeMetrics metrics = searcher.metrics();
+            assertEquals(2, metrics.getHedged());
+            assertEquals(2, metrics.getBudgetExhausted());
+        }
+    }
+
+    @Test
+    void primaryResultIsDeliveredWhenTheBudgetIsExhausted() {
+        SearchResponse partial = response(1);
+        //预算为0，每次到了对冲时间都扣不到令牌
+        try (HedgedSearcher searcher = new HedgedSearcher(95, 10, 10, 100, 0, 1, TimeUnit.MILLISECONDS)) {
+            IllegalStateException e = assertThrows(IllegalStateException.class, () -> assertTimeoutPreemptively(
+                    Duration.ofSeconds(5), () -> searcher.search(new SearchRequest("posts"), (request, listener) ->
+                            shards.schedule(() -> listener.onFailure(new IllegalStateException("primary")),
+                                    50, TimeUnit.MILLISECONDS))));
+            assertEquals("primary", e.getMessage());
+
+            assertSame(partial, assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+                    searcher.search(new SearchRequest("posts"), sender(50, partial, response(0)))));
+            HedgeMetrics metrics = searcher.metrics();
+            assertEquals(0, metrics.getHedged());
+            assertEquals(2, metrics.getBudgetExhausted());
+        }
+    }
+
+    @Test
+    void partialResultIsUsedOnlyWhenTheOtherRequestFails() throws IOException {
+        SearchResponse partial = response(1);
+        try (HedgedSearcher searcher = new HedgedSearcher(95, 10, 10, 100, 1, 10, TimeUnit.MILLISECONDS)) {
+            SearchResponse result = searcher.search(new SearchRequest("posts"), (request, listener) -> {
+                if (isHedge(request)) {
+                    shards.schedule(() -> listener.onFailure(new IllegalStateException("hedge")),
+                            100, TimeUnit.MILLISECONDS);
+                } else {
+                    shards.schedule(() -> listener.onResponse(partial), 50, TimeUnit.MILLISECONDS);
+                }
+            });
+            assertSame(partial, result);
+        }
+    }
+
+    @Test
+    void primaryFailureIsReportedWhenBothFail() {
+        try (HedgedSearcher searcher = new HedgedSearcher(95, 10, 10, 100, 1, 10, TimeUnit.MILLISECONDS)) {
+            IllegalStateException e = assertThrows(IllegalStateException.class, () ->
+                    searcher.search(new SearchRequest("posts"), (request, listener) -> {
+                        if (isHedge(request)) {
+                            listener.onFailure(new IllegalStateException("hedge"));
+                        } else {
+                            shards.schedule(() -> listener.onFailure(new IllegalStateException("primary")),
+                                    100, TimeUnit.MILLISECONDS);
+                        }
+                    }));
+            assertEquals("primary", e.getMessage());
+            assertEquals("hedge", e.getSuppressed()[0].getMessage());
+        }
+    }
+
+    @Test
+    void requestsWithCustomPreferenceAreNotHedged() throws IOException {
+        SearchResponse primary = response(0);
+        try (HedgedSearcher searcher = new HedgedSearcher(95, 10, 10, 100, 1, 10, TimeUnit.MILLISECONDS)) {
+            SearchRequest request = new SearchRequest("posts").preference("user-42");
+            assertSame(primary, searcher.search(request, sender(100, primary, response(0))));
+            assertEquals(0, searcher.metrics().getHedged());
+        }
+    }
+
+    @Test
+    void localPreferenceIsHedgedAndTheLoserIsCancelled() throws IOException {
+        SearchResponse primary = response(0);
+        SearchResponse hedge = response(0);
+        Map<Boolean, Cancellation> cancellations = new ConcurrentHashMap<>();
+        Cancellation caller = new Cancellation();
+        try (HedgedSearcher searcher = new HedgedSearcher(95, 5, 20, 100, 1, 10, TimeUnit.MILLISECONDS);
+             Cancellation.Scope ignored = caller.attach()) {
+            BiConsumer<SearchRequest, ActionListener<SearchResponse>> sender = sender(1000, primary, hedge);
+            SearchRequest request = new SearchRequest("posts").preference("_local");
+            assertSame(hedge, searcher.search(request, (r, listener) -> {
+                cancellations.put(isHedge(r), Cancellation.current());
+                sender.accept(r, listener);
+            }));
+            assertEquals("_local", request.preference());
+            //每个请求有自己的取消，胜出后只中止输掉的原请求，调用方的取消不受影响
+            assertTrue(cancellations.get(false).isCancelled());
+            assertFalse(cancellations.get(true).isCancelled());
+            assertFalse(caller.isCancelled());
+        }
+    }
+}
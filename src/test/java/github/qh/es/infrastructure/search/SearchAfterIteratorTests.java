@@ -0,0 +1,87 @@
+package github.qh.es.infrastructure.search;
+
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.elasticsearch.search.sort.SortOrder;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 模拟一个按 _id 排好序的索引，loader 根据 search_after 返回下一页
+ */
+class SearchAfterIteratorTests {
+
+    private static final int DOCS = 2503;
+
+    private final List<SearchRequest> requests = new ArrayList<>();
+
+    private void load(SearchRequest request, ActionListener<SearchResponse> listener) {
+        assertNotNull(request.preference());
+        assertEquals(0, request.source().from());
+        requests.add(request);
+        int start = request.source().searchAfter() == null ? 0
+                : ((Number) request.source().searchAfter()[0]).intValue() + 1;
+        int end = Math.min(DOCS, start + request.source().size());
+        List<SearchHit> hits = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            SearchHit hit = new SearchHit(i, String.valueOf(i), new Text("_doc"), Collections.emptyMap());
+            hit.sortValues(new Object[]{(long) i}, new DocValueFormat[]{DocValueFormat.RAW});
+            hits.add(hit);
+        }
+        SearchHits searchHits = new SearchHits(hits.toArray(new SearchHit[0]),
+                new TotalHits(DOCS, TotalHits.Relation.EQUAL_TO), 1f);
+        listener.onResponse(new SearchResponse(new InternalSearchResponse(searchHits, null, null, null, false, null, 1),
+                null, 1, 1, 0, 1, ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY));
+    }
+
+    @Test
+    void walksAllHitsInOrderWithoutFrom() {
+        SearchRequest template = new SearchRequest("posts");
+        try (SearchAfterIterator iterator = new SearchAfterIterator(template, 500, this::load)) {
+            int expected = 0;
+            while (iterator.hasNext()) {
+                assertEquals(String.valueOf(expected++), iterator.next().getId());
+            }
+            assertEquals(DOCS, expected);
+            assertEquals(6, iterator.getPages());
+        }
+        //模板没有被修改
+        assertNull(template.source());
+        assertEquals(6, requests.size());
+    }
+
+    @Test
+    void closingEarlyStopsFetching() {
+        SearchAfterIterator iterator = new SearchAfterIterator(new SearchRequest("posts"), 100, this::load);
+        iterator.next();
+        iterator.close();
+        assertFalse(iterator.hasNext());
+        //第一页和预取的第二页
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    void requiresIdTiebreaker() {
+        SearchRequest request = new SearchRequest("posts")
+                .source(new SearchSourceBuilder().sort("date", SortOrder.DESC));
+        assertThrows(IllegalArgumentException.class, () -> new SearchAfterIterator(request, 100, this::load));
+    }
+}
@@ -0,0 +1,87 @@
+package github.qh.es.infrastructure.search.cache;
+
+import github.qh.es.application.config.EsSearchProperties;
+import github.qh.es.infrastructure.document.DocumentWriteEvent;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * 不需要es，用计数的 loader 代替真正的查询
+ */
+class SearchResultCacheTests {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private SearchResponse load(SearchRequest request) {
+        loads.incrementAndGet();
+        return new SearchResponse(InternalSearchResponse.empty(), null, 1, 1, 0, 1,
+                ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+    }
+
+    private static SearchRequest request(String index) {
+        return new SearchRequest(index).source(new SearchSourceBuilder().query(QueryBuilders.termQuery("user", "kimchy")));
+    }
+
+    @Test
+    void repeatedSearchIsServedFromCacheUntilIndexIsWritten() throws IOException, InterruptedException {
+        EsSearchProperties.Cache properties = new EsSearchProperties.Cache();
+        properties.setRefreshInterval(Duration.ofMillis(200));
+        SearchResultCache cache = new SearchResultCache(properties);
+
+        SearchResponse first = cache.search(request("posts"), this::load);
+        assertSame(first, cache.search(request("posts"), this::load));
+        assertEquals(1, loads.get());
+
+        //其他索引的写入不影响
+        cache.onApplicationEvent(new DocumentWriteEvent(this, Collections.singleton("users"), true));
+        cache.search(request("posts"), this::load);
+        assertEquals(1, loads.get());
+
+        //写入后未刷新的这段时间不缓存
+        cache.onApplicationEvent(new DocumentWriteEvent(this, Collections.singleton("posts"), false));
+        cache.search(request("posts"), this::load);
+        cache.search(request("posts"), this::load);
+        assertEquals(3, loads.get());
+
+        Thread.sleep(250);
+        cache.search(request("posts"), this::load);
+        cache.search(request("posts"), this::load);
+        assertEquals(4, loads.get());
+
+        //通配符查询任何写入都会失效
+        cache.search(request("po*"), this::load);
+        cache.onApplicationEvent(new DocumentWriteEvent(this, Collections.singleton("users"), true));
+        cache.search(request("po*"), this::load);
+        assertEquals(6, loads.get());
+
+        SearchCacheMetrics metrics = cache.metrics();
+        assertEquals(3, metrics.getHits());
+        assertEquals(2, metrics.getStaleHits());
+    }
+
+    @Test
+    void uncacheableRequestsAlwaysLoad() throws IOException {
+        SearchResultCache cache = new SearchResultCache(new EsSearchProperties.Cache());
+        SearchRequest now = new SearchRequest("posts").source(new SearchSourceBuilder()
+                .query(QueryBuilders.rangeQuery("date").gte("now-1d")));
+        cache.search(now, this::load);
+        cache.search(now, this::load);
+        SearchRequest noCache = request("posts").requestCache(false);
+        cache.search(noCache, this::load);
+        cache.search(noCache, this::load);
+        assertEquals(4, loads.get());
+    }
+}
@@ -0,0 +1,105 @@
+package github.qh.es.infrastructure.search.decode;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.search.SearchHit;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SourceDecodersTests {
+
+    private static final String SOURCE = "{\"title\":\"hello\",\"views\":\"42\",\"score\":1.5,\"published\":true,"
+            + "\"status\":\"DRAFT\",\"create_time\":1622505600000,\"tags\":[\"a\",\"b\"],\"category\":\"news\","
+            + "\"author\":{\"name\":\"kimchy\",\"age\":30,\"bio\":{\"long\":[1,2,3]}},"
+            + "\"comments\":[{\"user\":\"u1\",\"likes\":1},{\"user\":\"u2\",\"likes\":2}],"
+            + "\"author.email\":\"k@example.com\",\"body\":{\"huge\":[{\"nested\":[1,2,{\"deep\":true}]}]}}";
+
+    enum Status {
+        DRAFT, PUBLISHED
+    }
+
+    static class Author {
+        private String name;
+        private int age;
+    }
+
+    static class Comment {
+        private String user;
+        private long likes;
+    }
+
+    static class Post {
+        private String title;
+        private int views;
+        private Double score;
+        private boolean published;
+        private Status status;
+        @SourceField("create_time")
+        private long createTime;
+        private List<String> tags;
+        private List<String> category;
+        private Author author;
+        private List<Comment> comments;
+        private String missing;
+    }
+
+    private static SearchHit hit(String source) {
+        return new SearchHit(1, "1", new Text("_doc"), Collections.emptyMap()).sourceRef(new BytesArray(source));
+    }
+
+    @Test
+    void bindsSourceToClassSkippingUnknownFields() throws IOException {
+        Post post = SourceDecoders.decode(hit(SOURCE), SourceDecoders.bean(Post.class));
+
+        assertEquals("hello", post.title);
+        assertEquals(42, post.views);
+        assertEquals(1.5, post.score);
+        assertEquals(true, post.published);
+        assertEquals(Status.DRAFT, post.status);
+        assertEquals(1622505600000L, post.createTime);
+        assertEquals(Arrays.asList("a", "b"), post.tags);
+        //单个值当作只有一个元素的列表
+        assertEquals(Collections.singletonList("news"), post.category);
+        assertEquals("kimchy", post.author.name);
+        assertEquals(30, post.author.age);
+        assertEquals(2, post.comments.size());
+        assertEquals("u2", post.comments.get(1).user);
+        assertEquals(2, post.comments.get(1).likes);
+        assertNull(post.missing);
+    }
+
+    @Test
+    void projectionReturnsOnlyRequestedPaths() throws IOException {
+        Map<String, Object> fields = SourceDecoders.decode(hit(SOURCE),
+                SourceDecoders.fields("title", "author.name", "author.email", "comments.user", "nope"));
+
+        assertEquals(4, fields.size());
+        assertEquals("hello", fields.get("title"));
+        assertEquals("kimchy", fields.get("author.name"));
+        assertEquals("k@example.com", fields.get("author.email"));
+        assertEquals(Arrays.asList("u1", "u2"), fields.get("comments.user"));
+        assertFalse(fields.containsKey("nope"));
+    }
+
+    @Test
+    void missingSourceDecodesToNull() throws IOException {
+        SearchHit hit = new SearchHit(1, "1", new Text("_doc"), Collections.emptyMap());
+        assertNull(SourceDecoders.decode(hit, SourceDecoders.bean(Post.class)));
+    }
+
+    @Test
+    void objectWhereScalarExpectedFails() {
+        assertThrows(RuntimeException.class,
+                () -> SourceDecoders.decode(hit("{\"title\":{\"text\":\"x\"}}"), SourceDecoders.bean(Post.class)));
+    }
+}
@@ -0,0 +1,73 @@
+package github.qh.es.infrastructure.search.export;
+
+import github.qh.es.support.StubEsServer;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SlicedScrollExporterTests {
+
+    private static final int DOCS = 10_007;
+
+    @Test
+    void exportsEveryDocOnceWithOneSlicePerShard() throws Exception {
+        try (StubEsServer server = new StubEsServer();
+             RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(server.host()))) {
+            server.setSearchDocs(DOCS, 4);
+            SlicedScrollExporter exporter = new SlicedScrollExporter(client, 500, TimeValue.timeValueMinutes(1), 32);
+            Set<String> ids = ConcurrentHashMap.newKeySet();
+            ExportResult result = exporter.export(new SearchRequest("posts"), (slice, hits) -> {
+                for (SearchHit hit : hits) {
+                    assertTrue(ids.add(hit.getId()));
+                }
+            });
+            assertEquals(DOCS, result.getDocs());
+            assertEquals(DOCS, ids.size());
+            assertEquals(4, result.getSlices().size());
+            for (SliceProgress slice : result.getSlices()) {
+                assertTrue(slice.isDone());
+                assertTrue(slice.getDocs() > 0);
+            }
+            assertEquals(0, server.getOpenScrolls());
+        }
+    }
+
+    @Test
+    void writesNdjsonFileAndClearsScrollsOnFailure(@TempDir Path dir) throws Exception {
+        try (StubEsServer server = new StubEsServer();
+             RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(server.host()))) {
+            server.setSearchDocs(DOCS, 1);
+            SlicedScrollExporter exporter = new SlicedScrollExporter(client, 1000, TimeValue.timeValueMinutes(1), 32);
+            Path file = dir.resolve("posts.ndjson");
+            ScrollExport export = exporter.start(new SearchRequest("posts"), 3, new NdjsonFileHitSink(file));
+            export.setParallelism(1);
+            ExportResult result = export.await();
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            assertEquals(DOCS, lines.size());
+            assertEquals(3, result.getSlices().size());
+            assertTrue(lines.contains("{\"n\":42}"));
+
+            IllegalStateException boom = new IllegalStateException("boom");
+            ScrollExport failing = exporter.start(new SearchRequest("posts"), 3, (slice, hits) -> {
+                throw boom;
+            });
+            assertEquals(boom, assertThrows(IllegalStateException.class, failing::await));
+            assertEquals(0, server.getOpenScrolls());
+        }
+    }
+}
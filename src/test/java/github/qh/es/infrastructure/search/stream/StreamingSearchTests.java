@@ -0,0 +1,100 @@
+package github.qh.es.infrastructure.search.stream;
+
+import github.qh.es.infrastructure.search.decode.SourceDecoders;
+import github.qh.es.infrastructure.support.StreamingResponseReader;
+import github.qh.es.support.StubEsServer;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 缓冲区设置得比响应小很多，验证边收边解析时暂停/恢复读取连接不会丢数据
+ */
+class StreamingSearchTests {
+
+    private static final int DOCS = 20_000;
+
+    private static SearchRequest all() {
+        return new SearchRequest("posts").source(new SearchSourceBuilder().size(DOCS));
+    }
+
+    @Test
+    void streamsHitsLargerThanTheBuffer() throws IOException {
+        try (StubEsServer server = new StubEsServer();
+             RestClient client = RestClient.builder(server.host()).build()) {
+            server.setSearchDocs(DOCS, 3);
+            StreamingSearch search = new StreamingSearch(new StreamingResponseReader(client, 1024, 4096, 4096));
+            AtomicInteger next = new AtomicInteger();
+
+            StreamedSearchResult result = search.search(all(), hit ->
+                    assertEquals(Integer.toString(next.getAndIncrement()), hit.getId()));
+
+            assertEquals(DOCS, next.get());
+            assertEquals(DOCS, result.getHits());
+            assertEquals(DOCS, result.getTotalHits());
+            assertFalse(result.isTotalHitsLowerBound());
+            assertEquals(3, result.getTotalShards());
+        }
+    }
+
+    @Test
+    void decodesSourceWithoutSearchHits() throws IOException {
+        try (StubEsServer server = new StubEsServer();
+             RestClient client = RestClient.builder(server.host()).build()) {
+            server.setSearchDocs(DOCS, 1);
+            StreamingSearch search = new StreamingSearch(new StreamingResponseReader(client, 1024, 4096, 4096));
+            List<Object> values = new ArrayList<>();
+
+            search.search(all(), SourceDecoders.fields("n"), (Map<String, Object> source) -> values.add(source.get("n")));
+
+            assertEquals(DOCS, values.size());
+            assertEquals(DOCS - 1, ((Number) values.get(DOCS - 1)).intValue());
+        }
+    }
+
+    @Test
+    void abortedConsumerLeavesConnectionUsable() throws IOException {
+        try (StubEsServer server = new StubEsServer();
+             RestClient client = RestClient.builder(server.host()).build()) {
+            server.setSearchDocs(DOCS, 1);
+            StreamingSearch search = new StreamingSearch(new StreamingResponseReader(client, 1024, 4096, 4096));
+            AtomicInteger seen = new AtomicInteger();
+
+            assertThrows(IOException.class, () -> search.search(all(), hit -> {
+                if (seen.incrementAndGet() == 10) {
+                    throw new IOException("stop");
+                }
+            }));
+
+            assertEquals(DOCS, search.search(all(), hit -> {
+            }).getHits());
+        }
+    }
+
+    @Test
+    void encodesPathSegmentsAndPassesShardParameters() {
+        SearchRequest searchRequest = new SearchRequest("logs/2021", "中文 索引");
+        searchRequest.setMaxConcurrentShardRequests(3);
+        searchRequest.setBatchedReduceSize(64);
+        searchRequest.setCcsMinimizeRoundtrips(false);
+
+        Request request = StreamingSearch.request(searchRequest);
+        assertEquals("/logs%2F2021,中文%20索引/_search", request.getEndpoint());
+        assertEquals("3", request.getParameters().get("max_concurrent_shard_requests"));
+        assertEquals("64", request.getParameters().get("batched_reduce_size"));
+        assertEquals("false", request.getParameters().get("ccs_minimize_roundtrips"));
+        assertEquals("/_search", StreamingSearch.request(new SearchRequest()).getEndpoint());
+    }
+}
@@ -0,0 +1,104 @@
+package github.qh.es.infrastructure.support;
+
+import github.qh.es.support.StubEsServer;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 对比三种发起大量并发get的方式：平台线程池上的同步调用、虚拟线程上的同步调用、异步回调。
+ * 不是单元测试，直接运行 main，参数依次是 调用数 服务端延迟毫秒 连接数 平台线程数（默认 20000 20 256 200）。
+ * 虚拟线程需要在 JDK 21 上运行，否则跳过。
+ * 服务端按固定延迟响应，吞吐的上限是 连接数 / 延迟；平台线程池的上限还受线程数限制，
+ * 虚拟线程和异步回调应该接近连接数的上限，区别在于 peak threads（虚拟线程不计入平台线程数）。
+ */
+@Slf4j
+public class BlockingCallBenchmark {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        long delayMillis = args.length > 1 ? Long.parseLong(args[1]) : 20;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        int platformThreads = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+
+        try (StubEsServer server = new StubEsServer(connections);
+             RestClient client = RestClient.builder(server.host())
+                     .setHttpClientConfigCallback(httpClient -> new EsHttpAsyncClientBuilder(httpClient
+                             .setMaxConnTotal(connections).setMaxConnPerRoute(connections)))
+                     .build()) {
+            server.setResponseDelayMillis(delayMillis);
+            log.info("calls={} delay={}ms connections={} platform-threads={} java={}",
+                    calls, delayMillis, connections, platformThreads, System.getProperty("java.version"));
+            //预热连接池和JIT
+            blocking(client, BlockingCallExecutor.Mode.PLATFORM, Math.min(calls, connections * 4), platformThreads);
+
+            report("platform", calls, () -> blocking(client, BlockingCallExecutor.Mode.PLATFORM, calls, platformThreads));
+            if (BlockingCallExecutor.isVirtualThreadSupported()) {
+                report("virtual", calls, () -> blocking(client, BlockingCallExecutor.Mode.VIRTUAL, calls, platformThreads));
+            } else {
+                log.info("virtual   skipped, needs JDK 21+");
+            }
+            report("async", calls, () -> async(client, calls));
+        }
+    }
+
+    private static void blocking(RestClient client, BlockingCallExecutor.Mode mode, int calls, int platformThreads)
+            throws IOException {
+        List<Integer> ids = new ArrayList<>(calls);
+        for (int i = 0; i < calls; i++) {
+            ids.add(i);
+        }
+        try (BlockingCallExecutor executor = new BlockingCallExecutor(mode, platformThreads, calls)) {
+            executor.invokeAll(ids, id -> client.performRequest(new Request("GET", "/")));
+        }
+    }
+
+    private static void async(RestClient client, int calls) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(calls);
+        AtomicLong failures = new AtomicLong();
+        for (int i = 0; i < calls; i++) {
+            client.performRequestAsync(new Request("GET", "/"), new ResponseListener() {
+                @Override
+                public void onSuccess(Response response) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailure(Exception exception) {
+                    failures.incrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        if (failures.get() > 0) {
+            throw new IllegalStateException(failures.get() + " async calls failed");
+        }
+    }
+
+    private static void report(String name, int calls, Run run) throws Exception {
+        THREADS.resetPeakThreadCount();
+        long start = System.nanoTime();
+        run.run();
+        long elapsed = System.nanoTime() - start;
+        log.info(String.format("%-9s %6d ms  %8.0f calls/s  peak threads %d", name,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), calls * 1e9 / elapsed, THREADS.getPeakThreadCount()));
+    }
+
+    private interface Run {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,57 @@
+package github.qh.es.infrastructure.support;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BlockingCallExecutorTests {
+
+    @Test
+    void fallsBackToPlatformThreadsWithoutVirtualThreads() {
+        try (BlockingCallExecutor executor = new BlockingCallExecutor(BlockingCallExecutor.Mode.VIRTUAL, 2, 100)) {
+            assertEquals(BlockingCallExecutor.isVirtualThreadSupported() ? BlockingCallExecutor.Mode.VIRTUAL
+                    : BlockingCallExecutor.Mode.PLATFORM, executor.getMode());
+        }
+    }
+
+    @Test
+    void invokeAllKeepsInputOrderAndRethrowsFailures() throws IOException {
+        for (BlockingCallExecutor.Mode mode : BlockingCallExecutor.Mode.values()) {
+            try (BlockingCallExecutor executor = new BlockingCallExecutor(mode, 4, 2)) {
+                List<Integer> results = executor.invokeAll(Arrays.asList(3, 1, 2), input -> {
+                    Thread.sleep(input * 10L);
+                    return input * 2;
+                });
+                assertEquals(Arrays.asList(6, 2, 4), results);
+
+                IOException e = assertThrows(IOException.class, () -> executor.invokeAll(Arrays.asList(1, 2), input -> {
+                    if (input == 2) {
+                        throw new IOException("boom");
+                    }
+                    return input;
+                }));
+                assertEquals("boom", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    void carriesTheDeadlineToTheCall() throws ExecutionException, InterruptedException {
+        try (BlockingCallExecutor executor = new BlockingCallExecutor(BlockingCallExecutor.Mode.PLATFORM, 1, 1)) {
+            Deadline deadline = Deadline.after(Duration.ofSeconds(5));
+            try (Deadline.Scope ignored = deadline.attach()) {
+                assertSame(deadline, executor.submit(Deadline::current).get());
+            }
+            assertNull(executor.submit(Deadline::current).get());
+        }
+    }
+}
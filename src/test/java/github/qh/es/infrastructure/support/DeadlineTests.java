@@ -0,0 +1,55 @@
+package github.qh.es.infrastructure.support;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeadlineTests {
+
+    @Test
+    void serverTimeoutIsTheSmallerOfConfiguredAndRemaining() {
+        TimeValue configured = TimeValue.timeValueMinutes(2);
+        assertSame(configured, Deadline.serverTimeout(configured));
+        try (Deadline.Scope ignored = Deadline.after(Duration.ofSeconds(10)).attach()) {
+            TimeValue timeout = Deadline.serverTimeout(configured);
+            assertTrue(timeout.millis() <= 9000 && timeout.millis() > 8000, timeout.toString());
+            assertEquals(100, Deadline.serverTimeout(TimeValue.timeValueMillis(100)).millis());
+            assertTrue(Deadline.serverTimeout(null).millis() <= 9000);
+        }
+        assertNull(Deadline.current());
+    }
+
+    @Test
+    void nestedScopeKeepsTheEarlierDeadline() {
+        Deadline outer = Deadline.after(Duration.ofMillis(100));
+        try (Deadline.Scope ignored = outer.attach()) {
+            try (Deadline.Scope ignored2 = Deadline.after(Duration.ofMinutes(1)).attach()) {
+                assertSame(outer, Deadline.current());
+            }
+            Deadline inner = Deadline.after(Duration.ofMillis(10));
+            try (Deadline.Scope ignored2 = inner.attach()) {
+                assertSame(inner, Deadline.current());
+            }
+            assertSame(outer, Deadline.current());
+        }
+        assertNull(Deadline.current());
+    }
+
+    @Test
+    void expiredDeadlineFailsTheCheck() {
+        Deadline deadline = Deadline.after(Duration.ZERO);
+        assertTrue(deadline.isExpired());
+        assertThrows(ElasticsearchTimeoutException.class, deadline::check);
+        try (Deadline.Scope ignored = deadline.attach()) {
+            assertEquals(1, Deadline.serverTimeout(null).millis());
+        }
+    }
+}
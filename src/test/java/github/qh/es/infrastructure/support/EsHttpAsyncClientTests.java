@@ -0,0 +1,227 @@
+package github.qh.es.infrastructure.support;
+
+import github.qh.es.infrastructure.client.GradientConcurrencyLimiter;
+import github.qh.es.infrastructure.client.IndexCircuitBreaker;
+import github.qh.es.support.StubEsServer;
+import org.apache.http.HttpHost;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.protocol.BasicHttpContext;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 请求体压缩、连接池指标、并发限制、熔断和截止时间
+ */
+class EsHttpAsyncClientTests {
+
+    private static final HttpHost HOST = new HttpHost("localhost", 9200);
+
+    @Test
+    void compressesRequestBodies() throws Exception {
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(IOReactorConfig.custom().setIoThreadCount(2).build()));
+        connectionManager.setDefaultMaxPerRoute(4);
+        try (StubEsServer server = new StubEsServer();
+             RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(server.host())
+                     .setHttpClientConfigCallback(httpClient ->
+                             new EsHttpAsyncClientBuilder(httpClient.setConnectionManager(connectionManager)).compression(1024)));
+             ConnectionPoolMonitor monitor = new ConnectionPoolMonitor(connectionManager, Duration.ZERO)) {
+            BulkRequest request = new BulkRequest();
+            for (int i = 0; i < 1000; i++) {
+                request.add(new IndexRequest("posts").id(String.valueOf(i))
+                        .source(XContentType.JSON, "title", "compressed document " + i));
+            }
+            BulkResponse response = client.bulk(request, RequestOptions.DEFAULT);
+
+            assertFalse(response.hasFailures());
+            assertEquals(1, server.getGzipRequests());
+            assertEquals(1000, server.getBulkItems());
+            ConnectionPoolMetrics metrics = monitor.metrics();
+            assertEquals(0, metrics.getLeased());
+            assertEquals(0, metrics.getPending());
+            assertEquals(1, monitor.routeMetrics().size());
+        }
+    }
+
+    @Test
+    void shedsRequestsOverTheLimitWithoutMarkingTheNodeDead() throws Exception {
+        GradientConcurrencyLimiter limiter = new GradientConcurrencyLimiter(1, 1, 1, 1.5, 0.2, 0.9, 1,
+                TimeUnit.SECONDS);
+        try (StubEsServer server = new StubEsServer();
+             RestClient client = RestClient.builder(server.host())
+                     .setHttpClientConfigCallback(httpClient -> new EsHttpAsyncClientBuilder(httpClient).limiter(limiter))
+                     .build()) {
+            server.setResponseDelayMillis(300);
+            CountDownLatch slow = new CountDownLatch(1);
+            client.performRequestAsync(new Request("GET", "/"), new ResponseListener() {
+                @Override
+                public void onSuccess(Response response) {
+                    slow.countDown();
+                }
+
+                @Override
+                public void onFailure(Exception exception) {
+                    slow.countDown();
+                }
+            });
+
+            ResponseException e = assertThrows(ResponseException.class,
+                    () -> client.performRequest(new Request("GET", "/posts/_search")));
+            assertEquals(429, e.getResponse().getStatusLine().getStatusCode());
+            assertEquals(1, limiter.metrics().getRejected());
+
+            assertTrue(slow.await(5, TimeUnit.SECONDS));
+            server.setResponseDelayMillis(0);
+            assertEquals(200, client.performRequest(new Request("GET", "/")).getStatusLine().getStatusCode());
+            //429 不会让 RestClient 把节点拉黑
+            assertEquals(1, client.getNodes().size());
+            assertEquals(2, server.getRequests());
+        }
+    }
+
+    @Test
+    void releasesThePermitWhenTheRequestCannotBeSent() throws Exception {
+        GradientConcurrencyLimiter limiter = new GradientConcurrencyLimiter(1, 1, 1, 1.5, 0.2, 0.9, 1,
+                TimeUnit.SECONDS);
+        //没有启动的http客户端，execute 直接抛异常
+        try (EsHttpAsyncClient client = new EsHttpAsyncClient(HttpAsyncClients.createDefault(), -1, null,
+                limiter, null)) {
+            for (int i = 0; i < 2; i++) {
+                assertThrows(IllegalStateException.class, () -> client.execute(
+                        HttpAsyncMethods.createGet(HOST, "/posts/_doc/1"), HttpAsyncMethods.createConsumer(),
+                        new BasicHttpContext(), null));
+            }
+            assertTrue(limiter.tryAcquire());
+        }
+    }
+
+    @Test
+    void openCircuitRejectsOnlyThatIndex() throws Exception {
+        IndexCircuitBreaker breaker = new IndexCircuitBreaker(0.5, 2, 10, 10, TimeUnit.SECONDS);
+        try (StubEsServer server = new StubEsServer();
+             RestClient client = RestClient.builder(server.host())
+                     .setHttpClientConfigCallback(httpClient ->
+                             new EsHttpAsyncClientBuilder(httpClient).circuitBreaker(breaker))
+                     .build()) {
+            breaker.allow("broken");
+            breaker.onResult("broken", false);
+            breaker.allow("broken");
+            breaker.onResult("broken", false);
+
+            ResponseException e = assertThrows(ResponseException.class,
+                    () -> client.performRequest(new Request("GET", "/broken/_search")));
+            assertEquals(429, e.getResponse().getStatusLine().getStatusCode());
+            assertEquals(0, server.getRequests());
+            assertEquals(200, client.performRequest(new Request("GET", "/posts/_search"))
+                    .getStatusLine().getStatusCode());
+            assertEquals(200, client.performRequest(new Request("GET", "/")).getStatusLine().getStatusCode());
+        }
+    }
+
+    @Test
+    void abortsRequestsAtTheDeadline() throws Exception {
+        try (StubEsServer server = new StubEsServer();
+             RestClient client = RestClient.builder(server.host())
+                     .setHttpClientConfigCallback(EsHttpAsyncClientBuilder::new)
+                     .build()) {
+            server.setResponseDelayMillis(2000);
+            long start = System.nanoTime();
+            ResponseException e;
+            try (Deadline.Scope ignored = Deadline.after(Duration.ofMillis(200)).attach()) {
+                e = assertThrows(ResponseException.class, () -> client.performRequest(new Request("GET", "/")));
+            }
+            assertEquals(408, e.getResponse().getStatusLine().getStatusCode());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+            //已经过期的截止时间不发请求
+            long requests = server.getRequests();
+            try (Deadline.Scope ignored = Deadline.after(Duration.ZERO).attach()) {
+                assertThrows(ResponseException.class, () -> client.performRequest(new Request("GET", "/")));
+            }
+            assertEquals(requests, server.getRequests());
+            assertEquals(1, client.getNodes().size());
+        }
+    }
+
+    @Test
+    void abortsCancelledRequests() throws Exception {
+        try (StubEsServer server = new StubEsServer();
+             RestClient client = RestClient.builder(server.host())
+                     .setHttpClientConfigCallback(EsHttpAsyncClientBuilder::new)
+                     .build()) {
+            server.setResponseDelayMillis(2000);
+            Cancellation cancellation = new Cancellation();
+            CountDownLatch aborted = new CountDownLatch(2);
+            ResponseListener listener = new ResponseListener() {
+                @Override
+                public void onSuccess(Response response) {
+                }
+
+                @Override
+                public void onFailure(Exception exception) {
+                    aborted.countDown();
+                }
+            };
+            try (Cancellation.Scope ignored = cancellation.attach()) {
+                client.performRequestAsync(new Request("GET", "/"), listener);
+            }
+            cancellation.cancel();
+            //已经取消后发出的请求（比如 RestClient 的重试）不发出去
+            try (Cancellation.Scope ignored = cancellation.attach()) {
+                client.performRequestAsync(new Request("GET", "/"), listener);
+            }
+            assertTrue(aborted.await(1, TimeUnit.SECONDS));
+            assertTrue(server.getRequests() <= 1);
+            assertEquals(1, client.getNodes().size());
+        }
+    }
+
+    @Test
+    void childCancellationsFollowTheirParentUntilReleased() {
+        Cancellation parent = new Cancellation();
+        Cancellation first = parent.child();
+        Cancellation second = parent.child();
+        second.release();
+        first.cancel();
+        assertFalse(parent.isCancelled());
+
+        Cancellation third = parent.child();
+        parent.cancel();
+        assertTrue(third.isCancelled());
+        //已经解除登记的不再跟着取消
+        assertFalse(second.isCancelled());
+        assertTrue(parent.child().isCancelled());
+    }
+
+    @Test
+    void indexIsTheFirstPathSegment() {
+        assertEquals("posts", EsHttpAsyncClient.index(HttpAsyncMethods.createGet(HOST, "/posts/_search?q=a")));
+        assertEquals("a,b", EsHttpAsyncClient.index(HttpAsyncMethods.createGet(HOST, "/a,b/_doc/1")));
+        assertNull(EsHttpAsyncClient.index(HttpAsyncMethods.createGet(HOST, "/_mget")));
+        assertNull(EsHttpAsyncClient.index(HttpAsyncMethods.createGet(HOST, "/")));
+    }
+}
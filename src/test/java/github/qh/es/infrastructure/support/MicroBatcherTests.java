@@ -0,0 +1,60 @@
+package github.qh.es.infrastructure.support;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MicroBatcherTests {
+
+    private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+
+    private void doubleAll(List<MicroBatcher.Item<Integer, Integer>> items) {
+        batchSizes.add(items.size());
+        for (MicroBatcher.Item<Integer, Integer> item : items) {
+            item.complete(item.getRequest() * 2);
+        }
+    }
+
+    @Test
+    void packsRequestsByWindowAndSize() throws Exception {
+        try (MicroBatcher<Integer, Integer> batcher = new MicroBatcher<>("test", this::doubleAll, 10, 50,
+                TimeUnit.MILLISECONDS)) {
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 25; i++) {
+                futures.add(batcher.submit(i));
+            }
+            //前两批攒满立即发送，剩下5个等窗口结束
+            assertEquals(2, batchSizes.size());
+            for (int i = 0; i < 25; i++) {
+                assertEquals(i * 2, futures.get(i).get(1, TimeUnit.SECONDS));
+            }
+            assertEquals(3, batcher.getBatches());
+            assertEquals(5, batchSizes.get(2));
+            assertEquals(50, batcher.execute(25));
+        }
+    }
+
+    @Test
+    void failsWholeBatchWhenDispatchThrows() {
+        IllegalStateException boom = new IllegalStateException("boom");
+        try (MicroBatcher<Integer, Integer> batcher = new MicroBatcher<>("test", items -> {
+            throw boom;
+        }, 2, 10, TimeUnit.SECONDS)) {
+            CompletableFuture<Integer> first = batcher.submit(1);
+            CompletableFuture<Integer> second = batcher.submit(2);
+            ExecutionException e = assertThrows(ExecutionException.class, () -> first.get(1, TimeUnit.SECONDS));
+            assertSame(boom, e.getCause());
+            assertTrue(second.isCompletedExceptionally());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package github.qh.es.infrastructure.support;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestCoalescerTests {
+
+    private static final int THREADS = 32;
+
+    @Test
+    void concurrentIdenticalRequestsShareOneCall() throws Exception {
+        RequestCoalescer<String, Object> coalescer = new RequestCoalescer<>(Function.identity(), 100, 1000);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(() -> coalescer.execute("hot", request -> {
+                    calls.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    return new Object();
+                })));
+            }
+            //等所有线程都登记上再放行
+            while (coalescer.metrics().getLeaders() + coalescer.metrics().getFollowers() < THREADS) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            Object first = results.get(0).get(5, TimeUnit.SECONDS);
+            for (Future<Object> result : results) {
+                assertSame(first, result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, calls.get());
+            assertEquals(0, coalescer.metrics().getInFlight());
+
+            //结束后再来的请求重新发送
+            coalescer.execute("hot", request -> {
+                calls.incrementAndGet();
+                return new Object();
+            });
+            assertEquals(2, calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failureIsSharedAndLimitsBypass() throws Exception {
+        RequestCoalescer<String, Object> coalescer = new RequestCoalescer<>(Function.identity(), 100, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                results.add(executor.submit(() -> coalescer.execute("hot", request -> {
+                    calls.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    throw new IOException("boom");
+                })));
+                //按顺序到达：leader、follower、超过 maxFollowers 单独发送
+                while (coalescer.metrics().getLeaders() + coalescer.metrics().getFollowers()
+                        + coalescer.metrics().getBypassed() <= i) {
+                    Thread.sleep(5);
+                }
+            }
+            release.countDown();
+            for (Future<Object> result : results) {
+                Exception e = assertThrows(Exception.class, () -> result.get(5, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertEquals(2, calls.get());
+            assertEquals(1, coalescer.metrics().getBypassed());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
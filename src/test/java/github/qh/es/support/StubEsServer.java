@@ -0,0 +1,362 @@
+package github.qh.es.support;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 本地模拟的es节点，只实现了测试用到的几个接口，用来代替真实集群做压测
+ */
+public class StubEsServer implements AutoCloseable {
+
+    private static final Pattern BULK_ID = Pattern.compile("\"_id\":\"([^\"]*)\"");
+
+    private final HttpServer server;
+
+    private final AtomicLong bulkRequests = new AtomicLong();
+
+    private final AtomicLong bulkItems = new AtomicLong();
+
+    private final AtomicLong gzipRequests = new AtomicLong();
+
+    /**
+     * bulk action行里带的 _id，去重
+     */
+    private final Set<String> bulkIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 最近一次bulk请求体（已解压）
+     */
+    private volatile byte[] lastBulkBody;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * 每个请求处理前等待的时间，模拟慢节点
+     */
+    private volatile long responseDelayMillis;
+
+    /**
+     * 所有请求返回503，模拟不可用的节点
+     */
+    private volatile boolean unavailable;
+
+    private volatile long tookMillis = 5;
+
+    /**
+     * 第n个bulk条目是否返回429
+     */
+    private volatile IntPredicate rejectItem = i -> false;
+
+    /**
+     * 查询时模拟的文档数和分片数，文档n属于 slice n % max
+     */
+    private volatile int searchDocs;
+
+    private volatile int shards = 1;
+
+    private final AtomicLong openScrolls = new AtomicLong();
+
+    private final AtomicLong mgetRequests = new AtomicLong();
+
+    private final AtomicLong mgetItems = new AtomicLong();
+
+    public StubEsServer() throws IOException {
+        this(16);
+    }
+
+    /**
+     * @param threads 处理请求的线程数，设置了响应延迟时决定了能同时处理多少请求
+     */
+    public StubEsServer(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.createContext("/_bulk", exchange -> handle(exchange, this::handleBulk));
+        server.createContext("/_search/scroll", exchange -> handle(exchange, this::handleScroll));
+        server.createContext("/_mget", exchange -> handle(exchange, this::handleMget));
+        server.createContext("/", exchange -> handle(exchange, e -> {
+            if (e.getRequestURI().getPath().endsWith("/_search")) {
+                handleSearch(e);
+                return;
+            }
+            respond(e, 200,
+                    "{\"name\":\"stub\",\"cluster_name\":\"stub\",\"version\":{\"number\":\"7.2.0\"},\"tagline\":\"You Know, for Search\"}");
+        }));
+        server.start();
+    }
+
+    public HttpHost host() {
+        return new HttpHost("127.0.0.1", server.getAddress().getPort(), "http");
+    }
+
+    public void setTookMillis(long tookMillis) {
+        this.tookMillis = tookMillis;
+    }
+
+    public void setRejectItem(IntPredicate rejectItem) {
+        this.rejectItem = rejectItem;
+    }
+
+    public long getBulkRequests() {
+        return bulkRequests.get();
+    }
+
+    public long getBulkItems() {
+        return bulkItems.get();
+    }
+
+    public Set<String> getBulkIds() {
+        return bulkIds;
+    }
+
+    public byte[] getLastBulkBody() {
+        return lastBulkBody;
+    }
+
+    public void setResponseDelayMillis(long responseDelayMillis) {
+        this.responseDelayMillis = responseDelayMillis;
+    }
+
+    public void setUnavailable(boolean unavailable) {
+        this.unavailable = unavailable;
+    }
+
+    /**
+     * 收到的所有请求数
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getGzipRequests() {
+        return gzipRequests.get();
+    }
+
+    public void setSearchDocs(int searchDocs, int shards) {
+        this.searchDocs = searchDocs;
+        this.shards = shards;
+    }
+
+    /**
+     * 还没有被清理的scroll数
+     */
+    public long getOpenScrolls() {
+        return openScrolls.get();
+    }
+
+    private void handle(HttpExchange exchange, HttpHandler handler) throws IOException {
+        requests.incrementAndGet();
+        if (responseDelayMillis > 0) {
+            try {
+                Thread.sleep(responseDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (unavailable) {
+            respond(exchange, 503, "{\"error\":\"unavailable\",\"status\":503}");
+            return;
+        }
+        handler.handle(exchange);
+    }
+
+    private void handleBulk(HttpExchange exchange) throws IOException {
+        bulkRequests.incrementAndGet();
+        StringBuilder items = new StringBuilder();
+        boolean errors = false;
+        int itemId = 0;
+        InputStream body = exchange.getRequestBody();
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            gzipRequests.incrementAndGet();
+            body = new GZIPInputStream(body);
+        }
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = body.read(buffer)) != -1) {
+            raw.write(buffer, 0, n);
+        }
+        lastBulkBody = raw.toByteArray();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(lastBulkBody), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String op = line.substring(2, line.indexOf('"', 2));
+                Matcher id = BULK_ID.matcher(line);
+                if (id.find()) {
+                    bulkIds.add(id.group(1));
+                }
+                if (!"delete".equals(op)) {
+                    reader.readLine();
+                }
+                long seq = bulkItems.getAndIncrement();
+                if (items.length() > 0) {
+                    items.append(',');
+                }
+                if (rejectItem.test((int) seq)) {
+                    errors = true;
+                    items.append("{\"").append(op).append("\":{\"_index\":\"posts\",\"_type\":\"_doc\",\"_id\":\"")
+                            .append(itemId).append("\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",")
+                            .append("\"reason\":\"rejected execution\"}}}");
+                } else {
+                    items.append("{\"").append(op).append("\":{\"_index\":\"posts\",\"_type\":\"_doc\",\"_id\":\"")
+                            .append(itemId).append("\",\"_version\":1,\"result\":\"").append("delete".equals(op) ? "deleted" : "created")
+                            .append("\",\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0},\"_seq_no\":")
+                            .append(seq).append(",\"_primary_term\":1,\"status\":").append("delete".equals(op) ? 200 : 201)
+                            .append("}}");
+                }
+                itemId++;
+            }
+        }
+        respond(exchange, 200, "{\"took\":" + tookMillis + ",\"errors\":" + errors + ",\"items\":[" + items + "]}");
+    }
+
+    public long getMgetRequests() {
+        return mgetRequests.get();
+    }
+
+    public long getMgetItems() {
+        return mgetItems.get();
+    }
+
+    /**
+     * id 以 missing 开头的文档不存在
+     */
+    private void handleMget(HttpExchange exchange) throws IOException {
+        mgetRequests.incrementAndGet();
+        Matcher matcher = Pattern.compile("\"_id\"\\s*:\\s*\"([^\"]+)\"").matcher(readBody(exchange));
+        StringBuilder docs = new StringBuilder();
+        while (matcher.find()) {
+            mgetItems.incrementAndGet();
+            String id = matcher.group(1);
+            if (docs.length() > 0) {
+                docs.append(',');
+            }
+            if (id.startsWith("no-index")) {
+                //模拟索引不存在的条目
+                docs.append("{\"_index\":\"no-index\",\"_id\":\"").append(id)
+                        .append("\",\"error\":{\"root_cause\":[{\"type\":\"index_not_found_exception\",")
+                        .append("\"reason\":\"no such index [no-index]\",\"index\":\"no-index\"}],")
+                        .append("\"type\":\"index_not_found_exception\",\"reason\":\"no such index [no-index]\",")
+                        .append("\"index\":\"no-index\"}}");
+                continue;
+            }
+            docs.append("{\"_index\":\"posts\",\"_type\":\"_doc\",\"_id\":\"").append(id).append('"');
+            if (id.startsWith("missing")) {
+                docs.append(",\"found\":false}");
+            } else {
+                docs.append(",\"_version\":1,\"_seq_no\":0,\"_primary_term\":1,\"found\":true,\"_source\":{\"id\":\"")
+                        .append(id).append("\"}}");
+            }
+        }
+        respond(exchange, 200, "{\"docs\":[" + docs + "]}");
+    }
+
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        String body = readBody(exchange);
+        int id = intField(body, "\"id\"\\s*:\\s*(\\d+)", 0);
+        int max = intField(body, "\"max\"\\s*:\\s*(\\d+)", 1);
+        int size = intField(body, "\"size\"\\s*:\\s*(\\d+)", 10);
+        boolean scroll = exchange.getRequestURI().getQuery() != null
+                && exchange.getRequestURI().getQuery().contains("scroll=");
+        if (scroll) {
+            openScrolls.incrementAndGet();
+        }
+        respondHits(exchange, id, max, 0, size, scroll);
+    }
+
+    private void handleScroll(HttpExchange exchange) throws IOException {
+        String body = readBody(exchange);
+        if ("DELETE".equals(exchange.getRequestMethod())) {
+            openScrolls.decrementAndGet();
+            respond(exchange, 200, "{\"succeeded\":true,\"num_freed\":1}");
+            return;
+        }
+        Matcher matcher = Pattern.compile("\"scroll_id\"\\s*:\\s*\"s(\\d+)_(\\d+)_(\\d+)_(\\d+)\"").matcher(body);
+        if (!matcher.find()) {
+            respond(exchange, 404, "{\"error\":\"search_context_missing_exception\",\"status\":404}");
+            return;
+        }
+        respondHits(exchange, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)),
+                Integer.parseInt(matcher.group(3)), Integer.parseInt(matcher.group(4)), true);
+    }
+
+    /**
+     * 返回 slice 内第 offset 条开始的一页
+     */
+    private void respondHits(HttpExchange exchange, int slice, int max, int offset, int size, boolean scroll)
+            throws IOException {
+        StringBuilder hits = new StringBuilder();
+        int total = 0;
+        int returned = 0;
+        for (int doc = slice; doc < searchDocs; doc += max) {
+            if (total >= offset && returned < size) {
+                if (returned > 0) {
+                    hits.append(',');
+                }
+                hits.append("{\"_index\":\"posts\",\"_type\":\"_doc\",\"_id\":\"").append(doc)
+                        .append("\",\"_score\":null,\"_source\":{\"n\":").append(doc).append("},\"sort\":[")
+                        .append(doc).append("]}");
+                returned++;
+            }
+            total++;
+        }
+        String scrollId = scroll ? "\"_scroll_id\":\"s" + slice + "_" + max + "_" + (offset + returned) + "_" + size + "\"," : "";
+        respond(exchange, 200, "{" + scrollId + "\"took\":" + tookMillis + ",\"timed_out\":false,\"_shards\":{\"total\":"
+                + shards + ",\"successful\":" + shards + ",\"skipped\":0,\"failed\":0},\"hits\":{\"total\":{\"value\":"
+                + total + ",\"relation\":\"eq\"},\"max_score\":null,\"hits\":[" + hits + "]}}");
+    }
+
+    private static int intField(String body, String regex, int defaultValue) {
+        Matcher matcher = Pattern.compile(regex).matcher(body);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : defaultValue;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        StringBuilder body = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                body.append(line);
+            }
+        }
+        return body.toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}